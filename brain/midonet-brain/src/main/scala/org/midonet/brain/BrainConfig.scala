@@ -73,6 +73,8 @@ class C3POConfig(val conf: Config) extends ScheduledMinionConfig[C3POMinion] {
     override def numThreads = conf.getInt(s"$PREFIX.threads")
     override def delayMs = conf.getDuration(s"$PREFIX.delay", TimeUnit.MILLISECONDS)
     override def periodMs = conf.getDuration(s"$PREFIX.period", TimeUnit.MILLISECONDS)
+    def minPeriodMs = conf.getDuration(s"$PREFIX.min_period", TimeUnit.MILLISECONDS)
+    def batchSize = conf.getInt(s"$PREFIX.batch_size")
     def connectionString = conf.getString(s"$PREFIX.connection_string")
     def jdbcDriver = conf.getString(s"$PREFIX.jdbc_driver_class")
     def user = conf.getString(s"$PREFIX.user")
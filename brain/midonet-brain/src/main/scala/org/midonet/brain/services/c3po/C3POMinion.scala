@@ -16,8 +16,16 @@
 
 package org.midonet.brain.services.c3po
 
+import java.util.concurrent.{Executors, RejectedExecutionException, TimeUnit}
+import java.util.{Map => JMap}
+
 import javax.sql.DataSource
 
+import scala.collection.JavaConversions._
+import scala.concurrent.duration._
+import scala.concurrent.{ExecutionContext, Future}
+
+import com.codahale.metrics.{Counter, Gauge, Metric, MetricRegistry, MetricSet}
 import com.google.inject.Inject
 import com.google.protobuf.Message
 
@@ -35,6 +43,7 @@ import org.midonet.cluster.services.c3po.C3POState
 import org.midonet.cluster.storage.MidonetBackendConfig
 import org.midonet.cluster.util.UUIDUtil
 import org.midonet.midolman.state.PathBuilder
+import org.midonet.util.concurrent.{NamedThreadFactory, toFutureOps}
 
 /** The service that translates and imports neutron models into the MidoNet
   * backend storage
@@ -44,13 +53,21 @@ import org.midonet.midolman.state.PathBuilder
   * @param dataSrc API for access to the the Neutron DB
   * @param backend The MidoNet backend service
   * @param curator API for access to ZK for internal uses of the C3PO serviceD/H
+  * @param metrics The registry where the import lag metrics are published
+  *
+  * Tasks are imported in batches of at most batch_size tasks. The next batch
+  * is read from the Neutron DB while the current one is translated and
+  * committed, and batches are imported back-to-back until the Neutron DB has
+  * no more tasks. The service then polls the Neutron DB again after
+  * min_period, doubling the interval up to period while it stays idle.
   */
 class C3POMinion @Inject()(nodeContext: ClusterNode.Context,
                            config: BrainConfig,
                            dataSrc: DataSource,
                            backend: MidonetBackend,
                            curator: CuratorFramework,
-                           backendCfg: MidonetBackendConfig)
+                           backendCfg: MidonetBackendConfig,
+                           metrics: MetricRegistry)
     extends ScheduledClusterMinion(nodeContext, config.c3po) {
 
     private val log = LoggerFactory.getLogger(classOf[C3POMinion])
@@ -66,22 +83,127 @@ class C3POMinion @Inject()(nodeContext: ClusterNode.Context,
                                               nodeContext.nodeId.toString)
     leaderLatch.start()
 
+    private val fetchExecutor = Executors.newSingleThreadExecutor(
+        new NamedThreadFactory("c3po-fetch"))
+    private val fetchContext = ExecutionContext.fromExecutor(fetchExecutor)
+    private val fetchTimeout = 30 seconds
+
+    @volatile private var pollDelayMs = config.c3po.minPeriodMs
+
+    // Import lag, refreshed every time a batch is read.
+    @volatile private var tasksBehind = 0
+    @volatile private var oldestTaskTime = 0L
+    private val tasksImported = new Counter()
+    private val MetricsPrefix = "c3po"
+
+    private val metricSet = new MetricSet {
+        val metrics = Map[String, Metric](
+            "tasksBehind" -> new Gauge[Int] {
+                override def getValue = tasksBehind
+            },
+            "oldestTaskAgeMs" -> new Gauge[Long] {
+                override def getValue =
+                    if (tasksBehind == 0 || oldestTaskTime == 0L) 0L
+                    else System.currentTimeMillis() - oldestTaskTime
+            },
+            "tasksImported" -> tasksImported)
+        override def getMetrics: JMap[String, Metric] = metrics
+    }
+
     protected override val runnable = new Runnable {
-        override def run(): Unit = try {
-            if (!leaderLatch.hasLeadership) {
-                log.debug("NeutronPollingThread doing nothing because this " +
-                          "node is not the leader.")
-                return
+        override def run(): Unit = {
+            val imported = try {
+                if (leaderLatch.hasLeadership) {
+                    importTasks()
+                } else {
+                    log.debug("NeutronPollingThread doing nothing because " +
+                              "this node is not the leader.")
+                    0
+                }
+            } catch {
+                case _: RejectedExecutionException => 0 // Stopping.
+                case ex: Throwable =>
+                    log.error("Unexpected exception in Neutron polling thread.",
+                              ex)
+                    0
             }
+            scheduleNextPoll(imported > 0)
+        }
+    }
 
-            log.debug("Cluster leader; syncing from Neutron DB..")
+    override def doStart(): Unit = {
+        log.info("Starting service: " + this.getClass.getName)
+        metrics.register(MetricsPrefix, metricSet)
+        pool.schedule(runnable, config.c3po.delayMs, TimeUnit.MILLISECONDS)
+        notifyStarted()
+    }
 
-            val lastTaskId = dataMgr.lastProcessedTaskId
-            log.debug(".. last processed task ID: {}.", lastTaskId)
+    override def doStop(): Unit = {
+        // Let a running fetch complete before interrupting it.
+        fetchExecutor.shutdown()
+        try {
+            if (!fetchExecutor.awaitTermination(5, TimeUnit.SECONDS)) {
+                fetchExecutor.shutdownNow()
+            }
+        } catch {
+            case e: InterruptedException =>
+                log.warn("Interrupted while waiting for the fetch thread")
+                fetchExecutor.shutdownNow()
+                Thread.currentThread().interrupt() // preserve status
+        }
+        // Remove the metrics, so that they can be registered again.
+        for (metric <- metricSet.getMetrics.keySet) {
+            metrics.remove(MetricRegistry.name(MetricsPrefix, metric))
+        }
+        super.doStop()
+    }
+
+    /* Polls again right away if the last poll imported any tasks, otherwise
+     * backs off exponentially up to the configured period. */
+    private def scheduleNextPoll(imported: Boolean): Unit = {
+        pollDelayMs =
+            if (imported) 0L
+            else if (pollDelayMs == 0L) config.c3po.minPeriodMs
+            else Math.min(pollDelayMs * 2, config.c3po.periodMs)
+        try pool.schedule(runnable, pollDelayMs, TimeUnit.MILLISECONDS) catch {
+            case _: RejectedExecutionException => // Stopping.
+        }
+    }
+
+    /* Reads the next batch of transactions from the Neutron DB on the fetch
+     * thread, refreshing the lag metrics. */
+    private def fetchBatch(lastTaskId: Int)
+    : Future[List[importer.Transaction]] = Future {
+        try {
+            val backlog = neutronImporter.getBacklog(lastTaskId)
+            tasksBehind = backlog.tasks
+            oldestTaskTime = backlog.oldestTaskTime
+        } catch {
+            case ex: Exception =>
+                log.debug("Failed to read the Neutron DB backlog.", ex)
+        }
+        neutronImporter.getTasksSince(lastTaskId, config.c3po.batchSize)
+    } (fetchContext)
+
+    /* Imports the tasks pending in the Neutron DB, and returns how many. */
+    private def importTasks(): Int = {
+        log.debug("Cluster leader; syncing from Neutron DB..")
+
+        val lastTaskId = dataMgr.lastProcessedTaskId
+        log.debug(".. last processed task ID: {}.", lastTaskId)
 
-            val txns = neutronImporter.getTasksSince(lastTaskId)
+        var imported = 0
+        var txns = fetchBatch(lastTaskId).await(fetchTimeout)
+        while (txns.nonEmpty) {
             log.debug(".. {} transaction(s) to import: {}", txns.size, txns)
 
+            // Read the next batch while this one is committed, unless this
+            // one flushes the storage: the flush task is deleted only once
+            // processed, and reading it again would flush the storage twice.
+            val nextTxns =
+                if (txns.exists(_.isFlushTxn)) null
+                else fetchBatch(txns.last.lastTaskId)
+
             for (txn <- txns) {
                 if (txn.isFlushTxn) {
                     log.info(".. flushing storage")
@@ -90,16 +212,23 @@ class C3POMinion @Inject()(nodeContext: ClusterNode.Context,
                 } else {
                     dataMgr.interpretAndExecTxn(translateTxn(txn))
                 }
+                tasksImported.inc(txn.tasks.size)
+                imported += txn.tasks.size
             }
 
             val newLastTaskId = dataMgr.lastProcessedTaskId
             log.debug(".. updating last processed task ID: {}.", newLastTaskId)
             if (C3POState.NO_TASKS_PROCESSED != newLastTaskId)
                 dataStateUpdater.updateLastProcessedId(newLastTaskId)
-        } catch {
-            case ex: Throwable =>
-                log.error("Unexpected exception in Neutron polling thread.", ex)
+
+            // The next batch read ahead is valid only if it follows the
+            // last task processed.
+            txns = if ((nextTxns ne null) &&
+                       newLastTaskId == txns.last.lastTaskId)
+                       nextTxns.await(fetchTimeout)
+                   else fetchBatch(newLastTaskId).await(fetchTimeout)
         }
+        imported
     }
 
     private def translateTxn(txn: importer.Transaction) =
@@ -125,6 +254,7 @@ class C3POMinion @Inject()(nodeContext: ClusterNode.Context,
     private def initDataManager(): C3POStorageManager = {
         val dataMgr = new C3POStorageManager(storage)
         val pathBldr = new PathBuilder(backendCfg.rootKey)
+        val store = dataMgr.translationStorage
         List(classOf[FloatingIp] -> new FloatingIpTranslator,
              classOf[NeutronHealthMonitor] -> new HealthMonitorTranslator,
              classOf[NeutronLoadBalancerPool] -> new LoadBalancerPoolTranslator,
@@ -133,15 +263,15 @@ class C3POMinion @Inject()(nodeContext: ClusterNode.Context,
              classOf[NeutronLoadBalancerPoolMember] ->
                 new LoadBalancerPoolMemberTranslator,
              classOf[NeutronNetwork] ->
-                new NetworkTranslator(storage, pathBldr),
-             classOf[NeutronRouter] -> new RouterTranslator(storage),
-             classOf[NeutronSubnet] -> new SubnetTranslator(storage),
-             classOf[NeutronPort] -> new PortTranslator(storage, pathBldr),
-             classOf[SecurityGroup] -> new SecurityGroupTranslator(storage),
-             classOf[AgentMembership] -> new AgentMembershipTranslator(storage),
+                new NetworkTranslator(store, pathBldr),
+             classOf[NeutronRouter] -> new RouterTranslator(store),
+             classOf[NeutronSubnet] -> new SubnetTranslator(store),
+             classOf[NeutronPort] -> new PortTranslator(store, pathBldr),
+             classOf[SecurityGroup] -> new SecurityGroupTranslator(store),
+             classOf[AgentMembership] -> new AgentMembershipTranslator(store),
              classOf[NeutronVIP] -> new VipTranslator,
-             classOf[PortBinding] -> new PortBindingTranslator(storage),
-             classOf[NeutronConfig] -> new ConfigTranslator(storage)
+             classOf[PortBinding] -> new PortBindingTranslator(store),
+             classOf[NeutronConfig] -> new ConfigTranslator(store)
         ).asInstanceOf[List[(Class[Message], NeutronTranslator[Message])]]
          .foreach(pair => dataMgr.registerTranslator(pair._1, pair._2))
 
@@ -26,7 +26,7 @@ import scala.util.control.NonFatal
 import com.google.protobuf.Message
 import org.slf4j.LoggerFactory
 
-import org.midonet.brain.services.c3po.translators.{NeutronTranslator, TranslationException}
+import org.midonet.brain.services.c3po.translators.{CachedStorage, NeutronTranslator, TranslationException}
 import org.midonet.cluster.data.storage._
 import org.midonet.cluster.services.c3po.C3POState
 
@@ -76,6 +76,11 @@ final class C3POStorageManager(storage: Storage) {
     private val apiTranslators = new JHashMap[Class[_], NeutronTranslator[_]]()
     private var initialized = false
 
+    /** The storage from which the translators should read. It caches the
+      * reads made while translating a task, and it is cleared once the task
+      * is persisted. */
+    val translationStorage = new CachedStorage(storage)
+
     def registerTranslator[T <: Message](clazz: Class[T],
                                          translator: NeutronTranslator[T])
     : Unit = apiTranslators.put(clazz, translator)
@@ -169,6 +174,8 @@ final class C3POStorageManager(storage: Storage) {
             case NonFatal(e) => throw new ProcessingException(
                 s"Failed to execute task ${task.taskId} " +
                 s"in transaction ${txn.txnId}.", e)
+        } finally {
+            translationStorage.clear()
         }
     }
 
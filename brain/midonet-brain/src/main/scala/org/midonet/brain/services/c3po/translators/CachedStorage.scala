@@ -0,0 +1,88 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.brain.services.c3po.translators
+
+import java.util.concurrent.ConcurrentHashMap
+
+import scala.concurrent.Future
+
+import rx.Observable
+
+import org.midonet.cluster.data.storage.ReadOnlyStorage
+
+/**
+ * A read-only storage that caches the objects read by the Neutron translators
+ * while translating a Neutron task. The cache stores the futures of the reads
+ * rather than their results, so that a translator can issue the reads of all
+ * the objects it needs at once, and the following gets of the same objects
+ * return the read already in flight instead of doing another round-trip to
+ * the underlying storage.
+ *
+ * The cache must be cleared after the translation of a task is persisted, as
+ * persisting it may modify the cached objects, either directly or through
+ * their bindings.
+ */
+class CachedStorage(underlying: ReadOnlyStorage) extends ReadOnlyStorage {
+
+    private val objects = new ConcurrentHashMap[(Class[_], Any), Future[_]]
+    private val existing =
+        new ConcurrentHashMap[(Class[_], Any), Future[Boolean]]
+
+    override def get[T](clazz: Class[T], id: Any): Future[T] = {
+        val key = (clazz, id)
+        val cached = objects.get(key)
+        if (cached ne null) return cached.asInstanceOf[Future[T]]
+
+        val future = underlying.get(clazz, id)
+        val prev = objects.putIfAbsent(key, future)
+        if (prev eq null) future else prev.asInstanceOf[Future[T]]
+    }
+
+    /**
+     * Issues the reads of all the objects that are not cached before waiting
+     * for any of them, so that they are served by the underlying storage in
+     * parallel.
+     */
+    override def getAll[T](clazz: Class[T], ids: Seq[_])
+    : Seq[Future[T]] = {
+        ids.map(get(clazz, _))
+    }
+
+    override def getAll[T](clazz: Class[T]): Future[Seq[T]] = {
+        underlying.getAll(clazz)
+    }
+
+    override def streamAll[T](clazz: Class[T], window: Int): Observable[T] = {
+        underlying.streamAll(clazz, window)
+    }
+
+    override def exists(clazz: Class[_], id: Any): Future[Boolean] = {
+        val key = (clazz, id)
+        val cached = existing.get(key)
+        if (cached ne null) return cached
+
+        val future = underlying.exists(clazz, id)
+        val prev = existing.putIfAbsent(key, future)
+        if (prev eq null) future else prev
+    }
+
+    /** Discards all cached reads. */
+    def clear(): Unit = {
+        objects.clear()
+        existing.clear()
+    }
+}
@@ -106,6 +106,7 @@ class RouterTranslator(protected val storage: ReadOnlyStorage)
          * Neutron gateway port's ID goes to the port on the provider router,
          * while its IP address goes to the port on the tenant router.
          */
+        if (snatEnabled(nr)) prefetchSnatRules(nr.getId)
         val PortPair(neutronGwPort, prGwPort) = getPortPair(nr.getGwPortId)
 
         // Neutron gateway port assumed to have one IP, namely the gateway IP.
@@ -141,6 +142,7 @@ class RouterTranslator(protected val storage: ReadOnlyStorage)
     private def gatewayPortUpdateOps(nr: NeutronRouter,
                                      r: Router): MidoOpList = {
         if (!nr.hasGwPortId) return List()
+        prefetchSnatRules(nr.getId)
         val PortPair(nGwPort, prGwPort) = getPortPair(nr.getGwPortId)
 
         // If the gateway port isn't linked to the router yet, do that.
@@ -219,6 +221,12 @@ class RouterTranslator(protected val storage: ReadOnlyStorage)
              Delete(classOf[Rule], outSnatRuleId(routerId)))
     }
 
+    /* Checks whether the SNAT rules exist while the gateway ports are read,
+     * the result is then taken from the storage cache. */
+    private def prefetchSnatRules(routerId: UUID): Unit = {
+        storage.exists(classOf[Rule], outSnatRuleId(routerId))
+    }
+
     private def snatEnabled(nr: NeutronRouter): Boolean = {
         nr.hasExternalGatewayInfo && nr.getExternalGatewayInfo.getEnableSnat
     }
@@ -234,8 +242,8 @@ class RouterTranslator(protected val storage: ReadOnlyStorage)
      * Gets the Neutron and Midonet ports with the same ID.
      */
     private def getPortPair(portId: UUID): PortPair = {
-        def neutronFuture = storage.get(classOf[NeutronPort], portId)
-        def midonetFuture = storage.get(classOf[Port], portId)
+        val neutronFuture = storage.get(classOf[NeutronPort], portId)
+        val midonetFuture = storage.get(classOf[Port], portId)
         PortPair(neutronFuture.await(), midonetFuture.await())
     }
 }
@@ -20,9 +20,10 @@ import java.util.UUID
 
 import com.google.protobuf.Message
 import org.slf4j.LoggerFactory
-import rx.{Observer, Subscription}
+import rx.{Observer, Producer, Subscriber, Subscription}
 
-import org.midonet.brain.services.topology.server.ServerState.SessionInfo
+import org.midonet.brain.services.topology.server.ServerState.{SessionInfo, SessionSubscriber}
+import org.midonet.brain.services.topology.server.SessionInventory.SessionOptions
 import org.midonet.cluster.models.Commons
 import org.midonet.cluster.rpc.Commands._
 import org.midonet.cluster.services.topology.common.{ProtocolFactory, Interruption}
@@ -43,7 +44,8 @@ object ServerState {
      */
     trait SessionInfo {
         /** try to perform a handshake to the given session id */
-        def handshake(cnxnId: UUID, start: Long): Boolean
+        def handshake(cnxnId: UUID, start: Long,
+                      options: SessionOptions): Boolean
         /** get the observer that will process the outgoing messages */
         def output: Option[Observer[Message]]
         /** get the session associated to the current connection */
@@ -51,6 +53,47 @@ object ServerState {
         /** get the subscription from the output observer to the session
           * observable, if any */
         def subscription: Option[Subscription]
+        /** start sending the session messages to the output observer; this
+          * must be called once the handshake has been acknowledged */
+        def start(): Unit
+    }
+
+    /**
+     * Forwards the messages of a session to the output observer, holding
+     * them until the session is started: when recovering a session, the
+     * messages remaining in it must not be sent before the handshake ack.
+     * If the output is a Subscriber, it also receives the producer of the
+     * session messages, so that it can control their pace.
+     */
+    class SessionSubscriber(out: Observer[Message])
+        extends Subscriber[Response] {
+        private var producer: Producer = null
+        private var started = false
+
+        override def setProducer(p: Producer): Unit = {
+            val forward = this.synchronized {
+                producer = p
+                started
+            }
+            if (forward) resume(p)
+        }
+
+        def start(): Unit = {
+            val p = this.synchronized {
+                started = true
+                producer
+            }
+            if (p != null) resume(p)
+        }
+
+        private def resume(p: Producer): Unit = out match {
+            case s: Subscriber[_] => s.setProducer(p)
+            case _ => p.request(Long.MaxValue)
+        }
+
+        override def onNext(rsp: Response): Unit = out.onNext(rsp)
+        override def onCompleted(): Unit = out.onCompleted()
+        override def onError(exc: Throwable): Unit = out.onError(exc)
     }
 
     def makeAck(id: Commons.UUID) =
@@ -68,13 +111,16 @@ final case class Ready(s: SessionInfo) extends State {
             val hs = m.getHandshake
             val cnxn = fromProto(hs.getCnxnId)
             val seqn = if (hs.hasSeqno) hs.getSeqno else 0
-            if (s.handshake(cnxn, seqn)) {
+            val options = SessionOptions(deltas = hs.getDeltas,
+                                         compression = hs.getCompression)
+            if (s.handshake(cnxn, seqn, options)) {
                 // NOTE: This ack cannot be injected into the session as
                 // a noOp, as it has to be emitted before any messages
                 // remaining in the session, in case of recovery
                 // (otherwise, the client would reject any prior messages
                 // before the handshake ack)
                 s.output foreach {_.onNext(makeAck(hs.getReqId))}
+                s.start()
                 Active(s)
             } else {
                 s.output.foreach(obs => {
@@ -182,14 +228,16 @@ class ServerProtocolFactory(private val sMgr: SessionInventory)
         val factory = new SessionInfo {
             private val ready: Promise[Session] = Promise[Session]()
             private val pipe: Promise[Subscription] = Promise[Subscription]()
+            private val sessionSubscriber = new SessionSubscriber(out)
 
-            override def handshake(cnxnId: UUID, start: Long) : Boolean = try {
-                val session = sMgr.claim(cnxnId)
+            override def handshake(cnxnId: UUID, start: Long,
+                                   options: SessionOptions) : Boolean = try {
+                val session = sMgr.claim(cnxnId, options)
                 val completionAction =
                     makeAction0 {subscription.foreach({_.unsubscribe()})}
                 val subs = session.observable(start)
                                   .doOnCompleted(completionAction)
-                                  .subscribe(out)
+                                  .subscribe(sessionSubscriber)
                 ready.success(session)
                 pipe.success(subs)
                 true
@@ -203,6 +251,8 @@ class ServerProtocolFactory(private val sMgr: SessionInventory)
 
             override def output: Option[Observer[Message]] = Some(out)
 
+            override def start(): Unit = sessionSubscriber.start()
+
             override def session: Option[Session] =
                 ready.future.value.filter({_.isSuccess}).map({_.get})
 
@@ -19,8 +19,8 @@ package org.midonet.brain.services.topology.server
 
 import java.util.UUID
 import java.util.concurrent.Executors.{newSingleThreadExecutor, newSingleThreadScheduledExecutor}
-import java.util.concurrent.atomic.{AtomicBoolean, AtomicInteger, AtomicReference}
-import java.util.concurrent.{Callable, ConcurrentHashMap, ExecutorService, Future => JavaFuture, TimeUnit}
+import java.util.concurrent.atomic.{AtomicBoolean, AtomicInteger, AtomicLong, AtomicReference}
+import java.util.concurrent.{ConcurrentHashMap, TimeUnit}
 
 import scala.collection.JavaConversions._
 import scala.concurrent.duration.Duration
@@ -32,17 +32,18 @@ import org.slf4j.LoggerFactory
 import rx.Observable.OnSubscribe
 import rx.schedulers.Schedulers
 import rx.subscriptions.BooleanSubscription
-import rx.{Observable, Observer, Subscriber, Subscription}
+import rx.{Observable, Observer, Producer, Subscriber, Subscription}
 
 import org.midonet.cluster.data.storage.{NotFoundException, Storage}
 import org.midonet.cluster.models.Commons
 import org.midonet.cluster.models.Topology._
 import org.midonet.cluster.rpc.Commands.Response.{Info, Redirect, Snapshot, Update}
 import org.midonet.cluster.rpc.Commands.{Response, ResponseType}
+import org.midonet.cluster.services.topology.common.ResponseEncoder
 import org.midonet.cluster.services.topology.common.TopologyMappings.typeOf
 import org.midonet.cluster.util.UUIDUtil.{fromProto, toProto}
-import org.midonet.util.concurrent.SpscRwdRingBuffer.SequencedItem
-import org.midonet.util.concurrent.{CallingThreadExecutionContext, BlockingSpscRwdRingBuffer, NamedThreadFactory}
+import org.midonet.util.concurrent.SpscRwdRingBuffer.{BufferFullException, SequencedItem}
+import org.midonet.util.concurrent.{CallingThreadExecutionContext, NamedThreadFactory, SpscRwdRingBuffer}
 import org.midonet.util.functors.{makeAction0, makeFunc1}
 import org.midonet.util.reactivex.HermitObservable.HermitOversubscribedException
 
@@ -56,6 +57,12 @@ object SessionInventory {
     class SessionExpirationException
         extends TimeoutException("session expired")
 
+    /** The encoding options of the responses of a session
+      * @param deltas send deltas instead of the full updates of the objects
+      * @param compression compress the large payloads */
+    case class SessionOptions(deltas: Boolean = false,
+                              compression: Boolean = false)
+
     /** generate an update response */
     def updateBuilder(m: Message, reqId: UUID = null): Response.Builder = {
         val u: Update = m match {
@@ -161,9 +168,6 @@ object SessionInventory {
     /* Expiration time for non connected sessions, in milliseconds */
     val SESSION_GRACE_PERIOD: Long = 120000
 
-    /* Grace time for executors shutdown, in milliseconds */
-    val EXECUTOR_GRACE_PERIOD: Long = 5000
-
 }
 
 /**
@@ -246,62 +250,89 @@ protected class StorageTransformer(val reqId: UUID)
 /**
  * A class to buffer zoom updates, associating each one of them to a sequence
  * number.
+ * The buffer does not own any thread: the updates are pushed to the
+ * subscriber by whichever thread adds an update or requests more of them
+ * (normally, the zoom data thread and the netty event loop of the
+ * connection), and only as many as requested by the subscriber.
  * @param minCapacity is the minimum size of the buffer
  */
-protected class Buffer(minCapacity: Int, reader: ExecutorService)
+protected class Buffer(minCapacity: Int)
     extends Observer[Response.Builder] {
-    private val subscriber =
-        new AtomicReference[Subscriber[_ >: Response]](null)
-    private val ring =
-        new BlockingSpscRwdRingBuffer[Response.Builder](minCapacity)
+    private val delivery = new AtomicReference[Delivery](null)
+    private val ring = new SpscRwdRingBuffer[Response.Builder](minCapacity)
+    private val wip = new AtomicInteger(0)
+    @volatile
+    private var completed = false
     @volatile
     private var error: Throwable = null
 
-    override def onNext(v: Response.Builder): Unit = ring.add(v)
-    override def onCompleted(): Unit = ring.complete()
+    /** The producer of the updates requested by a given subscriber */
+    private class Delivery(val dest: Subscriber[_ >: Response])
+        extends Producer {
+        val requested = new AtomicLong(0)
+        @volatile
+        var ready = false
+
+        override def request(n: Long): Unit = if (n > 0) {
+            var cur = requested.get()
+            var next = if (cur + n < 0) Long.MaxValue else cur + n
+            while (!requested.compareAndSet(cur, next)) {
+                cur = requested.get()
+                next = if (cur + n < 0) Long.MaxValue else cur + n
+            }
+            drain()
+        }
+
+        def produced(): Unit =
+            if (requested.get() != Long.MaxValue) requested.decrementAndGet()
+    }
+
+    override def onNext(v: Response.Builder): Unit =
+        if (!completed) {
+            if (ring.offer(v)) drain()
+            else onError(new BufferFullException)
+        }
+    override def onCompleted(): Unit = {
+        completed = true
+        drain()
+    }
     override def onError(exc: Throwable): Unit = {
         error = exc
-        ring.complete()
+        completed = true
+        drain()
     }
 
-    // The following consumer code is the body of a thread that is created
-    // when subscribed, and killed when unsubscribed; it picks the updates
-    // form the ring buffer and pushes them to the subscriber
-    // NOTE: on exit, the thread returns a 'null' value, making possible
-    // to wait for thread termination in the 'unsubscribe' function.
-    private val consumer = new Callable[Null] {
-        override def call(): Null = {
-            var terminated = false
-            try {
-                while (!terminated) {
-                    (ring.awaitPoll(), subscriber.get) match {
-                        case (_, null) =>
-                            terminated = true
-                        case (None, dest) if ring.isComplete =>
-                            terminated = true
-                            if (error != null) dest.onError(error)
-                            else dest.onCompleted()
-                        case (None, dest) =>
-                            terminated = true
-                        case (Some(SequencedItem(n, i)), dest) =>
-                            dest.onNext(i.setSeqno(n).build())
-                    }
-                }
-            } catch {
-                case int: InterruptedException =>
-                    Thread.currentThread().interrupt()
-            }
-            null
+    // Only one thread at a time drains the buffer: the other ones just
+    // signal the draining thread that there may be new updates or requests.
+    // NOTE: reads from the ring buffer must be done holding the buffer lock,
+    // so that a new subscription cannot rewind the ring buffer in the middle
+    // of a read.
+    private def drain(): Unit = if (wip.getAndIncrement() == 0) {
+        var missed = 1
+        while (missed != 0) {
+            this.synchronized { deliver() }
+            missed = wip.addAndGet(-missed)
         }
     }
 
-    // future thread return value (for final join)
-    private val threadResult = new AtomicReference[JavaFuture[Null]](null)
-    private def waitForConsumerTermination(): Unit = {
-        val termination = threadResult.getAndSet(null)
-        if (termination != null) {
-            ring.pauseRead()
-            termination.get()
+    private def deliver(): Unit = {
+        val d = delivery.get()
+        if (d != null && d.ready) {
+            var idle = false
+            while (!idle && d.requested.get() > 0 && delivery.get() == d &&
+                   !d.dest.isUnsubscribed) {
+                ring.poll() match {
+                    case Some(SequencedItem(n, i)) =>
+                        d.produced()
+                        d.dest.onNext(i.setSeqno(n).build())
+                    case None =>
+                        idle = true
+                }
+            }
+            if (completed && ring.isEmpty && delivery.compareAndSet(d, null)) {
+                if (error != null) d.dest.onError(error)
+                else d.dest.onCompleted()
+            }
         }
     }
 
@@ -309,28 +340,26 @@ protected class Buffer(minCapacity: Int, reader: ExecutorService)
      * Subscribe to the ring buffer at the specified position
      */
     def subscribe(s: Subscriber[_ >: Response], seqno: Long): Subscription = {
-        if (!subscriber.compareAndSet(null, s))
+        val d = new Delivery(s)
+        if (!delivery.compareAndSet(null, d))
             throw new HermitOversubscribedException
-        ring.resumeRead()
-        ring.seek(seqno)
-        threadResult.set(reader.submit(consumer))
+        try {
+            this.synchronized { ring.seek(seqno) }
+        } catch {
+            case exc: Throwable =>
+                delivery.compareAndSet(d, null)
+                throw exc
+        }
+        d.ready = true
         val subs = BooleanSubscription.create(
             // on unsubscribe:
-            makeAction0
-            {
-                if (subscriber.get() == s) {
-                    waitForConsumerTermination()
-                    subscriber.set(null)
-                }
-            })
+            makeAction0 {delivery.compareAndSet(d, null)})
         s.add(subs)
+        s.setProducer(d)
         subs
     }
 
-    def stop(): Unit = {
-        ring.complete()
-        waitForConsumerTermination()
-    }
+    def stop(): Unit = onCompleted()
 }
 
 /** A collection of Sessions indexed by a session id. */
@@ -345,25 +374,35 @@ class SessionInventory(private val store: Storage,
       * point in time. */
     private val inventory = new ConcurrentHashMap[Any, Session]()
 
-    def claim(sessionId: UUID): Session = {
+    def claim(sessionId: UUID): Session =
+        claim(sessionId, SessionInventory.SessionOptions())
+
+    /** Claim a session, creating it with the given options if it does not
+      * exist (the options are ignored for existing sessions) */
+    def claim(sessionId: UUID, options: SessionInventory.SessionOptions)
+        : Session = {
         inventory.getOrElseUpdate(sessionId, {
             log.debug("New subscription Aggregator for session: {}", sessionId)
-            makeSession(sessionId)
+            makeSession(sessionId, options)
         })
     }
 
-    private def makeSession(sessionId: UUID): Session = new Session {
+    private def makeSession(sessionId: UUID,
+                            options: SessionInventory.SessionOptions)
+        : Session = new Session {
 
         import org.midonet.brain.services.topology.server.SessionInventory._
 
-        private val senderExecutor = newSingleThreadExecutor(
-            new NamedThreadFactory("topology-session-sender"))
         private val scheduler = Schedulers.from(dataExecutor)
 
         private val funnel = new Aggregator[ObservableId, Response.Builder]()
-        private val buffer = new Buffer(bufferSize, senderExecutor)
+        private val buffer = new Buffer(bufferSize)
+        private val encoder =
+            new ResponseEncoder(options.deltas, options.compression)
         private val bufferSubscription =
-            funnel.observable().observeOn(scheduler).subscribe(buffer)
+            funnel.observable().observeOn(scheduler)
+                  .map[Response.Builder](makeFunc1(encoder.encode))
+                  .subscribe(buffer)
 
         private val session = this
 
@@ -434,10 +473,6 @@ class SessionInventory(private val store: Storage,
                 inventory.remove(sessionId)
                 bufferSubscription.unsubscribe()
                 buffer.stop()
-                senderExecutor.shutdown()
-                if (!senderExecutor.awaitTermination(EXECUTOR_GRACE_PERIOD,
-                                                     TimeUnit.MILLISECONDS))
-                    senderExecutor.shutdownNow()
                 expirationComplete.success(true)
             }
         }
@@ -27,6 +27,7 @@ import scala.collection.JavaConverters._
 import scala.concurrent.ExecutionContext.Implicits.global
 import scala.util.{Random, Try}
 
+import com.codahale.metrics.MetricRegistry
 import com.fasterxml.jackson.databind.JsonNode
 import com.fasterxml.jackson.databind.node.JsonNodeFactory
 import com.typesafe.config.ConfigFactory
@@ -109,6 +110,8 @@ class C3POMinionTestBase extends FlatSpec with BeforeAndAfter
     val C3PO_CFG_OBJECT = ConfigFactory.parseString(
         s"""
           |brain.neutron_importer.period : 100ms
+          |brain.neutron_importer.min_period : 10ms
+          |brain.neutron_importer.batch_size : 2
           |brain.neutron_importer.delay : 0
           |brain.neutron_importer.enabled : true
           |brain.neutron_importer.with : ${classOf[C3POMinion].getName}
@@ -272,7 +275,8 @@ class C3POMinionTestBase extends FlatSpec with BeforeAndAfter
 
             val nodeCtx = new Context(UUID.randomUUID())
             c3po = new C3POMinion(nodeCtx, brainCfg, dataSrc,
-                                  backend, curator, backendCfg)
+                                  backend, curator, backendCfg,
+                                  new MetricRegistry)
             c3po.startAsync()
             c3po.awaitRunning(2, TimeUnit.SECONDS)
 
@@ -603,6 +607,27 @@ class C3POMinionTest extends C3POMinionTestBase {
         }
     }
 
+    it should "import transactions larger than the batch size" in {
+        // The batch size is 2 tasks, so some of these transactions span
+        // several batches and others are cut by the batch limit.
+        val networkIds = List.fill(7)(UUID.randomUUID())
+        val txnIds = List("tx1", "tx1", "tx1", "tx2", "tx3", "tx3", "tx3")
+        val tasks = for (((id, txnId), i) <- networkIds.zip(txnIds)
+                                                       .zipWithIndex) yield {
+            insertTaskSql(id = i + 2, Create, NetworkType,
+                          networkJson(id, "tenant1", s"net$i").toString,
+                          id, txnId)
+        }
+        executeSqlStmts(tasks: _*)
+
+        eventually {
+            for (id <- networkIds) {
+                storage.exists(classOf[Network], id).await() shouldBe true
+            }
+            getLastProcessedIdFromTable shouldBe Some(8)
+        }
+    }
+
     it should "execute VIF port CRUD tasks" in {
         // Creates Network 1.
         val network1Uuid = UUID.randomUUID()
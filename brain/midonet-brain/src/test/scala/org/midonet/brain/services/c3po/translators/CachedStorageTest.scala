@@ -0,0 +1,96 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.brain.services.c3po.translators
+
+import scala.concurrent.Promise
+
+import org.junit.runner.RunWith
+import org.mockito.Mockito.{mock, times, verify, when}
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{BeforeAndAfter, FlatSpec, Matchers}
+
+import org.midonet.cluster.data.storage.ReadOnlyStorage
+import org.midonet.cluster.models.Topology.{Chain, Rule}
+import org.midonet.cluster.util.UUIDUtil.randomUuidProto
+
+@RunWith(classOf[JUnitRunner])
+class CachedStorageTest extends FlatSpec with BeforeAndAfter with Matchers {
+
+    private var underlying: ReadOnlyStorage = _
+    private var storage: CachedStorage = _
+
+    private val chainId1 = randomUuidProto
+    private val chainId2 = randomUuidProto
+    private val chain1 = Chain.newBuilder.setId(chainId1).build()
+    private val chain2 = Chain.newBuilder.setId(chainId2).build()
+
+    before {
+        underlying = mock(classOf[ReadOnlyStorage])
+        storage = new CachedStorage(underlying)
+    }
+
+    "CachedStorage" should "read an object from storage only once" in {
+        when(underlying.get(classOf[Chain], chainId1))
+            .thenReturn(Promise.successful(chain1).future)
+
+        storage.get(classOf[Chain], chainId1).value.get.get shouldBe chain1
+        storage.get(classOf[Chain], chainId1).value.get.get shouldBe chain1
+        verify(underlying, times(1)).get(classOf[Chain], chainId1)
+    }
+
+    it should "issue all the reads of a batch before any completes" in {
+        val promise1 = Promise[Chain]()
+        val promise2 = Promise[Chain]()
+        when(underlying.get(classOf[Chain], chainId1))
+            .thenReturn(promise1.future)
+        when(underlying.get(classOf[Chain], chainId2))
+            .thenReturn(promise2.future)
+
+        val futures = storage.getAll(classOf[Chain], List(chainId1, chainId2))
+        verify(underlying).get(classOf[Chain], chainId1)
+        verify(underlying).get(classOf[Chain], chainId2)
+        futures.exists(_.isCompleted) shouldBe false
+
+        promise1.success(chain1)
+        promise2.success(chain2)
+        futures.map(_.value.get.get) shouldBe List(chain1, chain2)
+
+        // Later reads of the same objects are served by the pending reads.
+        storage.get(classOf[Chain], chainId2) shouldBe futures(1)
+        verify(underlying, times(1)).get(classOf[Chain], chainId2)
+    }
+
+    it should "cache the existence checks" in {
+        val ruleId = randomUuidProto
+        when(underlying.exists(classOf[Rule], ruleId))
+            .thenReturn(Promise.successful(true).future)
+
+        storage.exists(classOf[Rule], ruleId).value.get.get shouldBe true
+        storage.exists(classOf[Rule], ruleId).value.get.get shouldBe true
+        verify(underlying, times(1)).exists(classOf[Rule], ruleId)
+    }
+
+    it should "read the objects again once cleared" in {
+        when(underlying.get(classOf[Chain], chainId1))
+            .thenReturn(Promise.successful(chain1).future)
+
+        storage.get(classOf[Chain], chainId1)
+        storage.clear()
+        storage.get(classOf[Chain], chainId1)
+        verify(underlying, times(2)).get(classOf[Chain], chainId1)
+    }
+}
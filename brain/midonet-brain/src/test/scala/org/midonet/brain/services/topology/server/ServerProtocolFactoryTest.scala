@@ -25,6 +25,7 @@ import org.scalatest._
 import org.scalatest.junit.JUnitRunner
 import rx.{Observable, Observer}
 
+import org.midonet.brain.services.topology.server.SessionInventory.SessionOptions
 import org.midonet.cluster.rpc.Commands
 import org.midonet.cluster.rpc.Commands.ResponseType
 import org.midonet.cluster.util.UUIDUtil
@@ -68,7 +69,7 @@ class ServerProtocolFactoryTest extends FeatureSpec with Matchers {
             Mockito.when(session.observable()).thenReturn(sessionOutput)
 
             val si = Mockito.mock(classOf[SessionInventory])
-            Mockito.when(si.claim(cnxUuid)).thenReturn(session)
+            Mockito.when(si.claim(cnxUuid, SessionOptions())).thenReturn(session)
 
             val out = Mockito.mock(classOf[Observer[Message]])
 
@@ -85,7 +86,7 @@ class ServerProtocolFactoryTest extends FeatureSpec with Matchers {
             resp.getValue.getType shouldBe ResponseType.ACK
             resp.getValue.getReqId shouldBe reqId
 
-            Mockito.verify(si, Mockito.times(1)).claim(cnxUuid)
+            Mockito.verify(si, Mockito.times(1)).claim(cnxUuid, SessionOptions())
 
             next.isInstanceOf[Active] shouldBe true
         }
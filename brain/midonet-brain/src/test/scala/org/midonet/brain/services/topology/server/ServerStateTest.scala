@@ -27,6 +27,7 @@ import org.slf4j.LoggerFactory
 import rx.{Observer, Subscription}
 
 import org.midonet.brain.services.topology.server.ServerState.SessionInfo
+import org.midonet.brain.services.topology.server.SessionInventory.SessionOptions
 import org.midonet.cluster.models.{Commons, Topology}
 import org.midonet.cluster.rpc.Commands.Request._
 import org.midonet.cluster.rpc.Commands.{Request, Response}
@@ -120,13 +121,17 @@ class ServerStateTest extends FlatSpec with Matchers {
         override def subscription: Option[Subscription] = Some(subs)
         override def session: Option[Session] = Some(sess)
         override def output: Option[Observer[Message]] = None
-        override def handshake(cnxnId: UUID, start: Long): Boolean = true
+        override def handshake(cnxnId: UUID, start: Long,
+                               options: SessionOptions): Boolean = true
+        override def start(): Unit = {}
     }
     def badfactory = new SessionInfo {
         override def subscription: Option[Subscription] = None
         override def session: Option[Session] = None
         override def output: Option[Observer[Message]] = None
-        override def handshake(cnxnId: UUID, start: Long): Boolean = false
+        override def handshake(cnxnId: UUID, start: Long,
+                               options: SessionOptions): Boolean = false
+        override def start(): Unit = {}
     }
 
     behavior of "Ready"
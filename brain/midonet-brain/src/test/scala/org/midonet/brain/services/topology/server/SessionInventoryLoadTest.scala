@@ -0,0 +1,140 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.brain.services.topology.server
+
+import java.util.UUID
+import java.util.concurrent.{CountDownLatch, ExecutorService, Executors, TimeUnit}
+
+import com.google.protobuf.Message
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{BeforeAndAfter, FeatureSpec, Matchers}
+import rx.Subscriber
+
+import org.midonet.cluster.data.storage.{InMemoryStorage, Storage}
+import org.midonet.cluster.models.Topology
+import org.midonet.cluster.models.Topology.Network
+import org.midonet.cluster.rpc.Commands.Request
+import org.midonet.cluster.rpc.Commands.Request.{Bye, Get, Handshake}
+import org.midonet.cluster.services.topology.common.ProtocolFactory.State
+import org.midonet.cluster.util.UUIDUtil
+import org.midonet.util.concurrent.NamedThreadFactory
+
+/**
+ * Simulates several thousand Topology API clients, connected to a server
+ * backed by an in-memory storage, all of them watching the same network.
+ */
+@RunWith(classOf[JUnitRunner])
+class SessionInventoryLoadTest extends FeatureSpec
+                                       with Matchers
+                                       with BeforeAndAfter {
+    val CLIENTS = 5000
+    val UPDATES = 20
+    val WINDOW = 4
+    val WAIT_TIME_MS = 60000
+
+    // Simulated netty event loops
+    val LOOPS = 4
+
+    var store: Storage = _
+    var loops: ExecutorService = _
+
+    /** A client that, like the server connections, requests a new message
+      * each time it is done with a previous one, from an event loop */
+    class Client(expected: Int) extends Subscriber[Message] {
+        val pending = new CountDownLatch(expected)
+        request(WINDOW)
+
+        private val next = new Runnable {
+            override def run(): Unit = request(1)
+        }
+
+        override def onNext(msg: Message): Unit = {
+            pending.countDown()
+            loops.execute(next)
+        }
+        override def onCompleted(): Unit = {}
+        override def onError(e: Throwable): Unit = {}
+    }
+
+    def handshake() = Request.newBuilder().setHandshake(
+        Handshake.newBuilder()
+            .setCnxnId(UUIDUtil.randomUuidProto)
+            .setReqId(UUIDUtil.randomUuidProto)).build()
+
+    def watch(id: UUID) = Request.newBuilder().setGet(
+        Get.newBuilder()
+            .setReqId(UUIDUtil.randomUuidProto)
+            .setId(UUIDUtil.toProto(id))
+            .setType(Topology.Type.NETWORK)
+            .setSubscribe(true)).build()
+
+    def bye() = Request.newBuilder().setBye(
+        Bye.newBuilder().setReqId(UUIDUtil.randomUuidProto)).build()
+
+    def network(id: UUID, name: String) = Network.newBuilder()
+        .setId(UUIDUtil.toProto(id))
+        .setName(name)
+        .build()
+
+    before {
+        store = new InMemoryStorage
+        store.registerClass(classOf[Network])
+        store.build()
+        loops = Executors.newFixedThreadPool(
+            LOOPS, new NamedThreadFactory("simulated-event-loop"))
+    }
+
+    after {
+        loops.shutdownNow()
+    }
+
+    feature("the topology service scales with the number of sessions") {
+        scenario("several thousand clients watch the same network") {
+            val factory = new ServerProtocolFactory(new SessionInventory(store))
+            val id = UUID.randomUUID()
+            store.create(network(id, "network-0"))
+
+            // Warm up the shared executors before counting the threads
+            val warmUp = new Client(3)
+            factory.start(warmUp).process(handshake()).process(watch(id))
+            warmUp.pending.await(WAIT_TIME_MS, TimeUnit.MILLISECONDS) shouldBe true
+            val threads = Thread.activeCount()
+
+            // Each client gets the handshake and watch acks, the current
+            // state of the network and all its updates
+            val clients = for (i <- 0 until CLIENTS) yield {
+                val client = new Client(UPDATES + 3)
+                val state: State = factory.start(client)
+                (client, state.process(handshake()).process(watch(id)))
+            }
+            for (i <- 1 to UPDATES)
+                store.update(network(id, s"network-$i"))
+
+            val deadline = System.currentTimeMillis() + WAIT_TIME_MS
+            for ((client, _) <- clients) {
+                val left = deadline - System.currentTimeMillis()
+                client.pending.await(left, TimeUnit.MILLISECONDS) shouldBe true
+            }
+
+            // No thread is dedicated to any of the sessions
+            Thread.activeCount() should be <= threads + LOOPS
+
+            for ((_, state) <- clients) state.process(bye())
+        }
+    }
+}
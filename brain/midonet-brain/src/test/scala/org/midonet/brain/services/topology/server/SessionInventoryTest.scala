@@ -17,6 +17,7 @@
 package org.midonet.brain.services.topology.server
 
 import java.util.UUID
+import java.util.concurrent.TimeoutException
 
 import scala.collection.JavaConversions._
 import scala.concurrent.duration._
@@ -27,7 +28,7 @@ import org.junit.runner.RunWith
 import org.scalatest._
 import org.scalatest.junit.JUnitRunner
 
-import rx.observers.TestObserver
+import rx.observers.{TestObserver, TestSubscriber}
 
 import org.midonet.cluster.data.storage.{InMemoryStorage, Storage}
 import org.midonet.cluster.models.Topology._
@@ -605,6 +606,41 @@ class SessionInventoryTest extends FeatureSpec
             events.exists(rsp => isBridge(rsp, oId, "bridge-1")) shouldBe true
         }
     }
+    feature("session flow control")
+    {
+        scenario("deliver only the requested messages")
+        {
+            val sId = UUID.randomUUID()
+            val session = inv.claim(sId)
+            val collector = new TestSubscriber[Response]
+                                with AwaitableObserver[Response] {
+                override def onStart(): Unit = request(1)
+            }
+            val subs = session.observable().subscribe(collector)
+
+            val req = UUID.randomUUID()
+            val oId = UUID.randomUUID()
+            store.create(bridge(oId, "bridge"))
+            session.watch(oId, classOf[Network], req)
+            store.update(bridge(oId, "bridge-1"))
+
+            collector.awaitOnNext(1, WAIT_TIME)
+            a [TimeoutException] should be
+                thrownBy({collector.awaitOnNext(2, 500 millis)})
+            collector.getOnNextEvents.size shouldBe 1
+
+            collector.requestMore(2)
+            collector.awaitOnNext(3, WAIT_TIME)
+            subs.unsubscribe()
+
+            val events = collectionAsScalaIterable(collector.getOnNextEvents).toArray
+            events.size shouldBe 3
+            events.exists(rsp => isAck(rsp, req)) shouldBe true
+            events.exists(rsp => isBridge(rsp, oId, "bridge")) shouldBe true
+            events.exists(rsp => isBridge(rsp, oId, "bridge-1")) shouldBe true
+        }
+    }
+
     feature("disconnection management")
     {
         scenario("retrieve events occurring during disconnect")
@@ -27,7 +27,7 @@ import com.google.protobuf.Message
 
 import org.slf4j.LoggerFactory
 
-import org.midonet.cluster.data.neutron.importer.Transaction
+import org.midonet.cluster.data.neutron.importer.{Backlog, Transaction}
 import org.midonet.cluster.models.Neutron
 import org.midonet.cluster.models.Neutron._
 
@@ -98,6 +98,16 @@ trait NeutronImporter {
       * grouped into Transactions according to transaction ID. */
     def getTasksSince(taskId: Int): List[importer.Transaction]
 
+    /** Gets the tasks with task ID greater than taskId, as getTasksSince,
+      * but reading about maxTasks tasks at most. Only whole transactions are
+      * returned: a transaction cut by the limit is left for the next read,
+      * unless it is the first one, which is then read whole. */
+    def getTasksSince(taskId: Int, maxTasks: Int): List[importer.Transaction]
+
+    /** Gets the number of tasks with task ID greater than taskId, and the
+      * creation time of the oldest of them. */
+    def getBacklog(taskId: Int): importer.Backlog
+
     /** Deletes the specified task. */
     def deleteTask(taskId: Int)
 }
@@ -112,7 +122,10 @@ class SqlNeutronImporter(dataSrc: DataSource) extends NeutronImporter {
                                    "resource_id, transaction_id, data " +
                                    "from midonet_tasks where id > ? or " +
                                    s"(id = 1 and type = '${TaskType.Flush.id}') " +
-                                   "order by id"
+                                   "order by id limit ?"
+
+    private val BACKLOG_QUERY = "select count(*), min(created_at) " +
+                                "from midonet_tasks where id > ?"
 
     private val idCol = 1
     private val typeCol = 2
@@ -122,14 +135,34 @@ class SqlNeutronImporter(dataSrc: DataSource) extends NeutronImporter {
     private val dataCol = 6
 
     override def getTasksSince(taskId: Int): List[Transaction] = {
+        getTasksSince(taskId, Int.MaxValue)
+    }
+
+    override def getTasksSince(taskId: Int,
+                               maxTasks: Int): List[Transaction] = {
+        val con = dataSrc.getConnection
+        try getTasksSince(taskId, maxTasks, con) finally con.close()
+    }
+
+    override def getBacklog(taskId: Int): Backlog = {
         val con = dataSrc.getConnection
-        try getTasksSince(taskId, con) finally con.close()
+        try {
+            val stmt = con.prepareStatement(BACKLOG_QUERY)
+            stmt.setInt(1, taskId)
+            val rslt = stmt.executeQuery()
+            rslt.next()
+            val oldest = rslt.getTimestamp(2)
+            Backlog(rslt.getInt(1),
+                    if (oldest == null) 0L else oldest.getTime)
+        } finally con.close()
     }
 
-    private def getTasksSince(taskId: Int,
+    private def getTasksSince(taskId: Int, maxTasks: Int,
                               con: Connection): List[Transaction] = {
-        log.debug("Querying Neutron DB for tasks with ID > {}", taskId)
-        val rslt = queryTasksSince(taskId, con)
+        log.debug("Querying Neutron DB for at most {} tasks with ID > {}",
+                  maxTasks, taskId)
+        val rslt = queryTasksSince(taskId, maxTasks, con)
+        var numTasks = 0
         val txns = ListBuffer[Transaction]()
         var lastTxnId: String = null
         val txnTasks = ListBuffer[importer.Task]()
@@ -157,19 +190,28 @@ class SqlNeutronImporter(dataSrc: DataSource) extends NeutronImporter {
             }
 
             txnTasks += row.toTask
+            numTasks += 1
         }
 
-        // Close off the last transaction.
-        if (lastTxnId != null)
+        if (numTasks >= maxTasks && lastTxnId != null) {
+            // The limit may have cut the last transaction. Leave it for the
+            // next read or, if it is the only one, read it with a higher limit.
+            if (txns.isEmpty)
+                return getTasksSince(taskId, maxTasks * 2, con)
+        } else if (lastTxnId != null) {
+            // Close off the last transaction.
             txns += buildTxn()
+        }
 
         log.debug("Received {} transactions from Neutron DB.", txns.size)
         txns.toList
     }
 
-    private def queryTasksSince(lastTaskId: Int, con: Connection): ResultSet = {
+    private def queryTasksSince(lastTaskId: Int, maxTasks: Int,
+                                con: Connection): ResultSet = {
         val stmt = con.prepareStatement(NEW_TASKS_QUERY)
         stmt.setInt(1, lastTaskId)
+        stmt.setInt(2, maxTasks)
         val rslt = stmt.executeQuery()
         rslt
     }
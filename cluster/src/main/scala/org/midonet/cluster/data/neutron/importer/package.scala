@@ -43,4 +43,8 @@ package object importer {
         val isFlushTxn = tasks.size == 1 && tasks(0).isInstanceOf[Flush]
     }
 
+    /** The number of tasks pending import from NeutronDB, and the creation
+      * time in milliseconds of the oldest of them, or 0 if there is none. */
+    case class Backlog(tasks: Int, oldestTaskTime: Long)
+
 }
@@ -27,6 +27,7 @@ import scala.collection.concurrent.TrieMap
 import scala.collection.mutable
 import scala.concurrent.duration._
 import scala.concurrent.{ExecutionContext, Future}
+import scala.util.{Failure, Success}
 
 import com.google.common.collect.ArrayListMultimap
 import com.google.protobuf.Message
@@ -479,6 +480,22 @@ class InMemoryStorage extends StorageWithOwnership {
         classes.get(clazz).asInstanceOf[ClassNode[T]].getAll
     }
 
+    override def streamAll[T](clazz: Class[T], window: Int): Observable[T] = {
+        assertBuilt()
+        assert(isRegistered(clazz))
+
+        Observable.create(new OnSubscribe[T] {
+            override def call(sub: Subscriber[_ >: T]): Unit = {
+                getAll(clazz).onComplete {
+                    case Success(objs) =>
+                        objs foreach sub.onNext
+                        sub.onCompleted()
+                    case Failure(e) => sub.onError(e)
+                }
+            }
+        })
+    }
+
     override def getOwners(clazz: Class[_], id: ObjId): Future[Set[String]] = {
         assertBuilt()
         assert(isRegistered(clazz))
@@ -628,5 +645,6 @@ object InMemoryStorage {
     final val IOTimeout = 5 seconds
 
     private def copyObj[T](obj: T): T =
-        deserialize(serialize(obj.asInstanceOf[Obj]), obj.getClass)
+        deserialize(serialize(obj.asInstanceOf[Obj], binary = true),
+                    obj.getClass)
 }
@@ -181,6 +181,17 @@ trait ReadOnlyStorage {
      */
     def getAll[T](clazz: Class[T]): Future[Seq[T]]
 
+    /**
+     * Asynchronous method that streams all the instances of the specified
+     * class from the storage. The returned observable emits the objects as
+     * they are retrieved, in no particular order, and completes when all of
+     * them have been emitted. At most `window` objects are requested from the
+     * storage at any time, such that large classes can be loaded without
+     * flooding the storage with requests. Objects deleted while the class is
+     * being read are omitted.
+     */
+    def streamAll[T](clazz: Class[T], window: Int): Observable[T]
+
     /**
      * Asynchronous method that indicated if the specified object exists in the
      * storage.
@@ -138,6 +138,76 @@ abstract class TransactionManager(classes: ClassesMap, bindings: BindingsMap) {
 
     protected def commit(): Unit
 
+    /**
+     * Returns the snapshots of the specified objects, omitting those that do
+     * not exist. This allows an implementation to read several objects at
+     * once, instead of one at a time with getSnapshot(). The default
+     * implementation returns no snapshots, in which case all objects are read
+     * on demand.
+     */
+    protected def getSnapshots(keys: Seq[Key]): Map[Key, ObjSnapshot] =
+        Map.empty
+
+    /**
+     * Loads into the cache the objects that the specified operations are
+     * expected to read, before any of them is applied: the objects they
+     * update or delete, and the objects referenced by the objects they create
+     * or update. The objects referenced by the current state of the updated
+     * or deleted objects are loaded in a second round. Any other objects,
+     * such as those deleted in cascade, are read on demand.
+     */
+    def prefetch(ops: Seq[PersistenceOp]): Unit = {
+        val targets = new mutable.LinkedHashSet[Key]
+        val references = new mutable.LinkedHashSet[Key]
+
+        // Unregistered classes are left for the operations to report.
+        def addReferences(obj: Obj): Unit = {
+            for (binding <- bindings.get(obj.getClass).asScala;
+                 thatId <- binding.getFwdReferenceAsList(obj).asScala) {
+                references += getKey(binding.getReferencedClass, thatId)
+            }
+        }
+        def addTarget(clazz: Class[_], id: ObjId): Unit = {
+            if (isRegistered(clazz)) targets += getKey(clazz, id)
+        }
+        def addUpdate(obj: Obj): Unit = {
+            if (isRegistered(obj.getClass)) {
+                targets += getKey(obj.getClass, getObjectId(obj))
+                addReferences(obj)
+            }
+        }
+
+        ops foreach {
+            case CreateOp(obj) => addReferences(obj)
+            case CreateWithOwnerOp(obj, _) => addReferences(obj)
+            case UpdateOp(obj, _) => addUpdate(obj)
+            case UpdateWithOwnerOp(obj, _, _) => addUpdate(obj)
+            case UpdateOwnerOp(clazz, id, _, _) => addTarget(clazz, id)
+            case DeleteOp(clazz, id, _) => addTarget(clazz, id)
+            case DeleteWithOwnerOp(clazz, id, _) => addTarget(clazz, id)
+            case DeleteOwnerOp(clazz, id, _) => addTarget(clazz, id)
+            case _ => // Node operations don't read objects.
+        }
+
+        def load(keys: Iterable[Key]): Map[Key, ObjSnapshot] = {
+            val missing = keys.filterNot(objCache.contains).toSeq
+            if (missing.isEmpty) Map.empty else {
+                val snapshots = getSnapshots(missing)
+                for ((key, snapshot) <- snapshots) {
+                    objCache(key) = Some(snapshot)
+                }
+                snapshots
+            }
+        }
+
+        val loaded = load(targets ++ references)
+        references.clear()
+        for (key <- targets; snapshot <- loaded.get(key)) {
+            addReferences(snapshot.obj)
+        }
+        load(references)
+    }
+
     /**
      * Gets the specified object from the internal cache. If not found,
      * loads it from Zookeeper and caches it.
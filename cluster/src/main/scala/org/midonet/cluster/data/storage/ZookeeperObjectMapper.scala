@@ -17,7 +17,7 @@ package org.midonet.cluster.data.storage
 
 import java.io.StringWriter
 import java.lang.{Long => JLong}
-import java.util.concurrent.Executors
+import java.util.concurrent.{ConcurrentHashMap, CountDownLatch, LinkedBlockingQueue, RejectedExecutionException, ThreadPoolExecutor, TimeUnit}
 import java.util.concurrent.atomic.AtomicLong
 import java.util.{ConcurrentModificationException, List => JList}
 
@@ -26,12 +26,13 @@ import scala.collection.JavaConversions._
 import scala.collection.JavaConverters._
 import scala.collection.concurrent.TrieMap
 import scala.collection.mutable
-import scala.concurrent.{ExecutionContext, Future, Promise}
+import scala.concurrent.{Future, Promise}
+import scala.util.control.NonFatal
 import scala.util.{Failure, Success}
 
 import com.google.common.annotations.VisibleForTesting
 import com.google.common.collect.ArrayListMultimap
-import com.google.protobuf.{Message, TextFormat}
+import com.google.protobuf.{CodedOutputStream, Message, TextFormat}
 
 import org.apache.curator.framework.CuratorFramework
 import org.apache.curator.framework.api.transaction.CuratorTransactionFinal
@@ -46,12 +47,15 @@ import org.codehaus.jackson.JsonFactory
 import org.codehaus.jackson.map.ObjectMapper
 import org.slf4j.LoggerFactory
 
-import rx.Observable
+import rx.Observable.OnSubscribe
+import rx.{Observable, Subscriber}
 
 import org.midonet.cluster.data.storage.FieldBinding.DeleteAction
 import org.midonet.cluster.data.storage.OwnershipType.OwnershipType
 import org.midonet.cluster.data.storage.TransactionManager._
 import org.midonet.cluster.data.{Obj, ObjId}
+import org.midonet.util.concurrent.NamedThreadFactory
+import org.midonet.util.functors.{makeAction1, makeFunc1, makeRunnable}
 import org.midonet.util.reactivex._
 
 /**
@@ -112,10 +116,20 @@ import org.midonet.util.reactivex._
  * off. In addition, upon initialization a ZOOM sets a watcher to the version
  * number node and it'd be notified if another ZOOM instances bumps the version
  * number to switch to the new version.
+ *
+ * OBJECT FORMAT:
+ * Protobuf objects are read in both the legacy text format and the binary
+ * format, but they are written in text format unless writeBinary is set.
+ * Nodes that predate the binary format can't read it, so writeBinary must
+ * only be enabled once all the nodes sharing the storage are upgraded.
  */
 class ZookeeperObjectMapper(
     private val basePathPrefix: String,
-    private val curator: CuratorFramework) extends StorageWithOwnership {
+    private val curator: CuratorFramework,
+    private val writeBinary: Boolean) extends StorageWithOwnership {
+
+    def this(basePathPrefix: String, curator: CuratorFramework) =
+        this(basePathPrefix, curator, false)
 
     import org.midonet.cluster.data.storage.ZookeeperObjectMapper._
     @volatile private var built = false
@@ -134,9 +148,17 @@ class ZookeeperObjectMapper(
 
     private val allBindings = ArrayListMultimap.create[Class[_], FieldBinding]()
 
-    private val executor = Executors.newCachedThreadPool()
-    private implicit val executionContext =
-        ExecutionContext.fromExecutorService(executor)
+    /* Deserializes the objects streamed by streamAll(), such that large
+     * classes are not deserialized on the Curator event thread. Its threads
+     * exit when idle, and it is shut down by close(). */
+    private val executor = {
+        val threads = Runtime.getRuntime.availableProcessors
+        val pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                                          new LinkedBlockingQueue[Runnable],
+                                          new NamedThreadFactory("zoom-read"))
+        pool.allowCoreThreadTimeOut(true)
+        pool
+    }
 
     private val classInfo =
         new mutable.HashMap[Class[_], ClassInfo]()
@@ -225,6 +247,80 @@ class ZookeeperObjectMapper(
                         stat.getVersion, children)
         }
 
+        /**
+         * Reads the objects in parallel with background requests, and waits
+         * for all of them to complete. The children of an object are requested
+         * as soon as its data shows that it has any. Objects that could not be
+         * read are omitted, so that getSnapshot() reports the error when the
+         * transaction reads them. If the reads don't complete within the
+         * connection timeout, the transaction fails.
+         */
+        override protected def getSnapshots(keys: Seq[Key])
+        : Map[Key, ObjSnapshot] = {
+            val nodes = new ConcurrentHashMap[Key, NodeSnapshot]()
+            val latch = new CountDownLatch(keys.size)
+
+            for (key <- keys) {
+                val path = getPath(key.clazz, key.id)
+                val childrenCallback = new BackgroundCallback {
+                    override def processResult(client: CuratorFramework,
+                                               event: CuratorEvent): Unit = {
+                        if (event.getResultCode == Code.OK.intValue) {
+                            val data = event.getContext.asInstanceOf[Array[Byte]]
+                            nodes.put(key, NodeSnapshot(
+                                data, event.getStat,
+                                event.getChildren.asScala.toSet))
+                        }
+                        latch.countDown()
+                    }
+                }
+                val dataCallback = new BackgroundCallback {
+                    override def processResult(client: CuratorFramework,
+                                               event: CuratorEvent): Unit = {
+                        if (event.getResultCode != Code.OK.intValue) {
+                            latch.countDown()
+                        } else if (event.getStat.getNumChildren > 0) {
+                            try curator.getChildren
+                                       .inBackground(childrenCallback,
+                                                     event.getData)
+                                       .forPath(path)
+                            catch {
+                                case NonFatal(e) => latch.countDown()
+                            }
+                        } else {
+                            nodes.put(key, NodeSnapshot(
+                                event.getData, event.getStat, Set.empty))
+                            latch.countDown()
+                        }
+                    }
+                }
+                try curator.getData.inBackground(dataCallback).forPath(path)
+                catch {
+                    case NonFatal(e) => latch.countDown()
+                }
+            }
+
+            if (!latch.await(curator.getZookeeperClient.getConnectionTimeoutMs,
+                             TimeUnit.MILLISECONDS)) {
+                throw new InternalObjectMapperException(
+                    s"Timed out reading ${keys.size} objects for the " +
+                    "transaction.")
+            }
+
+            val snapshots = Map.newBuilder[Key, ObjSnapshot]
+            for ((key, node) <- nodes.asScala) {
+                if (node.stat.getMzxid > zxid) {
+                    throw new ConcurrentModificationException(
+                        s"${key.clazz.getSimpleName} with ID ${key.id} was " +
+                        "modified during the transaction.")
+                }
+                snapshots += key -> ObjSnapshot(
+                    deserialize(node.data, key.clazz).asInstanceOf[Obj],
+                    node.stat.getVersion, node.children)
+            }
+            snapshots.result()
+        }
+
         override def commit(): Unit = {
             val ops = flattenOps
             var txn =
@@ -232,10 +328,12 @@ class ZookeeperObjectMapper(
 
             for ((Key(clazz, id), txOp) <- ops) txn = txOp match {
                 case TxCreate(obj, _) =>
-                    txn.create.forPath(getPath(clazz, id), serialize(obj)).and
+                    txn.create.forPath(getPath(clazz, id),
+                                       serialize(obj, writeBinary)).and
                 case TxUpdate(obj, ver, ownerOps) =>
                     txn.setData().withVersion(ver)
-                        .forPath(getPath(clazz, id), serialize(obj)).and
+                        .forPath(getPath(clazz, id),
+                                 serialize(obj, writeBinary)).and
                 case TxDelete(ver, ownerOps) =>
                     txn.delete.withVersion(ver).forPath(getPath(clazz, id)).and
                 case TxCreateOwner(owner) =>
@@ -599,35 +697,92 @@ class ZookeeperObjectMapper(
     }
 
     /**
-     * Gets all instances of the specified class from Zookeeper.
+     * Gets all instances of the specified class from Zookeeper, reading at
+     * most DEFAULT_READ_WINDOW objects at a time.
      */
     override def getAll[T](clazz: Class[T]): Future[Seq[T]] = {
+        val all = Promise[Seq[T]]()
+        streamAll(clazz, DEFAULT_READ_WINDOW).toList.subscribe(
+            makeAction1[JList[T]] { list => all trySuccess list.asScala },
+            makeAction1[Throwable] { t => all tryFailure t })
+        all.future
+    }
+
+    /**
+     * Streams all instances of the specified class from Zookeeper. The data
+     * of at most `window` objects is requested at any time, and it is
+     * deserialized on the thread pool of this mapper rather than on the
+     * Curator event thread.
+     */
+    override def streamAll[T](clazz: Class[T], window: Int): Observable[T] = {
         assertBuilt()
         assert(isRegistered(clazz))
+        val path = getPath(clazz)
 
-        val all = Promise[Seq[T]]()
-        val cb = new BackgroundCallback {
-            override def processResult(client: CuratorFramework,
-                                       evt: CuratorEvent): Unit = {
-                assert(CuratorEventType.CHILDREN == evt.getType)
-                Future.sequence(getAll(clazz, evt.getChildren)).onComplete {
-                    case Success(l) => all trySuccess l
-                    case Failure(t) => all tryFailure t
+        val ids = Observable.create(new OnSubscribe[String] {
+            override def call(sub: Subscriber[_ >: String]): Unit = {
+                val cb = new BackgroundCallback {
+                    override def processResult(client: CuratorFramework,
+                                               evt: CuratorEvent): Unit = {
+                        if (evt.getResultCode == Code.OK.intValue) {
+                            evt.getChildren.asScala foreach sub.onNext
+                            sub.onCompleted()
+                        } else {
+                            // Should have created this during class
+                            // registration.
+                            sub.onError(new InternalObjectMapperException(
+                                s"Node $path does not exist in Zookeeper.",
+                                KeeperException.create(
+                                    Code.get(evt.getResultCode), path)))
+                        }
+                    }
                 }
+                curator.getChildren.inBackground(cb).forPath(path)
             }
-        }
+        })
 
-        try {
-            curator.getChildren.inBackground(cb).forPath(getPath(clazz))
-        } catch {
-            case ex: Exception =>
-                // Should have created this during class registration.
-                throw new InternalObjectMapperException(
-                    s"Node ${getPath(clazz)} does not exist in Zookeeper.", ex)
-        }
-        all.future
+        Observable.merge(ids.map[Observable[T]](makeFunc1 { id: String =>
+            objectObservable(clazz, path + "/" + id)
+        }), window)
     }
 
+    /**
+     * An observable that reads the object at the specified path when
+     * subscribed to, and that emits it if it still exists.
+     */
+    private def objectObservable[T](clazz: Class[T], path: String)
+    : Observable[T] = Observable.create(new OnSubscribe[T] {
+        override def call(sub: Subscriber[_ >: T]): Unit = {
+            val cb = new BackgroundCallback {
+                override def processResult(client: CuratorFramework,
+                                           evt: CuratorEvent): Unit = {
+                    if (evt.getResultCode == Code.OK.intValue) {
+                        val data = evt.getData
+                        try executor.execute(makeRunnable {
+                            try {
+                                sub.onNext(deserialize(data, clazz))
+                                sub.onCompleted()
+                            } catch {
+                                case NonFatal(e) => sub.onError(e)
+                            }
+                        }) catch {
+                            case e: RejectedExecutionException =>
+                                sub.onError(new InternalObjectMapperException(
+                                    "The storage is closed.", e))
+                        }
+                    } else if (evt.getResultCode == Code.NONODE.intValue) {
+                        sub.onCompleted()
+                    } else {
+                        sub.onError(new InternalObjectMapperException(
+                            KeeperException.create(
+                                Code.get(evt.getResultCode), path)))
+                    }
+                }
+            }
+            curator.getData.inBackground(cb).forPath(path)
+        }
+    })
+
     @throws[NotFoundException]
     override def getOwners(clazz: Class[_], id: ObjId): Future[Set[String]] = {
         assertBuilt()
@@ -686,6 +841,7 @@ class ZookeeperObjectMapper(
         if (ops.isEmpty) return
 
         val manager = new ZoomTransactionManager(version.longValue())
+        manager.prefetch(ops)
         ops.foreach {
             case CreateOp(obj) => manager.create(obj)
             case CreateWithOwnerOp(obj, owner) => manager.create(obj, owner)
@@ -741,6 +897,64 @@ class ZookeeperObjectMapper(
         log.info(s"Flushed the Storage, bumping the version to $version.")
     }
 
+    /**
+     * Rewrites in binary format the protobuf objects of the registered
+     * classes that are still stored in the legacy text format, and returns
+     * the number of objects rewritten.
+     *
+     * An object is only rewritten if it has not changed since it was read,
+     * so the migration can run while the storage is in use: objects updated
+     * or deleted concurrently are skipped. The migration must only run once
+     * all the nodes write binary objects, otherwise they may keep writing
+     * objects in text format.
+     */
+    @throws[StorageException]
+    def migrateToBinaryFormat(): Int = {
+        assertBuilt()
+        var migrated = 0
+        for (clazz <- classInfo.keys
+             if classOf[Message].isAssignableFrom(clazz)) {
+            val classPath = getPath(clazz)
+            val ids = try curator.getChildren.forPath(classPath).asScala catch {
+                case ex: Exception =>
+                    throw new StorageException(
+                        s"Failure in listing ${clazz.getSimpleName} objects.",
+                        ex)
+            }
+            for (id <- ids) {
+                val path = classPath + "/" + id
+                val stat = new Stat()
+                try {
+                    val data = curator.getData.storingStatIn(stat).forPath(path)
+                    if (isTextMessage(data)) {
+                        val obj = deserialize(data, clazz).asInstanceOf[Obj]
+                        curator.setData().withVersion(stat.getVersion)
+                               .forPath(path, serialize(obj, binary = true))
+                        migrated += 1
+                    }
+                } catch {
+                    case _: NoNodeException | _: BadVersionException =>
+                        log.debug(s"${clazz.getSimpleName} with ID $id was " +
+                                  "modified during the migration, skipping.")
+                    case ex: Exception =>
+                        throw new StorageException(
+                            s"Failure in migrating ${clazz.getSimpleName} " +
+                            s"with ID $id.", ex)
+                }
+            }
+        }
+        log.info(s"Migrated $migrated objects to the binary format.")
+        migrated
+    }
+
+    /**
+     * Releases the threads of this mapper. The mapper must not be used after
+     * it is closed, but the Curator client is left for its owner to close.
+     */
+    def close(): Unit = {
+        executor.shutdown()
+    }
+
     private[storage] def getPath(clazz: Class[_], version: Long) =
         basePath(version) + "/" + clazz.getSimpleName
 
@@ -852,6 +1066,7 @@ class ZookeeperObjectMapper(
 object ZookeeperObjectMapper {
     private val VERSION_NODE = "dataset_version"
     private val INITIAL_ZOOM_DATA_SET_VERSION = 1
+    private val DEFAULT_READ_WINDOW = 256
 
     private[storage] final class MessageClassInfo(clazz: Class[_],
                                                   ownershipType: OwnershipType)
@@ -874,6 +1089,9 @@ object ZookeeperObjectMapper {
         def idOf(obj: Obj) = idField.get(obj)
     }
 
+    private case class NodeSnapshot(data: Array[Byte], stat: Stat,
+                                    children: Set[String])
+
     private final class OwnerMapMethods(owners: Map[String, Int]) {
         def containsIfOwner(owner: Option[String], default: Boolean): Boolean = {
             owner match {
@@ -903,14 +1121,46 @@ object ZookeeperObjectMapper {
         }
     }
 
-    private[storage] def serialize(obj: Obj): Array[Byte] = {
+    /**
+     * Serializes a protobuf message in binary format if binary is set, or in
+     * text format otherwise, and any other object in JSON.
+     */
+    private[storage] def serialize(obj: Obj, binary: Boolean): Array[Byte] = {
         obj match {
-            case msg: Message => serializeMessage(msg)
+            case msg: Message if binary => serializeMessage(msg)
+            case msg: Message => msg.toString.getBytes
             case pojo => serializePojo(pojo)
         }
     }
 
-    private def serializeMessage(msg: Message) = msg.toString.getBytes
+    /**
+     * Protobuf messages in binary format are preceded by this marker byte.
+     * Objects in protobuf text format never start with it, because text
+     * format does not contain NUL characters, so they are read as text.
+     */
+    private[storage] final val BinaryMessageMarker: Byte = 0
+
+    private val defaultInstances = new TrieMap[Class[_], Message]
+
+    private def defaultInstance(clazz: Class[_]): Message = {
+        defaultInstances.getOrElseUpdate(clazz, clazz.getMethod(
+            "getDefaultInstance").invoke(null).asInstanceOf[Message])
+    }
+
+    private def serializeMessage(msg: Message): Array[Byte] = {
+        val data = new Array[Byte](1 + msg.getSerializedSize)
+        data(0) = BinaryMessageMarker
+        val output = CodedOutputStream.newInstance(data, 1, data.length - 1)
+        msg.writeTo(output)
+        output.checkNoSpaceLeft()
+        data
+    }
+
+    /**
+     * Whether the data holds an object in the legacy protobuf text format.
+     */
+    private[storage] def isTextMessage(data: Array[Byte]): Boolean =
+        (data.length == 0) || (data(0) != BinaryMessageMarker)
 
     private def serializePojo(obj: Obj): Array[Byte] = {
         val writer = new StringWriter()
@@ -944,10 +1194,15 @@ object ZookeeperObjectMapper {
     }
 
     private def deserializeMessage[T](data: Array[Byte], clazz: Class[T]): T = {
-        val builderObj = clazz.getMethod("newBuilder").invoke(null)
-        val builder = builderObj.asInstanceOf[Message.Builder]
-        TextFormat.merge(new String(data), builder)
-        builder.build().asInstanceOf[T]
+        val prototype = defaultInstance(clazz)
+        if (isTextMessage(data)) {
+            val builder = prototype.newBuilderForType()
+            TextFormat.merge(new String(data), builder)
+            builder.build().asInstanceOf[T]
+        } else {
+            prototype.getParserForType.parseFrom(data, 1, data.length - 1)
+                     .asInstanceOf[T]
+        }
     }
 
     private def deserializePojo[T](json: Array[Byte], clazz: Class[T]): T = {
@@ -100,8 +100,8 @@ class MidonetBackendService @Inject() (cfg: MidonetBackendConfig,
                                        curator: CuratorFramework)
     extends MidonetBackend {
 
-    private val zoom =
-        new ZookeeperObjectMapper(cfg.rootKey + "/zoom", curator)
+    private val zoom = new ZookeeperObjectMapper(cfg.rootKey + "/zoom",
+                                                 curator, cfg.binaryObjects)
 
     override def store: Storage = zoom
     override def ownershipStore: StorageWithOwnership = zoom
@@ -122,6 +122,7 @@ class MidonetBackendService @Inject() (cfg: MidonetBackendConfig,
     }
 
     protected def doStop(): Unit = {
+        zoom.close()
         curator.close()
         notifyStopped()
     }
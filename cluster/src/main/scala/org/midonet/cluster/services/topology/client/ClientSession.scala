@@ -87,12 +87,17 @@ import org.midonet.util.netty.{ProtoBufWebSocketClientAdapter, ClientFrontEnd, P
  *                  value to recover a disconnected session).
  * @param startAt is the first event that should be retrieved from a lost
  *                session (usually, the last even before disconnection)
+ * @param decoder if not null, the session requests the server to send
+ *                deltas and compressed payloads, which are decoded back
+ *                into full updates by this decoder. The same decoder must
+ *                be used to recover a lost session.
  */
 class ClientSession(val host: String, val port: Int, val wspath: String,
                     val sessionId: UUID = UUID.randomUUID(),
                     val startAt: Long = 0,
                     val senderFactory: MessageSenderFactory
-                    = MessageSender)
+                    = MessageSender,
+                    val decoder: ResponseDecoder = null)
     extends Observer[CommEvent] {
 
     def this(host: String, port: Int) =
@@ -247,7 +252,10 @@ class ClientSession(val host: String, val port: Int, val wspath: String,
                 // check piggy-backed ack
                 if (proto.hasReqId)
                     pending.remove(proto.getReqId).map{_.trySuccess(true)}
-                updateStream.onNext(proto)
+                if (decoder == null)
+                    updateStream.onNext(proto)
+                else
+                    decoder.decode(proto) foreach {updateStream.onNext(_)}
         }
     }
     override protected def onCompleted(): Unit = {
@@ -279,6 +287,8 @@ class ClientSession(val host: String, val port: Int, val wspath: String,
             Commands.Request.Handshake.newBuilder()
                 .setReqId(id)
                 .setCnxnId(UUIDUtil.toProto(sessionId))
+                .setDeltas(decoder != null)
+                .setCompression(decoder != null)
                 .build()
         ).build()
         (id, req)
@@ -20,19 +20,32 @@ import java.util.concurrent.Executors
 import java.util.concurrent.atomic.{AtomicReference, AtomicBoolean}
 
 import scala.concurrent.{ExecutionContext, Promise, Future}
+import scala.util.Success
 
 import com.google.protobuf.Message
 import io.netty.channel.{ChannelFuture, ChannelHandlerContext}
 import io.netty.util.concurrent.GenericFutureListener
 import org.slf4j.LoggerFactory
-import rx.Observer
+import rx.{Producer, Subscriber}
 
+import org.midonet.util.concurrent.CallingThreadExecutionContext
+
+object Connection {
+    /* Maximum number of outgoing messages requested from the producer and
+     * not yet written to the low level channel */
+    val WRITE_WINDOW: Long = 64
+}
 
 /**
  * Connection state holder
  * Note: this class exposes an observer (a subject) to receive the
  * messages that should be sent back through the associated
  * low-level communication channel.
+ * When subscribed to a producer supporting backpressure, the connection
+ * requests a new message each time a previous one is written, so that a
+ * slow channel slows down the producer instead of queuing messages
+ * without bound. Messages sent to the connection before it has a
+ * producer, such as the handshake acks, don't request new ones.
  * @param ctx is the low level communication channel
  * @param protocol is the factory generating the start state for the
  *                 communication protocol
@@ -45,11 +58,16 @@ class Connection(private val ctx: ChannelHandlerContext,
                  private val senderFactory: MessageSenderFactory
                     = MessageSender)
                 (implicit val mgr: ConnectionManager)
-    extends Observer[Message] {
+    extends Subscriber[Message] {
     private val log = LoggerFactory.getLogger(classOf[Connection])
     private val sender: MessageSender = senderFactory.get(ctx)
     private implicit val ec = sender.getWriteExecutionContext
 
+    request(Connection.WRITE_WINDOW)
+
+    // The outgoing messages come from a producer
+    @volatile private var hasProducer = false
+
     // Connection has already been disconnected
     private val terminated = new AtomicBoolean(false)
 
@@ -61,7 +79,14 @@ class Connection(private val ctx: ChannelHandlerContext,
     // Send a message through the low level channel
     private def send(rsp: Message) = if (!terminated.get()) {
         log.debug("outgoing msg: " + rsp)
-        lastSent.set(sender.sendAndFlush(rsp))
+        val sent = sender.sendAndFlush(rsp)
+        lastSent.set(sent)
+        // The write completes in the channel event loop: request the next
+        // message from there, without bouncing to another thread
+        if (hasProducer) sent.onComplete({
+            case Success(true) => request(1)
+            case _ =>
+        })(CallingThreadExecutionContext)
     } else {
         log.debug("discarded msg after disconnect: " + rsp)
     }
@@ -73,6 +98,12 @@ class Connection(private val ctx: ChannelHandlerContext,
         mgr.unregister(ctx)
     }
 
+    // The producer may emit as soon as it is set
+    override def setProducer(p: Producer): Unit = {
+        hasProducer = true
+        super.setProducer(p)
+    }
+
     // Process the messages on the outgoing stream
     override def onCompleted(): Unit =
         lastSent.get.onComplete({case _ => terminate()})
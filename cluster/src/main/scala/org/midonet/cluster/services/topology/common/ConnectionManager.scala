@@ -17,9 +17,6 @@
 package org.midonet.cluster.services.topology.common
 
 import scala.collection.concurrent.TrieMap
-import scala.concurrent.duration.Duration
-import scala.concurrent.{Await, Promise, Future}
-import scala.util.Try
 
 import io.netty.channel.ChannelHandlerContext
 
@@ -30,22 +27,23 @@ import io.netty.channel.ChannelHandlerContext
  *                 the new connections.
  */
 class ConnectionManager(protocol: ProtocolFactory) {
-    private val channels: TrieMap[ChannelHandlerContext, Future[Connection]] =
+    private val channels: TrieMap[ChannelHandlerContext, Connection] =
         new TrieMap()
 
     implicit val mgr: ConnectionManager = this
 
     /**
      * Register and retrieve connection state information
+     * Note: this is called from the netty event loops, so it must never
+     * block; creating a connection has no side effects, so if two threads
+     * race to register the same channel, the connection that is not
+     * registered is simply discarded.
      */
-    def get(ctx: ChannelHandlerContext): Connection = {
-        val conn = Promise[Connection]()
-        channels.putIfAbsent(ctx, conn.future) match {
-            case Some(previous) => Await.result(previous, Duration.Inf)
-            case None => Await.result(
-                conn.complete(Try(new Connection(ctx, protocol))).future,
-                Duration.Inf)
-        }
+    def get(ctx: ChannelHandlerContext): Connection = channels.get(ctx) match {
+        case Some(conn) => conn
+        case None =>
+            val conn = new Connection(ctx, protocol)
+            channels.putIfAbsent(ctx, conn).getOrElse(conn)
     }
 
     /**
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.services.topology.common
+
+import java.io.ByteArrayOutputStream
+import java.util.zip.{Deflater, Inflater}
+
+import scala.collection.JavaConversions._
+import scala.collection.mutable
+
+import com.google.protobuf.{ByteString, Message}
+
+import org.midonet.cluster.models.Commons
+import org.midonet.cluster.models.Topology.Type
+import org.midonet.cluster.rpc.Commands
+import org.midonet.cluster.rpc.Commands.Response.{Delta, Snapshot, Update}
+import org.midonet.cluster.rpc.Commands.ResponseType
+
+/**
+ * Encoding and decoding of the deltas and compressed payloads of the
+ * Topology API responses.
+ */
+object ResponseCodec {
+
+    class UnknownBaseStateException(objType: Type, objId: Commons.UUID)
+        extends IllegalStateException(
+            s"delta without previous state: $objType $objId")
+
+    /* Payloads smaller than this size, in bytes, are never compressed */
+    val COMPRESSION_THRESHOLD = 1024
+
+    private val BUFFER_SIZE = 4096
+
+    /** Get the topology object contained in an update */
+    def unwrap(update: Update): Message =
+        update.getAllFields.values.head.asInstanceOf[Message]
+
+    /** Wrap a topology object (possibly partial) into an update */
+    def wrap(m: Message): Update = {
+        val field = Update.getDescriptor.getFields.find(
+            _.getMessageType == m.getDescriptorForType).get
+        Update.newBuilder().setField(field, m).buildPartial()
+    }
+
+    /**
+     * Compute the changes between two states of a topology object. Singular
+     * fields that changed are cleared and set again; repeated fields that
+     * only got new elements at the end get those elements appended, and
+     * any other modified repeated field is cleared and set again.
+     */
+    def diff(from: Message, to: Message): Delta = {
+        val delta = Delta.newBuilder()
+        val changes = to.newBuilderForType()
+        for (field <- to.getDescriptorForType.getFields) {
+            if (field.isRepeated) {
+                val prev = from.getField(field).asInstanceOf[java.util.List[_]]
+                val next = to.getField(field).asInstanceOf[java.util.List[_]]
+                if (prev != next) {
+                    val appended = next.size > prev.size &&
+                                   next.subList(0, prev.size) == prev
+                    if (!appended)
+                        delta.addClearedFields(field.getNumber)
+                    val added: Seq[Any] =
+                        if (appended) next.drop(prev.size) else next
+                    for (value <- added)
+                        changes.addRepeatedField(field, value)
+                }
+            } else if (from.hasField(field) != to.hasField(field) ||
+                       from.getField(field) != to.getField(field)) {
+                delta.addClearedFields(field.getNumber)
+                if (to.hasField(field))
+                    changes.setField(field, to.getField(field))
+            }
+        }
+        delta.setChanges(wrap(changes.buildPartial())).build()
+    }
+
+    /** Apply the changes in a delta to the previous state of an object */
+    def patch(base: Message, delta: Delta): Message = {
+        val builder = base.toBuilder
+        val descriptor = base.getDescriptorForType
+        for (number <- delta.getClearedFieldsList)
+            builder.clearField(descriptor.findFieldByNumber(number))
+        builder.mergeFrom(unwrap(delta.getChanges)).build()
+    }
+
+    def deflate(data: ByteString): ByteString = {
+        val deflater = new Deflater(Deflater.BEST_SPEED)
+        try {
+            deflater.setInput(data.toByteArray)
+            deflater.finish()
+            val out = new ByteArrayOutputStream(data.size / 2)
+            val buffer = new Array[Byte](BUFFER_SIZE)
+            while (!deflater.finished())
+                out.write(buffer, 0, deflater.deflate(buffer))
+            ByteString.copyFrom(out.toByteArray)
+        } finally {
+            deflater.end()
+        }
+    }
+
+    def inflate(data: ByteString): ByteString = {
+        val inflater = new Inflater()
+        try {
+            inflater.setInput(data.toByteArray)
+            val out = new ByteArrayOutputStream(data.size * 2)
+            val buffer = new Array[Byte](BUFFER_SIZE)
+            while (!inflater.finished())
+                out.write(buffer, 0, inflater.inflate(buffer))
+            ByteString.copyFrom(out.toByteArray)
+        } finally {
+            inflater.end()
+        }
+    }
+}
+
+/**
+ * Encodes the responses sent in a session, replacing the updates of the
+ * objects by the deltas against the previous state of the same object sent
+ * in the session, and compressing the large payloads, as requested by the
+ * client.
+ * NOTE: this class is not thread-safe: the responses must be encoded one
+ * at a time, and in the same order they are sent to the client.
+ */
+class ResponseEncoder(deltas: Boolean, compression: Boolean,
+                      threshold: Int = ResponseCodec.COMPRESSION_THRESHOLD) {
+    import ResponseCodec._
+
+    private val states = new mutable.HashMap[(Type, Commons.UUID), Message]
+
+    def encode(rsp: Commands.Response.Builder): Commands.Response.Builder = {
+        if (deltas) rsp.getType match {
+            case ResponseType.UPDATE if rsp.hasUpdate =>
+                val next = unwrap(rsp.getUpdate)
+                states.put((rsp.getObjType, rsp.getObjId), next) match {
+                    case Some(prev) =>
+                        val delta = diff(prev, next)
+                        if (delta.getSerializedSize <
+                            rsp.getUpdate.getSerializedSize)
+                            rsp.setType(ResponseType.DELTA).setDelta(delta)
+                    case None =>
+                }
+            case ResponseType.DELETION =>
+                states.remove((rsp.getObjType, rsp.getObjId))
+            case _ =>
+        }
+        if (compression) {
+            val payload =
+                if (rsp.hasUpdate) rsp.getUpdate.toByteString
+                else if (rsp.hasDelta) rsp.getDelta.toByteString
+                else if (rsp.hasSnapshot) rsp.getSnapshot.toByteString
+                else null
+            if (payload != null && payload.size >= threshold) {
+                val deflated = deflate(payload)
+                if (deflated.size < payload.size)
+                    rsp.setDeflated(deflated)
+            }
+        }
+        rsp
+    }
+}
+
+/**
+ * Decodes the responses received in a session, inflating the compressed
+ * payloads and applying the deltas, so that the topology objects are always
+ * returned in full updates.
+ * A decoder keeps the last state of the objects received in a session, so
+ * it must be used for a single session, including its recoveries: the
+ * responses already decoded, that the server sends again when recovering
+ * the session, are discarded.
+ */
+class ResponseDecoder {
+    import ResponseCodec._
+
+    private val states = new mutable.HashMap[(Type, Commons.UUID), Message]
+    private var lastSeqno = -1L
+
+    /**
+     * Decode a response, returning None if it was already decoded.
+     */
+    def decode(rsp: Commands.Response): Option[Commands.Response] = synchronized {
+        if (rsp.hasSeqno && rsp.getSeqno <= lastSeqno) {
+            None
+        } else {
+            if (rsp.hasSeqno) lastSeqno = rsp.getSeqno
+            Some(process(rsp))
+        }
+    }
+
+    private def process(rsp: Commands.Response): Commands.Response = {
+        val plain = if (rsp.hasDeflated) {
+            val payload = inflate(rsp.getDeflated)
+            rsp.getType match {
+                case ResponseType.UPDATE =>
+                    rsp.toBuilder.setUpdate(Update.parseFrom(payload)).build()
+                case ResponseType.DELTA =>
+                    rsp.toBuilder.setDelta(Delta.parseFrom(payload)).build()
+                case ResponseType.SNAPSHOT =>
+                    rsp.toBuilder.setSnapshot(Snapshot.parseFrom(payload))
+                       .build()
+                case _ => rsp
+            }
+        } else rsp
+
+        val key = (plain.getObjType, plain.getObjId)
+        plain.getType match {
+            case ResponseType.UPDATE if plain.hasUpdate =>
+                states.put(key, unwrap(plain.getUpdate))
+                plain
+            case ResponseType.DELTA =>
+                val base = states.getOrElse(key, throw
+                    new UnknownBaseStateException(key._1, key._2))
+                val next = patch(base, plain.getDelta)
+                states.put(key, next)
+                plain.toBuilder.setType(ResponseType.UPDATE)
+                     .setUpdate(wrap(next)).build()
+            case ResponseType.DELETION =>
+                states.remove(key)
+                plain
+            case _ =>
+                plain
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.cluster.storage
+
+import scala.util.control.NonFatal
+
+import org.apache.curator.framework.CuratorFrameworkFactory
+import org.apache.curator.retry.ExponentialBackoffRetry
+
+import org.midonet.cluster.data.storage.ZookeeperObjectMapper
+import org.midonet.cluster.services.MidonetBackend
+import org.midonet.conf.MidoNodeConfigurator
+
+/**
+ * Rewrites in binary format the topology objects that are stored in
+ * ZooKeeper in the legacy protobuf text format. Nodes read objects in both
+ * formats, so the migration can run while the cluster is up, but only once
+ * all the nodes are upgraded and write binary objects, as configured by
+ * zookeeper.binary_objects. It connects to the ZooKeeper hosts and root key
+ * of the local bootstrap configuration.
+ */
+object ZoomFormatMigrationTool extends App {
+    System.setProperty("logback.configurationFile", "logback-disabled.xml")
+
+    val bootstrap = new MidonetBackendConfig(
+        MidoNodeConfigurator.bootstrapConfig(args.headOption))
+    val curator = CuratorFrameworkFactory.newClient(
+        bootstrap.hosts, new ExponentialBackoffRetry(1000, 10))
+    val zoom = new ZookeeperObjectMapper(bootstrap.rootKey + "/zoom", curator,
+                                         writeBinary = true)
+    val backend = new MidonetBackend {
+        override def store = zoom
+        override def ownershipStore = zoom
+        override def doStart(): Unit = notifyStarted()
+        override def doStop(): Unit = notifyStopped()
+    }
+
+    val ret = try {
+        curator.start()
+        backend.setupBindings()
+        val migrated = zoom.migrateToBinaryFormat()
+        println(s"Migrated $migrated objects to the binary format")
+        0
+    } catch {
+        case NonFatal(e) =>
+            System.err.println("[zoom-migrate] Failed: " + e.getMessage)
+            1
+    } finally {
+        zoom.close()
+        curator.close()
+    }
+
+    System.exit(ret)
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.data.storage
+
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+
+import scala.collection.JavaConverters._
+
+import com.google.protobuf.Message
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+import org.openjdk.jmh.infra.Blackhole
+
+import org.midonet.cluster.models.Commons
+import org.midonet.cluster.models.Topology._
+import org.midonet.cluster.util.IPAddressUtil
+import org.midonet.cluster.util.IPSubnetUtil
+import org.midonet.cluster.util.UUIDUtil._
+
+/**
+ * Measures the serialization and deserialization of the topology objects
+ * stored by ZOOM, in the binary format and in the legacy text format. Run
+ * with -prof gc to compare the allocations of both formats. The size of the
+ * serialized object in each format is reported by the serializedSize
+ * benchmark.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+class ZoomSerializationBenchmark {
+
+    @Param(Array("Network", "Router", "Port", "Chain", "Rule", "Route"))
+    var objectType: String = _
+
+    var obj: Message = _
+    var clazz: Class[_ <: Message] = _
+    var binaryData: Array[Byte] = _
+    var textData: Array[Byte] = _
+
+    private def ids(n: Int) = (0 until n) map { _ => UUID.randomUUID.asProto }
+
+    private def network = Network.newBuilder
+        .setId(UUID.randomUUID.asProto)
+        .setTenantId("tenant")
+        .setName("network")
+        .setAdminStateUp(true)
+        .setTunnelKey(1234)
+        .setInboundFilterId(UUID.randomUUID.asProto)
+        .setOutboundFilterId(UUID.randomUUID.asProto)
+        .addAllPortIds(ids(50).asJava)
+        .addAllDhcpIds(ids(2).asJava)
+        .build()
+
+    private def router = Router.newBuilder
+        .setId(UUID.randomUUID.asProto)
+        .setTenantId("tenant")
+        .setName("router")
+        .setAdminStateUp(true)
+        .setInboundFilterId(UUID.randomUUID.asProto)
+        .setOutboundFilterId(UUID.randomUUID.asProto)
+        .addAllRouteIds(ids(50).asJava)
+        .addAllPortIds(ids(50).asJava)
+        .build()
+
+    private def port = Port.newBuilder
+        .setId(UUID.randomUUID.asProto)
+        .setRouterId(UUID.randomUUID.asProto)
+        .setInboundFilterId(UUID.randomUUID.asProto)
+        .setOutboundFilterId(UUID.randomUUID.asProto)
+        .setTunnelKey(5678)
+        .setPeerId(UUID.randomUUID.asProto)
+        .setHostId(UUID.randomUUID.asProto)
+        .setInterfaceName("tap0123456789a")
+        .setAdminStateUp(true)
+        .setPortSubnet(IPSubnetUtil.toProto("10.0.0.0/24"))
+        .setPortAddress(IPAddressUtil.toProto("10.0.0.1"))
+        .setPortMac("02:00:00:00:00:01")
+        .addAllRouteIds(ids(2).asJava)
+        .addAllRuleIds(ids(4).asJava)
+        .build()
+
+    private def chain = Chain.newBuilder
+        .setId(UUID.randomUUID.asProto)
+        .setName("chain")
+        .addAllRuleIds(ids(20).asJava)
+        .addAllPortIds(ids(5).asJava)
+        .build()
+
+    private def rule = Rule.newBuilder
+        .setId(UUID.randomUUID.asProto)
+        .setType(Rule.Type.LITERAL_RULE)
+        .setChainId(UUID.randomUUID.asProto)
+        .setAction(Rule.Action.ACCEPT)
+        .setMatchForwardFlow(true)
+        .addAllInPortIds(ids(2).asJava)
+        .setDlType(0x0800)
+        .setDlSrc("02:00:00:00:00:01")
+        .setNwProto(6)
+        .setNwSrcIp(IPSubnetUtil.toProto("10.0.0.0/24"))
+        .setNwDstIp(IPSubnetUtil.toProto("10.0.1.0/24"))
+        .setTpDst(Commons.Int32Range.newBuilder.setStart(80).setEnd(80))
+        .build()
+
+    private def route = Route.newBuilder
+        .setId(UUID.randomUUID.asProto)
+        .setSrcSubnet(IPSubnetUtil.toProto("0.0.0.0/0"))
+        .setDstSubnet(IPSubnetUtil.toProto("10.0.1.0/24"))
+        .setNextHop(Route.NextHop.PORT)
+        .setNextHopPortId(UUID.randomUUID.asProto)
+        .setNextHopGateway(IPAddressUtil.toProto("10.0.0.254"))
+        .setWeight(100)
+        .setRouterId(UUID.randomUUID.asProto)
+        .build()
+
+    @JmhSetup
+    def setup(): Unit = {
+        obj = objectType match {
+            case "Network" => network
+            case "Router" => router
+            case "Port" => port
+            case "Chain" => chain
+            case "Rule" => rule
+            case "Route" => route
+        }
+        clazz = obj.getClass
+        binaryData = ZookeeperObjectMapper.serialize(obj, binary = true)
+        textData = ZookeeperObjectMapper.serialize(obj, binary = false)
+    }
+
+    @Benchmark
+    def serializeBinary(bh: Blackhole): Unit = {
+        bh.consume(ZookeeperObjectMapper.serialize(obj, binary = true))
+    }
+
+    @Benchmark
+    def serializeText(bh: Blackhole): Unit = {
+        bh.consume(ZookeeperObjectMapper.serialize(obj, binary = false))
+    }
+
+    @Benchmark
+    def deserializeBinary(bh: Blackhole): Unit = {
+        bh.consume(ZookeeperObjectMapper.deserialize(binaryData, clazz))
+    }
+
+    @Benchmark
+    def deserializeText(bh: Blackhole): Unit = {
+        bh.consume(ZookeeperObjectMapper.deserialize(textData, clazz))
+    }
+
+    /**
+     * Reports the serialized sizes of the object as the binaryBytes and
+     * textBytes secondary results. The benchmark runs a single iteration,
+     * because JMH adds up event counters across iterations.
+     */
+    @Benchmark
+    @Warmup(iterations = 0)
+    @Measurement(iterations = 1)
+    def serializedSize(size: SerializedSize): Unit = {
+        size.binaryBytes = binaryData.length
+        size.textBytes = textData.length
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.data.storage
+
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+
+import org.apache.curator.framework.{CuratorFramework, CuratorFrameworkFactory}
+import org.apache.curator.retry.RetryOneTime
+import org.apache.curator.test.TestingServer
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+
+import org.midonet.cluster.data.storage.FieldBinding.DeleteAction._
+import org.midonet.cluster.models.Topology.{Network, Port, Router}
+import org.midonet.cluster.util.UUIDUtil._
+
+/**
+ * Measures a ZOOM transaction that creates a router with 50 ports, each
+ * linked to the port of a different existing network, against a local
+ * ZooKeeper server. The transaction reads the 50 network ports, to which it
+ * adds the peer back-references.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+@Fork(1)
+@State(Scope.Thread)
+class ZoomTransactionBenchmark {
+
+    val numPorts = 50
+
+    var server: TestingServer = _
+    var curator: CuratorFramework = _
+    var zoom: ZookeeperObjectMapper = _
+    var networkPorts: Seq[Port] = _
+
+    @JmhSetup(Level.Trial)
+    def setup(): Unit = {
+        server = new TestingServer(true)
+        curator = CuratorFrameworkFactory.newClient(server.getConnectString,
+                                                    new RetryOneTime(1000))
+        curator.start()
+        zoom = new ZookeeperObjectMapper("/zoom", curator)
+        List(classOf[Network], classOf[Port], classOf[Router])
+            .foreach(zoom.registerClass)
+        zoom.declareBinding(classOf[Network], "port_ids", ERROR,
+                            classOf[Port], "network_id", CLEAR)
+        zoom.declareBinding(classOf[Port], "peer_id", CLEAR,
+                            classOf[Port], "peer_id", CLEAR)
+        zoom.declareBinding(classOf[Router], "port_ids", ERROR,
+                            classOf[Port], "router_id", CLEAR)
+        zoom.build()
+    }
+
+    @JmhSetup(Level.Invocation)
+    def createNetworks(): Unit = {
+        val networks = (0 until numPorts) map { _ =>
+            Network.newBuilder.setId(UUID.randomUUID.asProto).build()
+        }
+        networkPorts = networks map { network =>
+            Port.newBuilder.setId(UUID.randomUUID.asProto)
+                .setNetworkId(network.getId).build()
+        }
+        zoom.multi(networks.map(CreateOp) ++ networkPorts.map(CreateOp))
+    }
+
+    @TearDown(Level.Trial)
+    def teardown(): Unit = {
+        curator.close()
+        server.close()
+    }
+
+    @Benchmark
+    def createRouterWithPorts(): Unit = {
+        val router = Router.newBuilder.setId(UUID.randomUUID.asProto).build()
+        val routerPorts = networkPorts map { networkPort =>
+            Port.newBuilder.setId(UUID.randomUUID.asProto)
+                .setRouterId(router.getId)
+                .setPeerId(networkPort.getId).build()
+        }
+        zoom.multi(CreateOp(router) +: routerPorts.map(CreateOp))
+    }
+}
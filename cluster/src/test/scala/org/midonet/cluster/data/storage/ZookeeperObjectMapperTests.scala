@@ -50,6 +50,10 @@ class ZookeeperObjectMapperTests extends Suite
         initAndBuildZoom(zom)
     }
 
+    override protected def teardown(): Unit = {
+        zom.close()
+    }
+
     private def initAndBuildZoom(zom: ZookeeperObjectMapper) {
         List(classOf[PojoBridge], classOf[PojoRouter], classOf[PojoPort],
              classOf[PojoChain], classOf[PojoRule], classOf[Network],
@@ -352,6 +356,24 @@ class ZookeeperObjectMapperTests extends Suite
         twoChains.map(_.getName) should equal(List("chain0", "chain1"))
     }
 
+    def testStreamAllProto(): Unit = {
+        val chains = (0 until 100) map { i => protoChain(name = s"chain$i") }
+        zom.multi(chains.map(CreateOp))
+
+        zom.streamAll(classOf[Chain], 8).toList.toBlocking.single.asScala should
+            contain theSameElementsAs chains
+        await(zom.getAll(classOf[Chain])) should contain theSameElementsAs chains
+    }
+
+    def testStreamAllAfterClose(): Unit = {
+        zom.create(protoChain(name = "chain"))
+        zom.close()
+
+        intercept[InternalObjectMapperException] {
+            zom.streamAll(classOf[Chain], 8).toList.toBlocking.single
+        }
+    }
+
     def testCreateAndUpdateJava(): Unit = {
         val bridge = pojoBridge()
         zom.create(bridge)
@@ -364,6 +386,101 @@ class ZookeeperObjectMapperTests extends Suite
         zom.multi(List(UpdateOp(network), UpdateOp(network)))
     }
 
+    def testProtoStoredInTextFormatByDefault(): Unit = {
+        val network = protoNetwork(name = "network")
+        zom.create(network)
+
+        val data = curator.getData.forPath(
+            zom.getPath(classOf[Network], network.getId))
+        data(0) should not be ZookeeperObjectMapper.BinaryMessageMarker
+        new String(data) shouldBe network.toString
+    }
+
+    def testProtoStoredInBinaryFormat(): Unit = {
+        val binaryZom = new ZookeeperObjectMapper(ZK_ROOT, curator,
+                                                  writeBinary = true)
+        initAndBuildZoom(binaryZom)
+        val network = protoNetwork(name = "network")
+        binaryZom.create(network)
+
+        val data = curator.getData.forPath(
+            zom.getPath(classOf[Network], network.getId))
+        data(0) shouldBe ZookeeperObjectMapper.BinaryMessageMarker
+        Network.parseFrom(data.drop(1)) shouldBe network
+        await(zom.get(classOf[Network], network.getId)) shouldBe network
+    }
+
+    def testGetProtoInLegacyTextFormat(): Unit = {
+        val binaryZom = new ZookeeperObjectMapper(ZK_ROOT, curator,
+                                                  writeBinary = true)
+        initAndBuildZoom(binaryZom)
+        val network = protoNetwork(name = "network")
+        curator.create.forPath(zom.getPath(classOf[Network], network.getId),
+                               network.toString.getBytes)
+
+        await(binaryZom.get(classOf[Network], network.getId)) shouldBe network
+
+        val port = protoPort(networkId = network.getId)
+        binaryZom.create(port)
+        await(binaryZom.get(classOf[Network], network.getId))
+            .getPortIdsList.asScala should contain only port.getId
+    }
+
+    def testMigrateToBinaryFormat(): Unit = {
+        val binaryZom = new ZookeeperObjectMapper(ZK_ROOT, curator,
+                                                  writeBinary = true)
+        initAndBuildZoom(binaryZom)
+        val legacy = protoNetwork(name = "legacy")
+        val legacyPath = zom.getPath(classOf[Network], legacy.getId)
+        zom.create(legacy)
+        val network = protoNetwork(name = "network")
+        binaryZom.create(network)
+        val stat = new Stat()
+        curator.getData.storingStatIn(stat).forPath(
+            zom.getPath(classOf[Network], network.getId))
+
+        binaryZom.migrateToBinaryFormat() shouldBe 1
+
+        val data = curator.getData.forPath(legacyPath)
+        data(0) shouldBe ZookeeperObjectMapper.BinaryMessageMarker
+        await(zom.get(classOf[Network], legacy.getId)) shouldBe legacy
+        curator.checkExists().forPath(zom.getPath(classOf[Network],
+                                      network.getId)).getVersion shouldBe
+            stat.getVersion
+        binaryZom.migrateToBinaryFormat() shouldBe 0
+    }
+
+    def testMultiWithPrefetchedReferences(): Unit = {
+        val networks = (0 until 10) map { _ => protoNetwork() }
+        val networkPorts = networks map { n => protoPort(networkId = n.getId) }
+        zom.multi(networks.map(CreateOp) ++ networkPorts.map(CreateOp))
+
+        val router = protoRouter()
+        val routerPorts = networkPorts map { p =>
+            protoPort(routerId = router.getId, peerId = p.getId)
+        }
+        zom.multi(CreateOp(router) +: routerPorts.map(CreateOp))
+
+        await(zom.get(classOf[Router], router.getId))
+            .getPortIdsList.asScala should contain theSameElementsAs
+            routerPorts.map(_.getId)
+        for ((networkPort, routerPort) <- networkPorts zip routerPorts) {
+            await(zom.get(classOf[Port], networkPort.getId))
+                .getPeerId shouldBe routerPort.getId
+        }
+
+        val unlinked = routerPorts.head.toBuilder.clearPeerId().build()
+        zom.multi(List(UpdateOp(unlinked),
+                       DeleteOp(classOf[Port], routerPorts.last.getId)))
+
+        await(zom.get(classOf[Port], networkPorts.head.getId))
+            .hasPeerId shouldBe false
+        await(zom.get(classOf[Port], networkPorts.last.getId))
+            .hasPeerId shouldBe false
+        await(zom.get(classOf[Router], router.getId))
+            .getPortIdsList should have size (routerPorts.size - 1)
+    }
+
     def testDeleteIfExistsJava() {
         zom.deleteIfExists(classOf[PojoBridge], UUID.randomUUID)
     }
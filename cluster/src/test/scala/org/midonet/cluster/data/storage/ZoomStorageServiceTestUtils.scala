@@ -139,6 +139,10 @@ trait ZoomStorageTester extends StorageTester
         zoom.getAll(clazz)
     }
 
+    override def streamAll[T](clazz: Class[T], window: Int): Observable[T] = {
+        zoom.streamAll(clazz, window)
+    }
+
     override def exists(clazz: Class[_], id: ObjId): Future[Boolean] = {
         zoom.exists(clazz, id)
     }
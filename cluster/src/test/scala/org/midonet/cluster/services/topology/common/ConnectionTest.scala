@@ -18,7 +18,7 @@ package org.midonet.cluster.services.topology.common
 
 import java.util.concurrent.Executor
 
-import scala.concurrent.{ExecutionContext, Promise}
+import scala.concurrent.{ExecutionContext, Future, Promise}
 
 import com.google.protobuf.Message
 import io.netty.channel.{ChannelFuture, ChannelHandlerContext}
@@ -27,7 +27,7 @@ import org.junit.runner.RunWith
 import org.mockito.{ArgumentCaptor, Mockito}
 import org.scalatest.junit.JUnitRunner
 import org.scalatest.{FeatureSpec, Matchers}
-import rx.Observer
+import rx.{Observable, Observer, Producer}
 
 import org.midonet.cluster.rpc.Commands
 import org.midonet.cluster.services.topology.common.ProtocolFactory.State
@@ -83,6 +83,8 @@ class ConnectionTest extends FeatureSpec with Matchers {
             val protocol = new TestLoopProtocolFactory(ack)
             Mockito.when(senderFactory.get(ctx)).thenReturn(sender)
             Mockito.when(sender.getWriteExecutionContext).thenReturn(writeEC)
+            Mockito.when(sender.sendAndFlush(ack))
+                .thenReturn(Future.successful(true))
 
             val conn = new Connection(ctx, protocol, senderFactory)(cMgr)
             Mockito.verify(sender, Mockito.never()).send(ack)
@@ -107,6 +109,8 @@ class ConnectionTest extends FeatureSpec with Matchers {
             val protocol = new TestLoopProtocolFactory(ack)
             Mockito.when(senderFactory.get(ctx)).thenReturn(sender)
             Mockito.when(sender.getWriteExecutionContext).thenReturn(writeEC)
+            Mockito.when(sender.sendAndFlush(ack))
+                .thenReturn(Future.successful(true))
 
             val conn = new Connection(ctx, protocol, senderFactory)(cMgr)
             Mockito.verifyZeroInteractions(ctx)
@@ -130,6 +134,8 @@ class ConnectionTest extends FeatureSpec with Matchers {
             val protocol = new TestLoopProtocolFactory(ack)
             Mockito.when(senderFactory.get(ctx)).thenReturn(sender)
             Mockito.when(sender.getWriteExecutionContext).thenReturn(writeEC)
+            Mockito.when(sender.sendAndFlush(ack))
+                .thenReturn(Future.successful(true))
 
             val conn = new Connection(ctx, protocol, senderFactory)(cMgr)
             Mockito.verifyZeroInteractions(ctx)
@@ -145,6 +151,76 @@ class ConnectionTest extends FeatureSpec with Matchers {
         }
     }
 
+    feature("connection flow control")
+    {
+        scenario("messages are requested as they are written") {
+            val senderFactory = Mockito.mock(classOf[MessageSenderFactory])
+            val sender = Mockito.mock(classOf[MessageSender])
+            val ctx = Mockito.mock(classOf[ChannelHandlerContext])
+            val cMgr = Mockito.mock(classOf[ConnectionManager])
+            val protocol = new TestLoopProtocolFactory(
+                Commands.Response.getDefaultInstance)
+            val msg = Commands.Response.getDefaultInstance
+            val written = Promise[Boolean]()
+            Mockito.when(senderFactory.get(ctx)).thenReturn(sender)
+            Mockito.when(sender.getWriteExecutionContext).thenReturn(writeEC)
+            Mockito.when(sender.sendAndFlush(msg)).thenReturn(written.future)
+
+            var requested = 0L
+            val source = Observable.create(new Observable.OnSubscribe[Message] {
+                override def call(s: rx.Subscriber[_ >: Message]): Unit =
+                    s.setProducer(new Producer {
+                        override def request(n: Long): Unit = {
+                            requested += n
+                            if (requested == Connection.WRITE_WINDOW)
+                                s.onNext(msg)
+                        }
+                    })
+            })
+
+            val conn = new Connection(ctx, protocol, senderFactory)(cMgr)
+            source.subscribe(conn)
+            Mockito.verify(sender, Mockito.times(1)).sendAndFlush(msg)
+
+            // No more messages are requested until the pending one is written
+            requested shouldBe Connection.WRITE_WINDOW
+            written.success(true)
+            requested shouldBe Connection.WRITE_WINDOW + 1
+        }
+
+        scenario("messages sent without a producer request no more") {
+            val senderFactory = Mockito.mock(classOf[MessageSenderFactory])
+            val sender = Mockito.mock(classOf[MessageSender])
+            val ctx = Mockito.mock(classOf[ChannelHandlerContext])
+            val cMgr = Mockito.mock(classOf[ConnectionManager])
+            val req = Commands.Request.getDefaultInstance
+            val ack = Commands.Response.getDefaultInstance
+            val protocol = new TestLoopProtocolFactory(ack)
+            Mockito.when(senderFactory.get(ctx)).thenReturn(sender)
+            Mockito.when(sender.getWriteExecutionContext).thenReturn(writeEC)
+            Mockito.when(sender.sendAndFlush(ack))
+                .thenReturn(Future.successful(true))
+
+            var requested = 0L
+            val source = Observable.create(new Observable.OnSubscribe[Message] {
+                override def call(s: rx.Subscriber[_ >: Message]): Unit =
+                    s.setProducer(new Producer {
+                        override def request(n: Long): Unit = requested += n
+                    })
+            })
+
+            val conn = new Connection(ctx, protocol, senderFactory)(cMgr)
+            conn.msg(req)
+            conn.msg(req)
+            Mockito.verify(sender, Mockito.times(2)).sendAndFlush(ack)
+
+            // The acks written before the producer is set don't widen the
+            // window of the producer
+            source.subscribe(conn)
+            requested shouldBe Connection.WRITE_WINDOW
+        }
+    }
+
     feature("connection sender")
     {
         scenario("sender creation - direct operations")
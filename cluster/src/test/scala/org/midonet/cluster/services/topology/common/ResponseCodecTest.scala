@@ -0,0 +1,164 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.cluster.services.topology.common
+
+import java.util.UUID
+
+import scala.collection.JavaConversions._
+
+import com.google.protobuf.Message
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+import org.scalatest.{FeatureSpec, Matchers}
+
+import org.midonet.cluster.models.Commons
+import org.midonet.cluster.models.Topology.{Network, Type}
+import org.midonet.cluster.rpc.Commands
+import org.midonet.cluster.rpc.Commands.ResponseType
+import org.midonet.cluster.util.UUIDUtil
+
+@RunWith(classOf[JUnitRunner])
+class ResponseCodecTest extends FeatureSpec with Matchers {
+    import ResponseCodec._
+
+    val netId = UUIDUtil.randomUuidProto
+
+    def network(name: String, ports: Seq[Commons.UUID]) =
+        Network.newBuilder()
+            .setId(netId)
+            .setName(name)
+            .addAllPortIds(ports)
+            .build()
+
+    def ports(n: Int) = (0 until n) map {_ => UUIDUtil.randomUuidProto}
+
+    def update(m: Message, seqno: Long) = Commands.Response.newBuilder()
+        .setType(ResponseType.UPDATE)
+        .setSeqno(seqno)
+        .setObjType(Type.NETWORK)
+        .setObjId(netId)
+        .setUpdate(wrap(m))
+
+    feature("deltas") {
+        scenario("appended elements of repeated fields") {
+            val p = ports(1000)
+            val from = network("network", p)
+            val to = network("network", p :+ UUIDUtil.randomUuidProto)
+
+            val delta = diff(from, to)
+            delta.getClearedFieldsCount shouldBe 0
+            unwrap(delta.getChanges)
+                .asInstanceOf[Network].getPortIdsCount shouldBe 1
+            patch(from, delta) shouldBe to
+        }
+
+        scenario("modified and cleared fields") {
+            val p = ports(10)
+            val from = network("network", p).toBuilder.setVni(5).build()
+            val to = network("renamed", p.drop(1))
+
+            val delta = diff(from, to)
+            delta.getClearedFieldsList.toSet shouldBe
+                Set(Network.NAME_FIELD_NUMBER, Network.VNI_FIELD_NUMBER,
+                    Network.PORT_IDS_FIELD_NUMBER)
+            patch(from, delta) shouldBe to
+        }
+
+        scenario("unmodified objects") {
+            val from = network("network", ports(10))
+            val delta = diff(from, from)
+            delta.getClearedFieldsCount shouldBe 0
+            patch(from, delta) shouldBe from
+        }
+    }
+
+    feature("compression") {
+        scenario("deflate and inflate") {
+            val data = network("network", ports(1000)).toByteString
+            inflate(deflate(data)) shouldBe data
+        }
+    }
+
+    feature("response encoding") {
+        scenario("plain responses") {
+            val encoder = new ResponseEncoder(deltas = false,
+                                              compression = false)
+            val rsp = update(network("network", ports(1000)), 0)
+            encoder.encode(rsp.clone()).build() shouldBe rsp.build()
+        }
+
+        scenario("updates encoded as deltas are decoded") {
+            val encoder = new ResponseEncoder(deltas = true,
+                                              compression = true)
+            val decoder = new ResponseDecoder
+            val p = ports(1000)
+            val states = Seq(network("network", p),
+                             network("network", p :+ p.head),
+                             network("renamed", p :+ p.head))
+
+            for ((state, seqno) <- states.zipWithIndex) {
+                val rsp = encoder.encode(update(state, seqno)).build()
+                if (seqno > 0) rsp.getType shouldBe ResponseType.DELTA
+                rsp.getSerializedSize should be < state.getSerializedSize
+
+                val decoded = decoder.decode(rsp).get
+                decoded.getType shouldBe ResponseType.UPDATE
+                unwrap(decoded.getUpdate) shouldBe state
+            }
+        }
+
+        scenario("deletions reset the state of the objects") {
+            val encoder = new ResponseEncoder(deltas = true,
+                                              compression = false)
+            val state = network("network", ports(10))
+            encoder.encode(update(state, 0))
+            encoder.encode(Commands.Response.newBuilder()
+                               .setType(ResponseType.DELETION)
+                               .setObjType(Type.NETWORK)
+                               .setObjId(netId))
+            encoder.encode(update(state, 2)).getType shouldBe
+                ResponseType.UPDATE
+        }
+
+        scenario("responses replayed on recovery are discarded") {
+            val encoder = new ResponseEncoder(deltas = true,
+                                              compression = false)
+            val decoder = new ResponseDecoder
+            val p = ports(100)
+            val first = encoder.encode(update(network("n", p), 0)).build()
+            val second = encoder.encode(
+                update(network("n", p :+ UUIDUtil.randomUuidProto), 1)).build()
+
+            decoder.decode(first) should not be None
+            decoder.decode(second) should not be None
+            decoder.decode(second) shouldBe None
+        }
+
+        scenario("deltas without a previous state are rejected") {
+            val decoder = new ResponseDecoder
+            val rsp = Commands.Response.newBuilder()
+                .setType(ResponseType.DELTA)
+                .setObjType(Type.NETWORK)
+                .setObjId(UUIDUtil.toProto(UUID.randomUUID()))
+                .setDelta(diff(Network.getDefaultInstance,
+                               network("network", Seq())))
+                .build()
+            an [UnknownBaseStateException] should be thrownBy
+                decoder.decode(rsp)
+        }
+    }
+}
@@ -63,6 +63,7 @@ public class ResourceProtectionModule extends PrivateModule {
                 atomic = false;
                 break;
             case "one_to_one":
+            case "one_to_worker":
                 atomic = true;
                 break;
             default:
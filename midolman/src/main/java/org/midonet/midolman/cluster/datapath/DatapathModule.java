@@ -45,6 +45,7 @@ import org.midonet.midolman.io.DatapathConnectionPool;
 import org.midonet.midolman.io.OneToOneConnectionPool;
 import org.midonet.midolman.io.OneToOneDpConnManager;
 import org.midonet.midolman.io.OneToManyDpConnManager;
+import org.midonet.midolman.io.OneToWorkerDpConnManager;
 import org.midonet.midolman.io.UpcallDatapathConnectionManager;
 import org.midonet.midolman.io.TokenBucketPolicy;
 import org.midonet.midolman.services.DatapathConnectionService;
@@ -91,7 +92,8 @@ public class DatapathModule extends PrivateModule {
                                               SequenceBarrier barrier,
                                               FlowProcessor flowProcessor,
                                               OvsNetlinkFamilies families,
-                                              NetlinkChannelFactory channelFactory) {
+                                              NetlinkChannelFactory channelFactory,
+                                              int packetBatchMaxBytes) {
         threads = Math.max(threads, 1);
         EventProcessor[] processors = new EventProcessor[threads];
         if (threads == 1) {
@@ -99,14 +101,16 @@ public class DatapathModule extends PrivateModule {
                 JavaConversions.asScalaBuffer(Arrays.asList(
                     flowProcessor,
                     new EventPollerHandlerAdapter(
-                        new PacketExecutor(families, 1, 0, channelFactory)))));
+                        new PacketExecutor(families, 1, 0, channelFactory,
+                                           packetBatchMaxBytes)))));
             processors[0] = new BackchannelEventProcessor(
                 ringBuffer, handler, flowProcessor, Seq$.MODULE$.empty());
         } else {
             int numPacketHandlers = threads - 1;
             for (int i = 0; i < numPacketHandlers; ++i) {
                 PacketExecutor pexec = new PacketExecutor(
-                    families, numPacketHandlers, i, channelFactory);
+                    families, numPacketHandlers, i, channelFactory,
+                    packetBatchMaxBytes);
                 processors[i] = new BatchEventProcessor(ringBuffer, barrier, pexec);
             }
             processors[numPacketHandlers] = new BackchannelEventProcessor(
@@ -137,7 +141,8 @@ public class DatapathModule extends PrivateModule {
                         ringBuffer, barrier,
                         injector.getInstance(FlowProcessor.class),
                         injector.getInstance(OvsNetlinkFamilies.class),
-                        injector.getInstance(NetlinkChannelFactory.class));
+                        injector.getInstance(NetlinkChannelFactory.class),
+                        config.datapath().packetBatchMaxBytes());
                     return new DisruptorDatapathChannel(ringBuffer, processors);
                 }
             })
@@ -185,7 +190,9 @@ public class DatapathModule extends PrivateModule {
                         config.datapath().globalIncomingBurstCapacity() * 2,
                         512, // Flow request size
                         injector.getInstance(NetlinkChannelFactory.class),
-                        NanoClock$.MODULE$.DEFAULT());
+                        NanoClock$.MODULE$.DEFAULT(),
+                        config.datapath().flowBatchMaxBytes(),
+                        config.datapath().flowBatchMaxLatency());
                 }
             })
             .in(Singleton.class);
@@ -225,6 +232,8 @@ public class DatapathModule extends PrivateModule {
                     return new OneToManyDpConnManager(config, tbPolicy);
                 case "one_to_one":
                     return new OneToOneDpConnManager(config, tbPolicy);
+                case "one_to_worker":
+                    return new OneToWorkerDpConnManager(config, tbPolicy);
                 default:
                     throw new IllegalArgumentException(
                         "Unknown value for input_channel_threading: " + val);
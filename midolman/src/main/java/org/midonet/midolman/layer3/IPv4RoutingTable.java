@@ -16,33 +16,335 @@
 
 package org.midonet.midolman.layer3;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
 import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import org.midonet.packets.IPv4Addr;
+import org.midonet.packets.IPv4Subnet;
 
 /**
- * TODO (galo) - transitional, wraps the legacy RoutesTrie implementation
- * into the new RoutingTableIfc interface. All classes depending on
- * RoutesTrie should be refactored to conform to the RoutesTrie interface.
+ * An IPv4 routing table backed by a multibit trie with a stride of 8 bits.
+ * The trie has at most 4 levels of nodes: the root holds the prefixes of 0 to
+ * 8 bits, and a node at depth d the prefixes of 8d+1 to 8d+8 bits that start
+ * with the bytes leading to it. Each node keeps, for each value of its byte,
+ * the longest of its prefixes that contains it, so that a lookup reads one
+ * slot per level and allocates nothing when the longest matching prefix has
+ * only routes that match any source. Otherwise, the lookup walks the matching
+ * prefixes from the longest, as RoutingTable does.
+ *
+ * Nodes and prefixes are never modified once built: adding or deleting a
+ * route copies the nodes on the path to its prefix. A copy() of the table is
+ * therefore a snapshot that later changes don't affect, which lets the
+ * router builder update the table of the previous router instead of adding
+ * all the routes to a new one.
  */
 public class IPv4RoutingTable implements RoutingTableIfc<IPv4Addr> {
 
-    private RoutingTable legacyTable = new RoutingTable();
+    private final static Logger log =
+        LoggerFactory.getLogger("org.midonet.devices.router");
+
+    /** The routes to one destination prefix. */
+    private static final class Prefix {
+        final int addr;
+        final int length;
+        final Route[] routes;
+        // The routes of minimum weight, if all the routes match any source
+        final List<Route> anySource;
+
+        Prefix(int addr, int length, Route[] routes) {
+            this.addr = addr;
+            this.length = length;
+            this.routes = routes;
+            List<Route> best = new ArrayList<>(routes.length);
+            int minWeight = Integer.MAX_VALUE;
+            for (Route rt : routes) {
+                if (rt.srcNetworkLength != 0) {
+                    best = null;
+                    break;
+                }
+                if (rt.weight < minWeight) {
+                    best.clear();
+                    minWeight = rt.weight;
+                }
+                if (rt.weight == minWeight)
+                    best.add(rt);
+            }
+            anySource = best == null ? null : Collections.unmodifiableList(best);
+        }
+
+        boolean contains(int dst) {
+            return IPv4Subnet.addrMatch(dst, addr, length);
+        }
+
+        Prefix with(Route rt) {
+            for (Route r : routes)
+                if (r.equals(rt))
+                    return this;
+            Route[] added = Arrays.copyOf(routes, routes.length + 1);
+            added[routes.length] = rt;
+            return new Prefix(addr, length, added);
+        }
+
+        /* Returns the prefix without a route, or null if it has no routes
+         * left. */
+        Prefix without(Route rt) {
+            for (int i = 0; i < routes.length; i++) {
+                if (routes[i].equals(rt)) {
+                    if (routes.length == 1)
+                        return null;
+                    Route[] left = new Route[routes.length - 1];
+                    System.arraycopy(routes, 0, left, 0, i);
+                    System.arraycopy(routes, i + 1, left, i, left.length - i);
+                    return new Prefix(addr, length, left);
+                }
+            }
+            return this;
+        }
+
+        /* The routes of minimum weight among those matching the source. */
+        List<Route> lookup(int src) {
+            if (anySource != null)
+                return anySource;
+            List<Route> ret = new ArrayList<>();
+            int minWeight = Integer.MAX_VALUE;
+            for (Route rt : routes) {
+                if (IPv4Subnet.addrMatch(src, rt.srcNetworkAddr,
+                                         rt.srcNetworkLength)) {
+                    if (rt.weight < minWeight) {
+                        ret.clear();
+                        ret.add(rt);
+                        minWeight = rt.weight;
+                    } else if (rt.weight == minWeight) {
+                        ret.add(rt);
+                    }
+                }
+            }
+            return ret;
+        }
+    }
+
+    private static final Prefix[] NO_PREFIXES = new Prefix[0];
+
+    private static final class Node {
+        // Null when the node has no children
+        final Node[] children;
+        // The longest prefix containing each value of the node's byte, or
+        // null when the node has no prefixes
+        final Prefix[] longest;
+        // Sorted by decreasing length
+        final Prefix[] prefixes;
+
+        Node(Node[] children, Prefix[] longest, Prefix[] prefixes) {
+            this.children = children;
+            this.longest = longest;
+            this.prefixes = prefixes;
+        }
+    }
+
+    private static final int MAX_DEPTH = 3;
+
+    private static int depthOf(int length) {
+        return length == 0 ? 0 : (length - 1) >>> 3;
+    }
+
+    private static int slot(int addr, int depth) {
+        return (addr >>> (24 - 8 * depth)) & 0xff;
+    }
+
+    /* The bits of the node's byte that a prefix doesn't fix. */
+    private static int freeBits(Prefix prefix, int depth) {
+        return 8 * (depth + 1) - prefix.length;
+    }
+
+    private Node root;
+    private int numRoutes;
+
+    public IPv4RoutingTable() {
+    }
+
+    private IPv4RoutingTable(Node root, int numRoutes) {
+        this.root = root;
+        this.numRoutes = numRoutes;
+    }
+
+    /**
+     * Returns a table with the same routes, which changes to this table
+     * won't affect. The copy shares all the nodes of this table.
+     */
+    public IPv4RoutingTable copy() {
+        return new IPv4RoutingTable(root, numRoutes);
+    }
 
     public void addRoute(Route rt) {
-        legacyTable.addRoute(rt);
+        log.debug("addRoute: {}", rt);
+        root = update(root, 0, rt, true);
     }
 
     public void deleteRoute(Route rt) {
-        legacyTable.deleteRoute(rt);
+        log.debug("deleteRoute: {}", rt);
+        root = update(root, 0, rt, false);
+    }
+
+    private Node update(Node node, int depth, Route rt, boolean add) {
+        int length = rt.dstNetworkLength;
+        int mask = length == 0 ? 0 : ~0 << (32 - length);
+        int addr = rt.dstNetworkAddr & mask;
+
+        if (depth < depthOf(length)) {
+            int slot = slot(addr, depth);
+            Node child = node == null || node.children == null
+                         ? null : node.children[slot];
+            Node updated = update(child, depth + 1, rt, add);
+            if (updated == child)
+                return node;
+            Node[] children = node == null || node.children == null
+                              ? new Node[256] : node.children.clone();
+            children[slot] = updated;
+            if (updated == null && isEmpty(children))
+                children = null;
+            return newNode(children,
+                           node == null ? null : node.longest,
+                           node == null ? NO_PREFIXES : node.prefixes);
+        }
+
+        Prefix[] prefixes = node == null ? NO_PREFIXES : node.prefixes;
+        int index = -1;
+        for (int i = 0; i < prefixes.length; i++) {
+            if (prefixes[i].length == length && prefixes[i].addr == addr) {
+                index = i;
+                break;
+            }
+        }
+        Prefix current = index < 0 ? null : prefixes[index];
+        Prefix updated;
+        if (add) {
+            updated = current == null
+                      ? new Prefix(addr, length, new Route[] { rt })
+                      : current.with(rt);
+        } else {
+            updated = current == null ? null : current.without(rt);
+        }
+        if (updated == current)
+            return node;
+        numRoutes += add ? 1 : -1;
+
+        Prefix[] next;
+        if (current == null) {
+            // Insert before the first shorter prefix
+            int at = 0;
+            while (at < prefixes.length && prefixes[at].length >= length)
+                at++;
+            next = new Prefix[prefixes.length + 1];
+            System.arraycopy(prefixes, 0, next, 0, at);
+            next[at] = updated;
+            System.arraycopy(prefixes, at, next, at + 1, prefixes.length - at);
+        } else if (updated == null) {
+            next = new Prefix[prefixes.length - 1];
+            System.arraycopy(prefixes, 0, next, 0, index);
+            System.arraycopy(prefixes, index + 1, next, index,
+                             next.length - index);
+        } else {
+            next = prefixes.clone();
+            next[index] = updated;
+        }
+
+        Prefix[] longest = null;
+        if (next.length > 0) {
+            longest = node == null || node.longest == null
+                      ? new Prefix[256] : node.longest.clone();
+            Prefix changed = updated != null ? updated : current;
+            int free = freeBits(changed, depth);
+            int first = slot(addr, depth);
+            for (int slot = first; slot < first + (1 << free); slot++)
+                longest[slot] = longestFor(next, slot, depth);
+        }
+        return newNode(node == null ? null : node.children, longest, next);
+    }
+
+    private static Prefix longestFor(Prefix[] prefixes, int slot, int depth) {
+        for (Prefix prefix : prefixes) {
+            int free = freeBits(prefix, depth);
+            if ((slot >>> free) == (slot(prefix.addr, depth) >>> free))
+                return prefix;
+        }
+        return null;
+    }
+
+    private static boolean isEmpty(Node[] children) {
+        for (Node child : children)
+            if (child != null)
+                return false;
+        return true;
+    }
+
+    private static Node newNode(Node[] children, Prefix[] longest,
+                                Prefix[] prefixes) {
+        return children == null && prefixes.length == 0
+               ? null : new Node(children, longest, prefixes);
     }
 
     public Iterable<Route> lookup(IPv4Addr src, IPv4Addr dst) {
-        return legacyTable.lookup(src.toInt(), dst.toInt());
+        return lookup(src, dst, log);
     }
 
     public Iterable<Route> lookup(IPv4Addr src, IPv4Addr dst, Logger logger) {
-        return legacyTable.lookup(src.toInt(), dst.toInt(), logger);
+        if (logger.isDebugEnabled()) {
+            logger.debug(String.format(
+                "lookup: src %s dst %s in table with %d routes",
+                src, dst, numRoutes));
+        }
+
+        List<Route> ret = lookup(src.toInt(), dst.toInt());
+
+        if (logger.isDebugEnabled()) {
+            logger.debug(String.format("lookup: return %s for src %s dst %s",
+                                       ret.toString(), src, dst));
+        }
+        return ret;
     }
 
+    List<Route> lookup(int src, int dst) {
+        Prefix found = null;
+        Node node = root;
+        for (int depth = 0; node != null; depth++) {
+            int slot = slot(dst, depth);
+            if (node.longest != null && node.longest[slot] != null)
+                found = node.longest[slot];
+            node = node.children == null ? null : node.children[slot];
+        }
+        if (found == null)
+            return Collections.emptyList();
+        if (found.anySource != null)
+            return found.anySource;
+
+        // Some routes of the longest prefix filter the source: try the
+        // matching prefixes from the longest until one has routes for it
+        Node[] path = new Node[MAX_DEPTH + 1];
+        int depth = 0;
+        for (node = root; node != null; depth++) {
+            path[depth] = node;
+            node = node.children == null ? null
+                                         : node.children[slot(dst, depth)];
+        }
+        while (--depth >= 0) {
+            for (Prefix prefix : path[depth].prefixes) {
+                if (prefix.contains(dst)) {
+                    List<Route> routes = prefix.lookup(src);
+                    if (!routes.isEmpty())
+                        return routes;
+                }
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    @Override
+    public String toString() {
+        return "IPv4RoutingTable [numRoutes=" + numRoutes + "]";
+    }
 }
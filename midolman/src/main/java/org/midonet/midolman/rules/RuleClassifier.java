@@ -0,0 +1,394 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.rules;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import org.midonet.odp.FlowMatch;
+import org.midonet.packets.IPAddr;
+import org.midonet.packets.IPv4Addr;
+import org.midonet.packets.IPv4Subnet;
+import org.midonet.packets.Unsigned;
+import org.midonet.util.Range;
+
+/**
+ * A bitset intersection classifier over the rules of a chain. For each of a
+ * few packet fields, the values of the field are split into the intervals over
+ * which the rules that may match a packet don't change, and each interval is
+ * given the bitset of those rules. A rule that doesn't constrain a field, or
+ * that does so in a way the classifier doesn't index (inverted conditions,
+ * IPv6 subnets, ...), is in the bitsets of all of the intervals of the field.
+ * Rules matching on the flow direction are in all of the bitsets, as their
+ * condition looks up the connection before reading any field, and the flow
+ * must be tagged with its connection as when the chain evaluates them.
+ *
+ * A packet is classified with one binary search per field, and the rules it
+ * may match are the intersection of the bitsets of its intervals. These
+ * candidates are a superset of the rules whose conditions match the packet, so
+ * the chain still processes them in order with Rule.process, and gets the same
+ * result as if it processed every rule.
+ *
+ * The fields read to classify a packet are not marked as seen in its match:
+ * next() marks the fields that excluded the rules it skips, so that the fields
+ * seen are enough to tell the rules the packet does not match. These are not
+ * always the fields the chain would have read when evaluating the conditions
+ * of these rules, which may stop at an earlier field, so the wildcard flows
+ * may be narrower or wider than those of the linear walk, though they still
+ * match only packets for which the chain gives the same result.
+ *
+ * Instances are immutable and shared by all the threads applying the chain.
+ */
+public final class RuleClassifier {
+
+    /** The value of a field a packet doesn't have, such as an IPv4 source
+     *  address for an IPv6 packet. No indexed rule matches such a packet. */
+    private static final long ABSENT = Long.MIN_VALUE;
+
+    private static abstract class Field {
+        final FlowMatch.Field field;
+
+        Field(FlowMatch.Field field) {
+            this.field = field;
+        }
+
+        /** Reads the value of the field, marking it as seen. */
+        abstract long value(FlowMatch match);
+
+        /** Writes the interval a condition requires, returning false if the
+         *  condition does not constrain the field, or not in an indexed way. */
+        abstract boolean interval(Condition cond, long[] bounds);
+    }
+
+    private static final Field ETHER_TYPE =
+        new Field(FlowMatch.Field.EtherType) {
+        long value(FlowMatch match) {
+            return Unsigned.unsign(match.getEtherType());
+        }
+        boolean interval(Condition cond, long[] bounds) {
+            return cond.etherType != null && !cond.invDlType &&
+                   point(cond.etherType, bounds);
+        }
+    };
+
+    private static final Field NW_PROTO =
+        new Field(FlowMatch.Field.NetworkProto) {
+        long value(FlowMatch match) {
+            return match.getNetworkProto();
+        }
+        boolean interval(Condition cond, long[] bounds) {
+            return cond.nwProto != null && !cond.nwProtoInv &&
+                   point(cond.nwProto, bounds);
+        }
+    };
+
+    private static final Field NW_SRC =
+        new Field(FlowMatch.Field.NetworkSrc) {
+        long value(FlowMatch match) {
+            return ipv4(match.getNetworkSrcIP());
+        }
+        boolean interval(Condition cond, long[] bounds) {
+            return !cond.nwSrcInv && subnet(cond.nwSrcIp, bounds);
+        }
+    };
+
+    private static final Field NW_DST =
+        new Field(FlowMatch.Field.NetworkDst) {
+        long value(FlowMatch match) {
+            return ipv4(match.getNetworkDstIP());
+        }
+        boolean interval(Condition cond, long[] bounds) {
+            return !cond.nwDstInv && subnet(cond.nwDstIp, bounds);
+        }
+    };
+
+    private static final Field TP_SRC =
+        new Field(FlowMatch.Field.SrcPort) {
+        long value(FlowMatch match) {
+            return match.getSrcPort();
+        }
+        boolean interval(Condition cond, long[] bounds) {
+            return !cond.tpSrcInv && range(cond.tpSrc, bounds);
+        }
+    };
+
+    private static final Field TP_DST =
+        new Field(FlowMatch.Field.DstPort) {
+        long value(FlowMatch match) {
+            return match.getDstPort();
+        }
+        boolean interval(Condition cond, long[] bounds) {
+            return !cond.tpDstInv && range(cond.tpDst, bounds);
+        }
+    };
+
+    private static final Field[] FIELDS =
+        { ETHER_TYPE, NW_PROTO, NW_SRC, NW_DST, TP_SRC, TP_DST };
+
+    private static boolean point(Number value, long[] bounds) {
+        bounds[0] = value.longValue();
+        bounds[1] = value.longValue();
+        return true;
+    }
+
+    private static boolean subnet(Object subnet, long[] bounds) {
+        if (!(subnet instanceof IPv4Subnet))
+            return false;
+        IPv4Subnet ipv4 = (IPv4Subnet) subnet;
+        int prefixLen = ipv4.getPrefixLen();
+        int mask = prefixLen == 0 ? 0 : ~0 << (32 - prefixLen);
+        int address = ipv4.getAddress().toInt();
+        bounds[0] = Unsigned.unsign(address & mask);
+        bounds[1] = Unsigned.unsign(address | ~mask);
+        return true;
+    }
+
+    private static boolean range(Range<Integer> range, long[] bounds) {
+        if (range == null)
+            return false;
+        bounds[0] = range.start() == null ? Integer.MIN_VALUE : range.start();
+        bounds[1] = range.end() == null ? Integer.MAX_VALUE : range.end();
+        return true;
+    }
+
+    private static long ipv4(IPAddr address) {
+        return address instanceof IPv4Addr
+               ? Unsigned.unsign(((IPv4Addr) address).toInt()) : ABSENT;
+    }
+
+    /** The bitsets of the rules that may match a value of a field. */
+    private static final class FieldIndex {
+        final Field field;
+        // The first value of each interval, the first one being ABSENT
+        final long[] starts;
+        final long[][] rules;
+
+        FieldIndex(Field field, long[] starts, long[][] rules) {
+            this.field = field;
+            this.starts = starts;
+            this.rules = rules;
+        }
+
+        long[] rulesFor(long value) {
+            int interval = Arrays.binarySearch(starts, value);
+            return rules[interval >= 0 ? interval : -interval - 2];
+        }
+    }
+
+    private final int size;
+    private final FieldIndex[] indexes;
+    private final long[] reclassify;
+
+    private RuleClassifier(int size, FieldIndex[] indexes, long[] reclassify) {
+        this.size = size;
+        this.indexes = indexes;
+        this.reclassify = reclassify;
+    }
+
+    /**
+     * Compiles a classifier for a list of rules, or returns null if none of
+     * the rules constrain a field the classifier indexes.
+     */
+    public static RuleClassifier compile(List<Rule> rules) {
+        int size = rules.size();
+        int words = (size + 63) >>> 6;
+        long[] reclassify = new long[words];
+        for (int i = 0; i < size; i++) {
+            Rule rule = rules.get(i);
+            if (!(rule instanceof LiteralRule) && !(rule instanceof TraceRule))
+                reclassify[i >>> 6] |= 1L << i;
+        }
+
+        List<FieldIndex> indexes = new ArrayList<>(FIELDS.length);
+        for (Field field : FIELDS) {
+            FieldIndex index = compile(field, rules, words);
+            if (index != null)
+                indexes.add(index);
+        }
+        return indexes.isEmpty() ? null :
+               new RuleClassifier(size, indexes.toArray(
+                   new FieldIndex[indexes.size()]), reclassify);
+    }
+
+    private static FieldIndex compile(Field field, List<Rule> rules,
+                                      int words) {
+        int size = rules.size();
+        long[] lows = new long[size];
+        long[] ends = new long[size];
+        long[] wildcards = new long[words];
+        long[] bounds = new long[2];
+        int indexed = 0;
+        for (int i = 0; i < size; i++) {
+            Condition cond = rules.get(i).getCondition();
+            if (isIndexable(cond) && field.interval(cond, bounds) &&
+                bounds[0] <= bounds[1]) {
+                lows[indexed] = bounds[0];
+                ends[indexed] = bounds[1] + 1;
+                indexed++;
+            } else {
+                wildcards[i >>> 6] |= 1L << i;
+            }
+        }
+        if (indexed == 0)
+            return null;
+
+        // Sweep the interval bounds in order, adding the rules whose
+        // intervals start at a bound and removing those whose intervals
+        // end right before it
+        int[] byLow = new int[size];
+        int[] byEnd = new int[size];
+        long[] lowKeys = new long[indexed];
+        long[] endKeys = new long[indexed];
+        for (int i = 0, j = 0; i < size; i++) {
+            if ((wildcards[i >>> 6] & (1L << i)) == 0) {
+                byLow[j] = i;
+                byEnd[j] = i;
+                lowKeys[j] = lows[j];
+                endKeys[j] = ends[j];
+                j++;
+            }
+        }
+        sort(lowKeys, byLow, indexed);
+        sort(endKeys, byEnd, indexed);
+
+        List<Long> starts = new ArrayList<>(2 * indexed + 1);
+        List<long[]> intervalRules = new ArrayList<>(2 * indexed + 1);
+        starts.add(ABSENT);
+        intervalRules.add(wildcards);
+        long[] current = wildcards.clone();
+        int low = 0, end = 0;
+        while (low < indexed || end < indexed) {
+            long bound = Math.min(
+                low < indexed ? lowKeys[low] : Long.MAX_VALUE,
+                end < indexed ? endKeys[end] : Long.MAX_VALUE);
+            while (low < indexed && lowKeys[low] == bound) {
+                current[byLow[low] >>> 6] |= 1L << byLow[low];
+                low++;
+            }
+            while (end < indexed && endKeys[end] == bound) {
+                current[byEnd[end] >>> 6] &= ~(1L << byEnd[end]);
+                end++;
+            }
+            long[] previous = intervalRules.get(intervalRules.size() - 1);
+            if (!Arrays.equals(current, previous)) {
+                starts.add(bound);
+                intervalRules.add(current.clone());
+            }
+        }
+
+        long[] startsArray = new long[starts.size()];
+        for (int i = 0; i < startsArray.length; i++)
+            startsArray[i] = starts.get(i);
+        return new FieldIndex(field, startsArray, intervalRules.toArray(
+            new long[intervalRules.size()][]));
+    }
+
+    /* Whether a rule may be skipped based on its condition. Conditions
+     * matching everything or nothing are subclasses. */
+    private static boolean isIndexable(Condition cond) {
+        return cond != null && cond.getClass() == Condition.class &&
+               !cond.conjunctionInv && !cond.matchForwardFlow &&
+               !cond.matchReturnFlow;
+    }
+
+    /* Sorts the first n keys, keeping the values in the same order. */
+    private static void sort(long[] keys, int[] values, int n) {
+        final long[] k = Arrays.copyOf(keys, n);
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++)
+            order[i] = i;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Long.compare(k[a], k[b]);
+            }
+        });
+        int[] v = Arrays.copyOf(values, n);
+        for (int i = 0; i < n; i++) {
+            keys[i] = k[order[i]];
+            values[i] = v[order[i]];
+        }
+    }
+
+    /** The number of rules the classifier was compiled for. */
+    public int size() {
+        return size;
+    }
+
+    /** Whether the rules after a rule must be classified again once it is
+     *  processed, because it may have modified the packet. */
+    public boolean reclassifiesAfter(int rule) {
+        return (reclassify[rule >>> 6] & (1L << rule)) != 0;
+    }
+
+    /**
+     * Classifies a packet, returning for each indexed field the bitset of
+     * the rules that may match its value. The fields read are not marked
+     * as seen in the match.
+     */
+    public long[][] classify(FlowMatch match) {
+        long[][] candidates = new long[indexes.length][];
+        classify(match, candidates);
+        return candidates;
+    }
+
+    /** Classifies a packet again, after it was modified. */
+    public void classify(FlowMatch match, long[][] candidates) {
+        long seen = match.getSeenFields();
+        for (int i = 0; i < indexes.length; i++) {
+            FieldIndex index = indexes[i];
+            candidates[i] = index.rulesFor(index.field.value(match));
+            if ((seen & (1L << index.field.field.ordinal())) == 0)
+                match.fieldUnseen(index.field.field);
+        }
+    }
+
+    /**
+     * Returns the first rule at or after a position that may match the
+     * packet, or size() if there are none. The fields that exclude the
+     * rules skipped are marked as seen in the match.
+     */
+    public int next(long[][] candidates, int from, FlowMatch match) {
+        for (int word = from >>> 6; word << 6 < size; word++) {
+            long rules = word == from >>> 6 ? -1L << from : -1L;
+            if (((word + 1) << 6) > size)
+                rules &= -1L >>> -size;
+            long matching = rules;
+            for (long[] fieldRules : candidates)
+                matching &= fieldRules[word];
+            long skipped = rules & (matching == 0 ? -1L
+                                    : Long.lowestOneBit(matching) - 1);
+            if (skipped != 0)
+                markExcluding(candidates, word, skipped, match);
+            if (matching != 0)
+                return (word << 6) + Long.numberOfTrailingZeros(matching);
+        }
+        return size;
+    }
+
+    private void markExcluding(long[][] candidates, int word, long skipped,
+                               FlowMatch match) {
+        for (int i = 0; i < candidates.length && skipped != 0; i++) {
+            long excluded = skipped & ~candidates[i][word];
+            if (excluded != 0) {
+                indexes[i].field.value(match);
+                skipped &= ~excluded;
+            }
+        }
+    }
+}
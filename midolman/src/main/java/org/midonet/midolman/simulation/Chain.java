@@ -29,15 +29,22 @@ import com.google.common.annotations.VisibleForTesting;
 
 import org.midonet.midolman.rules.JumpRule;
 import org.midonet.midolman.rules.Rule;
+import org.midonet.midolman.rules.RuleClassifier;
 import org.midonet.midolman.rules.RuleResult;
 import org.midonet.midolman.rules.RuleResult.Action;
+import org.midonet.odp.FlowMatch;
 import org.midonet.sdn.flows.FlowTagger;
 
 import static org.midonet.midolman.topology.VirtualTopology.VirtualDevice;
 
 public class Chain implements VirtualDevice {
+    /** Chains with fewer rules than this are applied without classifying
+     *  the packets first. */
+    static final int MIN_CLASSIFIED_RULES = 16;
+
     public final UUID id;
     private final List<Rule> rules;
+    private final RuleClassifier classifier;
     private final Map<UUID, Chain> jumpTargets;
     public final String name;
     public final FlowTagger.FlowTag flowInvTag;
@@ -49,6 +56,8 @@ public class Chain implements VirtualDevice {
         this.jumpTargets = jumpTargets;
         this.name = name;
         flowInvTag = FlowTagger.tagForDevice(id);
+        classifier = this.rules.size() >= MIN_CLASSIFIED_RULES
+                     ? RuleClassifier.compile(this.rules) : null;
     }
 
     public int hashCode() {
@@ -91,11 +100,14 @@ public class Chain implements VirtualDevice {
      *     Depth of jump recursion. Guards against excessive recursion.
      * @param traversedChains
      *     Keeps track of chains that have been visited to prevent
-     *     infinite recursion in the event of a cycle.
+     *     infinite recursion in the event of a cycle. It is null until
+     *     the first jump, which is always from the chain where processing
+     *     starts.
+     * @return The chains traversed, or null if there was no jump.
      */
-    private void apply(PacketContext context, UUID ownerId,
-                       boolean isPortFilter, RuleResult res,
-                       int depth, List<UUID> traversedChains) {
+    private List<UUID> apply(PacketContext context, UUID ownerId,
+                             boolean isPortFilter, RuleResult res,
+                             int depth, List<UUID> traversedChains) {
 
         context.jlog().debug("Processing chain with name {} and ID {}", name, id);
         if (depth > 10) {
@@ -104,38 +116,68 @@ public class Chain implements VirtualDevice {
         }
 
         context.addFlowTag(flowInvTag);
-        traversedChains.add(id);
+        if (traversedChains != null)
+            traversedChains.add(id);
 
-        Iterator<Rule> iter = rules.iterator();
         res.action = Action.CONTINUE;
-        while (iter.hasNext() && res.action == Action.CONTINUE) {
+        // The rules may have been modified after the chain was compiled
+        if (classifier != null && classifier.size() == rules.size()) {
+            FlowMatch match = context.wcmatch();
+            long[][] candidates = classifier.classify(match);
+            int i = classifier.next(candidates, 0, match);
+            while (i < rules.size()) {
+                traversedChains = process(rules.get(i), context, ownerId,
+                                          isPortFilter, res, depth,
+                                          traversedChains);
+                if (res.action != Action.CONTINUE)
+                    break;
+                if (classifier.reclassifiesAfter(i))
+                    classifier.classify(match, candidates);
+                i = classifier.next(candidates, i + 1, match);
+            }
+        } else {
+            Iterator<Rule> iter = rules.iterator();
+            while (iter.hasNext() && res.action == Action.CONTINUE) {
+                traversedChains = process(iter.next(), context, ownerId,
+                                          isPortFilter, res, depth,
+                                          traversedChains);
+            }
+        }
 
-            Rule r = iter.next();
-            r.process(context, res, ownerId, isPortFilter);
+        assert res.action != Action.JUMP;
+        return traversedChains;
+    }
 
-            if (res.action == Action.JUMP) {
-                Chain jumpChain = getJumpTarget(res.jumpToChain);
-                if (null == jumpChain) {
-                    context.jlog().error("ignoring jump to chain {} : not found.",
-                                        res.jumpToChain, context);
-                    res.action = Action.CONTINUE;
-                } else if (traversedChains.contains(jumpChain.id)) {
-                    context.jlog().warn(
-                        "cannot jump from chain {} to chain {} -- already visited",
-                        this, jumpChain, context);
+    private List<UUID> process(Rule r, PacketContext context, UUID ownerId,
+                               boolean isPortFilter, RuleResult res,
+                               int depth, List<UUID> traversedChains) {
+        r.process(context, res, ownerId, isPortFilter);
+
+        if (res.action == Action.JUMP) {
+            if (traversedChains == null) {
+                traversedChains = new ArrayList<>();
+                traversedChains.add(id);
+            }
+            Chain jumpChain = getJumpTarget(res.jumpToChain);
+            if (null == jumpChain) {
+                context.jlog().error("ignoring jump to chain {} : not found.",
+                                    res.jumpToChain, context);
+                res.action = Action.CONTINUE;
+            } else if (traversedChains.contains(jumpChain.id)) {
+                context.jlog().warn(
+                    "cannot jump from chain {} to chain {} -- already visited",
+                    this, jumpChain, context);
+                res.action = Action.CONTINUE;
+            } else {
+                // Apply the jump chain and return if it produces a
+                // decisive action. If not, on to the next rule.
+                jumpChain.apply(context, ownerId, isPortFilter,
+                                res, depth + 1, traversedChains);
+                if (res.action == Action.RETURN)
                     res.action = Action.CONTINUE;
-                } else {
-                    // Apply the jump chain and return if it produces a
-                    // decisive action. If not, on to the next rule.
-                    jumpChain.apply(context, ownerId, isPortFilter,
-                                    res, depth + 1, traversedChains);
-                    if (res.action == Action.RETURN)
-                        res.action = Action.CONTINUE;
-                }
             }
         }
-
-        assert res.action != Action.JUMP;
+        return traversedChains;
     }
 
     /**
@@ -162,20 +204,21 @@ public class Chain implements VirtualDevice {
 
         // Use ArrayList rather than HashSet because the list will be
         // short enough that O(N) lookup is still cheap, and this
-        // avoids per-chain allocation.
+        // avoids per-chain allocation. The list is only allocated on
+        // the first jump.
         //
         // TODO: We can count how many chains can be reached from a
         // given root chain in the constructor and then use that to
         // determine how big a list to allocate.
-        List<UUID> traversedChains = new ArrayList<>();
         RuleResult res = new RuleResult(Action.CONTINUE, null);
-        chain.apply(context, ownerId, isPortFilter, res, 0, traversedChains);
+        List<UUID> traversedChains =
+            chain.apply(context, ownerId, isPortFilter, res, 0, null);
 
         // Accept if the chain didn't make an explicit decision.
         if (!res.action.isDecisive())
             res.action = Action.ACCEPT;
 
-        if (traversedChains.size() > 25) {
+        if (traversedChains != null && traversedChains.size() > 25) {
             // It's unlikely that this will come up a lot, but if it does,
             // consider using a different structure for traversedChains.
             context.jlog().warn("Traversed {} chains when applying chain {}.",
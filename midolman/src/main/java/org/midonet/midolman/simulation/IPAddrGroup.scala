@@ -17,11 +17,27 @@ package org.midonet.midolman.simulation
 
 import java.util.UUID
 
-import org.midonet.packets.IPAddr
+import scala.collection.JavaConverters._
+
+import org.midonet.packets.{IPAddr, IPAddrSet}
 import org.midonet.midolman.topology.VirtualTopology.Device
 
-class IPAddrGroup(val id: UUID, val addrs: Set[IPAddr]) extends Device {
-    def contains(addr: IPAddr) = addrs.contains(addr)
+/**
+ * A group of IP addresses. The members are kept in an IPAddrSet, which may
+ * also have subnets, and which is updated in place of being rebuilt when the
+ * group changes.
+ */
+class IPAddrGroup(val id: UUID, val members: IPAddrSet) extends Device {
+
+    def this(id: UUID, addrs: Set[IPAddr]) =
+        this(id, IPAddrSet.of(addrs.asJavaCollection))
+
+    def contains(addr: IPAddr) = members.contains(addr)
+
+    /** The addresses of the members, subnets included by their address. */
+    lazy val addrs: Set[IPAddr] =
+        members.members.asScala.map(_.getAddress: IPAddr).toSet
+
     override def toString =
         "IPAddrGroup[id=%s, addrs=[%s]]".format(id, addrs.mkString(", "))
 }
@@ -31,6 +47,6 @@ object IPAddrGroup {
      * Added because initializing an immutable set from Java is a pain.
      */
     def fromAddrs(id: UUID, addrs: Array[IPAddr]): IPAddrGroup = {
-        new IPAddrGroup(id, addrs.toSet)
+        new IPAddrGroup(id, IPAddrSet.of(addrs.toSeq.asJavaCollection))
     }
 }
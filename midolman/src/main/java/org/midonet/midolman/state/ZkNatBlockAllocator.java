@@ -17,8 +17,14 @@
 package org.midonet.midolman.state;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.google.inject.Inject;
 import com.google.inject.name.Named;
@@ -27,6 +33,8 @@ import org.apache.zookeeper.AsyncCallback;
 import org.apache.zookeeper.CreateMode;
 import org.apache.zookeeper.KeeperException;
 import org.apache.zookeeper.Op;
+import org.apache.zookeeper.WatchedEvent;
+import org.apache.zookeeper.Watcher;
 import org.apache.zookeeper.ZooDefs.Ids;
 import org.apache.zookeeper.data.ACL;
 import org.apache.zookeeper.data.Stat;
@@ -47,10 +55,26 @@ import org.midonet.util.functors.Callback;
  *    (having been freed either explicitly or because its owner host went down).
  *
  *  Refer to the documentation for details on the algorithm.
+ *
+ *  The blocks of a range are read in parallel with asynchronous requests,
+ *  which also set a watch on the children of each block. The ownership of the
+ *  blocks read is cached until the watch fires, so that the next allocations
+ *  only read the blocks that changed. A block chosen from stale data is
+ *  caught when claiming it fails, and a range that appears to be full is
+ *  read again before reporting that there are no blocks.
+ *
+ *  At most MAX_WATCHED_BLOCKS blocks are watched, and so cached, at any time:
+ *  a watch stays until its block changes, which may never happen for the
+ *  blocks of a deleted device, and the blocks read beyond that are neither
+ *  watched nor cached. The cached blocks of an IP are dropped when one of its
+ *  blocks is freed.
  */
 public class ZkNatBlockAllocator implements NatBlockAllocator {
     private static final List<ACL> acl = Ids.OPEN_ACL_UNSAFE;
 
+    /* The number of blocks of 4 IPs */
+    static final int MAX_WATCHED_BLOCKS = 4 * NatBlock.TOTAL_BLOCKS;
+
     protected static final Logger log = LoggerFactory
             .getLogger(ZkNatBlockAllocator.class);
 
@@ -59,6 +83,59 @@ public class ZkNatBlockAllocator implements NatBlockAllocator {
     // TODO: Until ZK 3.5, which supports async multi operations
     private final Reactor reactor;
 
+    /* The ownership of a block, as of the last read of its children. */
+    private static final class BlockState {
+        final int owners;
+        final long czxid;
+        // Pzxid is the (undocumented) zxid of the last modified child
+        final long pzxid;
+
+        BlockState(Stat stat) {
+            owners = stat.getNumChildren();
+            czxid = stat.getCzxid();
+            pzxid = stat.getPzxid();
+        }
+    }
+
+    // Keyed by the path of the block
+    private final ConcurrentHashMap<String, BlockState> blocks =
+        new ConcurrentHashMap<>();
+
+    // The paths of the blocks with a pending watch
+    private final Set<String> watched =
+        Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private final Watcher blockWatcher = new Watcher() {
+        @Override
+        public void process(WatchedEvent event) {
+            if (event.getType() == Event.EventType.None) {
+                // Changes may be missed while not connected, and the
+                // watches are gone with the session
+                if (event.getState() == Event.KeeperState.Expired)
+                    watched.clear();
+                if (event.getState() != Event.KeeperState.SyncConnected)
+                    blocks.clear();
+            } else if (event.getPath() != null) {
+                blocks.remove(event.getPath());
+                watched.remove(event.getPath());
+            }
+        }
+    };
+
+    /* Whether to watch a block when reading it. */
+    private boolean watch(String path) {
+        if (watched.contains(path))
+            return true;
+        if (watched.size() >= MAX_WATCHED_BLOCKS)
+            return false;
+        watched.add(path);
+        return true;
+    }
+
+    int cachedBlocks() {
+        return blocks.size();
+    }
+
     @Inject
     public ZkNatBlockAllocator(ZkConnection zk, PathBuilder paths,
                                @Named(ZkConnectionProvider.DIRECTORY_REACTOR_TAG) Reactor reactor) {
@@ -71,74 +148,141 @@ public class ZkNatBlockAllocator implements NatBlockAllocator {
     public void allocateBlockInRange(final NatRange natRange,
                                      final Callback<NatBlock, Exception> callback) {
         log.debug("Trying to allocate a suitable block for {}", natRange);
-        reactor.submit(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    allocateBlock(natRange, callback);
-                } catch (InterruptedException ignored) {
-                } catch (KeeperException e) {
-                    if (e.code() == KeeperException.Code.NODEEXISTS) {
-                        // Retry, but allow the reactor to process other work
-                        allocateBlockInRange(natRange, callback);
-                    } else if (e.code() == KeeperException.Code.NONODE) {
-                        ensureDevicePath(natRange, callback);
-                    } else {
-                        callback.onError(e);
-                    }
-                }
-            }
-        });
+        new BlockScan(natRange, callback, false).start();
     }
 
-    // TODO: Use support for multi-get in ZK 3.5
-    private void allocateBlock(NatRange natRange,
-                               Callback<NatBlock, Exception> callback)
-            throws KeeperException, InterruptedException {
-        int lruBlock = -1;
-        long lruBlockZxid = Long.MAX_VALUE;
-        ArrayList<Integer> virginBlocks = new ArrayList<>();
-        int startBlock = natRange.tpPortStart / NatBlock.BLOCK_SIZE;
-        int endBlock = natRange.tpPortEnd / NatBlock.BLOCK_SIZE;
-        Stat stat = new Stat();
-        for (int i = startBlock; i <= endBlock; ++i) {
-            String path = paths.getNatBlockPath(natRange.deviceId, natRange.ip, i);
-            zk.getZooKeeper().getData(path, false, stat);
-            if (stat.getNumChildren() == 0) {
-                // Pzxid is the (undocumented) zxid of the last modified child
-                long pzxid = stat.getPzxid();
-                if (pzxid == stat.getCzxid()) {
-                    virginBlocks.add(i);
-                } else if (pzxid < lruBlockZxid) {
-                    lruBlockZxid = pzxid;
-                    lruBlock = i;
+    /**
+     * Reads the blocks of a range that are not cached, all at once, and
+     * claims one of them once all the reads complete.
+     */
+    private final class BlockScan implements AsyncCallback.Children2Callback {
+        private final NatRange natRange;
+        private final Callback<NatBlock, Exception> callback;
+        private final boolean fresh;
+        private final int startBlock;
+        private final BlockState[] states;
+        private final AtomicInteger pending = new AtomicInteger();
+        private final AtomicBoolean failed = new AtomicBoolean();
+        private boolean cached = false;
+
+        BlockScan(NatRange natRange, Callback<NatBlock, Exception> callback,
+                  boolean fresh) {
+            this.natRange = natRange;
+            this.callback = callback;
+            this.fresh = fresh;
+            startBlock = natRange.tpPortStart / NatBlock.BLOCK_SIZE;
+            int endBlock = natRange.tpPortEnd / NatBlock.BLOCK_SIZE;
+            states = new BlockState[endBlock - startBlock + 1];
+        }
+
+        void start() {
+            List<Integer> reads = new ArrayList<>(states.length);
+            for (int i = 0; i < states.length; ++i) {
+                BlockState state = fresh ? null : blocks.get(path(i));
+                if (state == null)
+                    reads.add(i);
+                else
+                    states[i] = state;
+            }
+            cached = reads.size() < states.length;
+            if (reads.isEmpty()) {
+                chooseBlock();
+                return;
+            }
+            pending.set(reads.size());
+            for (Integer i : reads) {
+                String path = path(i);
+                zk.getZooKeeper().getChildren(
+                    path, watch(path) ? blockWatcher : null, this, i);
+            }
+        }
+
+        private String path(int i) {
+            return paths.getNatBlockPath(natRange.deviceId, natRange.ip,
+                                         startBlock + i);
+        }
+
+        @Override
+        public void processResult(int rc, String path, Object ctx,
+                                  List<String> children, Stat stat) {
+            if (rc == KeeperException.Code.OK.intValue()) {
+                BlockState state = new BlockState(stat);
+                if (watched.contains(path))
+                    blocks.put(path, state);
+                states[(Integer) ctx] = state;
+            } else if (failed.compareAndSet(false, true)) {
+                if (rc == KeeperException.Code.NONODE.intValue()) {
+                    ensureDevicePath(natRange, callback);
+                } else {
+                    callback.onError(KeeperException.create(
+                        KeeperException.Code.get(rc), path));
                 }
             }
+            if (pending.decrementAndGet() == 0 && !failed.get())
+                chooseBlock();
         }
 
-        if (virginBlocks.size() > 0) {
-            int block = ThreadLocalRandom.current().nextInt(0, virginBlocks.size());
-            claimBlock(virginBlocks.get(block), natRange, callback);
-        } else if (lruBlock >= 0) {
-            claimBlock(lruBlock, natRange, callback);
-        } else {
-            callback.onSuccess(NatBlock.NO_BLOCK);
+        private void chooseBlock() {
+            int lruBlock = -1;
+            long lruBlockZxid = Long.MAX_VALUE;
+            ArrayList<Integer> virginBlocks = new ArrayList<>();
+            for (int i = 0; i < states.length; ++i) {
+                BlockState state = states[i];
+                if (state.owners == 0) {
+                    if (state.pzxid == state.czxid) {
+                        virginBlocks.add(startBlock + i);
+                    } else if (state.pzxid < lruBlockZxid) {
+                        lruBlockZxid = state.pzxid;
+                        lruBlock = startBlock + i;
+                    }
+                }
+            }
+
+            if (virginBlocks.size() > 0) {
+                int block = ThreadLocalRandom.current().nextInt(0, virginBlocks.size());
+                claimBlock(virginBlocks.get(block), natRange, callback);
+            } else if (lruBlock >= 0) {
+                claimBlock(lruBlock, natRange, callback);
+            } else if (cached) {
+                // The blocks may have been freed since they were cached
+                new BlockScan(natRange, callback, true).start();
+            } else {
+                callback.onSuccess(NatBlock.NO_BLOCK);
+            }
         }
     }
 
     private void claimBlock(final int block,
                             final NatRange natRange,
-                            final Callback<NatBlock, Exception> callback)
-            throws KeeperException, InterruptedException {
+                            final Callback<NatBlock, Exception> callback) {
         log.debug("Trying to claim block {} for {}", block, natRange);
+        final String blockPath = paths.getNatBlockPath(
+            natRange.deviceId, natRange.ip, block);
         String path = paths.getNatBlockOwnershipPath(
             natRange.deviceId, natRange.ip, block);
-        zk.getZooKeeper().create(path, null, acl, CreateMode.EPHEMERAL);
-        callback.onSuccess(new NatBlock(natRange.deviceId, natRange.ip, block));
+        zk.getZooKeeper().create(path, null, acl, CreateMode.EPHEMERAL,
+                                 new AsyncCallback.StringCallback() {
+            @Override
+            public void processResult(int rc, String path, Object ctx,
+                                      String name) {
+                if (rc == KeeperException.Code.OK.intValue()) {
+                    callback.onSuccess(
+                        new NatBlock(natRange.deviceId, natRange.ip, block));
+                } else if (rc == KeeperException.Code.NODEEXISTS.intValue()) {
+                    // Someone else claimed it first, retry
+                    blocks.remove(blockPath);
+                    allocateBlockInRange(natRange, callback);
+                } else {
+                    callback.onError(KeeperException.create(
+                        KeeperException.Code.get(rc), path));
+                }
+            }
+        }, null);
     }
 
     @Override
     public void freeBlock(NatBlock natBlock) {
+        forgetBlocks(natBlock);
         freeBlock(natBlock, 10);
     }
 
@@ -159,6 +303,16 @@ public class ZkNatBlockAllocator implements NatBlockAllocator {
         }, null);
     }
 
+    /* Drops the cached blocks of the IP of a block. */
+    private void forgetBlocks(NatBlock natBlock) {
+        String prefix = paths.getNatIpPath(natBlock.deviceId, natBlock.ip) + "/";
+        Iterator<String> it = blocks.keySet().iterator();
+        while (it.hasNext()) {
+            if (it.next().startsWith(prefix))
+                it.remove();
+        }
+    }
+
     private void ensureDevicePath(final NatRange natRange,
                                   final Callback<NatBlock, Exception> callback) {
         zk.getZooKeeper().create(paths.getNatDevicePath(natRange.deviceId), null,
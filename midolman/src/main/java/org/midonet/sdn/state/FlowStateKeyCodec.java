@@ -0,0 +1,60 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.sdn.state;
+
+/**
+ * Encodes the keys of a flow state table as a fixed number of words, so that
+ * they can be stored inline in the primitive arrays of a PrimitiveFlowStateMap
+ * instead of as objects.
+ *
+ * The encoding must be injective: two encodable keys are equal if and only if
+ * all their words are equal.
+ *
+ * The codec also provides the connection hash of the keys, which determines
+ * the shard of a ShardedFlowStateTable that owns them.
+ *
+ * @param <K> Type of the keys in the table
+ */
+public interface FlowStateKeyCodec<K> {
+    /**
+     * The number of words a key is encoded into.
+     */
+    int WORDS = 5;
+
+    /**
+     * Whether the key can be encoded. Keys that can't be encoded, such as
+     * those holding IPv6 addresses, are stored as objects.
+     */
+    boolean canEncode(K key);
+
+    /**
+     * Returns the specified word, between 0 and WORDS - 1, of the encoded key.
+     */
+    long encode(K key, int word);
+
+    /**
+     * Builds a key from its encoded words.
+     */
+    K decode(long w0, long w1, long w2, long w3, long w4);
+
+    /**
+     * Returns the hash of the connection the key belongs to, as computed by
+     * FlowMatch.connectionHash() for the packets of that connection. Unlike
+     * the encoding, this applies to all keys.
+     */
+    int connectionHash(K key);
+}
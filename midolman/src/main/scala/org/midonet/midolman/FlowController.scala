@@ -35,6 +35,7 @@ import org.midonet.midolman.monitoring.MeterRegistry
 import org.midonet.midolman.simulation.PacketContext
 import org.midonet.netlink.exceptions.NetlinkException.ErrorCode
 import org.midonet.odp.FlowMatch
+import org.midonet.sdn.flows.FlowTagger.FlowTag
 import org.midonet.util.collection.{NoOpPool, ArrayObjectPool}
 import org.midonet.util.concurrent.{Backchannel, NanoClock}
 import org.midonet.util.concurrent.WakerUpper.Parkable
@@ -47,6 +48,7 @@ trait FlowController extends FlowLifecycle with FlowInvalidation
     val clock: NanoClock
     val flowProcessor: FlowProcessor
     val flowInvalidator: FlowInvalidator
+    val flowStatsSweeper: FlowStatsSweeper
     val metrics: PacketPipelineMetrics
     def datapathId: Int
 
@@ -70,6 +72,16 @@ trait FlowController extends FlowLifecycle with FlowInvalidation
 
     private val dpFlows = new HashMap[FlowMatch, ManagedFlow](maxFlows)
 
+    val flowCache = new WildcardFlowCache(config.flowCacheSize)
+
+    /* When the datapath flows are swept for statistics, the stateless flows
+     * are expired after being idle for a while instead of after a fixed
+     * period, and only have a (longer) hard timeout to bound their staleness. */
+    private val idleFlowExpiration =
+        if (flowStatsSweeper.isEnabled) config.datapath.idleFlowExpiration
+        else 0L
+    private val idleFlowHardExpiration = config.datapath.idleFlowHardExpiration
+
     metrics.currentDpFlowsMetric.register(new Gauge[Long] {
         override def getValue = dpFlows.size()
     }, id)
@@ -81,7 +93,13 @@ trait FlowController extends FlowLifecycle with FlowInvalidation
             var flow = managedFlowPool.take
             if (flow eq null)
                 flow = oversubscriptionManagedFlowPool.take
-            flow.reset(flowMatch, context.flowTags, callbacks, 0L, expiration, clock.tick)
+            val now = clock.tick
+            flow.reset(flowMatch, context.flowTags, callbacks, 0L, expiration, now)
+            if (idleFlowExpiration > 0 &&
+                (expiration eq FlowExpiration.FLOW_EXPIRATION)) {
+                flow.idleTimeoutNanos = idleFlowExpiration
+                flow.absoluteExpirationNanos = now + idleFlowHardExpiration
+            }
             registerFlow(flow)
             context.flow = flow
             context.log.debug(s"Added flow $flow")
@@ -95,12 +113,21 @@ trait FlowController extends FlowLifecycle with FlowInvalidation
 
     override def shouldProcess() =
         completedFlowOperations.size > 0 ||
-        flowInvalidator.needsToInvalidateTags(id)
+        flowInvalidator.needsToInvalidateTags(id) ||
+        flowStatsSweeper.hasSweptFlows(id)
 
     override def process(): Unit = {
         processCompletedFlowOperations()
         flowInvalidator.process(id, this)
+        processSweptFlows()
         checkFlowsExpiration(clock.tick)
+        if (id == 0)
+            flowStatsSweeper.trySweep(datapathId, flowProcessor)
+    }
+
+    override def invalidateFlowsFor(tag: FlowTag): Unit = {
+        flowCache.invalidate(tag)
+        super.invalidateFlowsFor(tag)
     }
 
     override def registerFlow(flow: ManagedFlow): Unit = {
@@ -123,6 +150,21 @@ trait FlowController extends FlowLifecycle with FlowInvalidation
         }
     }
 
+    /* A flow whose last used time changed since the previous sweep has been
+     * hit by a packet in between, so we consider it used now. */
+    private def processSweptFlows(): Unit = {
+        var swept: FlowStatsSweeper.SweptFlow = null
+        while ({ swept = flowStatsSweeper.poll(id); swept } ne null) {
+            val flow = dpFlows.get(swept.flowMatch)
+            if ((flow ne null) &&
+                flow.datapathLastUsedMillis != swept.lastUsedMillis) {
+                flow.datapathLastUsedMillis = swept.lastUsedMillis
+                touchFlow(flow, clock.tick)
+            }
+            flowStatsSweeper.recycle(swept)
+        }
+    }
+
     private def processCompletedFlowOperations(): Unit = {
         var req: FlowOperation = null
         while ({ req = completedFlowOperations.poll(); req } ne null) {
@@ -34,7 +34,7 @@ import org.midonet.cluster.DataClient
 import org.midonet.midolman.HostRequestProxy.FlowStateBatch
 import org.midonet.midolman.config.MidolmanConfig
 import org.midonet.midolman.datapath.{FlowProcessor, DatapathChannel}
-import org.midonet.midolman.flows.{FlowExpiration, FlowInvalidator}
+import org.midonet.midolman.flows.{FlowExpiration, FlowInvalidator, FlowStatsSweeper}
 import org.midonet.midolman.logging.{ActorLogWithoutPath, FlowTracingContext}
 import org.midonet.midolman.management.PacketTracing
 import org.midonet.midolman.topology.{VxLanPortMapper, VirtualTopologyActor}
@@ -54,6 +54,7 @@ import org.midonet.packets._
 import org.midonet.sdn.flows.FlowTagger
 import org.midonet.sdn.flows.FlowTagger._
 import org.midonet.sdn.state.{FlowStateTable, FlowStateTransaction}
+import org.midonet.Util
 import org.midonet.util.collection.Reducer
 import org.midonet.util.concurrent._
 
@@ -61,11 +62,16 @@ object PacketWorkflow {
     case class HandlePackets(packet: Array[Packet])
     case class RestartWorkflow(pktCtx: PacketContext, error: Throwable)
 
+    /* Maximum number of packets, and of restarted workflows, handled from
+     * the inbox between two calls to process() */
+    val INBOX_BATCH_SIZE = 16
+
     trait SimulationResult
     case object NoOp extends SimulationResult
     case object Drop extends SimulationResult
     case object TemporaryDrop extends SimulationResult
     case object AddVirtualWildcardFlow extends SimulationResult
+    case object CachedFlow extends SimulationResult
     case object StateMessage extends SimulationResult
     case object UserspaceFlow extends SimulationResult
     case object FlowCreated extends SimulationResult
@@ -144,19 +150,22 @@ class PacketWorkflow(
             val clusterDataClient: DataClient,
             val flowInvalidator: FlowInvalidator,
             val flowProcessor: FlowProcessor,
+            val flowStatsSweeper: FlowStatsSweeper,
             val connTrackStateTable: FlowStateTable[ConnTrackKey, ConnTrackValue],
             val natStateTable: FlowStateTable[NatKey, NatBinding],
             val traceStateTable: FlowStateTable[TraceKey, TraceContext],
             val storage: FlowStateStorage,
             val natLeaser: NatLeaser,
             val metrics: PacketPipelineMetrics,
-            val packetOut: Int => Unit)
+            val packetOut: Int => Unit,
+            val inbox: WorkflowInbox)
         extends Actor with ActorLogWithoutPath with Stash with Backchannel
         with UnderlayTrafficHandler with FlowTranslator with RoutingWorkflow
         with FlowController {
 
     import DatapathController.DatapathReady
     import PacketWorkflow._
+    import WorkflowInbox.Wakeup
 
     override def logSource = "org.midonet.packet-worker"
     val resultLogger = Logger(LoggerFactory.getLogger("org.midonet.packets.results"))
@@ -174,6 +183,21 @@ class PacketWorkflow(
 
     private val genPacketEmitter = new PacketEmitter(new MpscArrayQueue(512), self)
 
+    // How long the worker keeps polling its empty inbox before waiting for
+    // a Wakeup message, and whether it yields its thread meanwhile.
+    private val inboxWaitNanos = config.workerWaitStrategy match {
+        case "block" => 0L
+        case "yield" | "spin" => config.workerWaitTime
+        case v => throw new IllegalArgumentException(
+            "Unknown value for worker_wait_strategy: " + v)
+    }
+    private val yieldWhileWaiting = config.workerWaitStrategy == "yield"
+
+    inbox.attach(self)
+
+    private val contextPool = new PacketContextPool(Util.findNextPositivePowerOfTwo(
+        config.datapath.globalIncomingBurstCapacity * 2))
+
     protected val connTrackTx = new FlowStateTransaction(connTrackStateTable)
     protected val natTx = new FlowStateTransaction(natStateTable)
     protected val traceStateTx = new FlowStateTransaction(traceStateTable)
@@ -215,10 +239,13 @@ class PacketWorkflow(
         case m: FlowStateBatch =>
             replicator.importFromStorage(m)
 
+        case Wakeup =>
+            drainInbox()
+
         case HandlePackets(packets) =>
             var i = 0
             while (i < packets.length && packets(i) != null) {
-                handlePacket(packets(i))
+                dequeuePacket(packets(i))
                 i += 1
             }
             process()
@@ -227,26 +254,85 @@ class PacketWorkflow(
             process()
 
         case RestartWorkflow(pktCtx, error) =>
-            if (pktCtx.idle) {
-                metrics.packetsOnHold.dec()
-                pktCtx.log.debug("Restarting workflow")
-                MDC.put("cookie", pktCtx.cookieStr)
-                if (error eq null)
-                    runWorkflow(pktCtx)
-                else
-                    handleErrorOn(pktCtx, error)
-                MDC.remove("cookie")
-                FlowTracingContext.clearContext()
+            restartWorkflow(pktCtx, error)
+    }
+
+    /**
+     * Drains the inbox until it is empty. With the yield and spin wait
+     * strategies, the worker then keeps polling it for workerWaitTime, so
+     * that it doesn't need to be woken up again if more work arrives in the
+     * meantime. The worker then goes back to sleep, until the inbox sends it
+     * another Wakeup, and only then handles the other messages in its
+     * mailbox, such as the packets that overflowed the inbox.
+     */
+    private def drainInbox(): Unit =
+        do {
+            var idle = false
+            var idleSince = 0L
+            var draining = true
+            while (draining) {
+                if (handleInbox() > 0) {
+                    process()
+                    idle = false
+                } else {
+                    val now = NanoClock.DEFAULT.tick
+                    if (!idle) {
+                        idle = true
+                        idleSince = now
+                    }
+                    if (now - idleSince >= inboxWaitNanos)
+                        draining = false
+                    else if (yieldWhileWaiting)
+                        Thread.`yield`()
+                }
             }
-            // Else the packet may have already been expired and dropped
+        } while (inbox.sleep())
+
+    private def handleInbox(): Int = {
+        var handled = 0
+        var packet: Packet = null
+        while (handled < INBOX_BATCH_SIZE &&
+               { packet = inbox.packets.poll(); packet } != null) {
+            dequeuePacket(packet)
+            handled += 1
+        }
+        var restarts = 0
+        var restart: RestartWorkflow = null
+        while (restarts < INBOX_BATCH_SIZE &&
+               { restart = inbox.restarts.poll(); restart } != null) {
+            restartWorkflow(restart.pktCtx, restart.error)
+            restarts += 1
+        }
+        handled + restarts
+    }
+
+    private def dequeuePacket(packet: Packet): Unit = {
+        metrics.packetQueueLatency.update(
+            NanoClock.DEFAULT.tick - packet.startTimeNanos)
+        handlePacket(packet)
     }
 
+    private def restartWorkflow(pktCtx: PacketContext, error: Throwable): Unit =
+        if (pktCtx.idle) {
+            metrics.packetsOnHold.dec()
+            pktCtx.log.debug("Restarting workflow")
+            MDC.put("cookie", pktCtx.cookieStr)
+            if (error eq null)
+                runWorkflow(pktCtx)
+            else
+                handleErrorOn(pktCtx, error)
+            MDC.remove("cookie")
+            FlowTracingContext.clearContext()
+        }
+        // Else the packet may have already been expired and dropped
+
     override def shouldProcess(): Boolean =
         super.shouldProcess() ||
         genPacketEmitter.pendingPackets > 0
 
     override def process(): Unit = {
         super.process()
+        contextPool.reclaim(dpChannel.processedSequence)
         genPacketEmitter.process(runGeneratedPacket)
         connTrackStateTable.expireIdleEntries((), invalidateExpiredConnTrackKeys)
         natStateTable.expireIdleEntries((), invalidateExpiredNatKeys)
@@ -265,8 +351,8 @@ class PacketWorkflow(
 
     private def initialize(packet: Packet, fmatch: FlowMatch, egressPort: UUID) = {
         val cookie = cookieGen.next
-        log.debug(s"Creating new PacketContext for cookie $cookie")
-        val context = new PacketContext(cookie, packet, fmatch, egressPort)
+        log.debug(s"Taking a PacketContext for cookie $cookie")
+        val context = contextPool.take(cookie, packet, fmatch, egressPort)
         context.reset(genPacketEmitter)
         context.initialize(connTrackTx, natTx, natLeaser, traceStateTx)
         context.log = PacketTracing.loggerFor(fmatch)
@@ -281,9 +367,9 @@ class PacketWorkflow(
         pktCtx.postpone()
         f.onComplete {
             case Success(_) =>
-                self ! RestartWorkflow(pktCtx, null)
+                inbox.restart(pktCtx, null)
             case Failure(ex) =>
-                self ! RestartWorkflow(pktCtx, ex)
+                inbox.restart(pktCtx, ex)
         }(ExecutionContext.callingThread)
         metrics.packetPostponed()
         giveUpWorkflows(waitingRoom enter pktCtx)
@@ -336,6 +422,10 @@ class PacketWorkflow(
                 case _ => metrics.packetSimulated(latency.toInt)
             }
         }
+
+        // A context that ran more than once may have been postponed
+        if (pktCtx.runs == 1)
+            contextPool.handedOff(pktCtx, seq)
     }
 
     /**
@@ -390,7 +480,9 @@ class PacketWorkflow(
 
     private def handlePacket(packet: Packet): Unit =
         if (FlowStatePackets.isStateMessage(packet.getMatch)) {
-            handleStateMessage(packetContext(packet))
+            val context = packetContext(packet)
+            handleStateMessage(context)
+            contextPool.recycle(context)
             packetOut(1)
         } else {
             processPacket(packet)
@@ -494,7 +586,9 @@ class PacketWorkflow(
                                 result: SimulationResult): SimulationResult = {
         val res = result match {
             case AddVirtualWildcardFlow =>
-                concludeSimulation(context)
+                cacheFlow(context, concludeSimulation(context))
+            case CachedFlow =>
+                addTranslatedFlow(context, FlowExpiration.FLOW_EXPIRATION)
             case NoOp =>
                 context.flowRemovedCallbacks.runAndClear()
                 NoOp
@@ -502,7 +596,8 @@ class PacketWorkflow(
                 context.clearFlowTags()
                 addTranslatedFlow(context, FlowExpiration.ERROR_CONDITION_EXPIRATION)
             case Drop =>
-                addTranslatedFlow(context, FlowExpiration.FLOW_EXPIRATION)
+                cacheFlow(context,
+                          addTranslatedFlow(context, FlowExpiration.FLOW_EXPIRATION))
         }
         resultLogger.debug(s"Simulation finished with result $res: " +
                            s"match ${context.origMatch}, flow actions " +
@@ -530,10 +625,33 @@ class PacketWorkflow(
     protected def simulatePacketIn(context: PacketContext): SimulationResult =
         if (handleDHCP(context)) {
             NoOp
+        } else if (lookupFlowCache(context)) {
+            CachedFlow
         } else {
             runSimulation(context)
         }
 
+    private def lookupFlowCache(context: PacketContext): Boolean =
+        if (flowCache.capacity > 0 && !context.tracingEnabled) {
+            if (flowCache.replay(context, clock.tick)) {
+                context.log.debug("Replaying cached flow")
+                metrics.flowCacheHits.mark()
+                true
+            } else {
+                metrics.flowCacheMisses.mark()
+                false
+            }
+        } else {
+            false
+        }
+
+    private def cacheFlow(context: PacketContext,
+                          result: SimulationResult): SimulationResult = {
+        if ((result eq FlowCreated) && context.ingressed)
+            flowCache.add(context, clock.tick)
+        result
+    }
+
     protected def handleStateMessage(context: PacketContext): Unit = {
         context.log.debug("Accepting a state push message")
         replicator.accept(context.ethernet)
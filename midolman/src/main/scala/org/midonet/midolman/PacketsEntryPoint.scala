@@ -34,14 +34,15 @@ import org.midonet.cluster.DataClient
 import org.midonet.midolman.HostRequestProxy.FlowStateBatch
 import org.midonet.midolman.config.MidolmanConfig
 import org.midonet.midolman.datapath.{FlowProcessor, DatapathChannel}
-import org.midonet.midolman.flows.FlowInvalidator
+import org.midonet.midolman.flows.{FlowInvalidator, FlowStatsSweeper}
 import org.midonet.midolman.logging.ActorLogWithoutPath
 import org.midonet.midolman.monitoring.metrics.PacketPipelineMetrics
-import org.midonet.midolman.state.ConnTrackState.{ConnTrackKey, ConnTrackValue}
-import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
+import org.midonet.midolman.state.ConnTrackState.{ConnTrackKey, ConnTrackKeyCodec, ConnTrackValue}
+import org.midonet.midolman.state.NatState.{NatBinding, NatKey, NatKeyCodec}
 import org.midonet.midolman.state.{FlowStateStorageFactory, NatBlockAllocator, NatLeaser}
 import org.midonet.midolman.state.TraceState.{TraceKey, TraceContext}
 import org.midonet.sdn.state.ShardedFlowStateTable
+import org.midonet.Util
 import org.midonet.util.StatisticalCounter
 import org.midonet.util.concurrent.NanoClock
 
@@ -50,7 +51,8 @@ object PacketsEntryPoint extends Referenceable {
 
     case object GetWorkers
 
-    case class Workers(list: IndexedSeq[ActorRef])
+    case class Workers(list: IndexedSeq[ActorRef],
+                       inboxes: IndexedSeq[WorkflowInbox] = IndexedSeq.empty)
 }
 
 class PacketsEntryPoint extends Actor with ActorLogWithoutPath
@@ -90,6 +92,7 @@ class PacketsEntryPoint extends Actor with ActorLogWithoutPath
     private var metrics: PacketPipelineMetrics = null
 
     protected var workers = immutable.IndexedSeq[ActorRef]()
+    protected var inboxes = immutable.IndexedSeq[WorkflowInbox]()
 
     @Inject
     var counter: StatisticalCounter = null
@@ -112,6 +115,7 @@ class PacketsEntryPoint extends Actor with ActorLogWithoutPath
     var connTrackStateTable: ShardedFlowStateTable[ConnTrackKey, ConnTrackValue] = _
     var natStateTable: ShardedFlowStateTable[NatKey, NatBinding] = _
     var natLeaser: NatLeaser = _
+    var flowStatsSweeper: FlowStatsSweeper = _
     var traceStateTable: ShardedFlowStateTable[TraceKey, TraceContext] = _
 
     override def preStart(): Unit = {
@@ -119,16 +123,21 @@ class PacketsEntryPoint extends Actor with ActorLogWithoutPath
         NUM_WORKERS = config.simulationThreads
         metrics = new PacketPipelineMetrics(metricsRegistry, NUM_WORKERS)
 
-        connTrackStateTable = new ShardedFlowStateTable(clock)
-        natStateTable = new ShardedFlowStateTable(clock)
+        connTrackStateTable = new ShardedFlowStateTable(clock, ConnTrackKeyCodec)
+        natStateTable = new ShardedFlowStateTable(clock, NatKeyCodec)
         natLeaser = new NatLeaser {
             val log: Logger = Logger(LoggerFactory.getLogger(classOf[NatLeaser]))
             val allocator = natBlockAllocator
             val clock = PacketsEntryPoint.this.clock
         }
         traceStateTable = new ShardedFlowStateTable(clock)
+        flowStatsSweeper = FlowStatsSweeper(
+            config, NUM_WORKERS, clock, metrics, () => self ! CheckBackchannels)
 
+        val inboxCapacity = Util.findNextPositivePowerOfTwo(
+            config.datapath.globalIncomingBurstCapacity * 2)
         for (i <- 0 until NUM_WORKERS) {
+            inboxes :+= new WorkflowInbox(inboxCapacity)
             workers :+= startWorker(i)
         }
         workers.awaitStart(30 seconds)
@@ -151,12 +160,12 @@ class PacketsEntryPoint extends Actor with ActorLogWithoutPath
         Props(
             classOf[PacketWorkflow],
             index, config, cookieGen, clock, dpChannel, clusterDataClient,
-            flowInvalidator, flowProcessor,
+            flowInvalidator, flowProcessor, flowStatsSweeper,
             connTrackStateTable.addShard(log = shardLogger(connTrackStateTable)),
             natStateTable.addShard(log = shardLogger(natStateTable)),
             traceStateTable.addShard(log = shardLogger(traceStateTable)),
             storageFactory.create(), natLeaser, metrics,
-            counter.addAndGet(index, _: Int))
+            counter.addAndGet(index, _: Int), inboxes(index))
     }
 
     private def broadcast(m: Any) { workers foreach ( _ ! m ) }
@@ -171,6 +180,6 @@ class PacketsEntryPoint extends Actor with ActorLogWithoutPath
 
         case CheckBackchannels => broadcast(CheckBackchannels)
 
-        case GetWorkers => sender ! Workers(workers)
+        case GetWorkers => sender ! Workers(workers, inboxes)
     }
 }
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import java.util.concurrent.atomic.AtomicBoolean
+
+import akka.actor.ActorRef
+
+import org.jctools.queues.MpscArrayQueue
+
+import org.midonet.midolman.PacketWorkflow.RestartWorkflow
+import org.midonet.midolman.simulation.PacketContext
+import org.midonet.odp.Packet
+
+object WorkflowInbox {
+    /** Tells a worker that its inbox has work */
+    case object Wakeup
+}
+
+/**
+ * The lock-free rings feeding a packet processing worker. The upcall threads
+ * offer the packets they read, and the futures the postponed simulations wait
+ * on offer the workflows to restart, without allocating a message for them nor
+ * going through the mailbox of the worker.
+ *
+ * The worker is sent a Wakeup message only when it is not already draining
+ * its rings, so at most one such message is in flight at any time. Upon a
+ * Wakeup, the worker drains the rings until they stay empty, without going
+ * through its mailbox, and then calls sleep().
+ */
+class WorkflowInbox(capacity: Int) {
+    import WorkflowInbox._
+
+    val packets = new MpscArrayQueue[Packet](capacity)
+    val restarts = new MpscArrayQueue[RestartWorkflow](capacity)
+
+    private val awake = new AtomicBoolean(false)
+    @volatile private var worker: ActorRef = _
+
+    def attach(worker: ActorRef): Unit = {
+        this.worker = worker
+    }
+
+    /**
+     * Offers a packet to the worker, returning false if the ring is full.
+     * The producer must call wakeup() after offering a batch of packets.
+     */
+    def offer(packet: Packet): Boolean = packets.offer(packet)
+
+    /**
+     * Asks the worker to restart a postponed workflow.
+     */
+    def restart(pktCtx: PacketContext, error: Throwable): Unit = {
+        val restart = RestartWorkflow(pktCtx, error)
+        if (restarts.offer(restart))
+            wakeup()
+        else
+            worker ! restart
+    }
+
+    def wakeup(): Unit =
+        if (!awake.get && awake.compareAndSet(false, true))
+            worker ! Wakeup
+
+    def isEmpty: Boolean = packets.isEmpty && restarts.isEmpty
+
+    /**
+     * Called by the worker when it stops draining the rings. Returns true
+     * when work arrived in the meantime and the worker must keep draining.
+     */
+    def sleep(): Boolean = {
+        awake.set(false)
+        !isEmpty && awake.compareAndSet(false, true)
+    }
+}
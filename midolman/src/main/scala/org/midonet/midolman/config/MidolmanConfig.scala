@@ -75,6 +75,10 @@ class MidolmanConfig(_conf: Config, val schema: Config = ConfigFactory.empty())
     def simulationThreads = getInt(s"$PREFIX.midolman.simulation_threads")
     def outputChannels = getInt(s"$PREFIX.midolman.output_channels")
     def inputChannelThreading = getString(s"$PREFIX.midolman.input_channel_threading")
+    def upcallThreadPinning = getString(s"$PREFIX.midolman.upcall_thread_pinning")
+    def workerWaitStrategy = getString(s"$PREFIX.midolman.worker_wait_strategy")
+    def workerWaitTime = getDuration(s"$PREFIX.midolman.worker_wait_time", TimeUnit.NANOSECONDS)
+    def flowCacheSize = getInt(s"$PREFIX.midolman.flow_cache_size")
     def datapathName = Try(getString(s"$PREFIX.midolman.datapath")).getOrElse("midonet")
 
     val bridge = new BridgeConfig(conf, schema)
@@ -119,6 +123,14 @@ class DatapathConfig(val conf: Config, val schema: Config) extends TypeFailureFa
     def vtepIncomingBurstCapacity = getInt(s"$PREFIX.vtep_incoming_burst_capacity")
 
     def controlPacketTos: Byte = getInt(s"$PREFIX.control_packet_tos").toByte
+
+    def flowBatchMaxBytes = getInt(s"$PREFIX.flow_batch_max_bytes")
+    def flowBatchMaxLatency = getDuration(s"$PREFIX.flow_batch_max_latency", TimeUnit.NANOSECONDS)
+    def packetBatchMaxBytes = getInt(s"$PREFIX.packet_batch_max_bytes")
+
+    def flowStatsSweepInterval = getDuration(s"$PREFIX.flow_stats_sweep_interval", TimeUnit.NANOSECONDS)
+    def idleFlowExpiration = getDuration(s"$PREFIX.idle_flow_expiration", TimeUnit.NANOSECONDS)
+    def idleFlowHardExpiration = getDuration(s"$PREFIX.idle_flow_hard_expiration", TimeUnit.NANOSECONDS)
 }
 
 class ArpTableConfig(val conf: Config, val schema: Config) extends TypeFailureFallback {
@@ -24,6 +24,13 @@ import org.midonet.odp._
 trait DatapathChannel {
     def handoff(context: PacketContext): Long
 
+    /**
+     * The highest sequence, as returned by handoff(), up to which all the
+     * handed off contexts have been fully processed and are no longer
+     * referenced by the channel, or -1 if that is not known.
+     */
+    def processedSequence: Long
+
     def start(datapath: Datapath): Unit
     def stop(): Unit
 }
@@ -66,6 +73,9 @@ class DisruptorDatapathChannel(ringBuffer: RingBuffer[PacketContextHolder],
     def stop(): Unit =
         processors foreach (_.halt())
 
+    def processedSequence: Long =
+        ringBuffer.getMinimumGatingSequence
+
     def handoff(context: PacketContext): Long = {
         val seq = ringBuffer.next()
         val event = ringBuffer.get(seq)
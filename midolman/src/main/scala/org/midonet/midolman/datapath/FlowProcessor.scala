@@ -26,6 +26,7 @@ import org.slf4j.LoggerFactory
 import com.typesafe.scalalogging.Logger
 
 import org.midonet.midolman.datapath.DisruptorDatapathChannel._
+import org.midonet.midolman.simulation.PacketContext
 import org.midonet.netlink._
 import org.midonet.netlink.exceptions.NetlinkException
 import org.midonet.odp.{FlowMask, FlowMatch, OvsNetlinkFamilies, OvsProtocol}
@@ -45,13 +46,39 @@ object FlowProcessor {
         classOf[FlowProcessor].getDeclaredField("lastSequence"))
 
     private val MAX_BUF_CAPACITY = 4 * 1024 * 1024
+
+    /**
+     * Flow creates are written outside of the NetlinkRequestBroker, so we set
+     * the high bit of their Netlink sequence numbers to tell apart an error
+     * reply to a flow create from one to a broker request. The lower bits
+     * index into the ring of recently written flow creates, which we use to
+     * match the error back to the packet that originated the flow.
+     */
+    private val FLOW_CREATE_SEQ = 0x80000000
+    private val FLOW_CREATE_RING_SIZE = 1024
+    private val FLOW_CREATE_RING_MASK = FLOW_CREATE_RING_SIZE - 1
+
+    def isFlowCreateSequence(seq: Int): Boolean =
+        (seq & FLOW_CREATE_SEQ) != 0
 }
 
+/**
+ * Creates datapath flows and services the flow requests (gets and deletes)
+ * made through the Backchannel.
+ *
+ * When maxBatchBytes is greater than zero, the flow creates available in a
+ * Disruptor batch are packed into one buffer and written to the datapath with
+ * a single write. A batch is flushed at the end of the Disruptor batch, when
+ * the next flow doesn't fit in maxBatchBytes, or when the first flow in the
+ * batch has waited for longer than maxBatchLatencyNanos.
+ */
 class FlowProcessor(families: OvsNetlinkFamilies,
                     maxPendingRequests: Int,
                     maxRequestSize: Int,
                     channelFactory: NetlinkChannelFactory,
-                    clock: NanoClock)
+                    clock: NanoClock,
+                    maxBatchBytes: Int = 0,
+                    maxBatchLatencyNanos: Long = 0)
     extends EventPoller.Handler[PacketContextHolder]
     with Backchannel
     with LifecycleAware {
@@ -70,9 +97,12 @@ class FlowProcessor(families: OvsNetlinkFamilies,
     }
 
     private val writer = new NetlinkBlockingWriter(channel)
+    // The kernel fills each read of a flow dump up to the size of the read,
+    // so the buffer is as large as the netlink connections' read buffer
     private val broker = new NetlinkRequestBroker(
         writer, new NetlinkReader(channel), maxPendingRequests, maxRequestSize,
-        BytesUtil.instance.allocateDirect(8 * 1024), clock)
+        BytesUtil.instance.allocateDirect(
+            AbstractNetlinkConnection.NETLINK_READ_BUFSIZE), clock)
 
     private val protocol = new OvsProtocol(pid, families)
 
@@ -80,6 +110,23 @@ class FlowProcessor(families: OvsNetlinkFamilies,
 
     private var lastSequence = Sequencer.INITIAL_CURSOR_VALUE
 
+    private val batchBuf =
+        if (maxBatchBytes > 0) BytesUtil.instance.allocateDirect(maxBatchBytes)
+        else null
+    private var batchedFlows = 0
+    private var batchDeadline = 0L
+    private var batchSequence = Sequencer.INITIAL_CURSOR_VALUE
+
+    /**
+     * The cookies and loggers of the packets whose flow creates were most
+     * recently written, indexed by the lower bits of the Netlink sequence
+     * number. Written by the writer thread and read by the reply thread when
+     * handling an error, so they are only used for diagnostics.
+     */
+    private var flowCreateSeq = 0
+    private val flowCreateCookies = new Array[Int](FLOW_CREATE_RING_SIZE)
+    private val flowCreateLogs = new Array[Logger](FLOW_CREATE_RING_SIZE)
+
     override def onEvent(event: PacketContextHolder, sequence: Long,
                          endOfBatch: Boolean): Boolean = {
         val context = event.flowCreateRef
@@ -92,9 +139,14 @@ class FlowProcessor(families: OvsNetlinkFamilies,
                     context.log.debug(s"Applying mask $flowMask")
                     flowMask
                 } else null
-                writeFlow(event.datapathId, flowMatch.getKeys,
-                          context.flowActions, mask)
-                context.log.debug("Created datapath flow")
+                prepareFlow(event.datapathId, flowMatch.getKeys,
+                            context.flowActions, mask)
+                val seq = nextFlowCreateSeq(context)
+                if (batchFlow()) {
+                    context.log.debug(s"Batched datapath flow with seq $seq")
+                } else {
+                    context.log.debug("Created datapath flow")
+                }
             } catch { case t: Throwable =>
                 context.log.error("Failed to create datapath flow", t)
             } finally {
@@ -102,16 +154,18 @@ class FlowProcessor(families: OvsNetlinkFamilies,
                 writeBuf.clear()
             }
 
-            lastSequence = sequence
+            batchSequence = sequence
+        }
+        if (batchedFlows == 0 || endOfBatch || clock.tick >= batchDeadline) {
+            flushBatch()
         }
         true
     }
 
-    private def writeFlow(datapathId: Int, keys: ArrayList[FlowKey],
-                          actions: ArrayList[FlowAction], mask: FlowMask): Unit =
+    private def prepareFlow(datapathId: Int, keys: ArrayList[FlowKey],
+                            actions: ArrayList[FlowAction], mask: FlowMask): Unit =
         try {
             protocol.prepareFlowCreate(datapathId, keys, actions, mask, writeBuf)
-            writer.write(writeBuf)
         } catch { case e: BufferOverflowException =>
             val capacity = writeBuf.capacity()
             if (capacity >= MAX_BUF_CAPACITY)
@@ -119,8 +173,61 @@ class FlowProcessor(families: OvsNetlinkFamilies,
             val newCapacity = capacity * 2
             writeBuf = BytesUtil.instance.allocateDirect(newCapacity)
             log.debug(s"Increasing buffer size to $newCapacity")
-            writeFlow(datapathId, keys, actions, mask)
+            prepareFlow(datapathId, keys, actions, mask)
+        }
+
+    private def nextFlowCreateSeq(context: PacketContext): Int = {
+        val pos = flowCreateSeq & FLOW_CREATE_RING_MASK
+        val seq = FLOW_CREATE_SEQ | pos
+        flowCreateSeq += 1
+        flowCreateCookies(pos) = context.cookie
+        flowCreateLogs(pos) = context.log
+        writeBuf.putInt(NetlinkMessage.NLMSG_SEQ_OFFSET, seq)
+        seq
+    }
+
+    /**
+     * Appends the flow create serialized in the writeBuf to the current batch,
+     * flushing the batch first if the flow doesn't fit. A flow is written on
+     * its own if batching is disabled or if it is larger than the batch
+     * buffer, in which case this method returns false.
+     */
+    private def batchFlow(): Boolean = {
+        if ((batchBuf ne null) && writeBuf.remaining() > batchBuf.remaining()) {
+            flushBatch()
+        }
+        if ((batchBuf eq null) || writeBuf.remaining() > batchBuf.remaining()) {
+            writer.write(writeBuf)
+            false
+        } else {
+            if (batchedFlows == 0) {
+                batchDeadline = clock.tick + maxBatchLatencyNanos
+            }
+            batchBuf.put(writeBuf)
+            batchedFlows += 1
+            true
+        }
+    }
+
+    /**
+     * Writes the pending batch of flow creates, if any, and makes the
+     * Disruptor sequence of the last flow visible to tryEject().
+     */
+    private def flushBatch(): Unit = {
+        if (batchedFlows > 0) {
+            batchBuf.flip()
+            try {
+                writer.write(batchBuf)
+                log.debug(s"Created $batchedFlows datapath flows")
+            } catch { case t: Throwable =>
+                log.error(s"Failed to create $batchedFlows datapath flows", t)
+            } finally {
+                batchBuf.clear()
+                batchedFlows = 0
+            }
         }
+        lastSequence = batchSequence
+    }
 
     def capacity = broker.capacity
 
@@ -165,6 +272,26 @@ class FlowProcessor(families: OvsNetlinkFamilies,
         }
     }
 
+    /**
+     * Requests a dump of all the flows in the datapath. The observer's onNext
+     * is called with each flow as it's read, and onCompleted once the dump is
+     * done.
+     */
+    def tryDumpFlows(datapathId: Int, obs: Observer[ByteBuffer]): Boolean = {
+        var seq = 0
+        if ({ seq = broker.nextSequence(); seq } != NetlinkRequestBroker.FULL) {
+            try {
+                protocol.prepareFlowEnum(datapathId, broker.get(seq))
+                broker.publishRequest(seq, obs)
+            } catch { case e: Throwable =>
+                obs.onError(e)
+            }
+            true
+        } else {
+            false
+        }
+    }
+
     override def shouldProcess(): Boolean =
         broker.hasRequestsToWrite
 
@@ -176,6 +303,8 @@ class FlowProcessor(families: OvsNetlinkFamilies,
             log.warn("Unexpected reply; probably the late answer of a request that timed out")
 
         override def onError(e: Throwable): Unit = e match {
+            case ne: NetlinkException if isFlowCreateSequence(ne.getSequence) =>
+                flowCreateFailed(ne)
             case ne: NetlinkException if ne.getErrorCodeEnum == NetlinkException.ErrorCode.EEXIST =>
                 log.debug("Tried to add duplicate DP flow")
             case ne: NetlinkException =>
@@ -186,6 +315,18 @@ class FlowProcessor(families: OvsNetlinkFamilies,
         override def onNext(t: ByteBuffer): Unit = { }
     }
 
+    private def flowCreateFailed(ne: NetlinkException): Unit = {
+        val pos = ne.getSequence & FLOW_CREATE_RING_MASK
+        val cookie = flowCreateCookies(pos)
+        val flowLog = if (flowCreateLogs(pos) ne null) flowCreateLogs(pos) else log
+        if (ne.getErrorCodeEnum == NetlinkException.ErrorCode.EEXIST) {
+            flowLog.debug(s"Tried to add duplicate DP flow [cookie:$cookie]")
+        } else {
+            flowLog.warn(s"Failed to create datapath flow [cookie:$cookie] " +
+                         s"with code ${ne.getErrorCodeEnum}")
+        }
+    }
+
     val replies = new Thread("flow-processor-replies") {
         override def run(): Unit =
             while (channel.isOpen) {
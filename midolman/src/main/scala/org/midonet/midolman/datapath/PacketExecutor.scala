@@ -18,6 +18,7 @@ package org.midonet.midolman.datapath
 
 import java.nio.BufferOverflowException
 import java.util._
+import java.util.{List => JList}
 
 import com.google.protobuf.{MessageLite, CodedOutputStream}
 
@@ -32,9 +33,116 @@ import org.midonet.netlink._
 import org.midonet.odp.flows.FlowAction
 import org.midonet.odp.{FlowMatches, Packet, OvsProtocol, OvsNetlinkFamilies}
 import org.midonet.packets.FlowStateEthernet
+import org.midonet.rpc.{FlowStateProto => Proto}
 import org.midonet.util.FixedArrayOutputStream
 
+object StatePacketExecutor {
+
+    /* The largest length delimited state message that fits in a state packet */
+    val MAX_MESSAGE_LENGTH = FlowStateEthernet.FLOW_STATE_MAX_PAYLOAD_LENGTH
+
+    private val NEW_STATE_TAG_SIZE = CodedOutputStream.computeTagSize(
+        Proto.StateMessage.NEW_STATE_FIELD_NUMBER)
+
+    private def delimitedSize(size: Int): Int =
+        size + CodedOutputStream.computeRawVarint32Size(size)
+
+    private def stateSize(size: Int): Int =
+        NEW_STATE_TAG_SIZE + delimitedSize(size)
+
+    /**
+     * Splits a state message into messages that each fit, once length
+     * delimited, in maxLength bytes, adding them to the partitions list. The
+     * flow states of the message are packed in as few messages as possible;
+     * a flow state that does not fit in a message by itself is split by its
+     * NAT and trace entries, each part keeping the ports of the flow. Entries
+     * that do not fit in a message by themselves are dropped.
+     *
+     * @return The number of dropped entries.
+     */
+    def partition(message: Proto.StateMessage, maxLength: Int,
+                  partitions: JList[Proto.StateMessage]): Int = {
+        val header = message.toBuilder.clearNewState()
+        val headerSize = header.build().getSerializedSize
+        var current = header.clone()
+        var currentSize = headerSize
+        var dropped = 0
+
+        def fits(size: Int, stateBytes: Int): Boolean =
+            delimitedSize(size + stateBytes) <= maxLength
+
+        def add(state: Proto.FlowState): Unit = {
+            val bytes = stateSize(state.getSerializedSize)
+            if (!fits(currentSize, bytes)) {
+                partitions.add(current.build())
+                current = header.clone()
+                currentSize = headerSize
+            }
+            current.addNewState(state)
+            currentSize += bytes
+        }
+
+        def split(state: Proto.FlowState): Unit = {
+            val base = state.toBuilder.clearConntrackKey().clearNatEntries()
+                                      .clearTraceEntry()
+            val baseSize = base.build().getSerializedSize
+            var part = base.clone()
+            var partSize = baseSize
+            if (state.hasConntrackKey) {
+                part.setConntrackKey(state.getConntrackKey)
+                partSize = part.build().getSerializedSize
+            }
+
+            def append(entrySize: Int, set: Proto.FlowState.Builder => Unit)
+            : Unit = {
+                if (!fits(headerSize, stateSize(baseSize + entrySize))) {
+                    dropped += 1
+                    return
+                }
+                if (!fits(headerSize, stateSize(partSize + entrySize))) {
+                    add(part.build())
+                    part = base.clone()
+                    partSize = baseSize
+                }
+                set(part)
+                partSize += entrySize
+            }
+
+            val natEntries = state.getNatEntriesList.iterator
+            while (natEntries.hasNext) {
+                val entry = natEntries.next()
+                append(CodedOutputStream.computeMessageSize(
+                           Proto.FlowState.NAT_ENTRIES_FIELD_NUMBER, entry),
+                       _.addNatEntries(entry))
+            }
+            val traceEntries = state.getTraceEntryList.iterator
+            while (traceEntries.hasNext) {
+                val entry = traceEntries.next()
+                append(CodedOutputStream.computeMessageSize(
+                           Proto.FlowState.TRACE_ENTRY_FIELD_NUMBER, entry),
+                       _.addTraceEntry(entry))
+            }
+            if (partSize > baseSize)
+                add(part.build())
+        }
+
+        val states = message.getNewStateList.iterator
+        while (states.hasNext) {
+            val state = states.next()
+            if (fits(headerSize, stateSize(state.getSerializedSize)))
+                add(state)
+            else
+                split(state)
+        }
+        if (current.getNewStateCount > 0)
+            partitions.add(current.build())
+        dropped
+    }
+}
+
 trait StatePacketExecutor {
+    import StatePacketExecutor._
+
     val log: Logger
 
     /**
@@ -44,6 +152,7 @@ trait StatePacketExecutor {
     private val stream = new FixedArrayOutputStream(stateBuf)
     private val udpShell: FlowStateEthernet = new FlowStateEthernet(stateBuf)
     private val statePacket = new Packet(udpShell, FlowMatches.fromEthernetPacket(udpShell))
+    private val partitions = new ArrayList[Proto.StateMessage]()
 
     def prepareStatePacket(message: MessageLite): Packet = {
         val messageSizeVariantLength = CodedOutputStream.computeRawVarint32Size(
@@ -55,22 +164,63 @@ trait StatePacketExecutor {
             udpShell.limit(messageLength)
         } catch {
             case _: IndexOutOfBoundsException =>
-                // TODO(guillermo) partition messages
                 log.warn(s"Skipping state packet, too large: $message")
             case e: Throwable =>
                 log.warn("Failed to write state packet due to", e)
         }
         statePacket
     }
+
+    /**
+     * Prepares as many state packets as needed to carry a state message,
+     * partitioning it if it does not fit in a single packet, and calls the
+     * given function with each of them. The state packets are reused, so
+     * they must not be referenced once the function returns.
+     */
+    def prepareStatePackets(message: Proto.StateMessage)
+                           (execute: Packet => Unit): Unit = {
+        if (delimitedSize(message.getSerializedSize) <= MAX_MESSAGE_LENGTH) {
+            execute(prepareStatePacket(message))
+        } else {
+            partitions.clear()
+            val dropped = partition(message, MAX_MESSAGE_LENGTH, partitions)
+            if (dropped > 0)
+                log.warn(s"Skipping $dropped flow state entries too large " +
+                         "for a state packet")
+            log.debug(s"Partitioned state message in ${partitions.size} " +
+                      "state packets")
+            var i = 0
+            while (i < partitions.size) {
+                execute(prepareStatePacket(partitions.get(i)))
+                i += 1
+            }
+            partitions.clear()
+        }
+    }
 }
 
 object PacketExecutor {
     private val MAX_BUF_CAPACITY = 4 * 1024 * 1024
+
+    /* The maximum number of packets whose execution is deferred while
+     * coalescing their flow state */
+    val MAX_COALESCED_PACKETS = 128
 }
 
+/**
+ * Executes the packets handed off by the simulations, in the Disruptor
+ * sequences assigned to this executor.
+ *
+ * When maxBatchBytes is greater than zero, the packet executes of a batch,
+ * including those of the flow state packets, are packed into one buffer and
+ * written to the datapath with a single write. A batch is flushed once all the
+ * packets pending execution are serialized, or when the next packet execute
+ * doesn't fit in maxBatchBytes.
+ */
 sealed class PacketExecutor(families: OvsNetlinkFamilies,
                             numHandlers: Int, index: Int,
-                            channelFactory: NetlinkChannelFactory)
+                            channelFactory: NetlinkChannelFactory,
+                            maxBatchBytes: Int = 0)
     extends EventHandler[PacketContextHolder]
     with LifecycleAware with StatePacketExecutor {
 
@@ -90,32 +240,56 @@ sealed class PacketExecutor(families: OvsNetlinkFamilies,
     private val writer = new NetlinkBlockingWriter(channel)
     private val reader = new NetlinkReader(channel)
 
+    private val batchBuf =
+        if (maxBatchBytes > 0) BytesUtil.instance.allocateDirect(maxBatchBytes)
+        else null
+    private var batchedPackets = 0
+
+    /* The flow state of the packets in the current batch, coalesced by the
+     * actions that send it to the peers */
+    private val pendingState =
+        new HashMap[ArrayList[FlowAction], Proto.StateMessage.Builder]()
+    private val pendingPackets = new ArrayList[PacketContext]()
+    private var pendingDpId = 0
+
+    /**
+     * The packets are executed at the end of each batch of the ring buffer, or
+     * after MAX_COALESCED_PACKETS packets, once the flow state of all the
+     * packets in the batch has been sent to each set of peers in as few state
+     * packets as possible. This keeps sending the flow state before the
+     * packets that created it, while the number of state packets decreases as
+     * the load increases.
+     */
     override def onEvent(event: PacketContextHolder, sequence: Long,
-                         endOfBatch: Boolean): Unit =
+                         endOfBatch: Boolean): Unit = {
         if (sequence % numHandlers == index) {
             val context = event.packetExecRef
             event.packetExecRef = null
             val actions = context.packetActions
             val packet = context.packet
-            val dpId = event.datapathId
             if (actions.size > 0 && packet.getReason != Packet.Reason.FlowActionUserspace) {
-                try {
-                    maybeExecuteStatePacket(dpId, context)
-                    executePacket(dpId, packet, actions)
-                    context.log.debug(s"Executed packet")
-                } catch { case t: Throwable =>
-                    context.log.error(s"Failed to execute packet", t)
-                }
+                pendingDpId = event.datapathId
+                coalesceState(context)
+                pendingPackets.add(context)
             }
         }
+        if (endOfBatch ||
+            pendingPackets.size >= PacketExecutor.MAX_COALESCED_PACKETS) {
+            executePending(pendingDpId)
+        }
+    }
 
-    private def maybeExecuteStatePacket(datapathId: Int, context: PacketContext): Unit = {
+    private def coalesceState(context: PacketContext): Unit = {
         val actions = context.stateActions
-        if (actions.size > 0) {
+        if (actions.size > 0 && (context.stateMessage ne null)) {
             try {
-                val statePacket = prepareStatePacket(context.stateMessage)
-                executePacket(datapathId, statePacket, actions)
-                context.log.debug(s"Executed flow state message")
+                val pending = pendingState.get(actions)
+                if (pending eq null) {
+                    pendingState.put(new ArrayList(actions),
+                                     context.stateMessage.toBuilder)
+                } else {
+                    pending.addAllNewState(context.stateMessage.getNewStateList)
+                }
             } finally {
                 context.stateMessage = null
                 context.stateActions.clear()
@@ -123,11 +297,45 @@ sealed class PacketExecutor(families: OvsNetlinkFamilies,
         }
     }
 
+    private def executePending(datapathId: Int): Unit = {
+        if (!pendingState.isEmpty) {
+            val states = pendingState.entrySet().iterator()
+            while (states.hasNext) {
+                val entry = states.next()
+                try {
+                    prepareStatePackets(entry.getValue.build()) { packet =>
+                        executePacket(datapathId, packet, entry.getKey)
+                    }
+                    log.debug("Executed flow state message")
+                } catch { case t: Throwable =>
+                    log.error("Failed to execute flow state message", t)
+                }
+            }
+            pendingState.clear()
+        }
+        var i = 0
+        while (i < pendingPackets.size) {
+            val context = pendingPackets.get(i)
+            try {
+                if (executePacket(datapathId, context.packet, context.packetActions)) {
+                    context.log.debug(s"Batched packet execution")
+                } else {
+                    context.log.debug(s"Executed packet")
+                }
+            } catch { case t: Throwable =>
+                context.log.error(s"Failed to execute packet", t)
+            }
+            i += 1
+        }
+        pendingPackets.clear()
+        flushBatch()
+    }
+
     private def executePacket(datapathId: Int, packet: Packet,
-                              actions: ArrayList[FlowAction]): Unit =
+                              actions: ArrayList[FlowAction]): Boolean =
         try {
             protocol.preparePacketExecute(datapathId, packet, actions, writeBuf)
-            writer.write(writeBuf)
+            batchPacket()
         } catch { case e: BufferOverflowException =>
             val capacity = writeBuf.capacity()
             if (capacity >= PacketExecutor.MAX_BUF_CAPACITY)
@@ -140,6 +348,43 @@ sealed class PacketExecutor(families: OvsNetlinkFamilies,
             writeBuf.clear()
         }
 
+    /**
+     * Appends the packet execute serialized in the writeBuf to the current
+     * batch, flushing the batch first if the packet doesn't fit. A packet is
+     * executed on its own if batching is disabled or if it is larger than the
+     * batch buffer, in which case this method returns false.
+     */
+    private def batchPacket(): Boolean = {
+        if ((batchBuf ne null) && writeBuf.remaining() > batchBuf.remaining()) {
+            flushBatch()
+        }
+        if ((batchBuf eq null) || writeBuf.remaining() > batchBuf.remaining()) {
+            writer.write(writeBuf)
+            false
+        } else {
+            batchBuf.put(writeBuf)
+            batchedPackets += 1
+            true
+        }
+    }
+
+    /**
+     * Writes the pending batch of packet executes, if any.
+     */
+    private def flushBatch(): Unit =
+        if (batchedPackets > 0) {
+            batchBuf.flip()
+            try {
+                writer.write(batchBuf)
+                log.debug(s"Executed $batchedPackets packets")
+            } catch { case t: Throwable =>
+                log.error(s"Failed to execute $batchedPackets packets", t)
+            } finally {
+                batchBuf.clear()
+                batchedPackets = 0
+            }
+        }
+
     private def processError(): Unit =
         try {
            if (reader.read(readBuf) > 0) {
@@ -16,8 +16,6 @@
 
 package org.midonet.midolman.flows
 
-import java.util.ArrayDeque
-
 import scala.concurrent.duration._
 
 import com.typesafe.scalalogging.Logger
@@ -26,6 +24,9 @@ object FlowExpiration {
     sealed abstract class Expiration {
         def value: Long
         val typeId: Int
+        /* Flows idle for longer than this are expired before their hard
+         * timeout. Zero means the flows have no idle timeout. */
+        def idleTimeout: Long = 0L
     }
     object ERROR_CONDITION_EXPIRATION extends Expiration {
         val value = (5 seconds).toNanos
@@ -44,12 +45,28 @@ object FlowExpiration {
         val typeId = 3
     }
 
-    private final val maxType = 4
+    /* The timing wheel has 512 slots of 2^27 ns (~134 ms) each, spanning
+     * ~68 s. Flows expiring further away stay in their slot for more than
+     * one revolution. */
+    private final val TickShift = 27
+    private final val WheelSlots = 512
+    private final val SlotMask = WheelSlots - 1
+    private final val PendingSlot = WheelSlots
 }
 
 /**
  * This trait deals with flow expiration. It registers all new flows and removes
- * them when the specified expiration time has elapsed.
+ * them when their hard timeout, or their idle timeout if they have one, has
+ * elapsed.
+ *
+ * Flows are kept in a hashed timing wheel, indexed by the tick in which they
+ * expire, so that registering, removing and rescheduling a flow are O(1).
+ * An idle flow is only rescheduled when its slot comes up, which makes
+ * touching a flow as cheap as updating its last used time.
+ *
+ * When there are more than maxFlows flows, they are evicted following the
+ * CLOCK policy: flows are visited in registration order, and those that
+ * were touched since the last visit get a second chance.
  */
 trait FlowExpiration extends FlowLifecycle {
     import FlowExpiration._
@@ -57,69 +74,190 @@ trait FlowExpiration extends FlowLifecycle {
     val log: Logger
     val maxFlows: Int
 
-    private val expirationQueues = new Array[ArrayDeque[ManagedFlow]](maxType)
+    private val wheel = new Array[ManagedFlow](WheelSlots + 1)
+    private var currentTick = 0L
+    private var started = false
 
-    {
-        expirationQueues(ERROR_CONDITION_EXPIRATION.typeId) = new ArrayDeque(maxFlows / 3)
-        expirationQueues(FLOW_EXPIRATION.typeId) = new ArrayDeque(maxFlows)
-        expirationQueues(STATEFUL_FLOW_EXPIRATION.typeId) = new ArrayDeque(maxFlows)
-        expirationQueues(TUNNEL_FLOW_EXPIRATION.typeId) = new ArrayDeque(maxFlows / 3)
-    }
+    private var evictionHand: ManagedFlow = null
+    private var numFlows = 0
 
     abstract override def registerFlow(flow: ManagedFlow): Unit = {
         super.registerFlow(flow)
-        expirationQueues(flow.expirationType).addLast(flow)
         flow.ref()
+        linkForEviction(flow)
+        schedule(flow, flow.expirationNanos)
+        numFlows += 1
     }
 
+    abstract override def removeFlow(flow: ManagedFlow): Unit = {
+        super.removeFlow(flow)
+        forget(flow)
+    }
+
+    /**
+     * Marks the flow as recently used at the specified time, which extends
+     * the life of a flow with an idle timeout and makes it less likely to be
+     * evicted.
+     */
+    def touchFlow(flow: ManagedFlow, lastUsedNanos: Long): Unit = {
+        if (lastUsedNanos > flow.lastUsedNanos)
+            flow.lastUsedNanos = lastUsedNanos
+        flow.recentlyUsed = true
+    }
+
+    /**
+     * Reschedules the flow after its timeouts were changed.
+     */
+    def rescheduleFlow(flow: ManagedFlow): Unit =
+        if (flow.wheelSlot >= 0) {
+            unschedule(flow)
+            schedule(flow, flow.expirationNanos)
+        }
+
     def checkFlowsExpiration(now: Long): Unit = {
-        checkHardTimeOutExpiration(now)
+        checkTimeOutExpiration(now)
         manageFlowTableSize()
     }
 
-    private def checkHardTimeOutExpiration(now: Long): Unit = {
-        var i = 0
-        while (i < maxType) {
-            var flow: ManagedFlow = null
-            val queue = expirationQueues(i)
-            while (({ flow = queue.peekFirst(); flow } ne null) &&
-                   now >= flow.absoluteExpirationNanos) {
-                log.debug(s"Removing flow $flow for hard expiration")
-                removeFlow(queue.pollFirst())
-                flow.unref()
+    private def checkTimeOutExpiration(now: Long): Unit = {
+        val nowTick = now >> TickShift
+        if (!started || nowTick - currentTick >= WheelSlots) {
+            var i = 0
+            while (i < WheelSlots) {
+                moveToPending(i)
+                i += 1
+            }
+        } else {
+            var tick = currentTick
+            while (tick <= nowTick) {
+                moveToPending((tick & SlotMask).toInt)
+                tick += 1
             }
-            i += 1
         }
-    }
+        started = true
+        currentTick = nowTick
 
-    private def manageFlowTableSize(): Unit = {
-        var excessFlows = 0
-        var i = 0
-        while (i < maxType) {
-            excessFlows += expirationQueues(i).size()
-            i += 1
+        var flow: ManagedFlow = null
+        while ({ flow = wheel(PendingSlot); flow } ne null) {
+            unschedule(flow)
+            val expiration = flow.expirationNanos
+            if (now >= expiration) {
+                log.debug(s"Removing flow $flow for " +
+                          (if (expiration < flow.absoluteExpirationNanos) "idle"
+                           else "hard") + " expiration")
+                removeFlow(flow)
+                forget(flow)
+            } else {
+                schedule(flow, expiration)
+            }
         }
-        excessFlows -= maxFlows
+    }
 
+    private def manageFlowTableSize(): Unit = {
+        val excessFlows = numFlows - maxFlows
         if (excessFlows > 0) {
             log.debug(s"Evicting $excessFlows excess flows")
-            removeOldestDpFlows(excessFlows)
+            evictFlows(excessFlows)
         }
     }
 
-    private def removeOldestDpFlows(numFlowsToEvict: Int): Unit = {
-        var i = 0
+    private def evictFlows(numFlowsToEvict: Int): Unit = {
         var evicted = 0
-        while (i < maxType) {
-            val queue = expirationQueues(i)
-            var flow: ManagedFlow = null
-            while (evicted < numFlowsToEvict &&
-                   ({ flow = queue.pollFirst(); flow } ne null)) {
+        var visited = 0
+        val maxVisits = 2 * numFlows
+        var flow: ManagedFlow = null
+        while (evicted < numFlowsToEvict && visited < maxVisits &&
+               ({ flow = evictionHand; flow } ne null)) {
+            if (flow.recentlyUsed) {
+                flow.recentlyUsed = false
+                evictionHand = flow.evictionNext
+            } else {
                 removeFlow(flow)
-                flow.unref()
+                forget(flow)
                 evicted += 1
             }
-            i += 1
+            visited += 1
+        }
+    }
+
+    /* Unlinks the flow from the wheel and the eviction ring, and releases the
+     * reference taken when registering it. */
+    private def forget(flow: ManagedFlow): Unit =
+        if (flow.evictionNext ne null) {
+            if (flow.wheelSlot >= 0)
+                unschedule(flow)
+            unlinkForEviction(flow)
+            numFlows -= 1
+            flow.unref()
+        }
+
+    private def schedule(flow: ManagedFlow, expiration: Long): Unit = {
+        var tick = expiration >> TickShift
+        if (started && tick < currentTick)
+            tick = currentTick
+        link(flow, (tick & SlotMask).toInt)
+    }
+
+    private def link(flow: ManagedFlow, slot: Int): Unit = {
+        val head = wheel(slot)
+        flow.wheelSlot = slot
+        flow.wheelPrev = null
+        flow.wheelNext = head
+        if (head ne null)
+            head.wheelPrev = flow
+        wheel(slot) = flow
+    }
+
+    private def unschedule(flow: ManagedFlow): Unit = {
+        val prev = flow.wheelPrev
+        val next = flow.wheelNext
+        if (prev ne null)
+            prev.wheelNext = next
+        else
+            wheel(flow.wheelSlot) = next
+        if (next ne null)
+            next.wheelPrev = prev
+        flow.wheelSlot = -1
+        flow.wheelPrev = null
+        flow.wheelNext = null
+    }
+
+    /* Prepends the flows in the specified slot to the pending list. */
+    private def moveToPending(slot: Int): Unit = {
+        var flow: ManagedFlow = null
+        while ({ flow = wheel(slot); flow } ne null) {
+            unschedule(flow)
+            link(flow, PendingSlot)
+        }
+    }
+
+    /* Inserts the flow right behind the hand, so that it is the last one
+     * to be visited. */
+    private def linkForEviction(flow: ManagedFlow): Unit = {
+        val hand = evictionHand
+        if (hand eq null) {
+            flow.evictionPrev = flow
+            flow.evictionNext = flow
+            evictionHand = flow
+        } else {
+            val last = hand.evictionPrev
+            flow.evictionPrev = last
+            flow.evictionNext = hand
+            last.evictionNext = flow
+            hand.evictionPrev = flow
+        }
+    }
+
+    private def unlinkForEviction(flow: ManagedFlow): Unit = {
+        if (flow.evictionNext eq flow) {
+            evictionHand = null
+        } else {
+            flow.evictionPrev.evictionNext = flow.evictionNext
+            flow.evictionNext.evictionPrev = flow.evictionPrev
+            if (evictionHand eq flow)
+                evictionHand = flow.evictionNext
         }
+        flow.evictionPrev = null
+        flow.evictionNext = null
     }
 }
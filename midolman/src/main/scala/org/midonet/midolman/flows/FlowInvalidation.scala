@@ -16,55 +16,37 @@
 
 package org.midonet.midolman.flows
 
-import java.util._
-
 import com.typesafe.scalalogging.Logger
 
+import org.midonet.midolman.flows.FlowTagIndex.NO_LINK
 import org.midonet.sdn.flows.FlowTagger.FlowTag
 
 trait FlowInvalidation extends FlowLifecycle {
-    private val tagToFlows = new HashMap[FlowTag, Set[ManagedFlow]]()
+    private val tagToFlows = new FlowTagIndex()
     val log: Logger
 
     abstract override def registerFlow(flow: ManagedFlow): Unit = {
         super.registerFlow(flow)
-        val numTags = flow.tags.size()
-        var i = 0
-        while (i < numTags) {
-            getOrAdd(flow.tags.get(i)).add(flow)
-            i += 1
-        }
+        tagToFlows.add(flow)
     }
 
     abstract override def removeFlow(flow: ManagedFlow): Unit = {
         super.removeFlow(flow)
-        val numTags = flow.tags.size()
-        var i = 0
-        while (i < numTags) {
-            val flows = tagToFlows.get(flow.tags.get(i))
-            if (flows ne null)
-                flows.remove(flow)
-            i += 1
-        }
+        tagToFlows.remove(flow)
     }
 
     def invalidateFlowsFor(tag: FlowTag): Unit = {
-        val flows = tagToFlows.remove(tag)
-        log.debug(s"Invalidating ${if (flows ne null) flows.size() else 0} flows for tag $tag")
-        if (flows ne null) {
-            val it = flows.iterator()
-            while (it.hasNext) {
-                removeFlow(it.next())
+        val flows = tagToFlows.detach(tag)
+        if (flows != NO_LINK) {
+            log.debug(s"Invalidating ${tagToFlows.count(flows)} flows " +
+                      s"for tag $tag")
+            var flow: ManagedFlow = null
+            while ({ flow = tagToFlows.poll(flows); flow } ne null) {
+                removeFlow(flow)
             }
+            tagToFlows.release(flows)
+        } else {
+            log.debug(s"Invalidating 0 flows for tag $tag")
         }
     }
-
-    private def getOrAdd(tag: FlowTag): Set[ManagedFlow] = {
-        var set = tagToFlows.get(tag)
-        if (set eq null) {
-            set = Collections.newSetFromMap(new IdentityHashMap())
-            tagToFlows.put(tag, set)
-        }
-        set
-    }
 }
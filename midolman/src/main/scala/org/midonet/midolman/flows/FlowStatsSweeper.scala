@@ -0,0 +1,250 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.flows
+
+import java.nio.ByteBuffer
+import java.util.concurrent.atomic.AtomicInteger
+
+import com.typesafe.scalalogging.Logger
+import org.jctools.queues.{MpscArrayQueue, SpscArrayQueue}
+import org.slf4j.LoggerFactory
+import rx.Observer
+
+import org.midonet.midolman.config.MidolmanConfig
+import org.midonet.midolman.datapath.FlowProcessor
+import org.midonet.midolman.monitoring.metrics.PacketPipelineMetrics
+import org.midonet.netlink.{AttributeHandler, NetlinkMessage}
+import org.midonet.odp.FlowMatch
+import org.midonet.odp.OpenVSwitch.Flow.Attr
+import org.midonet.odp.flows.FlowKeys
+import org.midonet.util.concurrent.NanoClock
+
+object FlowStatsSweeper {
+    /**
+     * The last time, in the datapath's monotonic milliseconds, a packet
+     * matched the datapath flow with the specified match. Instances are
+     * reused across sweeps, and must be recycled once processed.
+     */
+    final class SweptFlow {
+        val flowMatch = new FlowMatch()
+        var lastUsedMillis = 0L
+        // The workers that have yet to recycle the flow
+        private[flows] val references = new AtomicInteger()
+    }
+
+    private val FLOWS_PER_COST_UNIT = 100000L
+
+    /**
+     * Creates the sweeper for the configured upcall threading. With the
+     * one_to_worker threading, the datapath picks the worker of each upcall
+     * by its own hash of the packet, so the worker that installed a flow is
+     * unknown and every swept flow is handed to all the workers.
+     */
+    def apply(config: MidolmanConfig, numWorkers: Int, clock: NanoClock,
+              metrics: PacketPipelineMetrics,
+              onSwept: () => Unit): FlowStatsSweeper = {
+        val broadcast = config.inputChannelThreading == "one_to_worker"
+        val flowsPerWorker =
+            if (broadcast) config.datapath.maxFlowCount
+            else config.datapath.maxFlowCount / numWorkers
+        new FlowStatsSweeper(numWorkers, flowsPerWorker * 2,
+                             config.datapath.flowStatsSweepInterval, clock,
+                             metrics, onSwept, broadcast)
+    }
+}
+
+/**
+ * Periodically dumps all the flows in the datapath with a single
+ * OVS_FLOW_CMD_GET request carrying the NLM_F_DUMP flag, so that the packet
+ * processing workers can find out which of their flows have been idle. The
+ * dump is handled by the FlowProcessor's reply thread without blocking the
+ * workers: each flow in the dump is routed to the worker that installed it
+ * (by the connection hash of its match, as the upcalls are) through a
+ * per-worker queue, and the workers drain their queue when they process
+ * their backchannels. When `broadcast` is set, because the upcalls aren't
+ * routed by connection hash, each flow is instead queued to all the workers,
+ * and only the one that installed it finds it among its flows. The workers
+ * hand the swept flows back to the sweeper once processed, so that the
+ * sweeps don't allocate per flow.
+ *
+ * Only one sweep is in flight at a time. The sweep is started by the worker
+ * with id 0, so that requests are only published to the FlowProcessor by the
+ * workers. When the sweep completes, the `onSwept` callback is invoked from
+ * the reply thread, which should wake up the workers. The wall-clock time of
+ * each sweep is recorded normalized per 100k flows, in microseconds.
+ */
+final class FlowStatsSweeper(numWorkers: Int,
+                             queueCapacity: Int,
+                             val sweepIntervalNanos: Long,
+                             clock: NanoClock,
+                             metrics: PacketPipelineMetrics,
+                             onSwept: () => Unit,
+                             broadcast: Boolean = false)
+    extends Observer[ByteBuffer] {
+    import FlowStatsSweeper._
+
+    private val log = Logger(LoggerFactory.getLogger(
+        "org.midonet.datapath.flow-stats-sweeper"))
+
+    private val queues = new Array[SpscArrayQueue[SweptFlow]](numWorkers)
+    private val pool = new MpscArrayQueue[SweptFlow](
+        if (broadcast) queueCapacity else numWorkers * queueCapacity)
+
+    {
+        var i = 0
+        while (i < numWorkers) {
+            queues(i) = new SpscArrayQueue[SweptFlow](queueCapacity)
+            i += 1
+        }
+    }
+
+    @volatile private var sweeping = false
+    private var nextSweep = 0L
+    private var sweepStart = 0L
+    private var sweptFlows = 0
+    private var droppedFlows = 0
+
+    /* Only parses the attributes we need out of each dumped flow, into the
+     * swept flow being filled. */
+    private val parser = new AttributeHandler {
+        var swept: SweptFlow = _
+        var hasKeys = false
+
+        override def use(buf: ByteBuffer, id: Short): Unit = {
+            val attr = NetlinkMessage.unnest(id)
+            if (attr == Attr.Key) {
+                NetlinkMessage.scanAttributes(buf, keyParser)
+                hasKeys = true
+            } else if (attr == Attr.Used) {
+                swept.lastUsedMillis = buf.getLong()
+            }
+        }
+    }
+
+    private val keyParser = new AttributeHandler {
+        override def use(buf: ByteBuffer, id: Short): Unit = {
+            val key = FlowKeys.newBlankInstance(id)
+            if (key ne null) {
+                key.deserializeFrom(buf)
+                parser.swept.flowMatch.addKey(key)
+            }
+        }
+    }
+
+    def isEnabled = sweepIntervalNanos > 0
+
+    /**
+     * Starts a sweep if the sweep interval has elapsed and no sweep is in
+     * flight. Must only be called by the worker with id 0.
+     */
+    def trySweep(datapathId: Int, flowProcessor: FlowProcessor): Unit = {
+        val now = clock.tick
+        if (!isEnabled || sweeping || now < nextSweep)
+            return
+
+        sweepStart = now
+        sweptFlows = 0
+        droppedFlows = 0
+        sweeping = true
+        if (!flowProcessor.tryDumpFlows(datapathId, this)) {
+            sweeping = false
+        }
+    }
+
+    def hasSweptFlows(id: Int): Boolean = !queues(id).isEmpty
+
+    /**
+     * Returns the next flow swept for the worker identified by the `id`
+     * parameter, or null. Thread-safe for callers specifying different ids.
+     */
+    def poll(id: Int): SweptFlow = queues(id).poll()
+
+    /**
+     * Hands back a swept flow returned by `poll` once it's been processed.
+     * Thread-safe.
+     */
+    def recycle(swept: SweptFlow): Unit =
+        if (swept.references.decrementAndGet() == 0)
+            pool.offer(swept)
+
+    override def onNext(buf: ByteBuffer): Unit = {
+        var swept = pool.poll()
+        if (swept eq null)
+            swept = new SweptFlow()
+        swept.flowMatch.clear()
+        swept.lastUsedMillis = 0L
+        parser.swept = swept
+        parser.hasKeys = false
+        buf.getInt() // read datapath index
+        NetlinkMessage.scanAttributes(buf, parser)
+        parser.swept = null
+        if (!parser.hasKeys) {
+            swept.references.set(1)
+            recycle(swept)
+            return
+        }
+
+        sweptFlows += 1
+        // Cache the hash code now, so that the workers only read the match
+        swept.flowMatch.hashCode()
+        if (broadcast) {
+            swept.references.set(numWorkers)
+            var id = 0
+            while (id < numWorkers) {
+                queue(id, swept)
+                id += 1
+            }
+        } else {
+            swept.references.set(1)
+            queue(Math.abs(swept.flowMatch.connectionHash % numWorkers), swept)
+        }
+    }
+
+    private def queue(id: Int, swept: SweptFlow): Unit =
+        if (!queues(id).offer(swept)) {
+            droppedFlows += 1
+            recycle(swept)
+        }
+
+    override def onCompleted(): Unit = {
+        val elapsedNanos = clock.tick - sweepStart
+        metrics.flowStatsSweeps.mark()
+        metrics.sweptDatapathFlows.mark(sweptFlows)
+        if (sweptFlows > 0) {
+            metrics.flowStatsSweepCost.update(
+                elapsedNanos * FLOWS_PER_COST_UNIT / sweptFlows / 1000)
+        }
+        if (droppedFlows > 0) {
+            log.warn(s"Dropped the statistics of $droppedFlows out of " +
+                     s"$sweptFlows datapath flows")
+        }
+        log.debug(s"Swept $sweptFlows datapath flows in " +
+                  s"${elapsedNanos / 1000} us")
+        finishSweep()
+    }
+
+    override def onError(e: Throwable): Unit = {
+        log.warn("Failed to dump the datapath flows", e)
+        finishSweep()
+    }
+
+    private def finishSweep(): Unit = {
+        nextSweep = clock.tick + sweepIntervalNanos
+        sweeping = false
+        onSwept()
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.flows
+
+import java.util.Arrays
+
+import org.midonet.Util
+import org.midonet.sdn.flows.FlowTagger.FlowTag
+
+object FlowTagIndex {
+    final val NO_LINK = -1
+}
+
+/**
+ * Indexes the managed flows by their tags without allocating per flow nor
+ * per tag of a flow, once the index has grown to its working size.
+ *
+ * Every tag of a flow is a link in the circular doubly-linked list of flows
+ * of that tag, which starts at a sentinel link holding the tag. Links are
+ * indexes into primitive arrays, and the links of a flow are kept in the flow
+ * itself, in a reusable array, so that the flow is removed from all of its
+ * lists without looking up its tags. The tags are kept in an open addressing
+ * table mapping them to the sentinels of their lists.
+ *
+ * This class is not thread-safe.
+ */
+final class FlowTagIndex(initialLinks: Int = 1024, initialTags: Int = 256) {
+    import FlowTagIndex._
+
+    // The owner of a link is either a ManagedFlow or, for sentinels, a FlowTag
+    private var next = new Array[Int](initialLinks)
+    private var prev = new Array[Int](initialLinks)
+    private var owners = new Array[AnyRef](initialLinks)
+    private var freeLinks = NO_LINK
+    addFreeLinks(0, initialLinks)
+
+    private var tags = new Array[FlowTag](
+        Util.findNextPositivePowerOfTwo(initialTags))
+    private var sentinels = new Array[Int](tags.length)
+    private var mask = tags.length - 1
+    private var numTags = 0
+
+    def tagCount: Int = numTags
+
+    def add(flow: ManagedFlow): Unit = {
+        if (flow.numTagLinks > 0)
+            remove(flow)
+        val numFlowTags = flow.tags.size()
+        if (flow.tagLinks.length < numFlowTags)
+            flow.tagLinks = new Array[Int](
+                Util.findNextPositivePowerOfTwo(numFlowTags))
+        var i = 0
+        while (i < numFlowTags) {
+            val sentinel = sentinelFor(flow.tags.get(i))
+            val link = allocLink(flow)
+            val first = next(sentinel)
+            next(link) = first
+            prev(link) = sentinel
+            prev(first) = link
+            next(sentinel) = link
+            flow.tagLinks(i) = link
+            i += 1
+        }
+        flow.numTagLinks = numFlowTags
+    }
+
+    def remove(flow: ManagedFlow): Unit = {
+        var i = 0
+        while (i < flow.numTagLinks) {
+            val link = flow.tagLinks(i)
+            if (link != NO_LINK)
+                unlink(link)
+            i += 1
+        }
+        flow.numTagLinks = 0
+    }
+
+    /**
+     * Takes the list of flows of a tag out of the index, returning it, or
+     * NO_LINK if no flow has the tag. Its flows are then taken with poll()
+     * and the list given back with release().
+     */
+    def detach(tag: FlowTag): Int = {
+        val slot = slotOf(tag)
+        if (tags(slot) eq null) {
+            NO_LINK
+        } else {
+            val sentinel = sentinels(slot)
+            removeSlot(slot)
+            sentinel
+        }
+    }
+
+    /**
+     * Takes the first flow out of a detached list, or returns null if there
+     * are no more flows. The flow stays indexed by its other tags.
+     */
+    def poll(list: Int): ManagedFlow = {
+        val link = next(list)
+        if (link == list)
+            return null
+        val flow = owners(link).asInstanceOf[ManagedFlow]
+        var i = 0
+        while (flow.tagLinks(i) != link)
+            i += 1
+        flow.tagLinks(i) = NO_LINK
+        unlink(link)
+        flow
+    }
+
+    def release(list: Int): Unit = freeLink(list)
+
+    /** The number of flows in a list, in linear time. */
+    def count(list: Int): Int = {
+        var count = 0
+        var link = next(list)
+        while (link != list) {
+            count += 1
+            link = next(link)
+        }
+        count
+    }
+
+    def flowCount(tag: FlowTag): Int = {
+        val slot = slotOf(tag)
+        if (tags(slot) eq null) 0 else count(sentinels(slot))
+    }
+
+    private def unlink(link: Int): Unit = {
+        val p = prev(link)
+        val n = next(link)
+        next(p) = n
+        prev(n) = p
+        freeLink(link)
+        // The tag of a list left empty is removed, unless the list is detached
+        if (p == n) owners(p) match {
+            case tag: FlowTag =>
+                val slot = slotOf(tag)
+                if ((tags(slot) ne null) && sentinels(slot) == p) {
+                    removeSlot(slot)
+                    freeLink(p)
+                }
+            case _ =>
+        }
+    }
+
+    private def allocLink(owner: AnyRef): Int = {
+        if (freeLinks == NO_LINK)
+            growLinks()
+        val link = freeLinks
+        freeLinks = next(link)
+        owners(link) = owner
+        link
+    }
+
+    private def freeLink(link: Int): Unit = {
+        owners(link) = null
+        next(link) = freeLinks
+        freeLinks = link
+    }
+
+    private def addFreeLinks(from: Int, until: Int): Unit = {
+        var link = until - 1
+        while (link >= from) {
+            next(link) = freeLinks
+            freeLinks = link
+            link -= 1
+        }
+    }
+
+    private def growLinks(): Unit = {
+        val size = next.length
+        next = Arrays.copyOf(next, size * 2)
+        prev = Arrays.copyOf(prev, size * 2)
+        owners = Arrays.copyOf(owners, size * 2)
+        addFreeLinks(size, size * 2)
+    }
+
+    private def hash(tag: FlowTag): Int = {
+        val h = tag.hashCode()
+        h ^ (h >>> 16)
+    }
+
+    /* The slot holding a tag, or the empty slot where it would be added */
+    private def slotOf(tag: FlowTag): Int = {
+        var slot = hash(tag) & mask
+        while ((tags(slot) ne null) && tags(slot) != tag)
+            slot = (slot + 1) & mask
+        slot
+    }
+
+    private def sentinelFor(tag: FlowTag): Int = {
+        var slot = slotOf(tag)
+        if (tags(slot) ne null)
+            return sentinels(slot)
+        if ((numTags + 1) * 4 > tags.length * 3) {
+            growTags()
+            slot = slotOf(tag)
+        }
+        val sentinel = allocLink(tag)
+        next(sentinel) = sentinel
+        prev(sentinel) = sentinel
+        tags(slot) = tag
+        sentinels(slot) = sentinel
+        numTags += 1
+        sentinel
+    }
+
+    /* Removes the tag in a slot, shifting back the tags that follow it so
+     * that lookups don't need tombstones */
+    private def removeSlot(slot: Int): Unit = {
+        var gap = slot
+        var i = (slot + 1) & mask
+        while (tags(i) ne null) {
+            val ideal = hash(tags(i)) & mask
+            if (((i - ideal) & mask) >= ((i - gap) & mask)) {
+                tags(gap) = tags(i)
+                sentinels(gap) = sentinels(i)
+                gap = i
+            }
+            i = (i + 1) & mask
+        }
+        tags(gap) = null
+        numTags -= 1
+    }
+
+    private def growTags(): Unit = {
+        val oldTags = tags
+        val oldSentinels = sentinels
+        tags = new Array[FlowTag](oldTags.length * 2)
+        sentinels = new Array[Int](tags.length)
+        mask = tags.length - 1
+        var i = 0
+        while (i < oldTags.length) {
+            if (oldTags(i) ne null) {
+                val slot = slotOf(oldTags(i))
+                tags(slot) = oldTags(i)
+                sentinels(slot) = oldSentinels(i)
+            }
+            i += 1
+        }
+    }
+}
@@ -37,20 +37,51 @@ final class ManagedFlow(override val pool: ObjectPool[ManagedFlow])
     val flowMatch = new FlowMatch()
     var expirationType = 0
     var absoluteExpirationNanos = 0L
+    var idleTimeoutNanos = 0L
+    var lastUsedNanos = 0L
+    // The last used time reported by the datapath, in its own clock
+    var datapathLastUsedMillis = 0L
     var sequence = 0L
 
+    // Links into the timing wheel and the eviction ring of FlowExpiration
+    private[flows] var wheelSlot = -1
+    private[flows] var wheelPrev: ManagedFlow = _
+    private[flows] var wheelNext: ManagedFlow = _
+    private[flows] var evictionPrev: ManagedFlow = _
+    private[flows] var evictionNext: ManagedFlow = _
+    private[flows] var recentlyUsed = false
+
+    // The links of this flow in the lists of its tags in FlowTagIndex
+    private[flows] var tagLinks = Array.emptyIntArray
+    private[flows] var numTagLinks = 0
+
     def reset(flowMatch: FlowMatch, flowTags: HashSet[FlowTag],
               flowRemovedCallbacks: ArrayList[Callback0], sequence: Long,
               expiration: Expiration, now: Long): Unit = {
         this.flowMatch.reset(flowMatch)
         expirationType = expiration.typeId
         absoluteExpirationNanos = now + expiration.value
+        idleTimeoutNanos = expiration.idleTimeout
+        lastUsedNanos = now
+        datapathLastUsedMillis = 0L
         tags.addAll(flowTags)
         callbacks.addAll(flowRemovedCallbacks)
         this.sequence = sequence
     }
 
+    /**
+     * The time at which this flow expires, given its hard timeout and, if
+     * it has one, its idle timeout.
+     */
+    def expirationNanos: Long =
+        if (idleTimeoutNanos > 0)
+            Math.min(absoluteExpirationNanos, lastUsedNanos + idleTimeoutNanos)
+        else
+            absoluteExpirationNanos
+
     override def clear(): Unit = {
+        idleTimeoutNanos = 0L
+        recentlyUsed = false
         flowMatch.clear()
         callbacks.clear()
         tags.clear()
@@ -0,0 +1,332 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.flows
+
+import java.util._
+
+import org.midonet.midolman.simulation.PacketContext
+import org.midonet.odp.FlowMatch
+import org.midonet.odp.FlowMatch.Field
+import org.midonet.odp.flows._
+import org.midonet.sdn.flows.FlowTagger.{FlowStateTag, FlowTag}
+
+object WildcardFlowCache {
+
+    private val fields = Field.values()
+
+    private def bit(field: Field) = 1L << field.ordinal()
+
+    private val ethernetFields = bit(Field.EthSrc) | bit(Field.EthDst)
+    private val networkFields = bit(Field.NetworkSrc) | bit(Field.NetworkDst) |
+                                bit(Field.NetworkProto) | bit(Field.NetworkTOS) |
+                                bit(Field.NetworkTTL) | bit(Field.FragmentType)
+    private val transportFields = bit(Field.SrcPort) | bit(Field.DstPort)
+    private val vlanFields = bit(Field.VlanId)
+
+    /**
+     * A FlowMatch restricted to the set of fields in the mask. Two masked
+     * matches are equal if they have the same mask, the same masked fields
+     * are used in both, and those fields hold the same values.
+     */
+    private[flows] final class MaskedMatch(var mask: Long, var fmatch: FlowMatch) {
+
+        override def hashCode(): Int = {
+            val used = fmatch.getUsedFields & mask
+            var result = (used ^ (used >>> 32)).toInt
+            var bits = used
+            while (bits != 0) {
+                val field = fields(java.lang.Long.numberOfTrailingZeros(bits))
+                result = 31 * result + field.hashCode(fmatch)
+                bits &= bits - 1
+            }
+            result
+        }
+
+        override def equals(o: Any): Boolean = o match {
+            case that: MaskedMatch =>
+                val used = fmatch.getUsedFields & mask
+                if (mask != that.mask ||
+                    used != (that.fmatch.getUsedFields & mask))
+                    return false
+                var bits = used
+                while (bits != 0) {
+                    val field = fields(java.lang.Long.numberOfTrailingZeros(bits))
+                    if (!field.equals(fmatch, that.fmatch))
+                        return false
+                    bits &= bits - 1
+                }
+                true
+            case _ => false
+        }
+    }
+
+    /**
+     * The cached flows sharing a mask.
+     */
+    private[flows] final class MaskTable(val mask: Long) {
+        val flows = new HashMap[MaskedMatch, CachedFlow]()
+    }
+
+    /**
+     * The outcome of a simulation, as it was translated into datapath
+     * actions, together with the tags through which it can be invalidated.
+     */
+    final class CachedFlow(val fmatch: FlowMatch, flowMask: Long,
+                           val absoluteExpirationNanos: Long) {
+        private[flows] val key = new MaskedMatch(flowMask, fmatch)
+        val flowActions = new ArrayList[FlowAction]()
+        val packetActions = new ArrayList[FlowAction]()
+        val tags = new ArrayList[FlowTag]()
+        private[flows] var table: MaskTable = _
+
+        def mask: Long = key.mask
+        def isLive = table ne null
+
+        override def toString: String =
+            s"CachedFlow[match=$fmatch, actions=$flowActions, tags=$tags]"
+    }
+
+    /**
+     * Returns the fields of the original match whose values the actions
+     * carry, so that replaying them on a packet differing in any of those
+     * fields would not rewrite it the same way the simulation did.
+     */
+    private def fieldsCarriedBy(actions: ArrayList[FlowAction]): Long = {
+        var mask = 0L
+        var i = 0
+        while (i < actions.size()) {
+            actions.get(i) match {
+                case a: FlowActionSetKey => a.getFlowKey match {
+                    case _: FlowKeyEthernet => mask |= ethernetFields
+                    case _: FlowKeyIPv4 | _: FlowKeyIPv6 => mask |= networkFields
+                    case _: FlowKeyTCP | _: FlowKeyUDP => mask |= transportFields
+                    case _ =>
+                }
+                case _: FlowActionPushVLAN | _: FlowActionPopVLAN =>
+                    mask |= vlanFields
+                case _ =>
+            }
+            i += 1
+        }
+        mask
+    }
+}
+
+/**
+ * A userspace wildcard flow cache that sits in front of the simulation. It
+ * holds the translated actions of recently simulated flows, keyed by the
+ * fields of the packet that the simulation read (plus those embedded in the
+ * resulting set key actions), so that a packet whose kernel flow was evicted
+ * or which only differs in fields the simulation ignored can be handled
+ * without simulating it again.
+ *
+ * Entries are grouped by mask, and a lookup probes each group in turn. Only
+ * flows whose outcome depends solely on the virtual topology are cached:
+ * flows that touched flow state, were traced, or registered flow removed
+ * callbacks always go through the simulation. Entries are removed when any
+ * of their tags is invalidated, and at the latest when the hard timeout of
+ * the flow they were created with elapses. They may outlive that flow when it
+ * is expired earlier for being idle, which is harmless since an entry only
+ * depends on the tags it was cached with.
+ *
+ * This class is not thread-safe and is meant to be owned by a single packet
+ * processing worker.
+ */
+final class WildcardFlowCache(val capacity: Int) {
+    import WildcardFlowCache._
+
+    private val tables = new ArrayList[MaskTable]()
+    private val tagToFlows = new HashMap[FlowTag, Set[CachedFlow]]()
+    private val expirationQueue = new ArrayDeque[CachedFlow]()
+    private val probe = new MaskedMatch(0L, null)
+    private var numFlows = 0
+
+    def size = numFlows
+
+    /**
+     * Looks up a live flow matching the specified FlowMatch.
+     */
+    def get(fmatch: FlowMatch, now: Long): CachedFlow = {
+        probe.fmatch = fmatch
+        var i = 0
+        while (i < tables.size()) {
+            val table = tables.get(i)
+            probe.mask = table.mask
+            val flow = table.flows.get(probe)
+            if (flow ne null) {
+                probe.fmatch = null
+                if (now < flow.absoluteExpirationNanos)
+                    return flow
+                remove(flow)
+                return null
+            }
+            i += 1
+        }
+        probe.fmatch = null
+        null
+    }
+
+    /**
+     * Replays the actions and tags of the cached flow matching the context's
+     * original match, if any. The fields that were seen by the simulation of
+     * the cached flow are marked as seen in the original match, so that the
+     * resulting kernel flow has the same mask.
+     */
+    def replay(context: PacketContext, now: Long): Boolean = {
+        if (numFlows == 0)
+            return false
+        val flow = get(context.origMatch, now)
+        if (flow eq null)
+            return false
+        context.origMatch.propagateSeenFieldsFrom(flow.fmatch)
+        context.flowActions.addAll(flow.flowActions)
+        context.packetActions.addAll(flow.packetActions)
+        context.flowTags.addAll(flow.tags)
+        true
+    }
+
+    /**
+     * Caches the outcome of the simulation carried by the context, if the
+     * flow was installed with the default flow expiration and is not bound
+     * to any flow state or flow removed callbacks.
+     */
+    def add(context: PacketContext, now: Long): Boolean = {
+        val managedFlow = context.flow
+        if (capacity <= 0 || (managedFlow eq null) ||
+            managedFlow.expirationType != FlowExpiration.FLOW_EXPIRATION.typeId ||
+            !managedFlow.callbacks.isEmpty || context.tracingEnabled ||
+            dependsOnFlowState(context.flowTags))
+            return false
+
+        expire(now)
+        if (numFlows >= capacity)
+            evict()
+
+        val fmatch = new FlowMatch()
+        fmatch.reset(context.origMatch)
+        val mask = (fmatch.getSeenFields | fieldsCarriedBy(context.flowActions)) &
+                   ~FlowMatch.icmpFieldsMask
+        val flow = new CachedFlow(fmatch, mask, managedFlow.absoluteExpirationNanos)
+        val table = getOrAddTable(mask)
+        if (table.flows.containsKey(flow.key))
+            return false
+
+        flow.flowActions.addAll(context.flowActions)
+        flow.packetActions.addAll(context.packetActions)
+        flow.tags.addAll(context.flowTags)
+        flow.table = table
+        table.flows.put(flow.key, flow)
+        var i = 0
+        while (i < flow.tags.size()) {
+            getOrAdd(flow.tags.get(i)).add(flow)
+            i += 1
+        }
+        expirationQueue.addLast(flow)
+        numFlows += 1
+        true
+    }
+
+    /**
+     * Removes all the cached flows indexed by the specified tag.
+     */
+    def invalidate(tag: FlowTag): Unit = {
+        val flows = tagToFlows.remove(tag)
+        if (flows ne null) {
+            val it = flows.iterator()
+            while (it.hasNext) {
+                remove(it.next())
+            }
+        }
+    }
+
+    def clear(): Unit = {
+        tables.clear()
+        tagToFlows.clear()
+        expirationQueue.clear()
+        numFlows = 0
+    }
+
+    private def remove(flow: CachedFlow): Unit = {
+        val table = flow.table
+        if (table eq null)
+            return
+        flow.table = null
+        table.flows.remove(flow.key)
+        if (table.flows.isEmpty)
+            tables.remove(table)
+        var i = 0
+        while (i < flow.tags.size()) {
+            val flows = tagToFlows.get(flow.tags.get(i))
+            if (flows ne null) {
+                flows.remove(flow)
+                if (flows.isEmpty)
+                    tagToFlows.remove(flow.tags.get(i))
+            }
+            i += 1
+        }
+        numFlows -= 1
+    }
+
+    /* The queue is in insertion order, which is also expiration order, and
+     * may contain flows that were already removed by an invalidation. */
+    private def expire(now: Long): Unit = {
+        var flow: CachedFlow = null
+        while (({ flow = expirationQueue.peekFirst(); flow } ne null) &&
+               (!flow.isLive || now >= flow.absoluteExpirationNanos)) {
+            remove(expirationQueue.pollFirst())
+        }
+    }
+
+    private def evict(): Unit = {
+        var flow: CachedFlow = null
+        while (numFlows >= capacity &&
+               ({ flow = expirationQueue.pollFirst(); flow } ne null)) {
+            remove(flow)
+        }
+    }
+
+    private def dependsOnFlowState(tags: HashSet[FlowTag]): Boolean = {
+        val it = tags.iterator()
+        while (it.hasNext) {
+            if (it.next().isInstanceOf[FlowStateTag])
+                return true
+        }
+        false
+    }
+
+    private def getOrAddTable(mask: Long): MaskTable = {
+        var i = 0
+        while (i < tables.size()) {
+            val table = tables.get(i)
+            if (table.mask == mask)
+                return table
+            i += 1
+        }
+        val table = new MaskTable(mask)
+        tables.add(table)
+        table
+    }
+
+    private def getOrAdd(tag: FlowTag): Set[CachedFlow] = {
+        var set = tagToFlows.get(tag)
+        if (set eq null) {
+            set = Collections.newSetFromMap(new IdentityHashMap())
+            tagToFlows.put(tag, set)
+        }
+        set
+    }
+}
@@ -108,5 +108,12 @@ class TokenBucketPolicy(config: MidolmanConfig,
         }
     }
 
+    /**
+     * Gets a new Bucket drawing from the same token bucket as the given one,
+     * for another channel of the same port read by a different thread.
+     */
+    def share(bucket: Bucket): Bucket =
+        if (bucket eq null) null else factory(bucket.underlyingTokenBucket())
+
     private def adjust(tokens: Int): Int = Math.max(1, tokens / multiplier)
 }
@@ -93,8 +93,9 @@ abstract class UpcallDatapathConnectionManagerBase(
         log.info("creating datapath connection for {}", port.getName)
 
         var conn: ManagedDatapathConnection = null
+        val bucket = tbPolicy.link(port, t)
         try {
-            conn = makeConnection(connName, tbPolicy.link(port, t))
+            conn = makeConnection(connName, bucket)
         } catch {
             case e: Throwable =>
                 tbPolicy.unlink(port)
@@ -106,7 +107,11 @@ abstract class UpcallDatapathConnectionManagerBase(
             val dpConn = conn.getConnection
             dpConn setCallbackDispatcher getDispatcher()
             setUpcallHandler(dpConn, workers)
-            ensurePortPid(port, datapath, dpConn)
+            ensurePortPid(port, datapath, dpConn) flatMap {
+                case (createdPort, pid) =>
+                    addWorkerChannels(createdPort, datapath, conn, bucket,
+                                      workers) map { (_, pid) }
+            }
         } andThen {
             case Success((createdPort, _)) =>
                 portToChannel.put((datapath, createdPort.getPortNo.intValue), conn)
@@ -139,6 +144,17 @@ abstract class UpcallDatapathConnectionManagerBase(
         } map { (_, con.getChannel.getLocalAddress.getPid) }
     }
 
+    /**
+     * Hook called once the port exists and sends its upcalls to the channel
+     * that created it, letting the managers add more channels to the port.
+     */
+    protected def addWorkerChannels(port: DpPort, dp: Datapath,
+                                    conn: ManagedDatapathConnection,
+                                    bucket: Bucket, workers: Workers)
+                                   (implicit ec: ExecutionContext,
+                                             as: ActorSystem)
+    : Future[DpPort] = Future.successful(port)
+
     def deleteDpPort(datapath: Datapath, port: DpPort)(
         implicit ec: ExecutionContext, as: ActorSystem): Future[_] =
         portToChannel.remove((datapath, port.getPortNo)) match {
@@ -160,17 +176,34 @@ abstract class UpcallDatapathConnectionManagerBase(
                 }
         }
 
-    protected def makeUpcallHandler(workers: Workers)
+    /**
+     * Makes the handler of the upcalls read from a channel. Packets are
+     * hashed to the workers by connection, unless the channel belongs to
+     * a given worker, which then gets all of them. Flow state packets are
+     * always handed to all the workers.
+     *
+     * Packets are offered to the inboxes of the workers, when there are, and
+     * the workers woken up at the end of the batch. Packets that don't fit in
+     * an inbox, or for workers without one, are sent in HandlePackets
+     * messages instead.
+     */
+    protected def makeUpcallHandler(workers: Workers, owner: Int = -1)
                                    (implicit as: ActorSystem) =
         new BatchCollector[Packet] {
 
             val BATCH_SIZE: Int = 16
             val NUM_WORKERS = workers.list.length
+            val inboxes = workers.inboxes
             var packets = Array.ofDim[Packet](workers.list.length, BATCH_SIZE)
             var cursors = Array.fill[Int](NUM_WORKERS)(0)
+            val offered = new Array[Boolean](NUM_WORKERS)
             val log = LoggerFactory.getLogger("PacketInHook")
 
             def endBatch(worker: Int) {
+                if (offered(worker)) {
+                    inboxes(worker).wakeup()
+                    offered(worker) = false
+                }
                 if (cursors(worker) > 0) {
                     workers.list(worker) ! PacketWorkflow.HandlePackets(packets(worker))
                     cursors(worker) = 0
@@ -198,12 +231,18 @@ abstract class UpcallDatapathConnectionManagerBase(
                         i += 1
                     }
                 } else {
-                    val worker = Math.abs(data.getMatch.connectionHash) % NUM_WORKERS
+                    val worker =
+                        if (owner >= 0) owner
+                        else Math.abs(data.getMatch.connectionHash % NUM_WORKERS)
                     addToWorkerBatch(worker, data)
                 }
             }
 
             private def addToWorkerBatch(worker: Int, data: Packet): Unit = {
+                if (inboxes.nonEmpty && inboxes(worker).offer(data)) {
+                    offered(worker) = true
+                    return
+                }
                 packets(worker)(cursors(worker)) = data
                 cursors(worker) += 1
                 if (cursors(worker) == BATCH_SIZE)
@@ -286,3 +325,117 @@ class OneToManyDpConnManager(c: MidolmanConfig,
         conn.datapathsSetNotificationHandler(upcallHandler)
     }
 }
+
+/**
+ * UpcallDatapathConnectionManager with a one-to-worker threading model: each
+ * packet processing worker owns a channel for every datapath port, and the
+ * port spreads its upcalls among the channels of all the workers by flow hash,
+ * using the datapath support for multiple upcall PIDs per port. The packets
+ * read from a channel go straight to the worker owning it, without hashing
+ * them again nor batching them for the other workers.
+ *
+ * The pinning policy decides which threads read the channels:
+ *   + worker: each worker gets a dedicated upcall thread, upcall-worker-N,
+ *             reading only the channels of that worker.
+ *   + shared: a single upcall thread reads the channels of all the workers.
+ */
+class OneToWorkerDpConnManager(c: MidolmanConfig,
+                               tbPolicy: TokenBucketPolicy)
+        extends UpcallDatapathConnectionManagerBase(c, tbPolicy) {
+
+    protected override val log = LoggerFactory.getLogger(this.getClass)
+
+    private val sharedThread = config.upcallThreadPinning match {
+        case "worker" => false
+        case "shared" => true
+        case v => throw new IllegalArgumentException(
+            "Unknown value for upcall_thread_pinning: " + v)
+    }
+
+    val sendPool = makeBufferPool()
+
+    private val threadPairs = new ConcurrentHashMap[Int, SelectorThreadPair]()
+
+    private val connToThreadPair =
+        new ConcurrentHashMap[ManagedDatapathConnection, SelectorThreadPair]()
+
+    // The channels of the workers other than the first one, indexed by the
+    // channel of the first worker, which is the one that created the port.
+    private val workerChannels =
+        new ConcurrentHashMap[ManagedDatapathConnection,
+                              Seq[ManagedDatapathConnection]]()
+
+    private def threadPairFor(worker: Int): SelectorThreadPair =
+        threadPairs.synchronized {
+            val index = if (sharedThread) 0 else worker
+            var threadPair = threadPairs.get(index)
+            if (threadPair eq null) {
+                val name = if (sharedThread) "upcall" else s"upcall-worker-$index"
+                threadPair = new SelectorThreadPair(name, config, true)
+                threadPair.start()
+                threadPairs.put(index, threadPair)
+            }
+            threadPair
+        }
+
+    private def makeWorkerConnection(worker: Int, bucket: Bucket) = {
+        val threadPair = threadPairFor(worker)
+        val conn = threadPair.synchronized {
+            threadPair.addConnection(bucket, sendPool)
+        }
+        connToThreadPair.put(conn, threadPair)
+        conn
+    }
+
+    override def makeConnection(name: String, bucket: Bucket) =
+        makeWorkerConnection(0, bucket)
+
+    override def stopConnection(conn: ManagedDatapathConnection) {
+        val conns = workerChannels.remove(conn) match {
+            case null => Seq(conn)
+            case others => conn +: others
+        }
+        for (c <- conns) connToThreadPair.remove(c) match {
+            case null =>
+            case threadPair => threadPair.synchronized {
+                threadPair.removeConnection(c)
+            }
+        }
+    }
+
+    protected override def setUpcallHandler(conn: OvsDatapathConnection,
+                                            w: Workers)
+                                           (implicit as: ActorSystem) {
+        conn.datapathsSetNotificationHandler(makeUpcallHandler(w, 0))
+    }
+
+    protected override def addWorkerChannels(port: DpPort, dp: Datapath,
+                                             conn: ManagedDatapathConnection,
+                                             bucket: Bucket, workers: Workers)
+                                            (implicit ec: ExecutionContext,
+                                                      as: ActorSystem)
+    : Future[DpPort] = {
+        if (workers.list.length == 1)
+            return Future.successful(port)
+
+        val others = for (worker <- 1 until workers.list.length) yield {
+            // Buckets are not thread-safe, so each channel gets its own
+            val other = makeWorkerConnection(worker, tbPolicy.share(bucket))
+            other.start()
+            val dpConn = other.getConnection
+            dpConn setCallbackDispatcher getDispatcher()
+            dpConn.datapathsSetNotificationHandler(
+                makeUpcallHandler(workers, worker))
+            other
+        }
+        workerChannels.put(conn, others)
+
+        val pids = (conn +: others) map {
+            _.getConnection.getChannel.getLocalAddress.getPid
+        }
+        log.info(s"setting upcall PIDs ${pids.mkString(", ")} for port " +
+                 port.getName)
+        new OvsConnectionOps(conn.getConnection)
+            .setPortUpcallPids(port, dp, pids.toArray)
+    }
+}
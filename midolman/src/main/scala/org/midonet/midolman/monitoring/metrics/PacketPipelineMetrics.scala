@@ -56,6 +56,12 @@ class PacketPipelineMetrics(val registry: MetricRegistry,
     val packetsProcessed = registry.meter(name(
         classOf[PacketPipelineMeter], "packetsProcessed", "packets"))
 
+    val flowCacheHits = registry.meter(name(
+        classOf[PacketPipelineMeter], "flowCacheHits", "packets"))
+
+    val flowCacheMisses = registry.meter(name(
+        classOf[PacketPipelineMeter], "flowCacheMisses", "packets"))
+
     val packetsDropped = registry.meter(name(
         classOf[PacketPipelineCounter], "packetsDropped", "packets"))
 
@@ -66,6 +72,9 @@ class PacketPipelineMetrics(val registry: MetricRegistry,
     val simulationLatency = registry.histogram(name(
         classOf[PacketPipelineHistogram], "simulationLatency"))
 
+    val packetQueueLatency = registry.histogram(name(
+        classOf[PacketPipelineHistogram], "packetQueueLatency"))
+
     val simulationAccumulatedTime = registry.counter(name(
         classOf[PacketPipelineAccumulatedTime],
         "simulationAccumulatedTime"))
@@ -78,6 +87,15 @@ class PacketPipelineMetrics(val registry: MetricRegistry,
             classOf[FlowTablesMeter], "datapathFlowsCreated",
             "datapathFlows"))
 
+    val flowStatsSweeps = registry.meter(name(
+            classOf[FlowTablesMeter], "flowStatsSweeps", "sweeps"))
+
+    val sweptDatapathFlows = registry.meter(name(
+            classOf[FlowTablesMeter], "sweptDatapathFlows", "datapathFlows"))
+
+    val flowStatsSweepCost = registry.histogram(name(
+            classOf[PacketPipelineHistogram], "flowStatsSweepCostPer100kFlows"))
+
     def packetSimulated(latency: Int) {
         packetsSimulated.mark()
         simulationLatency.update(latency)
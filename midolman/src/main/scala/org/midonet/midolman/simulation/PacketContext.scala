@@ -196,12 +196,14 @@ trait FlowContext extends Clearable { this: PacketContext =>
  * used to pass state between different simulation stages, or between virtual
  * devices.
  */
-class PacketContext(val cookie: Int,
-                    val packet: Packet,
-                    val origMatch: FlowMatch,
-                    val egressPort: UUID = null) extends Clearable
+class PacketContext(var cookie: Int,
+                    var packet: Packet,
+                    var origMatch: FlowMatch,
+                    var egressPort: UUID = null) extends Clearable
                                                  with FlowContext
                                                  with StateContext {
+    def this() = this(0, null, new FlowMatch())
+
     var log = PacketContext.defaultLog
 
     def jlog = log.underlying
@@ -239,6 +241,34 @@ class PacketContext(val cookie: Int,
         this.packetEmitter = packetEmitter
     }
 
+    /**
+     * Fully resets this context so that it can be reused to process another
+     * packet, as if it had just been constructed. Unlike clear(), this
+     * doesn't run the flow removed callbacks, which at this point belong to
+     * the flow that was installed for the previous packet, if any.
+     */
+    def reset(cookie: Int, packet: Packet, origMatch: FlowMatch,
+              egressPort: UUID): Unit = {
+        this.cookie = cookie
+        this.packet = packet
+        this.origMatch = origMatch
+        this.egressPort = egressPort
+        flowRemovedCallbacks.clear()
+        clear()
+        packetActions.clear()
+        flow = null
+        stateMessage = null
+        log = PacketContext.defaultLog
+        portGroups = null
+        idle = true
+        runs = 0
+        inPortId = null
+        outPortId = null
+        outPorts.clear()
+        inputPort = null
+        packetEmitter = null
+    }
+
     override def clear(): Unit = {
         super.clear()
         flowRemovedCallbacks.runAndClear()
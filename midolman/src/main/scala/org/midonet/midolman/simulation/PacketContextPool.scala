@@ -0,0 +1,105 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.simulation
+
+import java.util.UUID
+
+import org.midonet.odp.{FlowMatch, Packet}
+import org.midonet.util.collection.ArrayObjectPool
+
+/**
+ * A pool of PacketContexts owned by a packet processing worker, so that the
+ * steady-state upcall path doesn't allocate them.
+ *
+ * A context can't be reused as soon as its simulation completes, because the
+ * threads behind the DatapathChannel read it asynchronously. The contexts
+ * handed off to the channel are instead tracked, in order, together with
+ * the sequence returned by DatapathChannel.handoff(), and reclaimed once the
+ * channel reports that it has processed that sequence. If more contexts are
+ * in flight than the pool's capacity, the oldest ones are forgotten and left
+ * to the garbage collector, as are the contexts taken when the pool is empty.
+ *
+ * Contexts that were postponed must not be returned to the pool: they may
+ * still be referenced by the WaitingRoom or by a pending RestartWorkflow
+ * message.
+ *
+ * This class is not thread-safe.
+ */
+final class PacketContextPool(val capacity: Int) {
+
+    require(Integer.bitCount(capacity) == 1, "capacity must be a power of 2")
+
+    private val mask = capacity - 1
+    private val pool = new ArrayObjectPool[PacketContext](
+        capacity, _ => new PacketContext())
+
+    private val inFlight = new Array[PacketContext](capacity)
+    private val inFlightSequences = new Array[Long](capacity)
+    private var head = 0L
+    private var tail = 0L
+
+    def available = pool.available
+
+    def pending = (tail - head).toInt
+
+    /**
+     * Takes a context from the pool, or creates one if the pool is empty, and
+     * resets it for the specified packet.
+     */
+    def take(cookie: Int, packet: Packet, origMatch: FlowMatch,
+             egressPort: UUID): PacketContext = {
+        var context = pool.take
+        if (context eq null)
+            context = new PacketContext()
+        context.reset(cookie, packet, origMatch, egressPort)
+        context
+    }
+
+    /**
+     * Tracks a context that was handed off to the DatapathChannel with the
+     * specified sequence, so that it is returned to the pool once the
+     * channel is done with it.
+     */
+    def handedOff(context: PacketContext, sequence: Long): Unit = {
+        if (tail - head == capacity)
+            head += 1
+        val index = (tail & mask).toInt
+        inFlight(index) = context
+        inFlightSequences(index) = sequence
+        tail += 1
+    }
+
+    /**
+     * Returns to the pool a context that was never handed off.
+     */
+    def recycle(context: PacketContext): Unit =
+        pool.offer(context)
+
+    /**
+     * Returns to the pool the contexts that were handed off with a sequence
+     * up to and including the specified one.
+     */
+    def reclaim(processedSequence: Long): Unit =
+        while (head < tail &&
+               inFlightSequences((head & mask).toInt) <= processedSequence) {
+            val index = (head & mask).toInt
+            val context = inFlight(index)
+            inFlight(index) = null
+            head += 1
+            pool.offer(context)
+        }
+}
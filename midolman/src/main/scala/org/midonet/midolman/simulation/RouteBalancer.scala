@@ -16,21 +16,69 @@
 
 package org.midonet.midolman.simulation
 
-import java.util.concurrent.atomic.AtomicLong
+import java.util.UUID
+import java.util.concurrent.ConcurrentHashMap
 
+import com.codahale.metrics.{Counter, MetricRegistry}
+import com.codahale.metrics.MetricRegistry.name
 import com.typesafe.scalalogging.Logger
 
 import org.midonet.midolman.layer3.Route
 import org.midonet.midolman.topology.RoutingTableWrapper
 import org.midonet.odp.FlowMatch
-import org.midonet.packets.IPAddr
+import org.midonet.packets.{IPAddr, IPv4Addr}
+
+object RouteBalancer {
+
+    private def mix(value: Int): Int = {
+        // The finalizer of MurmurHash3
+        var h = value
+        h ^= h >>> 16
+        h *= 0x85ebca6b
+        h ^= h >>> 13
+        h *= 0xc2b2ae35
+        h ^= h >>> 16
+        h
+    }
+
+    /** A hash of the 5-tuple of a flow, which reads and so marks as seen
+      * the fields that the choice of route then depends on. */
+    private[simulation] def flowHash(mmatch: FlowMatch): Int = {
+        var h = mix(hashOf(mmatch.getNetworkSrcIP))
+        h = mix(h ^ hashOf(mmatch.getNetworkDstIP))
+        h = mix(h ^ mmatch.getNetworkProto)
+        mix(h ^ (mmatch.getSrcPort << 16 | mmatch.getDstPort))
+    }
+
+    private def hashOf(ip: IPAddr): Int = if (ip eq null) 0 else ip.hashCode
+
+    /** The route with the highest rendezvous score for the flow hash. */
+    private[simulation] def select(routes: Iterable[Route], hash: Int): Route = {
+        var best: Route = null
+        var bestScore = 0
+        val it = routes.iterator
+        while (it.hasNext) {
+            val route = it.next()
+            val score = mix(hash ^ mix(route.hashCode))
+            if ((best eq null) || score > bestScore ||
+                (score == bestScore && route.hashCode < best.hashCode)) {
+                best = route
+                bestScore = score
+            }
+        }
+        best
+    }
+}
 
 /**
  * Handles lookups on the routing table. If multiple routes match, chooses
- * one in a pseudo-random way, to provide basic balancing.
+ * one by rendezvous hashing of the flow's 5-tuple, so that all the packets
+ * of a connection take the same route, even after it is simulated again,
+ * and adding or removing a route only moves the flows that go, or would go,
+ * through that route.
  */
 class RouteBalancer[IP <: IPAddr](val rTable: RoutingTableWrapper[IP]) {
-    val lookups: AtomicLong = new AtomicLong()
+    import RouteBalancer._
 
     def lookup(mmatch: FlowMatch, logger: Logger): Route = {
         val routes = rTable.lookup(mmatch, logger.underlying)
@@ -39,12 +87,70 @@ class RouteBalancer[IP <: IPAddr](val rTable: RoutingTableWrapper[IP]) {
             case 1 =>
                 logger.debug("routing to {}", routes.head)
                 routes.head
-            case size =>
-                val pos = (lookups.getAndIncrement % size).toInt
-                val ret = routes.slice(pos, pos+1).head
-                logger.debug("got multiple routes: {}, round robin to {}",
+            case _ =>
+                val ret = select(routes, flowHash(mmatch))
+                if (rTable.selections ne null)
+                    rTable.selections.count(ret)
+                logger.debug("got multiple routes: {}, flow hash chose {}",
                              routes, ret)
                 ret
         }
     }
 }
+
+object RouteSelectionCounters {
+    private case class NextHop(port: UUID, gateway: Int)
+}
+
+/**
+ * Counts the flows that a router sends through each of its next hops when
+ * it chooses among several equal-cost routes, for capacity planning. There
+ * is a counter in the registry per next hop port and gateway, named after
+ * them, so that the counters are bounded by the router's next hops and
+ * carry over the routing tables built with them. The counters of the next
+ * hops that the router's routes no longer use are removed by retain().
+ */
+final class RouteSelectionCounters(registry: MetricRegistry, prefix: String) {
+    import RouteSelectionCounters._
+
+    private val counters = new ConcurrentHashMap[NextHop, Counter]()
+
+    private def nextHopOf(route: Route) =
+        NextHop(route.nextHopPort, route.nextHopGateway)
+
+    private def metricName(hop: NextHop) =
+        name(prefix, String.valueOf(hop.port),
+             IPv4Addr.intToString(hop.gateway).replace('.', '_'))
+
+    def count(route: Route): Unit = {
+        val hop = nextHopOf(route)
+        var counter = counters.get(hop)
+        if (counter eq null) {
+            counter = registry.counter(metricName(hop))
+            counters.putIfAbsent(hop, counter)
+        }
+        counter.inc()
+    }
+
+    /** The number of flows routed through the next hop of a route. */
+    def selections(route: Route): Long = {
+        val counter = counters.get(nextHopOf(route))
+        if (counter eq null) 0L else counter.getCount
+    }
+
+    /**
+     * Removes the counters of the next hops not used by any of the routes,
+     * after routes are withdrawn.
+     */
+    def retain(routes: Iterable[Route]): Unit = {
+        val nextHops = routes.map(nextHopOf).toSet
+        val it = counters.keySet.iterator
+        while (it.hasNext) {
+            val hop = it.next()
+            if (!nextHops.contains(hop)) {
+                it.remove()
+                registry.remove(metricName(hop))
+            }
+        }
+    }
+}
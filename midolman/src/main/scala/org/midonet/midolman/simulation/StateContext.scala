@@ -18,14 +18,13 @@ package org.midonet.midolman.simulation
 
 import java.util.ArrayList
 
-import com.google.protobuf.MessageLite
-
 import org.midonet.midolman.state.{NatLeaser, FlowState, ConnTrackState, NatState}
 import org.midonet.midolman.state.ConnTrackState.{ConnTrackValue, ConnTrackKey}
 import org.midonet.midolman.state.NatState.{NatKey, NatBinding}
 import org.midonet.midolman.state.TraceState
 import org.midonet.midolman.state.TraceState.{TraceKey, TraceContext}
 import org.midonet.odp.flows.FlowAction
+import org.midonet.rpc.{FlowStateProto => Proto}
 import org.midonet.sdn.state.FlowStateTransaction
 
 trait StateContext extends FlowState
@@ -33,7 +32,7 @@ trait StateContext extends FlowState
                    with NatState
                    with TraceState { this: PacketContext =>
 
-    var stateMessage: MessageLite = _
+    var stateMessage: Proto.StateMessage = _
     val stateActions = new ArrayList[FlowAction]()
 
     def initialize(conntrackTx: FlowStateTransaction[ConnTrackKey, ConnTrackValue],
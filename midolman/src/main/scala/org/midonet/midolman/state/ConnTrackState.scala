@@ -18,6 +18,8 @@ package org.midonet.midolman.state
 
 import java.util.UUID
 
+import scala.annotation.switch
+
 import akka.actor.ActorSystem
 
 import org.midonet.midolman.simulation.PacketContext
@@ -25,8 +27,8 @@ import org.midonet.midolman.state.FlowState.FlowStateKey
 import org.midonet.midolman.topology.VirtualTopologyActor
 import org.midonet.midolman.topology.devices.Port
 import org.midonet.odp.FlowMatch
-import org.midonet.packets.{ICMP, IPAddr, IPv4, TCP, UDP}
-import org.midonet.sdn.state.FlowStateTransaction
+import org.midonet.packets.{ICMP, IPAddr, IPv4, IPv4Addr, TCP, UDP}
+import org.midonet.sdn.state.{FlowStateKeyCodec, FlowStateTransaction}
 
 object ConnTrackState {
     type ConnTrackValue = java.lang.Boolean
@@ -54,6 +56,44 @@ object ConnTrackState {
                                 s"$networkProtocol:$deviceId"
     }
 
+    /**
+     * Encodes the keys of IPv4 connections: the addresses, the ports or ICMP
+     * ids, the protocol and the device id.
+     */
+    object ConnTrackKeyCodec extends FlowStateKeyCodec[ConnTrackKey] {
+        override def canEncode(key: ConnTrackKey): Boolean =
+            key.networkSrc.isInstanceOf[IPv4Addr] &&
+            key.networkDst.isInstanceOf[IPv4Addr] &&
+            (key.deviceId ne null)
+
+        override def encode(key: ConnTrackKey, word: Int): Long =
+            (word: @switch) match {
+                case 0 => (key.networkSrc.asInstanceOf[IPv4Addr].toInt.toLong << 32) |
+                          (key.networkDst.asInstanceOf[IPv4Addr].toInt & 0xffffffffL)
+                case 1 => (key.icmpIdOrTransportSrc.toLong << 32) |
+                          (key.icmpIdOrTransportDst & 0xffffffffL)
+                case 2 => key.networkProtocol & 0xffL
+                case 3 => key.deviceId.getMostSignificantBits
+                case 4 => key.deviceId.getLeastSignificantBits
+            }
+
+        override def decode(w0: Long, w1: Long, w2: Long, w3: Long,
+                            w4: Long): ConnTrackKey =
+            ConnTrackKey(IPv4Addr.fromInt((w0 >>> 32).toInt),
+                         (w1 >>> 32).toInt,
+                         IPv4Addr.fromInt(w0.toInt),
+                         w1.toInt,
+                         w2.toByte,
+                         new UUID(w3, w4))
+
+        override def connectionHash(key: ConnTrackKey): Int =
+            FlowMatch.connectionHash(key.networkSrc.hashCode,
+                                     key.icmpIdOrTransportSrc,
+                                     key.networkDst.hashCode,
+                                     key.icmpIdOrTransportDst,
+                                     key.networkProtocol)
+    }
+
     def EgressConnTrackKey(wcMatch: FlowMatch, egressDeviceId: UUID): ConnTrackKey =
         ConnTrackKey(wcMatch.getNetworkDstIP,
                      icmpIdOr(wcMatch, wcMatch.getDstPort),
@@ -193,8 +193,7 @@ abstract class BaseFlowStateReplicator(conntrackTable: FlowStateTable[ConnTrackK
         while (keys.hasNext) {
             val k = keys.next()
             log.debug("importing state key from storage: {}", k)
-            conntrackTable.putAndRef(k, v)
-            conntrackTable.unref(k)
+            conntrackTable.touch(k, v)
         }
     }
 
@@ -202,8 +201,7 @@ abstract class BaseFlowStateReplicator(conntrackTable: FlowStateTable[ConnTrackK
         while (entries.hasNext) {
             val e = entries.next()
             log.debug("importing state key from storage: {}", e.getKey)
-            natTable.putAndRef(e.getKey, e.getValue)
-            natTable.unref(e.getKey)
+            natTable.touch(e.getKey, e.getValue)
         }
     }
 
@@ -20,6 +20,7 @@ import java.nio.ByteBuffer
 import java.util.UUID
 import java.util.concurrent.ThreadLocalRandom
 
+import scala.annotation.switch
 import scala.concurrent.duration._
 
 import org.midonet.midolman.rules.NatTarget
@@ -28,7 +29,7 @@ import org.midonet.midolman.state.FlowState.FlowStateKey
 import org.midonet.odp.FlowMatch
 import org.midonet.odp.FlowMatch.Field
 import org.midonet.packets.{IPv4Addr, IPv4, ICMP, TCP, UDP}
-import org.midonet.sdn.state.FlowStateTransaction
+import org.midonet.sdn.state.{FlowStateKeyCodec, FlowStateTransaction}
 
 object NatState {
     private val WILDCARD_PORT = 0
@@ -160,6 +161,58 @@ object NatState {
 
     case class NatBinding(var networkAddress: IPv4Addr, var transportPort: Int)
 
+    /**
+     * Encodes NAT keys: the addresses, the ports or ICMP ids, the protocol
+     * and the key type, and the device id.
+     */
+    object NatKeyCodec extends FlowStateKeyCodec[NatKey] {
+        private val keyTypes = Array[KeyType](FWD_SNAT, FWD_DNAT,
+                                              FWD_STICKY_DNAT, REV_SNAT,
+                                              REV_DNAT, REV_STICKY_DNAT)
+
+        private def keyTypeIndex(keyType: KeyType): Long = keyType match {
+            case FWD_SNAT => 0
+            case FWD_DNAT => 1
+            case FWD_STICKY_DNAT => 2
+            case REV_SNAT => 3
+            case REV_DNAT => 4
+            case REV_STICKY_DNAT => 5
+        }
+
+        override def canEncode(key: NatKey): Boolean =
+            (key.keyType ne null) && (key.networkSrc ne null) &&
+            (key.networkDst ne null) && (key.deviceId ne null)
+
+        override def encode(key: NatKey, word: Int): Long =
+            (word: @switch) match {
+                case 0 => (key.networkSrc.toInt.toLong << 32) |
+                          (key.networkDst.toInt & 0xffffffffL)
+                case 1 => (key.transportSrc.toLong << 32) |
+                          (key.transportDst & 0xffffffffL)
+                case 2 => (keyTypeIndex(key.keyType) << 8) |
+                          (key.networkProtocol & 0xffL)
+                case 3 => key.deviceId.getMostSignificantBits
+                case 4 => key.deviceId.getLeastSignificantBits
+            }
+
+        override def decode(w0: Long, w1: Long, w2: Long, w3: Long,
+                            w4: Long): NatKey =
+            NatKey(keyTypes((w2 >>> 8).toInt),
+                   IPv4Addr.fromInt((w0 >>> 32).toInt),
+                   (w1 >>> 32).toInt,
+                   IPv4Addr.fromInt(w0.toInt),
+                   w1.toInt,
+                   w2.toByte,
+                   new UUID(w3, w4))
+
+        override def connectionHash(key: NatKey): Int =
+            FlowMatch.connectionHash(key.networkSrc.hashCode,
+                                     key.transportSrc,
+                                     key.networkDst.hashCode,
+                                     key.transportDst,
+                                     key.networkProtocol)
+    }
+
     def releaseBinding(key: NatKey, binding: NatBinding, natLeaser: NatLeaser): Unit =
         if ((key.keyType eq NatState.FWD_SNAT) &&
             key.networkProtocol != ICMP.PROTOCOL_NUMBER) {
@@ -19,6 +19,7 @@ package org.midonet.midolman.state
 import java.lang.{Integer => JInt, Long => JLong}
 import java.util.UUID
 import java.util.concurrent.{TimeoutException, ThreadLocalRandom, ConcurrentHashMap}
+import java.util.concurrent.atomic.AtomicBoolean
 
 import scala.concurrent.{Promise, Future}
 import scala.concurrent.duration._
@@ -30,7 +31,7 @@ import org.midonet.midolman.rules.NatTarget
 import org.midonet.midolman.state.NatState.NatBinding
 import org.midonet.packets.{IPAddr, IPv4Addr}
 import org.midonet.util.functors.Callback
-import org.midonet.util.concurrent.{NanoClock, TimedExpirationMap}
+import org.midonet.util.concurrent.{CallingThreadExecutionContext, NanoClock, TimedExpirationMap}
 import org.midonet.util.collection.Reducer
 
 object NatLeaser {
@@ -39,6 +40,9 @@ object NatLeaser {
     private val BLOCK_MASK = BLOCK_SIZE - 1
     val BLOCK_EXPIRATION = 5 minutes
     private val OBLITERATION_CYCLE = (1 minute).toNanos
+    // A run of this many taken ports when allocating a binding is unlikely
+    // unless most of the block is taken for that destination
+    private val PREFETCH_TAKEN_PORTS = 8
 
     private def blend(ip: IPv4Addr, port: Int): Long =
         (ip.toInt.toLong << 32) | port
@@ -53,11 +57,13 @@ object NatLeaser {
      * the leasedPorts array, can be oversubscribed based on a unique number,
      * a combination of the destination IP and port.
      * It also holds a port index to enable round-robin allocation
-     * of the ports in the block.
+     * of the ports in the block, and whether another block was fetched
+     * ahead of this one running out of ports.
      */
     sealed class LeasedBlock(val block: NatBlock) {
         val leasedPorts = new Array[ConcurrentHashMap[JLong, AnyRef]](BLOCK_SIZE)
         var portIndex = ThreadLocalRandom.current().nextLong()
+        val prefetched = new AtomicBoolean()
 
         {
             var i = 0
@@ -129,7 +135,8 @@ trait NatLeaser {
             var ip = target.nwStart
             while (ip <= target.nwEnd) {
                 val leasedBlocks = getLeasedBlocks(deviceId, ip)
-                val binding = allocateInPortRange(leasedBlocks, uniquefier, ip,
+                val binding = allocateInPortRange(deviceId, natTargets,
+                                                  leasedBlocks, uniquefier, ip,
                                                   target.tpStart, target.tpEnd)
                 if (binding ne null) {
                     return binding
@@ -198,7 +205,8 @@ trait NatLeaser {
         }
     }
 
-    private def allocateInPortRange(leasedBlocks: LeasedBlocks, uniquefier: Long,
+    private def allocateInPortRange(deviceId: UUID, natTargets: Array[NatTarget],
+                                    leasedBlocks: LeasedBlocks, uniquefier: Long,
                                     targetIp: IPv4Addr, targetPortStart: Int,
                                     targetPortEnd: Int): NatBinding = {
         var port = targetPortStart
@@ -208,7 +216,8 @@ trait NatLeaser {
             val leasedBlock = leasedBlocks.ref(block)
             if (leasedBlock ne null) {
                 val endPort = Math.min(targetPortEnd, firstPortInNextBlock - 1)
-                val binding = allocateInPortBlock(leasedBlock, uniquefier,
+                val binding = allocateInPortBlock(deviceId, natTargets,
+                                                  leasedBlock, uniquefier,
                                                   targetIp, port, endPort)
                 if (binding ne null) {
                     return binding
@@ -221,12 +230,14 @@ trait NatLeaser {
         null
     }
 
-    private def allocateInPortBlock(lease: LeasedBlock, uniquefier: Long,
+    private def allocateInPortBlock(deviceId: UUID, natTargets: Array[NatTarget],
+                                    lease: LeasedBlock, uniquefier: Long,
                                     ip: IPv4Addr, tpStart: Int, tpEnd: Int)
     : NatBinding = {
         val index = lease.portIndex
         val firstPortInBlock = lease.block.tpPortStart
         var i = 0
+        var taken = 0
         while (i < BLOCK_SIZE) { // Search all ports
             val portOffset = (index + i).toInt & BLOCK_MASK
             val port = firstPortInBlock + portOffset
@@ -234,14 +245,37 @@ trait NatLeaser {
                 val sharedBinding = lease.leasedPorts(portOffset)
                 if (sharedBinding.putIfAbsent(uniquefier, this) eq null) {
                     lease.portIndex += i + 31
+                    if (taken >= PREFETCH_TAKEN_PORTS)
+                        prefetchNatBlock(lease, deviceId, natTargets)
                     return NatBinding(ip, port)
                 }
+                taken += 1
             }
             i += 1
         }
         null
     }
 
+    /**
+     * Fetches another block in the background when a leased block is close
+     * to running out of ports, so that the simulations don't have to wait
+     * for it. This is done once per leased block, and a failure is only
+     * logged, as the simulations fetch a block themselves when they need it.
+     */
+    private def prefetchNatBlock(lease: LeasedBlock, deviceId: UUID,
+                                 natTargets: Array[NatTarget]): Unit =
+        if (lease.prefetched.compareAndSet(false, true)) {
+            log.debug("Prefetching a NAT block ahead of {}", lease.block)
+            fetchNatBlock(deviceId, natTargets).onFailure {
+                case NoNatBindingException =>
+                    log.debug("No NAT block left to prefetch ahead of {}",
+                              lease.block)
+                case e =>
+                    log.warn(s"Failed to prefetch a NAT block ahead of " +
+                             s"${lease.block}", e)
+            }(CallingThreadExecutionContext)
+        }
+
     private def fetchNatBlock(deviceId: UUID,
                               targets: Array[NatTarget]): Future[NatBlock] = {
         val promise = Promise[NatBlock]()
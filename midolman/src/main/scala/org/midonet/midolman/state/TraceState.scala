@@ -123,7 +123,8 @@ trait TraceState extends FlowState { this: PacketContext =>
 
         if (clearEnabled) {
             traceContext.clear()
-            traceTx.flush()
+            if (traceTx ne null)
+                traceTx.flush()
         }
     }
 
@@ -17,13 +17,12 @@ package org.midonet.midolman.topology
 
 import akka.actor.{ActorRef, Actor}
 import java.util.{Set => JSet, UUID}
-import org.midonet.packets.IPAddr
+import org.midonet.packets.{IPAddr, IPAddrSet}
 import org.midonet.cluster.Client
 import org.midonet.cluster.client.IPAddrGroupBuilder
 import org.midonet.midolman.topology.IPAddrGroupManager.IPAddrsUpdate
 import org.midonet.midolman.simulation.IPAddrGroup
 import org.midonet.midolman.logging.ActorLogWithoutPath
-import scala.collection.JavaConverters.asScalaSetConverter
 
 object IPAddrGroupManager {
     case class IPAddrsUpdate(addrs: JSet[IPAddr])
@@ -33,6 +32,8 @@ class IPAddrGroupManager(val id: UUID, val clusterClient: Client)
         extends Actor with ActorLogWithoutPath {
     import context.system
 
+    private var members = IPAddrSet.EMPTY
+
     override def preStart() {
         clusterClient.getIPAddrGroup(id, new IPAddrGroupBuilderImpl(self))
     }
@@ -42,7 +43,8 @@ class IPAddrGroupManager(val id: UUID, val clusterClient: Client)
     }
 
     private def updateAddrs(addrs: JSet[IPAddr]): Unit = {
-        VirtualTopologyActor ! new IPAddrGroup(id, addrs.asScala.toSet)
+        members = members.update(addrs)
+        VirtualTopologyActor ! new IPAddrGroup(id, members)
     }
 }
 
@@ -24,17 +24,23 @@ import org.midonet.cluster.models.Topology.{IpAddrGroup => TopologyIPAddrGroup}
 import org.midonet.cluster.util.IPAddressUtil._
 import org.midonet.cluster.util.UUIDUtil._
 import org.midonet.midolman.simulation.{IPAddrGroup => SimIPAddrGroup}
+import org.midonet.packets.IPAddrSet
 import org.midonet.util.functors.makeFunc1
 
 class IPAddrGroupMapper(addrGroupId: UUID, vt: VirtualTopology) extends
     DeviceMapper[SimIPAddrGroup](addrGroupId, vt) {
 
+    // The members of the last group emitted, which are updated with the
+    // addresses added and removed instead of being rebuilt on every change.
+    private var members = IPAddrSet.EMPTY
+
     private def toSimIPAddrGroup(ipAddGroup: TopologyIPAddrGroup)
     : SimIPAddrGroup = {
         val addrs = ipAddGroup.getIpAddrPortsList.asScala.map(ipAddrPort =>
             toIPAddr(ipAddrPort.getIpAddress)
-        ).toSet
-        new SimIPAddrGroup(ipAddGroup.getId.asJava, addrs)
+        )
+        members = members.update(addrs.asJavaCollection)
+        new SimIPAddrGroup(ipAddGroup.getId.asJava, members)
     }
 
     protected override lazy val observable =
@@ -19,6 +19,8 @@ import collection.{Set => ROSet, mutable, Iterable}
 import collection.JavaConversions._
 import java.util.UUID
 
+import com.codahale.metrics.MetricRegistry
+import com.codahale.metrics.MetricRegistry.name
 import org.slf4j.Logger
 
 import org.midonet.cluster.Client
@@ -26,7 +28,9 @@ import org.midonet.cluster.client.ArpCache
 import org.midonet.midolman.topology.VirtualTopologyActor.InvalidateFlowsByTag
 import org.midonet.midolman.config.MidolmanConfig
 import org.midonet.midolman.layer3.{RoutingTableIfc, InvalidationTrie, Route}
-import org.midonet.midolman.simulation.{ArpTable, ArpTableImpl, Router}
+import org.midonet.midolman.monitoring.metrics.PacketPipelineCounter
+import org.midonet.midolman.simulation.{ArpTable, ArpTableImpl, Router,
+                                        RouteSelectionCounters}
 import org.midonet.midolman.topology.RouterManager._
 import org.midonet.midolman.topology.builders.RouterBuilderImpl
 import org.midonet.odp.FlowMatch
@@ -34,7 +38,13 @@ import org.midonet.packets.{IPAddr, IPv4Addr, MAC}
 import org.midonet.sdn.flows.FlowTagger
 import org.midonet.util.functors.Callback0
 
-class RoutingTableWrapper[IP <: IPAddr](val rTable: RoutingTableIfc[IP]) {
+/**
+ * Wraps a routing table for the simulation, along with the counters of the
+ * flows the router sends through each next hop of equal-cost routes, if any.
+ */
+class RoutingTableWrapper[IP <: IPAddr](
+        val rTable: RoutingTableIfc[IP],
+        val selections: RouteSelectionCounters = null) {
 
     import collection.JavaConversions._
 
@@ -88,7 +98,8 @@ trait TagManager {
  * - ARP: this is not used in IPv6, an idea can be to make this a generic
  * version for IPv6, then extend adding IPv4 and IPv6 "toolsets" to each.
  */
-class RouterManager(id: UUID, val client: Client, val config: MidolmanConfig)
+class RouterManager(id: UUID, val client: Client, val config: MidolmanConfig,
+                    val metrics: MetricRegistry = new MetricRegistry)
         extends DeviceWithChains {
     import context.system
     import context.dispatcher
@@ -106,6 +117,10 @@ class RouterManager(id: UUID, val client: Client, val config: MidolmanConfig)
     // key is dstIp tag, value is the count
     private val tagToFlowCount: mutable.Map[IPAddr, Int]
                                 = new mutable.HashMap[IPAddr, Int]
+    // The flows routed through each next hop chosen among equal-cost routes
+    private val selections = new RouteSelectionCounters(metrics,
+        name(classOf[PacketPipelineCounter], "ecmpRouteSelections",
+             id.toString))
 
     def topologyReady() {
         log.debug("Sending a Router to the VTA")
@@ -125,7 +140,12 @@ class RouterManager(id: UUID, val client: Client, val config: MidolmanConfig)
     }
 
     override def preStart() {
-        client.getRouter(id, new RouterBuilderImpl(id, self))
+        client.getRouter(id, new RouterBuilderImpl(id, self, selections))
+    }
+
+    override def postStop() {
+        selections.retain(Nil)
+        super.postStop()
     }
 
     private def invalidateFlowsByIp(ip: IPv4Addr) {
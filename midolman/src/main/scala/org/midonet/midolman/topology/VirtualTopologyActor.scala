@@ -24,6 +24,7 @@ import scala.concurrent.duration._
 import scala.reflect._
 
 import akka.actor._
+import com.codahale.metrics.MetricRegistry
 import com.google.inject.Inject
 import com.typesafe.scalalogging.Logger
 import org.midonet.midolman.flows.FlowInvalidator
@@ -64,7 +65,8 @@ object VirtualTopologyActor extends Referenceable {
             s"${getClass.getSimpleName}[id=$id, update=$update]"
 
         protected[VirtualTopologyActor]
-        def managerFactory(client: Client, config: MidolmanConfig): () => Actor
+        def managerFactory(client: Client, config: MidolmanConfig,
+                           metrics: MetricRegistry): () => Actor
     }
 
     case class PortRequest(id: UUID, update: Boolean = false)
@@ -74,7 +76,8 @@ object VirtualTopologyActor extends Referenceable {
         override val managerName = portManagerName(id)
 
         protected[VirtualTopologyActor]
-        override def managerFactory(client: Client, config: MidolmanConfig) =
+        override def managerFactory(client: Client, config: MidolmanConfig,
+                                    metrics: MetricRegistry) =
             () => new PortManager(id, client)
     }
 
@@ -85,7 +88,8 @@ object VirtualTopologyActor extends Referenceable {
         override val managerName = bridgeManagerName(id)
 
         protected[VirtualTopologyActor]
-        override def managerFactory(client: Client, config: MidolmanConfig) =
+        override def managerFactory(client: Client, config: MidolmanConfig,
+                                    metrics: MetricRegistry) =
             () => new BridgeManager(id, client, config)
     }
 
@@ -96,8 +100,9 @@ object VirtualTopologyActor extends Referenceable {
         override val managerName = routerManagerName(id)
 
         protected[VirtualTopologyActor]
-        def managerFactory(client: Client, config: MidolmanConfig) =
-            () => new RouterManager(id, client, config)
+        def managerFactory(client: Client, config: MidolmanConfig,
+                           metrics: MetricRegistry) =
+            () => new RouterManager(id, client, config, metrics)
     }
 
     case class ChainRequest(id: UUID, update: Boolean = false)
@@ -107,7 +112,8 @@ object VirtualTopologyActor extends Referenceable {
         override val managerName = chainManagerName(id)
 
         protected[VirtualTopologyActor]
-        def managerFactory(client: Client, config: MidolmanConfig) =
+        def managerFactory(client: Client, config: MidolmanConfig,
+                           metrics: MetricRegistry) =
             () => new ChainManager(id, client)
     }
 
@@ -118,7 +124,8 @@ object VirtualTopologyActor extends Referenceable {
         override val managerName = iPAddrGroupManagerName(id)
 
         protected[VirtualTopologyActor]
-        def managerFactory(client: Client, config: MidolmanConfig) =
+        def managerFactory(client: Client, config: MidolmanConfig,
+                           metrics: MetricRegistry) =
             () => new IPAddrGroupManager(id, client)
     }
 
@@ -129,7 +136,8 @@ object VirtualTopologyActor extends Referenceable {
         override val managerName = loadBalancerManagerName(id)
 
         protected[VirtualTopologyActor]
-        def managerFactory(client: Client, config: MidolmanConfig) =
+        def managerFactory(client: Client, config: MidolmanConfig,
+                           metrics: MetricRegistry) =
             () => new LoadBalancerManager(id, client)
     }
 
@@ -140,7 +148,8 @@ object VirtualTopologyActor extends Referenceable {
         override val managerName = poolManagerName(id)
 
         protected[VirtualTopologyActor]
-        def managerFactory(client: Client, config: MidolmanConfig) =
+        def managerFactory(client: Client, config: MidolmanConfig,
+                           metrics: MetricRegistry) =
             () => new PoolManager(id, client)
     }
 
@@ -151,7 +160,8 @@ object VirtualTopologyActor extends Referenceable {
         override val managerName = portGroupManagerName(id)
 
         protected[VirtualTopologyActor]
-        def managerFactory(client: Client, config: MidolmanConfig) =
+        def managerFactory(client: Client, config: MidolmanConfig,
+                           metrics: MetricRegistry) =
             () => new PortGroupManager(id, client)
     }
 
@@ -163,7 +173,8 @@ object VirtualTopologyActor extends Referenceable {
         override val id = PoolConfig.POOL_HEALTH_MONITOR_MAP_KEY
 
         protected[VirtualTopologyActor]
-        def managerFactory(client: Client, config: MidolmanConfig) =
+        def managerFactory(client: Client, config: MidolmanConfig,
+                           metrics: MetricRegistry) =
                   () => new PoolHealthMonitorMapManager(client)
     }
 
@@ -287,6 +298,9 @@ class VirtualTopologyActor extends VirtualTopologyRedirector {
     @Inject
     var flowInvalidator: FlowInvalidator = _
 
+    @Inject
+    var metricRegistry: MetricRegistry = _
+
     /** Manages the device, by adding the request sender to the set of
       * unanswered clients and subscribers, if needed.
       * @param createManager If true, it creates a legacy device manager for
@@ -300,7 +314,8 @@ class VirtualTopologyActor extends VirtualTopologyRedirector {
 
         log.info("Manage device {}", req.id)
         if (createManager) {
-            val mgrFactory = req.managerFactory(clusterClient, config)
+            val mgrFactory = req.managerFactory(clusterClient, config,
+                                               metricRegistry)
             val props = Props { mgrFactory() }
                 .withDispatcher(context.props.dispatcher)
             context.actorOf(props, req.managerName)
@@ -20,10 +20,12 @@ import java.util.UUID
 import org.midonet.cluster.client.{ArpCache, RouterBuilder}
 import akka.actor.ActorRef
 import org.midonet.midolman.layer3.{IPv4RoutingTable, Route}
+import org.midonet.midolman.simulation.RouteSelectionCounters
 import org.midonet.midolman.topology.RouterManager.{InvalidateFlows, TriggerUpdate}
 import org.midonet.midolman.topology.{RoutingTableWrapper, RouterConfig}
 
-class RouterBuilderImpl(val id: UUID, val routerManager: ActorRef)
+class RouterBuilderImpl(val id: UUID, val routerManager: ActorRef,
+                        val selections: RouteSelectionCounters = null)
     extends RouterBuilder {
 
     private var cfg: RouterConfig = new RouterConfig
@@ -31,6 +33,8 @@ class RouterBuilderImpl(val id: UUID, val routerManager: ActorRef)
     private val routes = new scala.collection.mutable.HashSet[Route]()
     private val routesToAdd = new scala.collection.mutable.HashSet[Route]()
     private val routesToRemove = new scala.collection.mutable.HashSet[Route]()
+    // The routes of the last table built, updated with the changes since
+    private val routingTable = new IPv4RoutingTable()
 
     def setArpCache(table: ArpCache) {
         if (arpCache != null)
@@ -70,18 +74,25 @@ class RouterBuilderImpl(val id: UUID, val routerManager: ActorRef)
 
     def build() {
         // we always pass a new copy of the RoutingTable since this is accessed
-        // by the RCU Router
-        val table = new IPv4RoutingTable()
-        for (rt <- routes)
-            table.addRoute(rt)
+        // by the RCU Router. The copy shares the trie of the table, which is
+        // updated with the routes added and removed since the last build
+        // without changing the copies already passed.
+        for (rt <- routesToRemove if !routes.contains(rt))
+            routingTable.deleteRoute(rt)
+        for (rt <- routesToAdd if routes.contains(rt))
+            routingTable.addRoute(rt)
         if (routesToAdd.size > 0 || routesToRemove.size > 0) {
             val added = routesToAdd.clone()
             val deleted = routesToRemove.clone()
             routerManager ! InvalidateFlows(added, deleted)
         }
+        if (routesToRemove.size > 0 && selections != null)
+            selections.retain(routes)
         routesToAdd.clear()
         routesToRemove.clear()
-        routerManager ! TriggerUpdate(cfg, arpCache, new RoutingTableWrapper(table))
+        routerManager ! TriggerUpdate(cfg, arpCache,
+                                     new RoutingTableWrapper(routingTable.copy(),
+                                                             selections))
     }
 
     def start() = null
@@ -0,0 +1,443 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.sdn.state
+
+import com.typesafe.scalalogging.Logger
+
+import org.midonet.Util
+import org.midonet.util.collection.Reducer
+
+object PrimitiveFlowStateMap {
+    private val unsafe = Util.getUnsafe
+    private val LONG_BASE: Long = unsafe.arrayBaseOffset(classOf[Array[Long]])
+    private val LONG_SCALE: Long = unsafe.arrayIndexScale(classOf[Array[Long]])
+    private val REF_BASE: Long = unsafe.arrayBaseOffset(classOf[Array[AnyRef]])
+    private val REF_SCALE: Long = unsafe.arrayIndexScale(classOf[Array[AnyRef]])
+
+    /* The layout of a slot: the hash of the key in the upper 32 bits of the
+     * first word and the reference count in the lower ones, which is 0 for a
+     * free slot; then the expiration time and the encoded key. */
+    private final val META = 0
+    private final val EXPIRATION = 1
+    private final val KEY = 2
+    private final val WORDS = FlowStateKeyCodec.WORDS
+    private final val STRIDE = KEY + WORDS
+
+    /* An entry of the expiring queue: the encoded key and the expiration. */
+    private final val EXPIRING_STRIDE = WORDS + 1
+
+    final val DEFAULT_CAPACITY = 1024
+
+    private final class Table(val capacity: Int) {
+        val mask = capacity - 1
+        val threshold = capacity / 4 * 3
+        val slots = new Array[Long](capacity * STRIDE)
+        val values = new Array[AnyRef](capacity)
+    }
+
+    private def mix(word: Long): Long = {
+        var k = word
+        k ^= k >>> 33
+        k *= 0xff51afd7ed558ccdL
+        k ^= k >>> 33
+        k *= 0xc4ceb9fe1a85ec53L
+        k ^= k >>> 33
+        k
+    }
+
+    /* Never 0, so that the meta word of an used slot is never 0. */
+    private def hash(w0: Long, w1: Long, w2: Long, w3: Long, w4: Long): Int = {
+        val h = mix(w4 ^ mix(w3 ^ mix(w2 ^ mix(w1 ^ mix(w0)))))
+        val i = (h ^ (h >>> 32)).toInt
+        if (i == 0) 1 else i
+    }
+
+    private def refCount(meta: Long): Int = meta.toInt
+
+    private def withRefCount(meta: Long, refCount: Int): Long =
+        (meta & 0xffffffff00000000L) | (refCount & 0xffffffffL)
+
+    private def getLong(array: Array[Long], index: Int): Long =
+        unsafe.getLongVolatile(array, LONG_BASE + index * LONG_SCALE)
+
+    private def putLong(array: Array[Long], index: Int, value: Long): Unit =
+        unsafe.putOrderedLong(array, LONG_BASE + index * LONG_SCALE, value)
+
+    private def getRef(array: Array[AnyRef], index: Int): AnyRef =
+        unsafe.getObjectVolatile(array, REF_BASE + index * REF_SCALE)
+
+    private def putRef(array: Array[AnyRef], index: Int, value: AnyRef): Unit =
+        unsafe.putOrderedObject(array, REF_BASE + index * REF_SCALE, value)
+}
+
+/**
+ * A reference counted map with idle expiration for flow state, with the
+ * same semantics as a TimedExpirationMap, that stores its keys in primitive
+ * arrays instead of as objects. Keys are encoded by a FlowStateKeyCodec, and
+ * each entry takes a slot in a linear probing open-addressing table laid out
+ * in a single long array, holding the hash, reference count, expiration time
+ * and encoded key inline. Values are kept in a parallel array. Keys whose
+ * reference count drops to 0 are tracked in a ring of encoded keys ordered by
+ * insertion. A million entries thus take a couple of arrays instead of
+ * millions of keys, addresses, UUIDs, map nodes, counters and queue nodes.
+ * Keys passed to the reducers of fold() and obliterateIdleEntries() are built
+ * anew from their encoding.
+ *
+ * THREADING SEMANTICS:
+ *
+ * The map has a single writer: all operations except get() and getRefCount()
+ * must happen in the same thread. get() and getRefCount() can be called
+ * concurrently from any thread, and are lock-free. Inserting an entry
+ * publishes its slot with an ordered write of its meta word; removing an entry
+ * shifts back the entries that follow it in the cluster, which is guarded by
+ * a sequence number that readers check to retry their lookup; and growing the
+ * table builds a new one that is published at once, leaving the old one
+ * untouched for the readers still going over it.
+ */
+final class PrimitiveFlowStateMap[K <: IdleExpiration, V >: Null](
+        codec: FlowStateKeyCodec[K], log: Logger,
+        initialCapacity: Int = PrimitiveFlowStateMap.DEFAULT_CAPACITY) {
+    import PrimitiveFlowStateMap._
+
+    require(Integer.bitCount(initialCapacity) == 1,
+            "initial capacity must be a power of 2")
+
+    @volatile private var table = new Table(initialCapacity)
+    /* Odd while entries are being moved around by a removal */
+    @volatile private var sequence = 0L
+    private var entries = 0
+
+    private var expiring = new Array[Long](64 * EXPIRING_STRIDE)
+    private var expiringMask = 63
+    private var expiringHead = 0
+    private var expiringTail = 0
+
+    def size = entries
+
+    def capacity = table.capacity
+
+    private def find(t: Table, h: Int, w0: Long, w1: Long, w2: Long,
+                     w3: Long, w4: Long): Int = {
+        val slots = t.slots
+        var i = h & t.mask
+        while (true) {
+            val base = i * STRIDE
+            val meta = getLong(slots, base + META)
+            if (meta == 0)
+                return -1
+            if ((meta >>> 32).toInt == h &&
+                getLong(slots, base + KEY) == w0 &&
+                getLong(slots, base + KEY + 1) == w1 &&
+                getLong(slots, base + KEY + 2) == w2 &&
+                getLong(slots, base + KEY + 3) == w3 &&
+                getLong(slots, base + KEY + 4) == w4)
+                return i
+            i = (i + 1) & t.mask
+        }
+        -1 // not reached
+    }
+
+    def get(key: K): V = {
+        val w0 = codec.encode(key, 0)
+        val w1 = codec.encode(key, 1)
+        val w2 = codec.encode(key, 2)
+        val w3 = codec.encode(key, 3)
+        val w4 = codec.encode(key, 4)
+        val h = hash(w0, w1, w2, w3, w4)
+        while (true) {
+            val seq = sequence
+            if ((seq & 1) == 0) {
+                val t = table
+                val i = find(t, h, w0, w1, w2, w3, w4)
+                val value = if (i >= 0) getRef(t.values, i) else null
+                if (sequence == seq)
+                    return value.asInstanceOf[V]
+            }
+        }
+        null // not reached
+    }
+
+    def getRefCount(key: K): Int = {
+        val w0 = codec.encode(key, 0)
+        val w1 = codec.encode(key, 1)
+        val w2 = codec.encode(key, 2)
+        val w3 = codec.encode(key, 3)
+        val w4 = codec.encode(key, 4)
+        val h = hash(w0, w1, w2, w3, w4)
+        while (true) {
+            val seq = sequence
+            if ((seq & 1) == 0) {
+                val t = table
+                val i = find(t, h, w0, w1, w2, w3, w4)
+                val count =
+                    if (i >= 0) refCount(getLong(t.slots, i * STRIDE + META))
+                    else 0
+                if (sequence == seq)
+                    return count
+            }
+        }
+        0 // not reached
+    }
+
+    def putAndRef(key: K, value: V): V = {
+        val w0 = codec.encode(key, 0)
+        val w1 = codec.encode(key, 1)
+        val w2 = codec.encode(key, 2)
+        val w3 = codec.encode(key, 3)
+        val w4 = codec.encode(key, 4)
+        val h = hash(w0, w1, w2, w3, w4)
+        val t = table
+        val i = find(t, h, w0, w1, w2, w3, w4)
+        if (i >= 0) {
+            val oldValue = t.values(i).asInstanceOf[V]
+            incRefCount(t, i, key)
+            putRef(t.values, i, value.asInstanceOf[AnyRef])
+            oldValue
+        } else {
+            insert(h, w0, w1, w2, w3, w4, value.asInstanceOf[AnyRef])
+            log.debug(s"Incrementing reference count of $key to 1")
+            null
+        }
+    }
+
+    def ref(key: K): V = {
+        val t = table
+        val i = find(t, key)
+        if (i >= 0) {
+            incRefCount(t, i, key)
+            t.values(i).asInstanceOf[V]
+        } else {
+            null
+        }
+    }
+
+    def unref(key: K, currentTimeMillis: Long): V = {
+        val t = table
+        val i = find(t, key)
+        if (i < 0)
+            return null
+
+        val value = t.values(i).asInstanceOf[V]
+        val base = i * STRIDE
+        val meta = t.slots(base + META)
+        val count = refCount(meta)
+        if (count <= 0) {
+            log.error(s"Decrement a ref count past 0 for $key")
+            return value
+        }
+
+        putLong(t.slots, base + META, withRefCount(meta, count - 1))
+        log.debug(s"Decrementing reference count of $key to ${count - 1}")
+        if (count == 1) {
+            log.debug(s"Scheduling removal of $key")
+            val expiration = currentTimeMillis + key.expiresAfter.toMillis
+            t.slots(base + EXPIRATION) = expiration
+            offerExpiring(t.slots, base, expiration)
+        }
+        value
+    }
+
+    def fold[U](seed: U, func: Reducer[K, V, U]): U = {
+        val t = table
+        var acc = seed
+        var i = 0
+        while (i < t.capacity) {
+            val base = i * STRIDE
+            if (t.slots(base + META) != 0) {
+                acc = func(acc, decode(t.slots, base),
+                           t.values(i).asInstanceOf[V])
+            }
+            i += 1
+        }
+        acc
+    }
+
+    val identityReducer = new Reducer[K, V, Unit] {
+        override def apply(acc: Unit, key: K, value: V): Unit = ()
+    }
+
+    def obliterateIdleEntries(currentTimeMillis: Long): Unit =
+        obliterateIdleEntries(currentTimeMillis, (), identityReducer)
+
+    /**
+     * Cleans up the entries that have had their reference count at 0 for
+     * longer than their expiration, calling the reducer for each of them
+     * before it is removed.
+     */
+    def obliterateIdleEntries[U](currentTimeMillis: Long, seed: U,
+                                 reducer: Reducer[K, V, U]): U = {
+        var acc = seed
+        while (expiringHead != expiringTail) {
+            val base = (expiringHead & expiringMask) * EXPIRING_STRIDE
+            if (expiring(base + WORDS) > currentTimeMillis)
+                return acc
+
+            val w0 = expiring(base)
+            val w1 = expiring(base + 1)
+            val w2 = expiring(base + 2)
+            val w3 = expiring(base + 3)
+            val w4 = expiring(base + 4)
+            val h = hash(w0, w1, w2, w3, w4)
+            var t = table
+            var i = find(t, h, w0, w1, w2, w3, w4)
+            if (i >= 0 && isIdle(t, i, currentTimeMillis)) {
+                val key = codec.decode(w0, w1, w2, w3, w4)
+                log.debug(s"Forgetting entry $key")
+                acc = reducer(acc, key, t.values(i).asInstanceOf[V])
+                /* The reducer may have changed the map */
+                t = table
+                i = find(t, h, w0, w1, w2, w3, w4)
+                if (i >= 0 && isIdle(t, i, currentTimeMillis))
+                    remove(t, i)
+            }
+            expiringHead += 1
+        }
+        acc
+    }
+
+    private def find(t: Table, key: K): Int = {
+        val w0 = codec.encode(key, 0)
+        val w1 = codec.encode(key, 1)
+        val w2 = codec.encode(key, 2)
+        val w3 = codec.encode(key, 3)
+        val w4 = codec.encode(key, 4)
+        find(t, hash(w0, w1, w2, w3, w4), w0, w1, w2, w3, w4)
+    }
+
+    private def isIdle(t: Table, i: Int, currentTimeMillis: Long): Boolean = {
+        val base = i * STRIDE
+        refCount(t.slots(base + META)) == 0 &&
+            t.slots(base + EXPIRATION) <= currentTimeMillis
+    }
+
+    private def incRefCount(t: Table, i: Int, key: K): Unit = {
+        val base = i * STRIDE
+        val meta = t.slots(base + META)
+        val count = refCount(meta) + 1
+        putLong(t.slots, base + META, withRefCount(meta, count))
+        log.debug(s"Incrementing ref count of $key to $count")
+        if (count == 1)
+            log.debug(s"Unscheduling removal of $key")
+    }
+
+    private def decode(slots: Array[Long], base: Int): K =
+        codec.decode(slots(base + KEY), slots(base + KEY + 1),
+                     slots(base + KEY + 2), slots(base + KEY + 3),
+                     slots(base + KEY + 4))
+
+    private def insert(h: Int, w0: Long, w1: Long, w2: Long, w3: Long,
+                       w4: Long, value: AnyRef): Unit = {
+        if (entries >= table.threshold)
+            grow()
+        val t = table
+        var i = h & t.mask
+        while (t.slots(i * STRIDE + META) != 0) {
+            i = (i + 1) & t.mask
+        }
+        val base = i * STRIDE
+        t.slots(base + EXPIRATION) = Long.MaxValue
+        t.slots(base + KEY) = w0
+        t.slots(base + KEY + 1) = w1
+        t.slots(base + KEY + 2) = w2
+        t.slots(base + KEY + 3) = w3
+        t.slots(base + KEY + 4) = w4
+        t.values(i) = value
+        // Publishes the slot to readers after the writes above
+        putLong(t.slots, base + META, (h.toLong << 32) | 1L)
+        entries += 1
+    }
+
+    /**
+     * Removes the entry at the specified slot, and moves back the entries
+     * following it that would otherwise become unreachable.
+     */
+    private def remove(t: Table, slot: Int): Unit = {
+        sequence += 1
+        val slots = t.slots
+        var free = slot
+        var i = slot
+        var done = false
+        while (!done) {
+            i = (i + 1) & t.mask
+            val meta = slots(i * STRIDE + META)
+            if (meta == 0) {
+                done = true
+            } else {
+                val ideal = (meta >>> 32).toInt & t.mask
+                val reachable = if (free <= i) free < ideal && ideal <= i
+                                else free < ideal || ideal <= i
+                if (!reachable) {
+                    var w = 0
+                    while (w < STRIDE) {
+                        putLong(slots, free * STRIDE + w, slots(i * STRIDE + w))
+                        w += 1
+                    }
+                    putRef(t.values, free, t.values(i))
+                    free = i
+                }
+            }
+        }
+        putLong(slots, free * STRIDE + META, 0L)
+        putRef(t.values, free, null)
+        entries -= 1
+        sequence += 1
+    }
+
+    private def grow(): Unit = {
+        val t = table
+        val newTable = new Table(t.capacity * 2)
+        var i = 0
+        while (i < t.capacity) {
+            val base = i * STRIDE
+            val meta = t.slots(base + META)
+            if (meta != 0) {
+                var j = (meta >>> 32).toInt & newTable.mask
+                while (newTable.slots(j * STRIDE + META) != 0) {
+                    j = (j + 1) & newTable.mask
+                }
+                System.arraycopy(t.slots, base, newTable.slots, j * STRIDE,
+                                 STRIDE)
+                newTable.values(j) = t.values(i)
+            }
+            i += 1
+        }
+        table = newTable
+    }
+
+    private def offerExpiring(slots: Array[Long], slotBase: Int,
+                              expiration: Long): Unit = {
+        if (expiringTail - expiringHead == expiringMask + 1) {
+            val newExpiring = new Array[Long](expiring.length * 2)
+            val count = expiringTail - expiringHead
+            var i = 0
+            while (i < count) {
+                System.arraycopy(
+                    expiring, ((expiringHead + i) & expiringMask) * EXPIRING_STRIDE,
+                    newExpiring, i * EXPIRING_STRIDE, EXPIRING_STRIDE)
+                i += 1
+            }
+            expiring = newExpiring
+            expiringMask = (expiringMask << 1) | 1
+            expiringHead = 0
+            expiringTail = count
+        }
+        val base = (expiringTail & expiringMask) * EXPIRING_STRIDE
+        System.arraycopy(slots, slotBase + KEY, expiring, base, WORDS)
+        expiring(base + WORDS) = expiration
+        expiringTail += 1
+    }
+}
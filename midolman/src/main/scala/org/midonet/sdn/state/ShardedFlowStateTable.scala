@@ -17,7 +17,7 @@
 package org.midonet.sdn.state
 
 import java.util.ArrayList
-import java.util.concurrent.TimeUnit
+import java.util.concurrent.{ConcurrentHashMap, ConcurrentLinkedQueue, TimeUnit}
 
 import org.slf4j.LoggerFactory
 import com.typesafe.scalalogging.Logger
@@ -31,6 +31,11 @@ object ShardedFlowStateTable {
 
     def create[K <: IdleExpiration, V >: Null](clock: NanoClock):
             ShardedFlowStateTable[K, V] = new ShardedFlowStateTable[K, V](clock)
+
+    def create[K <: IdleExpiration, V >: Null](clock: NanoClock,
+                                               keyCodec: FlowStateKeyCodec[K]):
+            ShardedFlowStateTable[K, V] =
+        new ShardedFlowStateTable[K, V](clock, keyCodec)
 }
 
 /**
@@ -50,11 +55,34 @@ object ShardedFlowStateTable {
  * Gets, on the other hand, will fall back to the parent and the other shards
  * if a key is not found locally.
  *
- * unref() calls may require coordination, but they are meant to happen in an
- * external thread or pool, not a shard-owning thread.
+ * When a FlowStateKeyCodec is specified, the shards store the keys it can
+ * encode in a PrimitiveFlowStateMap, which only supports a single writer:
+ * all operations on a shard other than get() and getRefCount(), including
+ * unref() and the expiration of idle entries, must then happen in the thread
+ * that owns the shard. Keys the codec can't encode are stored in a
+ * TimedExpirationMap. The ref(), unref() and touch() of the parent table are
+ * then queued to the shard they apply to, and the thread owning the shard
+ * applies them before its next write or expiration, so their effect isn't
+ * visible right away.
+ *
+ * The codec also makes the shard that owns a key derivable from the key: it is
+ * chosen by the connection hash of the key, the same way the packets of that
+ * connection are distributed among the packet processing threads. The state
+ * of a connection is thus usually written and read by the thread owning its
+ * shard, and the parent looks a key up in its owner shard only, instead of in
+ * every shard. A key may still be written by a shard other than its owner,
+ * for instance when the packet that creates it was translated by NAT, or
+ * arrived through a tunnel. Such keys are registered with the owner shard,
+ * along with every shard that wrote them, until they expire, so that the
+ * lookups that miss in the owner shard only cost an additional hash map
+ * lookup. Keys imported from other hosts with touch() are not registered, as
+ * they are imported by every shard.
  */
 class ShardedFlowStateTable[K <: IdleExpiration, V >: Null]
-        (val clock: NanoClock = NanoClock.DEFAULT) extends FlowStateTable[K, V] {
+        (val clock: NanoClock, keyCodec: FlowStateKeyCodec[K])
+        extends FlowStateTable[K, V] {
+
+    def this(clock: NanoClock = NanoClock.DEFAULT) = this(clock, null)
 
     private val shards = new ArrayList[FlowStateShard]()
     private val SHARD_NONE: Int = -1
@@ -68,6 +96,31 @@ class ShardedFlowStateTable[K <: IdleExpiration, V >: Null]
         s
     }
 
+    private def isSharded = keyCodec ne null
+
+    /**
+     * The index of the shard owning the key, if the table is sharded by key.
+     */
+    private[state] def ownerOf(key: K): Int =
+        Math.abs(keyCodec.connectionHash(key) % shards.size)
+
+    /**
+     * Finds the first shard that holds a key: its owner shard, or one of the
+     * shards that wrote it in place of the owner. Only for sharded tables.
+     */
+    private def holderOf(key: K): FlowStateShard = {
+        val owner = shards.get(ownerOf(key))
+        if (owner.shallowGet(key) != null)
+            return owner
+        var holders = owner.misplacedHolders(key)
+        while (holders.nonEmpty) {
+            if (holders.head.shallowGet(key) != null)
+                return holders.head
+            holders = holders.tail
+        }
+        null
+    }
+
     /**
      * Fetches a the value associated with a key, skipping the given shard
      * index.
@@ -76,16 +129,36 @@ class ShardedFlowStateTable[K <: IdleExpiration, V >: Null]
         assert(shardToSkip == SHARD_NONE ||
                 (shardToSkip >= 0 && shardToSkip < shards.size))
 
-        var i = 0
-        while (i < shards.size) {
-            if (i != shardToSkip) {
-                val v: V = shards.get(i).shallowGet(key)
+        if (isSharded) {
+            val owner = shards.get(ownerOf(key))
+            if (owner.workerId != shardToSkip) {
+                val v = owner.shallowGet(key)
                 if (v != null)
                     return v
             }
-            i += 1
+            var holders = owner.misplacedHolders(key)
+            while (holders.nonEmpty) {
+                val holder = holders.head
+                if (holder.workerId != shardToSkip) {
+                    val v = holder.shallowGet(key)
+                    if (v != null)
+                        return v
+                }
+                holders = holders.tail
+            }
+            null
+        } else {
+            var i = 0
+            while (i < shards.size) {
+                if (i != shardToSkip) {
+                    val v: V = shards.get(i).shallowGet(key)
+                    if (v != null)
+                        return v
+                }
+                i += 1
+            }
+            null
         }
-        null
     }
 
     override def putAndRef(key: K, value: V): V = throw new IllegalArgumentException
@@ -93,6 +166,14 @@ class ShardedFlowStateTable[K <: IdleExpiration, V >: Null]
     override def get(key: K): V = get(key, SHARD_NONE)
 
     override def ref(key: K): V = {
+        if (isSharded) {
+            val holder = holderOf(key)
+            if (holder eq null)
+                return null
+            val v = holder.shallowGet(key)
+            holder.queueWrite(REF, key, null)
+            return v
+        }
         var i = 0
         while (i < shards.size) {
             val v = shards.get(i).ref(key)
@@ -104,6 +185,10 @@ class ShardedFlowStateTable[K <: IdleExpiration, V >: Null]
     }
 
     override def touch(key: K, value: V) {
+        if (isSharded) {
+            shards.get(ownerOf(key)).queueWrite(TOUCH, key, value)
+            return
+        }
         var i: Int = 0
         while (i < shards.size) {
             shards.get(i).touch(key, value)
@@ -112,6 +197,16 @@ class ShardedFlowStateTable[K <: IdleExpiration, V >: Null]
     }
 
     override def getRefCount(key: K): Int = {
+        if (isSharded) {
+            val owner = shards.get(ownerOf(key))
+            var count = owner.getRefCount(key)
+            var holders = owner.misplacedHolders(key)
+            while (holders.nonEmpty) {
+                count += holders.head.getRefCount(key)
+                holders = holders.tail
+            }
+            return count
+        }
         var count = 0
         var i = 0
         while (i < shards.size) {
@@ -122,6 +217,18 @@ class ShardedFlowStateTable[K <: IdleExpiration, V >: Null]
     }
 
     override def unref(key: K) {
+        if (isSharded) {
+            val owner = shards.get(ownerOf(key))
+            if (owner.shallowGet(key) != null)
+                owner.queueWrite(UNREF, key, null)
+            var holders = owner.misplacedHolders(key)
+            while (holders.nonEmpty) {
+                if (holders.head.shallowGet(key) != null)
+                    holders.head.queueWrite(UNREF, key, null)
+                holders = holders.tail
+            }
+            return
+        }
         var i: Int = 0
         while (i < shards.size) {
             val v: V = shards.get(i).shallowGet(key)
@@ -159,20 +266,116 @@ class ShardedFlowStateTable[K <: IdleExpiration, V >: Null]
         }
     }
 
+    private final val REF = 0
+    private final val UNREF = 1
+    private final val TOUCH = 2
+
     /**
      * A shard within a ShardedFlowStateTable.
      *
      * It stores entries locally but forwards queries to the parent table for
      * aggregation. Reference counting is also delegated on the parent.
      */
-    class FlowStateShard(workerId: Int, log: Logger) extends FlowStateTable[K, V] {
+    class FlowStateShard(val workerId: Int, log: Logger)
+            extends FlowStateTable[K, V] {
         private val map = new TimedExpirationMap[K, V](log, _.expiresAfter)
+        private val primitiveMap =
+            if (keyCodec ne null) new PrimitiveFlowStateMap[K, V](keyCodec, log)
+            else null
+
+        /* The keys owned by this shard that were written by other shards,
+         * and the shards that wrote them */
+        private val misplaced =
+            new ConcurrentHashMap[K, List[FlowStateShard]]()
+
+        /* The writes made through the parent table, to be applied by the
+         * thread owning this shard */
+        private final class QueuedWrite(val op: Int, val key: K, val value: V)
+        private val queuedWrites = new ConcurrentLinkedQueue[QueuedWrite]()
+
+        /* Unregisters the expired misplaced keys from their owner shards */
+        private final class ForgetMisplaced extends Reducer[K, V, Any] {
+            var func: Reducer[K, V, Any] = _
+
+            override def apply(acc: Any, key: K, value: V): Any = {
+                val owner = ownerOf(key)
+                if (owner != workerId)
+                    shards.get(owner).removeHolder(key, FlowStateShard.this)
+                if (func ne null) func(acc, key, value) else acc
+            }
+        }
+
+        private val forgetMisplaced = new ForgetMisplaced
+
+        private[state] def misplacedHolders(key: K): List[FlowStateShard] =
+            if (misplaced.isEmpty) Nil
+            else {
+                val holders = misplaced.get(key)
+                if (holders eq null) Nil else holders
+            }
+
+        private def addHolder(key: K, holder: FlowStateShard): Unit = {
+            while (true) {
+                val holders = misplaced.get(key)
+                if (holders eq null) {
+                    if (misplaced.putIfAbsent(key, List(holder)) eq null)
+                        return
+                } else if (holders.contains(holder) ||
+                           misplaced.replace(key, holders, holder :: holders)) {
+                    return
+                }
+            }
+        }
+
+        private def removeHolder(key: K, holder: FlowStateShard): Unit = {
+            while (true) {
+                val holders = misplaced.get(key)
+                if ((holders eq null) || !holders.contains(holder))
+                    return
+                val remaining = holders.filterNot(_ eq holder)
+                if (remaining.isEmpty) {
+                    if (misplaced.remove(key, holders))
+                        return
+                } else if (misplaced.replace(key, holders, remaining)) {
+                    return
+                }
+            }
+        }
+
+        private[state] def queueWrite(op: Int, key: K, value: V): Unit =
+            queuedWrites.offer(new QueuedWrite(op, key, value))
+
+        private def applyQueuedWrites(): Unit = {
+            var write: QueuedWrite = null
+            while ({ write = queuedWrites.poll(); write } ne null) {
+                write.op match {
+                    case REF => doRef(write.key)
+                    case UNREF => doUnref(write.key)
+                    case TOUCH => doTouch(write.key, write.value)
+                }
+            }
+        }
+
+        private def isPrimitive(key: K): Boolean =
+            (primitiveMap ne null) && keyCodec.canEncode(key)
 
-        override def putAndRef(key: K, value: V): V =
-            map.putAndRef(key, value)
+        private def put(key: K, value: V): V =
+            if (isPrimitive(key)) primitiveMap.putAndRef(key, value)
+            else map.putAndRef(key, value)
+
+        override def putAndRef(key: K, value: V): V = {
+            applyQueuedWrites()
+            val oldValue = put(key, value)
+            if ((oldValue == null) && isSharded) {
+                val owner = ownerOf(key)
+                if (owner != workerId)
+                    shards.get(owner).addHolder(key, this)
+            }
+            oldValue
+        }
 
         override def get(key: K) = {
-            val v = map.get(key)
+            val v = shallowGet(key)
             if (v != null)
                 v
             else
@@ -180,31 +383,67 @@ class ShardedFlowStateTable[K <: IdleExpiration, V >: Null]
         }
 
         def shallowGet(key: K): V =
-            map.get(key)
+            if (isPrimitive(key)) primitiveMap.get(key)
+            else map.get(key)
 
-        override def ref(key: K): V =
-            map.ref(key)
+        override def ref(key: K): V = {
+            applyQueuedWrites()
+            doRef(key)
+        }
+
+        private def doRef(key: K): V =
+            if (isPrimitive(key)) primitiveMap.ref(key)
+            else map.ref(key)
 
         override def getRefCount(key: K): Int =
-            map.getRefCount(key)
+            if (isPrimitive(key)) primitiveMap.getRefCount(key)
+            else map.getRefCount(key)
 
         override def touch(key: K, value: V): Unit = {
-            putAndRef(key, value)
-            unref(key)
+            applyQueuedWrites()
+            doTouch(key, value)
+        }
+
+        private def doTouch(key: K, value: V): Unit = {
+            put(key, value)
+            doUnref(key)
         }
 
         private def tickMillis = TimeUnit.NANOSECONDS.toMillis(clock.tick)
 
-        override def unref(key: K) =
-            map.unref(key, tickMillis)
+        override def unref(key: K): Unit = {
+            applyQueuedWrites()
+            doUnref(key)
+        }
+
+        private def doUnref(key: K): Unit =
+            if (isPrimitive(key)) primitiveMap.unref(key, tickMillis)
+            else map.unref(key, tickMillis)
 
-        override def fold[U](seed: U, func: Reducer[K, V, U]): U =
-            map.fold(seed, func)
+        override def fold[U](seed: U, func: Reducer[K, V, U]): U = {
+            val acc = map.fold(seed, func)
+            if (primitiveMap ne null) primitiveMap.fold(acc, func)
+            else acc
+        }
 
-        override def expireIdleEntries() =
-            map.obliterateIdleEntries(tickMillis)
+        override def expireIdleEntries(): Unit =
+            expireIdleEntries((), null)
 
-        override def expireIdleEntries[U](seed: U, func: Reducer[K, V, U]): U =
-            map.obliterateIdleEntries(tickMillis, seed, func)
+        override def expireIdleEntries[U](seed: U, func: Reducer[K, V, U]): U = {
+            applyQueuedWrites()
+            val now = tickMillis
+            if (!isSharded) {
+                return if (func ne null) map.obliterateIdleEntries(now, seed, func)
+                       else { map.obliterateIdleEntries(now); seed }
+            }
+            forgetMisplaced.func = func.asInstanceOf[Reducer[K, V, Any]]
+            try {
+                val acc = map.obliterateIdleEntries(now, seed, forgetMisplaced)
+                primitiveMap.obliterateIdleEntries(now, acc, forgetMisplaced)
+                            .asInstanceOf[U]
+            } finally {
+                forgetMisplaced.func = null
+            }
+        }
     }
 }
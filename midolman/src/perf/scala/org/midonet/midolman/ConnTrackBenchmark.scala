@@ -28,7 +28,7 @@ import org.midonet.midolman.rules.{RuleResult, Condition}
 import org.midonet.midolman.simulation.Bridge
 import org.midonet.midolman.state.{MockStateStorage, FlowStateReplicator}
 import org.midonet.midolman.state.ConnTrackState._
-import org.midonet.midolman.state.NatState.{NatKey, NatBinding}
+import org.midonet.midolman.state.NatState.{NatKey, NatKeyCodec, NatBinding}
 import org.midonet.midolman.state.TraceState.{TraceKey, TraceContext}
 import org.midonet.midolman.topology.VirtualTopologyActor
 import org.midonet.midolman.topology.rcu.ResolvedHost
@@ -37,6 +37,7 @@ import org.midonet.odp.flows.FlowActionOutput
 import org.midonet.packets.{IPv4Addr, MAC}
 import org.midonet.packets.util.PacketBuilder._
 import org.midonet.sdn.state.{ShardedFlowStateTable, FlowStateTransaction}
+import org.midonet.util.concurrent.NanoClock
 
 object ConnTrackBenchmark {
     val leftMac = MAC.random
@@ -64,8 +65,8 @@ class ConnTrackBenchmark extends MidolmanBenchmark {
         override def isOverlayTunnellingPort(portNumber: Integer): Boolean = false
         override def vtepTunnellingOutputAction: FlowActionOutput = null
     }
-    val conntrackTable = new ShardedFlowStateTable[ConnTrackKey, ConnTrackValue].addShard()
-    val natTable = new ShardedFlowStateTable[NatKey, NatBinding].addShard()
+    val conntrackTable = new ShardedFlowStateTable[ConnTrackKey, ConnTrackValue](NanoClock.DEFAULT, ConnTrackKeyCodec).addShard()
+    val natTable = new ShardedFlowStateTable[NatKey, NatBinding](NanoClock.DEFAULT, NatKeyCodec).addShard()
     val traceTable = new ShardedFlowStateTable[TraceKey, TraceContext].addShard()
     implicit val conntrackTx = new FlowStateTransaction(conntrackTable)
     implicit val natTx = new FlowStateTransaction(natTable)
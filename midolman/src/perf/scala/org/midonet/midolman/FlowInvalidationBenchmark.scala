@@ -0,0 +1,190 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import java.util.{Collections, HashMap, IdentityHashMap, Set, UUID}
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+import org.openjdk.jmh.infra.Blackhole
+import org.slf4j.helpers.NOPLogger
+import com.typesafe.scalalogging.Logger
+
+import org.midonet.midolman.flows.{FlowInvalidation, FlowLifecycle, ManagedFlow}
+import org.midonet.midolman.state.ConnTrackState.ConnTrackKey
+import org.midonet.packets.IPv4Addr
+import org.midonet.sdn.flows.FlowTagger
+import org.midonet.sdn.flows.FlowTagger.FlowTag
+
+object FlowInvalidationBenchmark {
+
+    val DEVICES = 1000
+    val DEVICE_TAGS_PER_FLOW = 6
+    val KEYS_PER_FLOW = 2
+
+    trait Invalidation extends FlowLifecycle {
+        def invalidateFlowsFor(tag: FlowTag): Unit
+    }
+
+    class IndexInvalidation extends Invalidation with FlowInvalidation {
+        val log = Logger(NOPLogger.NOP_LOGGER)
+    }
+
+    /** The former index, a HashMap of identity sets of flows */
+    class HashMapInvalidation extends Invalidation {
+        private val tagToFlows = new HashMap[FlowTag, Set[ManagedFlow]]()
+
+        override def registerFlow(flow: ManagedFlow): Unit = {
+            var i = 0
+            while (i < flow.tags.size()) {
+                var set = tagToFlows.get(flow.tags.get(i))
+                if (set eq null) {
+                    set = Collections.newSetFromMap(new IdentityHashMap())
+                    tagToFlows.put(flow.tags.get(i), set)
+                }
+                set.add(flow)
+                i += 1
+            }
+        }
+
+        override def removeFlow(flow: ManagedFlow): Unit = {
+            var i = 0
+            while (i < flow.tags.size()) {
+                val flows = tagToFlows.get(flow.tags.get(i))
+                if (flows ne null)
+                    flows.remove(flow)
+                i += 1
+            }
+        }
+
+        override def invalidateFlowsFor(tag: FlowTag): Unit = {
+            val flows = tagToFlows.remove(tag)
+            if (flows ne null) {
+                val it = flows.iterator()
+                while (it.hasNext) {
+                    removeFlow(it.next())
+                }
+            }
+        }
+    }
+}
+
+/**
+ * Measures the cost of filling in the index of the flows by their tags, and
+ * of registering, removing and invalidating a flow, for the FlowTagIndex of
+ * FlowInvalidation and for the former HashMap of identity sets. Each flow has
+ * 6 tags shared with other flows, as the tags of the devices it traverses,
+ * and 2 tags of its own, as its connection tracking keys. The heap that
+ * the index of all the flows retains, once filled in, is reported by the
+ * retainedHeap benchmark.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = Array("-Xmx4g"))
+@State(Scope.Thread)
+class FlowInvalidationBenchmark {
+    import FlowInvalidationBenchmark._
+
+    @Param(Array("index", "hashmap"))
+    var structure: String = _
+
+    @Param(Array("100000", "1000000"))
+    var numFlows: Int = _
+
+    var flows: Array[ManagedFlow] = _
+    var invalidation: Invalidation = _
+    var retainedBytes = 0L
+    var index = 0
+
+    private def newInvalidation(): Invalidation = structure match {
+        case "index" => new IndexInvalidation
+        case "hashmap" => new HashMapInvalidation
+    }
+
+    private def fill(invalidation: Invalidation): Unit = {
+        var i = 0
+        while (i < numFlows) {
+            invalidation.registerFlow(flows(i))
+            i += 1
+        }
+    }
+
+    @JmhSetup
+    def setup(): Unit = {
+        val deviceTags = Array.fill(DEVICES)(
+            FlowTagger.tagForDevice(UUID.randomUUID()))
+        val deviceId = UUID.randomUUID()
+        flows = Array.tabulate(numFlows) { i =>
+            val flow = new ManagedFlow(null)
+            for (j <- 0 until DEVICE_TAGS_PER_FLOW)
+                flow.tags.add(deviceTags((i + j * 97) % DEVICES))
+            for (j <- 0 until KEYS_PER_FLOW)
+                flow.tags.add(ConnTrackKey(
+                    IPv4Addr.fromInt(0x0a000000 + i), 1024 + j,
+                    IPv4Addr.fromInt(0x0b000000 + i), 80, 6, deviceId))
+            flow
+        }
+
+        val heapBefore = RetainedHeap.usedHeap()
+        invalidation = newInvalidation()
+        fill(invalidation)
+        retainedBytes = RetainedHeap.usedHeap() - heapBefore
+    }
+
+    private def nextFlow(): ManagedFlow = {
+        val flow = flows(index)
+        index = (index + 1) % numFlows
+        flow
+    }
+
+    @Benchmark
+    @BenchmarkMode(Array(Mode.SingleShotTime))
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    def registerAll(bh: Blackhole): Unit = {
+        invalidation = newInvalidation()
+        fill(invalidation)
+        bh.consume(invalidation)
+    }
+
+    /**
+     * Reports the heap retained by the index filled in during the setup, so
+     * it runs once: JMH adds up the counter across iterations.
+     */
+    @Benchmark
+    @Warmup(iterations = 0)
+    @Measurement(iterations = 1)
+    def retainedHeap(heap: RetainedHeap): Unit = {
+        heap.retainedBytes = retainedBytes
+    }
+
+    @Benchmark
+    def removeAndRegister(): Unit = {
+        val flow = nextFlow()
+        invalidation.removeFlow(flow)
+        invalidation.registerFlow(flow)
+    }
+
+    @Benchmark
+    def invalidateAndRegister(): Unit = {
+        val flow = nextFlow()
+        invalidation.invalidateFlowsFor(
+            flow.tags.get(DEVICE_TAGS_PER_FLOW))
+        invalidation.registerFlow(flow)
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import java.util.concurrent.TimeUnit
+
+import scala.collection.JavaConverters._
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+import org.openjdk.jmh.infra.Blackhole
+
+import org.midonet.packets.{IPAddr, IPAddrSet, IPv4Addr}
+
+/**
+ * Compares the IPAddrSet of an IPAddrGroup with the immutable Scala set it
+ * used to wrap. The benchmarks build the group, look up addresses that are
+ * members and addresses that are not, and update the group after a member is
+ * added, as the mappers do when a port joins a security group. The Scala
+ * set keeps the member addresses alive while the IPAddrSet only keeps their
+ * ranges, so the retainedHeap benchmark reports how many bytes each group
+ * holds on to, addresses included.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+class IPAddrGroupBenchmark {
+
+    @Param(Array("ipaddrset", "set"))
+    var structure: String = _
+
+    @Param(Array("1000", "10000"))
+    var members: Int = _
+
+    var addrs: Array[IPAddr] = _
+    var lookups: Array[IPAddr] = _
+    var addrSet: IPAddrSet = _
+    var scalaSet: Set[IPAddr] = _
+    var retainedBytes = 0L
+    var index = 0
+
+    private def newAddrs(): Array[IPAddr] =
+        Array.tabulate[IPAddr](members)(
+            i => IPv4Addr.fromInt(0x0a000000 + 2 * i))
+
+    @JmhSetup
+    def setup(): Unit = {
+        // Every other address of 10.0.0.0/8 is a member
+        addrs = newAddrs()
+        lookups = Array.tabulate[IPAddr](1024)(
+            i => IPv4Addr.fromInt(0x0a000000 + (i * 7919) % (2 * members)))
+
+        // The group is built from addresses of its own, as when it is read
+        // from the storage, so that those it keeps alive are counted
+        val heapBefore = RetainedHeap.usedHeap()
+        structure match {
+            case "ipaddrset" => addrSet = IPAddrSet.of(newAddrs().toSeq.asJava)
+            case "set" => scalaSet = newAddrs().toSet
+        }
+        retainedBytes = RetainedHeap.usedHeap() - heapBefore
+    }
+
+    /**
+     * Reports the bytes retained by the group built during the setup. It is
+     * a single iteration, since JMH sums event counters over iterations.
+     */
+    @Benchmark
+    @Warmup(iterations = 0)
+    @Measurement(iterations = 1)
+    def retainedHeap(heap: RetainedHeap): Unit = {
+        heap.retainedBytes = retainedBytes
+    }
+
+    @Benchmark
+    def build(bh: Blackhole): Unit = {
+        structure match {
+            case "ipaddrset" => bh.consume(IPAddrSet.of(addrs.toSeq.asJava))
+            case "set" => bh.consume(addrs.toSet)
+        }
+    }
+
+    @Benchmark
+    def contains(bh: Blackhole): Unit = {
+        val addr = lookups(index)
+        index = (index + 1) & 1023
+        bh.consume(if (structure == "set") scalaSet.contains(addr)
+                   else addrSet.contains(addr))
+    }
+
+    @Benchmark
+    def addMember(bh: Blackhole): Unit = {
+        val added = IPv4Addr.fromInt(0x0b000000)
+        structure match {
+            case "ipaddrset" =>
+                bh.consume(addrSet.update((addrs :+ added).toSeq.asJava))
+            case "set" =>
+                bh.consume((addrs :+ added).toSet)
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import java.util.concurrent.TimeUnit
+
+import org.jctools.queues.MpscArrayQueue
+import org.openjdk.jmh.annotations._
+import org.openjdk.jmh.infra.Blackhole
+
+import org.midonet.midolman.management.PacketTracing
+import org.midonet.midolman.simulation.{PacketEmitter, PacketContext, PacketContextPool}
+import org.midonet.midolman.state.ConnTrackState._
+import org.midonet.midolman.state.NatState.{NatKeyCodec, NatBinding, NatKey}
+import org.midonet.midolman.state.TraceState.{TraceContext, TraceKey}
+import org.midonet.odp.flows.FlowActions.output
+import org.midonet.odp.{FlowMatch, FlowMatches, Packet}
+import org.midonet.packets.{Ethernet, IPv4Addr, MAC}
+import org.midonet.packets.util.PacketBuilder._
+import org.midonet.sdn.flows.FlowTagger
+import org.midonet.sdn.state.{FlowStateTransaction, ShardedFlowStateTable}
+import org.midonet.util.concurrent.NanoClock
+import org.midonet.util.functors.Callback0
+
+/**
+ * Measures taking a PacketContext for an upcall the way the PacketWorkflow
+ * does, filling it in as the simulation would, with flow tags and a flow
+ * removed callback, and releasing it once the datapath channel is done with
+ * it, with and without pooling.
+ *
+ * Run with -prof gc and compare the gc.alloc.rate.norm of both, in bytes per
+ * operation. With no flow tags the pooled benchmark should allocate nothing;
+ * otherwise only the entries of the flowTags HashSet, which are allocated as
+ * the tags are added, are left.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+class PacketContextPoolBenchmark {
+
+    @Param(Array("0", "4"))
+    var tagsPerPacket: Int = _
+
+    val packet = {
+        val frame: Ethernet = { eth addr MAC.random() -> MAC.random() } <<
+                              { ip4 addr IPv4Addr.random --> IPv4Addr.random } <<
+                              { udp ports 5003 ---> 53 } << payload("payload")
+        new Packet(frame, FlowMatches.fromEthernetPacket(frame))
+    }
+    val fmatch: FlowMatch = packet.getMatch
+    val action = output(1)
+    val tags = (0 until 4).map(FlowTagger.tagForDpPort(_)).toArray
+    val callback = new Callback0 {
+        override def call(): Unit = { }
+    }
+
+    val packetEmitter = new PacketEmitter(new MpscArrayQueue(512), null)
+    val conntrackTx = new FlowStateTransaction(
+        new ShardedFlowStateTable[ConnTrackKey, ConnTrackValue](
+            NanoClock.DEFAULT, ConnTrackKeyCodec).addShard())
+    val natTx = new FlowStateTransaction(
+        new ShardedFlowStateTable[NatKey, NatBinding](
+            NanoClock.DEFAULT, NatKeyCodec).addShard())
+    val traceTx = new FlowStateTransaction(
+        new ShardedFlowStateTable[TraceKey, TraceContext].addShard())
+
+    val pool = new PacketContextPool(256)
+    var sequence = 0L
+
+    private def initialize(context: PacketContext): PacketContext = {
+        context.reset(packetEmitter)
+        context.initialize(conntrackTx, natTx, null, traceTx)
+        context.log = PacketTracing.loggerFor(fmatch)
+        context
+    }
+
+    private def simulate(context: PacketContext): Unit = {
+        context.prepareForSimulation()
+        context.wcmatch.getNetworkDstIP
+        var i = 0
+        while (i < tagsPerPacket) {
+            context.addFlowTag(tags(i))
+            i += 1
+        }
+        context.addFlowRemovedCallback(callback)
+        context.addFlowAndPacketAction(action)
+    }
+
+    @Benchmark
+    def pooledPacketContext(bh: Blackhole): Unit = {
+        val context = initialize(pool.take(1, packet, fmatch, null))
+        simulate(context)
+        pool.handedOff(context, sequence)
+        pool.reclaim(sequence)
+        sequence += 1
+        bh.consume(context)
+    }
+
+    @Benchmark
+    def newPacketContext(bh: Blackhole): Unit = {
+        val context = initialize(new PacketContext(1, packet, fmatch))
+        simulate(context)
+        bh.consume(context)
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+
+import scala.collection.JavaConverters._
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+import org.openjdk.jmh.infra.Blackhole
+
+import org.midonet.midolman.rules.RuleResult.Action
+import org.midonet.midolman.rules.{Condition, LiteralRule, Rule, RuleResult}
+import org.midonet.midolman.simulation.{Chain, PacketContext}
+import org.midonet.odp.FlowMatch
+import org.midonet.packets.{IPv4Addr, IPv4Subnet}
+import org.midonet.util.Range
+
+/**
+ * Measures applying a chain shaped like a security group, where each rule
+ * accepts TCP traffic from a /24 to a port, and the last rule drops
+ * everything else. The classified benchmark goes through Chain.apply, which
+ * classifies the packet for chains of 16 rules or more. The linear benchmark
+ * processes each rule in turn, as Chain.apply did before. The packet matches
+ * only the last rule, which is the worst case for the linear walk.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+class RuleChainBenchmark {
+
+    @Param(Array("10", "100", "1000"))
+    var rules: Int = _
+
+    val ownerId = UUID.randomUUID()
+
+    var ruleList: java.util.List[Rule] = _
+    var chain: Chain = _
+    var fmatch: FlowMatch = _
+    var context: PacketContext = _
+
+    @JmhSetup
+    def setup(): Unit = {
+        val accepts = (0 until rules - 1) map { i =>
+            val cond = new Condition()
+            cond.etherType = 0x0800
+            cond.nwProto = 6.toByte
+            cond.nwSrcIp = new IPv4Subnet(0x0a000000 + (i << 8), 24)
+            cond.tpDst = new Range[Integer](1024 + i)
+            new LiteralRule(cond, Action.ACCEPT): Rule
+        }
+        ruleList = (accepts :+ (new LiteralRule(Condition.TRUE, Action.DROP): Rule)).asJava
+        chain = new Chain(UUID.randomUUID(), ruleList,
+                          new java.util.HashMap[UUID, Chain](), "benchmark")
+
+        fmatch = new FlowMatch()
+        fmatch.setEtherType(0x0800.toShort)
+        fmatch.setNetworkProto(6.toByte)
+        fmatch.setNetworkSrc(IPv4Addr.fromString("10.0.0.1"))
+        fmatch.setNetworkDst(IPv4Addr.fromString("192.168.0.1"))
+        fmatch.setSrcPort(40000)
+        fmatch.setDstPort(80)
+        context = new PacketContext(1, null, fmatch)
+    }
+
+    @Benchmark
+    def classified(bh: Blackhole): Unit = {
+        bh.consume(Chain.apply(chain, context, ownerId, false))
+    }
+
+    @Benchmark
+    def linear(bh: Blackhole): Unit = {
+        val res = new RuleResult(Action.CONTINUE, null)
+        var i = 0
+        while (i < ruleList.size() && res.action == Action.CONTINUE) {
+            ruleList.get(i).process(context, res, ownerId, false)
+            i += 1
+        }
+        bh.consume(res)
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+import org.openjdk.jmh.infra.Blackhole
+import org.slf4j.helpers.NOPLogger
+import com.typesafe.scalalogging.Logger
+
+import org.midonet.midolman.state.ConnTrackState._
+import org.midonet.packets.IPv4Addr
+import org.midonet.sdn.state.ShardedFlowStateTable
+import org.midonet.util.concurrent.NanoClock
+
+/**
+ * Measures conntrack lookups in a ShardedFlowStateTable from one of its
+ * shards, for keys held by the other shards and for keys that are absent,
+ * with 2, 4, 8 and 16 shards. When `sharded` is true, the table is sharded
+ * by key and lookups go to the owner shard of the key; otherwise, they scan
+ * all the shards.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+class ShardedFlowStateTableBenchmark {
+
+    @Param(Array("2", "4", "8", "16"))
+    var shards: Int = _
+
+    @Param(Array("true", "false"))
+    var sharded: Boolean = _
+
+    val keysPerShard = 10000
+    val deviceId = UUID.randomUUID()
+
+    var table: ShardedFlowStateTable[ConnTrackKey, ConnTrackValue] = _
+    var shard: ShardedFlowStateTable[ConnTrackKey, ConnTrackValue]#FlowStateShard = _
+    var remoteKeys: Array[ConnTrackKey] = _
+    var absentKeys: Array[ConnTrackKey] = _
+    var index = 0
+
+    private def key(i: Int) =
+        ConnTrackKey(IPv4Addr.fromInt(0x0a000000 + i), 1024 + (i & 0x7fff),
+                     IPv4Addr.fromInt(0x0b000000 + i), 80, 6, deviceId)
+
+    @JmhSetup
+    def setup(): Unit = {
+        table = if (sharded)
+                    new ShardedFlowStateTable(NanoClock.DEFAULT, ConnTrackKeyCodec)
+                else
+                    new ShardedFlowStateTable(NanoClock.DEFAULT)
+        val log = Logger(NOPLogger.NOP_LOGGER)
+        val tableShards = (0 until shards) map { _ => table.addShard(log) }
+        shard = tableShards(0)
+
+        val numKeys = keysPerShard * shards
+        val owners = (0 until numKeys) map { i =>
+            Math.abs(ConnTrackKeyCodec.connectionHash(key(i)) % shards)
+        }
+        for (i <- 0 until numKeys) {
+            tableShards(owners(i)).putAndRef(key(i), RETURN_FLOW)
+        }
+        remoteKeys = (0 until numKeys) filter { owners(_) != 0 } map key toArray
+
+        absentKeys = (numKeys until numKeys + 1024) map key toArray
+    }
+
+    @Benchmark
+    def getRemoteKey(bh: Blackhole): Unit = {
+        index = (index + 1) % remoteKeys.length
+        bh.consume(shard.get(remoteKeys(index)))
+    }
+
+    @Benchmark
+    def getAbsentKey(bh: Blackhole): Unit = {
+        index = (index + 1) & 1023
+        bh.consume(shard.get(absentKeys(index)))
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.layer3
+
+import java.util.UUID
+import java.util.concurrent.TimeUnit
+
+import scala.util.Random
+
+import org.openjdk.jmh.annotations.{Setup => JmhSetup, _}
+import org.openjdk.jmh.infra.Blackhole
+
+import org.midonet.midolman.layer3.Route.NextHop
+import org.midonet.packets.IPv4Addr
+
+/**
+ * Compares the multibit trie of IPv4RoutingTable with the binary trie of
+ * RoutingTable, for tables shaped like a BGP feed: mostly /24 prefixes, some
+ * shorter ones and a default route. The lookups are for random destinations.
+ * The update benchmarks measure publishing a table with one more route: the
+ * multibit trie is updated and copied, while the binary trie is rebuilt, as
+ * RouterBuilderImpl used to do.
+ */
+@BenchmarkMode(Array(Mode.AverageTime))
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+class RoutingTableBenchmark {
+
+    @Param(Array("1000", "100000", "500000"))
+    var numRoutes: Int = _
+
+    var routes: Array[Route] = _
+    var multibit: IPv4RoutingTable = _
+    var binary: RoutingTable = _
+    var destinations: Array[IPv4Addr] = _
+    val src = IPv4Addr.fromString("192.168.0.1")
+    var index = 0
+
+    private def route(dst: Int, length: Int) =
+        new Route(0, 0, dst & (if (length == 0) 0 else ~0 << (32 - length)),
+                  length, NextHop.PORT, UUID.randomUUID(), 0, 100, null, null)
+
+    @JmhSetup
+    def setup(): Unit = {
+        val random = new Random(17)
+        routes = Array.tabulate(numRoutes) { i =>
+            if (i == 0) route(0, 0)
+            else route(random.nextInt(), if (i % 10 == 0) 8 + random.nextInt(16)
+                                         else 24)
+        }
+        multibit = new IPv4RoutingTable()
+        binary = new RoutingTable()
+        for (rt <- routes) {
+            multibit.addRoute(rt)
+            binary.addRoute(rt)
+        }
+        destinations = Array.fill(1024)(IPv4Addr.fromInt(random.nextInt()))
+    }
+
+    private def nextDestination(): IPv4Addr = {
+        val dst = destinations(index)
+        index = (index + 1) & 1023
+        dst
+    }
+
+    @Benchmark
+    def lookupMultibit(bh: Blackhole): Unit = {
+        bh.consume(multibit.lookup(src, nextDestination()))
+    }
+
+    @Benchmark
+    def lookupBinary(bh: Blackhole): Unit = {
+        bh.consume(binary.lookup(src.toInt, nextDestination().toInt))
+    }
+
+    @Benchmark
+    def updateMultibit(bh: Blackhole): Unit = {
+        val rt = routes(index)
+        index = (index + 1) % numRoutes
+        multibit.deleteRoute(rt)
+        multibit.addRoute(rt)
+        bh.consume(multibit.copy())
+    }
+
+    @Benchmark
+    @Measurement(iterations = 1)
+    def rebuildBinary(bh: Blackhole): Unit = {
+        val table = new RoutingTable()
+        var i = 0
+        while (i < routes.length) {
+            table.addRoute(routes(i))
+            i += 1
+        }
+        bh.consume(table)
+    }
+}
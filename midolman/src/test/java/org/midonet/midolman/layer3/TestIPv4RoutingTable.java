@@ -0,0 +1,161 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.layer3;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import org.midonet.midolman.layer3.Route.NextHop;
+import org.midonet.packets.IPv4Addr;
+import org.midonet.packets.IPv4Subnet;
+
+public class TestIPv4RoutingTable {
+
+    private static Route route(int src, int srcLength, int dst, int dstLength,
+                               int weight) {
+        return new Route(src, srcLength, dst, dstLength, NextHop.PORT,
+                         UUID.randomUUID(), 0, weight, null, null);
+    }
+
+    private static Set<Route> lookup(IPv4RoutingTable table, int src,
+                                     int dst) {
+        Set<Route> routes = new HashSet<>();
+        for (Route rt : table.lookup(IPv4Addr.fromInt(src),
+                                     IPv4Addr.fromInt(dst)))
+            routes.add(rt);
+        return routes;
+    }
+
+    /* The routes of minimum weight of the longest prefix with routes
+     * matching the source. */
+    private static Set<Route> expected(List<Route> routes, int src, int dst) {
+        for (int length = 32; length >= 0; length--) {
+            Set<Route> best = new HashSet<>();
+            int minWeight = Integer.MAX_VALUE;
+            for (Route rt : routes) {
+                if (rt.dstNetworkLength != length ||
+                    !IPv4Subnet.addrMatch(dst, rt.dstNetworkAddr, length) ||
+                    !IPv4Subnet.addrMatch(src, rt.srcNetworkAddr,
+                                          rt.srcNetworkLength))
+                    continue;
+                if (rt.weight < minWeight) {
+                    best.clear();
+                    minWeight = rt.weight;
+                }
+                if (rt.weight == minWeight)
+                    best.add(rt);
+            }
+            if (!best.isEmpty())
+                return best;
+        }
+        return new HashSet<>();
+    }
+
+    @Test
+    public void testEmptyTable() {
+        IPv4RoutingTable table = new IPv4RoutingTable();
+        Assert.assertTrue(lookup(table, 0x0a010108, 0x0a010106).isEmpty());
+    }
+
+    @Test
+    public void testLongestPrefixAndWeight() {
+        Route dflt = route(0, 0, 0, 0, 100);
+        Route net = route(0, 0, 0x0a000000, 8, 100);
+        Route subnet1 = route(0, 0, 0x0a010100, 24, 100);
+        Route subnet2 = route(0, 0, 0x0a010100, 24, 100);
+        Route subnet3 = route(0, 0, 0x0a010100, 24, 200);
+        IPv4RoutingTable table = new IPv4RoutingTable();
+        for (Route rt : new Route[] { dflt, net, subnet1, subnet2, subnet3 })
+            table.addRoute(rt);
+
+        Set<Route> routes = lookup(table, 0, 0x0a010105);
+        Assert.assertEquals(2, routes.size());
+        Assert.assertTrue(routes.contains(subnet1));
+        Assert.assertTrue(routes.contains(subnet2));
+        Assert.assertEquals(net, lookup(table, 0, 0x0a020105).iterator().next());
+        Assert.assertEquals(dflt, lookup(table, 0, 0x0b000001).iterator().next());
+
+        table.deleteRoute(subnet1);
+        table.deleteRoute(subnet2);
+        Assert.assertEquals(subnet3,
+                            lookup(table, 0, 0x0a010105).iterator().next());
+    }
+
+    @Test
+    public void testSourceFilterFallsBackToShorterPrefix() {
+        Route wide = route(0, 0, 0x0a000000, 16, 100);
+        Route narrow = route(0xc0a80000, 16, 0x0a000100, 24, 100);
+        IPv4RoutingTable table = new IPv4RoutingTable();
+        table.addRoute(wide);
+        table.addRoute(narrow);
+
+        Assert.assertEquals(narrow,
+                            lookup(table, 0xc0a80001, 0x0a000101).iterator().next());
+        Assert.assertEquals(wide,
+                            lookup(table, 0xc0a90001, 0x0a000101).iterator().next());
+    }
+
+    @Test
+    public void testCopyIsNotChanged() {
+        Route rt1 = route(0, 0, 0x0a000000, 8, 100);
+        Route rt2 = route(0, 0, 0x0a010000, 16, 100);
+        IPv4RoutingTable table = new IPv4RoutingTable();
+        table.addRoute(rt1);
+        IPv4RoutingTable copy = table.copy();
+        table.addRoute(rt2);
+        table.deleteRoute(rt1);
+
+        Assert.assertEquals(rt1, lookup(copy, 0, 0x0a010101).iterator().next());
+        Assert.assertTrue(lookup(copy, 0, 0x0b010101).isEmpty());
+        Assert.assertEquals(rt2, lookup(table, 0, 0x0a010101).iterator().next());
+        Assert.assertTrue(lookup(table, 0, 0x0a020101).isEmpty());
+    }
+
+    @Test
+    public void testRandomRoutes() {
+        Random random = new Random(11);
+        IPv4RoutingTable table = new IPv4RoutingTable();
+        List<Route> routes = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            if (routes.isEmpty() || random.nextInt(3) != 0) {
+                int length = random.nextInt(33);
+                int dst = (random.nextInt(4) << 30) | (random.nextInt(4) << 22) |
+                          (random.nextInt(4) << 14) | random.nextInt(1 << 14);
+                Route rt = route(random.nextInt(4) << 30,
+                                 random.nextInt(4) == 0 ? 2 : 0,
+                                 dst, length, random.nextInt(3));
+                routes.add(rt);
+                table.addRoute(rt);
+            } else {
+                table.deleteRoute(routes.remove(random.nextInt(routes.size())));
+            }
+            for (int j = 0; j < 10; j++) {
+                int src = random.nextInt(4) << 30;
+                int dst = (random.nextInt(4) << 30) | (random.nextInt(4) << 22) |
+                          (random.nextInt(4) << 14) | random.nextInt(1 << 14);
+                Assert.assertEquals(expected(routes, src, dst),
+                                    lookup(table, src, dst));
+            }
+        }
+    }
+}
@@ -263,6 +263,61 @@ public class ZkNatBlockAllocatorTest {
         assertThat(result.tpPortEnd, is(63));
     }
 
+    @Test
+    public void testBlocksClaimedElsewhereAfterBeingReadAreSkipped()
+            throws Exception {
+        IPv4Addr ip = IPv4Addr.random();
+        UUID device = UUID.randomUUID();
+        NatRange request = new NatRange(device, ip, 0, 127);
+
+        ZkConnection otherZk = new ZkConnection(
+                        server.getConnectString(), Integer.MAX_VALUE, null);
+        otherZk.open();
+        try {
+            ZkNatBlockAllocator otherAllocator = new ZkNatBlockAllocator(
+                            otherZk, paths, new CallingThreadReactor());
+
+            // Reads both blocks of the range
+            NatBlock result = allocateBlock(request);
+            NatBlock otherResult = allocateBlock(request, otherAllocator);
+            assertThat(otherResult.blockIndex, is(1 - result.blockIndex));
+
+            assertThat(allocateBlock(request), is(NatBlock.NO_BLOCK));
+
+            freeBlock(result);
+            NatBlock reclaimed = allocateBlock(request);
+            assertThat(reclaimed.blockIndex, is(result.blockIndex));
+        } finally {
+            otherZk.close();
+        }
+    }
+
+    @Test
+    public void testCachedBlocksAreDroppedWhenFreeingABlock() throws Exception {
+        IPv4Addr ip = IPv4Addr.random();
+        UUID device = UUID.randomUUID();
+        NatRange request = new NatRange(device, ip, 0, 0xFFFF);
+
+        NatBlock result = allocateBlock(request);
+        assertThat(allocator.cachedBlocks(), greaterThanOrEqualTo(1));
+
+        freeBlock(result);
+        assertThat(allocator.cachedBlocks(), is(0));
+    }
+
+    @Test
+    public void testCachedBlocksAreBounded() throws Exception {
+        UUID device = UUID.randomUUID();
+        int ips = ZkNatBlockAllocator.MAX_WATCHED_BLOCKS /
+                  NatBlock.TOTAL_BLOCKS + 1;
+        for (int i = 0; i < ips; ++i) {
+            IPv4Addr ip = IPv4Addr.fromInt(0x0a000001 + i);
+            allocateBlock(new NatRange(device, ip, 0, 0xFFFF));
+        }
+        assertThat(allocator.cachedBlocks(),
+                   lessThanOrEqualTo(ZkNatBlockAllocator.MAX_WATCHED_BLOCKS));
+    }
+
     @Test
     public void testAllocateLruBlock() throws Exception {
         IPv4Addr ip = IPv4Addr.random();
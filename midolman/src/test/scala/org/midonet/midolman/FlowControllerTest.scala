@@ -16,19 +16,30 @@
 
 package org.midonet.midolman
 
+import java.util.{HashMap => JHashMap}
+
+import scala.concurrent.duration._
+
 import akka.actor.Actor
 import akka.testkit.{TestActorRef, TestProbe}
 
+import com.codahale.metrics.MetricRegistry
+
 import org.slf4j.helpers.NOPLogger
 import com.typesafe.scalalogging.Logger
 
 import org.junit.runner.RunWith
 import org.scalatest.junit.JUnitRunner
 
-import org.midonet.midolman.flows.{ManagedFlow, FlowExpiration}
+import org.midonet.midolman.config.MidolmanConfig
+import org.midonet.midolman.flows.{FlowStatsSweeper, ManagedFlow, FlowExpiration}
+import org.midonet.midolman.monitoring.metrics.PacketPipelineMetrics
 import org.midonet.midolman.simulation.PacketContext
 import org.midonet.midolman.util.MidolmanSpec
-import org.midonet.odp.FlowMatch
+import org.midonet.midolman.util.mock.MockFlowProcessor
+import org.midonet.odp.{Flow, FlowMatch}
+import org.midonet.odp.flows.{FlowKeyEtherType, FlowKeys, IpProtocol}
+import org.midonet.packets.IPv4Addr
 import org.midonet.util.functors.Callback0
 
 @RunWith(classOf[JUnitRunner])
@@ -37,14 +48,25 @@ class FlowControllerTest extends MidolmanSpec {
     val tagCount: Int = 10
 
     var flowController: FlowController = _
+    var sweeper: FlowStatsSweeper = _
+    val datapathFlows = new JHashMap[FlowMatch, Flow]()
+
+    override def beforeTest(): Unit = {
+        datapathFlows.clear()
+        val pipelineMetrics = metrics
+        sweeper = flowStatsSweeper(pipelineMetrics)
+        flowController = newFlowController(0, sweeper, pipelineMetrics)
+    }
 
-    override def beforeTest(): Unit =
-        flowController = TestActorRef(new {
-             val id = 0
-             val flowProcessor = FlowControllerTest.this.flowProcessor
+    private def newFlowController(workerId: Int, sweeper: FlowStatsSweeper,
+                                  pipelineMetrics: PacketPipelineMetrics) =
+        TestActorRef(new {
+             val id = workerId
+             val flowProcessor = new MockFlowProcessor(datapathFlows)
              val flowInvalidator = FlowControllerTest.this.flowInvalidator
+             val flowStatsSweeper = sweeper
              val config = FlowControllerTest.this.config
-             val metrics = FlowControllerTest.this.metrics
+             val metrics = pipelineMetrics
              val clock = FlowControllerTest.this.clock
              var datapathId = 0
              implicit val system = FlowControllerTest.this.actorSystem
@@ -99,11 +121,145 @@ class FlowControllerTest extends MidolmanSpec {
         }
     }
 
-    final class TestableFlow {
+    feature("Flows expire when idle in the datapath") {
+        scenario("A flow that is not hit in the datapath expires when idle") {
+            Given("A flow in the flow controller")
+            val flow = new TestableFlow(new FlowMatch().addKey(FlowKeys.inPort(1)))
+            flow.add() should not be null
+
+            When("The flow is idle for the idle flow expiration")
+            clock.time += config.datapath.idleFlowExpiration
+            flowController.process()
+
+            Then("The flow is removed")
+            flow.flowRemoved shouldBe true
+            flowController.metrics.currentDpFlowsMetric.getValue shouldBe 0
+        }
+
+        scenario("A flow that is hit in the datapath is kept") {
+            Given("A flow in the flow controller")
+            val fmatch = new FlowMatch().addKey(FlowKeys.inPort(1))
+            val flow = new TestableFlow(fmatch)
+            flow.add() should not be null
+
+            And("The datapath flow was hit by a packet")
+            val dpFlow = new Flow(fmatch)
+            dpFlow.setLastUsedMillis(1000)
+            datapathFlows.put(fmatch, dpFlow)
+
+            When("The datapath flows are swept")
+            clock.time += (20 seconds).toNanos
+            flowController.process()
+            flowController.process()
+
+            Then("The flow statistics were swept")
+            flowController.metrics.flowStatsSweeps.getCount shouldBe 1
+            flowController.metrics.sweptDatapathFlows.getCount shouldBe 1
+
+            And("The flow outlives the idle flow expiration")
+            clock.time += (20 seconds).toNanos
+            flowController.process()
+            flow.flowRemoved shouldBe false
+
+            When("The datapath flow is no longer hit")
+            clock.time += (15 seconds).toNanos
+            flowController.process()
+
+            Then("The flow is removed")
+            flow.flowRemoved shouldBe true
+        }
+
+        scenario("Flows are removed after the hard expiration") {
+            Given("A flow that keeps being hit in the datapath")
+            val fmatch = new FlowMatch().addKey(FlowKeys.inPort(1))
+            val flow = new TestableFlow(fmatch)
+            flow.add() should not be null
+            val dpFlow = new Flow(fmatch)
+            datapathFlows.put(fmatch, dpFlow)
+
+            var elapsed = 0L
+            while (elapsed < config.datapath.idleFlowHardExpiration) {
+                flow.flowRemoved shouldBe false
+                dpFlow.setLastUsedMillis(dpFlow.getLastUsedMillis + 1)
+                clock.time += config.datapath.flowStatsSweepInterval
+                elapsed += config.datapath.flowStatsSweepInterval
+                flowController.process()
+                flowController.process()
+            }
+
+            Then("The flow is removed")
+            flow.flowRemoved shouldBe true
+        }
+
+        scenario("Swept flows are reused across sweeps") {
+            Given("A flow in the datapath")
+            val fmatch = new FlowMatch().addKey(FlowKeys.inPort(1))
+            datapathFlows.put(fmatch, new Flow(fmatch))
+            val dpFlows = new MockFlowProcessor(datapathFlows)
+
+            When("The datapath flows are swept")
+            sweeper.trySweep(0, dpFlows)
+
+            Then("The worker gets the flow")
+            val swept = sweeper.poll(0)
+            swept.flowMatch shouldBe fmatch
+            sweeper.poll(0) shouldBe null
+
+            When("The worker recycles it and the flows are swept again")
+            sweeper.recycle(swept)
+            clock.time += config.datapath.flowStatsSweepInterval
+            sweeper.trySweep(0, dpFlows)
+
+            Then("The same instance carries the flow")
+            sweeper.poll(0) should be theSameInstanceAs swept
+            swept.flowMatch shouldBe fmatch
+        }
+
+        scenario("Flows are swept to the worker that installed them when " +
+                 "the datapath picks the workers") {
+            Given("Two workers reading their own upcall channels")
+            val workerConfig = MidolmanConfig.forTests(
+                "agent.midolman.input_channel_threading = one_to_worker")
+            val pipelineMetrics = new PacketPipelineMetrics(new MetricRegistry, 2)
+            sweeper = FlowStatsSweeper(workerConfig, 2, clock, pipelineMetrics,
+                                       () => { })
+            flowController = newFlowController(1, sweeper, pipelineMetrics)
+
+            And("A flow installed by the worker that doesn't own its " +
+                "connection hash")
+            val fmatch = ((1 to 100) map { port =>
+                new FlowMatch()
+                    .addKey(FlowKeys.etherType(FlowKeyEtherType.Type.ETH_P_IP))
+                    .addKey(FlowKeys.ipv4(IPv4Addr("10.0.0.1"),
+                                          IPv4Addr("10.0.0.2"),
+                                          IpProtocol.TCP))
+                    .addKey(FlowKeys.tcp(port, 80))
+            } find { m => Math.abs(m.connectionHash % 2) == 0 }).get
+            val flow = new TestableFlow(fmatch)
+            flow.add() should not be null
+
+            And("The datapath flow was hit by a packet")
+            val dpFlow = new Flow(fmatch)
+            dpFlow.setLastUsedMillis(1000)
+            datapathFlows.put(fmatch, dpFlow)
+
+            When("The datapath flows are swept")
+            clock.time += (20 seconds).toNanos
+            sweeper.trySweep(0, new MockFlowProcessor(datapathFlows))
+            flowController.process()
+
+            Then("The flow outlives the idle flow expiration")
+            clock.time += (20 seconds).toNanos
+            flowController.process()
+            flow.flowRemoved shouldBe false
+        }
+    }
+
+    final class TestableFlow(fmatch: FlowMatch = new FlowMatch()) {
         var flowRemoved = false
 
         def add(): ManagedFlow = {
-            val context = new PacketContext(0, null, new FlowMatch())
+            val context = new PacketContext(0, null, fmatch)
             context addFlowRemovedCallback new Callback0 {
                 def call() = flowRemoved = true
             }
@@ -17,6 +17,7 @@
 package org.midonet.midolman
 
 import scala.collection.mutable.Queue
+import scala.concurrent.duration._
 
 import com.typesafe.scalalogging.Logger
 import org.junit.runner.RunWith
@@ -57,19 +58,31 @@ class FlowExpirationTest extends MidolmanSpec {
             flow.currentRefCount should be (1)
         }
 
-        scenario ("The removal of a flow is delayed") {
+        scenario ("A removed flow is no longer expired") {
             val flow = createFlow(FlowExpiration.FLOW_EXPIRATION)
             flowExpiration.registerFlow(flow)
             flow.currentRefCount should be (2)
             flowExpiration.removeFlow(flow)
-            flow.unref()
             flow.currentRefCount should be (1)
             removedFlows.clear()
             clock.time = FlowExpiration.FLOW_EXPIRATION.value + 1
             flowExpiration.checkFlowsExpiration(clock.tick)
+            removedFlows should be (empty)
+            flow.currentRefCount should be (1)
+        }
+
+        scenario ("A flow is expired after more than one revolution of the wheel") {
+            val flow = createFlow(FlowExpiration.TUNNEL_FLOW_EXPIRATION)
+            flowExpiration.registerFlow(flow)
+            var t = 0L
+            while (t < FlowExpiration.TUNNEL_FLOW_EXPIRATION.value) {
+                flowExpiration.checkFlowsExpiration(t)
+                removedFlows should be (empty)
+                t += (1 second).toNanos
+            }
+            flowExpiration.checkFlowsExpiration(
+                FlowExpiration.TUNNEL_FLOW_EXPIRATION.value)
             removedFlows should have size 1
-            removedFlows.dequeue() should be (flow)
-            flow.currentRefCount should be (0)
         }
 
         scenario ("There are multiple expiration types") {
@@ -83,6 +96,56 @@ class FlowExpirationTest extends MidolmanSpec {
         }
     }
 
+    feature ("Flows are expired with an idle timeout") {
+
+        scenario ("An idle flow is removed before its hard timeout") {
+            val flow = createFlow(FlowExpiration.FLOW_EXPIRATION)
+            flow.idleTimeoutNanos = (10 seconds).toNanos
+            flowExpiration.registerFlow(flow)
+            flowExpiration.checkFlowsExpiration((10 seconds).toNanos - 1)
+            removedFlows should be (empty)
+            flowExpiration.checkFlowsExpiration((10 seconds).toNanos)
+            removedFlows should have size 1
+            removedFlows.dequeue() should be (flow)
+            flow.currentRefCount should be (1)
+        }
+
+        scenario ("Touching a flow extends its life") {
+            val flow = createFlow(FlowExpiration.FLOW_EXPIRATION)
+            flow.idleTimeoutNanos = (10 seconds).toNanos
+            flowExpiration.registerFlow(flow)
+            flowExpiration.touchFlow(flow, (5 seconds).toNanos)
+            flowExpiration.checkFlowsExpiration((10 seconds).toNanos)
+            removedFlows should be (empty)
+            flowExpiration.checkFlowsExpiration((15 seconds).toNanos)
+            removedFlows should have size 1
+        }
+
+        scenario ("A flow is still subject to its hard timeout") {
+            val flow = createFlow(FlowExpiration.FLOW_EXPIRATION)
+            flow.idleTimeoutNanos = (10 seconds).toNanos
+            flowExpiration.registerFlow(flow)
+            var t = 0L
+            while (t < FlowExpiration.FLOW_EXPIRATION.value) {
+                flowExpiration.touchFlow(flow, t)
+                flowExpiration.checkFlowsExpiration(t)
+                removedFlows should be (empty)
+                t += (1 second).toNanos
+            }
+            flowExpiration.checkFlowsExpiration(FlowExpiration.FLOW_EXPIRATION.value)
+            removedFlows should have size 1
+        }
+
+        scenario ("A flow is rescheduled") {
+            val flow = createFlow(FlowExpiration.FLOW_EXPIRATION)
+            flowExpiration.registerFlow(flow)
+            flow.absoluteExpirationNanos = (1 second).toNanos
+            flowExpiration.rescheduleFlow(flow)
+            flowExpiration.checkFlowsExpiration((1 second).toNanos)
+            removedFlows should have size 1
+        }
+    }
+
     feature ("Oversubscription results in removal of excess flows") {
 
         scenario ("The oldest flows are removed") {
@@ -99,6 +162,23 @@ class FlowExpirationTest extends MidolmanSpec {
             removedFlows.dequeue() should be (flows(0))
             removedFlows.dequeue() should be (flows(1))
         }
+
+        scenario ("Recently used flows are given a second chance") {
+            val flows = List(
+                createFlow(FlowExpiration.FLOW_EXPIRATION),
+                createFlow(FlowExpiration.FLOW_EXPIRATION),
+                createFlow(FlowExpiration.FLOW_EXPIRATION),
+                createFlow(FlowExpiration.FLOW_EXPIRATION),
+                createFlow(FlowExpiration.FLOW_EXPIRATION),
+                createFlow(FlowExpiration.FLOW_EXPIRATION))
+            flows foreach flowExpiration.registerFlow
+            flowExpiration.touchFlow(flows(0), 0)
+            flowExpiration.touchFlow(flows(2), 0)
+            flowExpiration.checkFlowsExpiration(0)
+            removedFlows should have size 2
+            removedFlows.dequeue() should be (flows(1))
+            removedFlows.dequeue() should be (flows(3))
+        }
     }
 
     private def createFlow(exp: FlowExpiration.Expiration) = {
@@ -24,7 +24,7 @@ import org.scalatest.junit.JUnitRunner
 import org.slf4j.helpers.NOPLogger
 import com.typesafe.scalalogging.Logger
 
-import org.midonet.midolman.flows.{ManagedFlow, FlowInvalidation, FlowLifecycle}
+import org.midonet.midolman.flows.{FlowInvalidation, FlowLifecycle, FlowTagIndex, ManagedFlow}
 import org.midonet.midolman.util.MidolmanSpec
 import org.midonet.sdn.flows.FlowTagger
 
@@ -86,5 +86,71 @@ class FlowInvalidationTest extends MidolmanSpec {
             flowInvalidation.invalidateFlowsFor(tag2)
             removedFlows should be (empty)
         }
+
+        scenario ("A removed flow is not invalidated") {
+            val flow = new ManagedFlow(null)
+            flow.tags.add(tag1)
+            flowInvalidation.registerFlow(flow)
+            flowInvalidation.removeFlow(flow)
+            removedFlows.clear()
+
+            flowInvalidation.invalidateFlowsFor(tag1)
+            removedFlows should be (empty)
+        }
+
+        scenario ("A flow can be registered again after being invalidated") {
+            val flow = new ManagedFlow(null)
+            flow.tags.add(tag1)
+            flow.tags.add(tag2)
+            flowInvalidation.registerFlow(flow)
+            flowInvalidation.invalidateFlowsFor(tag2)
+            removedFlows.clear()
+
+            flowInvalidation.registerFlow(flow)
+            flowInvalidation.invalidateFlowsFor(tag1)
+            removedFlows should contain theSameElementsAs List(flow)
+        }
+    }
+
+    feature ("The tag index grows and shrinks with the flows") {
+        scenario ("Tags are dropped along with their last flow") {
+            val index = new FlowTagIndex(initialLinks = 4, initialTags = 4)
+            val flows = (0 until 1000) map { i =>
+                val flow = new ManagedFlow(null)
+                flow.tags.add(tag1)
+                flow.tags.add(FlowTagger.tagForDpPort(100 + i))
+                index.add(flow)
+                flow
+            }
+            index.tagCount should be (1001)
+            index.flowCount(tag1) should be (1000)
+
+            flows foreach index.remove
+            index.tagCount should be (0)
+            index.flowCount(tag1) should be (0)
+        }
+
+        scenario ("Detached lists hand out their flows once") {
+            val index = new FlowTagIndex()
+            val flow1 = new ManagedFlow(null)
+            flow1.tags.add(tag1)
+            val flow2 = new ManagedFlow(null)
+            flow2.tags.add(tag1)
+            flow2.tags.add(tag2)
+            index.add(flow1)
+            index.add(flow2)
+
+            val list = index.detach(tag1)
+            index.flowCount(tag1) should be (0)
+            index.count(list) should be (2)
+            val polled = List(index.poll(list), index.poll(list))
+            polled should contain theSameElementsAs List(flow1, flow2)
+            index.poll(list) should be (null)
+            index.release(list)
+
+            index.flowCount(tag2) should be (1)
+            index.remove(flow2)
+            index.tagCount should be (0)
+        }
     }
 }
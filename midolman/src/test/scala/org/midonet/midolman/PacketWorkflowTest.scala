@@ -34,6 +34,7 @@ import org.midonet.midolman.PacketWorkflow._
 import org.midonet.midolman.UnderlayResolver.Route
 import org.midonet.midolman.config.MidolmanConfig
 import org.midonet.midolman.datapath.DatapathChannel
+import org.midonet.midolman.monitoring.metrics.PacketPipelineMetrics
 import org.midonet.midolman.simulation.PacketContext
 import org.midonet.midolman.simulation.PacketEmitter.GeneratedPacket
 import org.midonet.midolman.state.ConnTrackState.{ConnTrackKey, ConnTrackValue}
@@ -157,6 +158,22 @@ class PacketWorkflowTest extends MidolmanSpec {
             packetsSeen map (_._2) should be (1 to 4)
         }
 
+        scenario("simulates packets offered to its inbox") {
+            Given("3 packets offered to the inbox of the DDA")
+            val pkts = List(makePacket(1), makePacket(2), makePacket(3))
+            pkts foreach { dda.inbox.offer(_) should be (true) }
+
+            When("the DDA is woken up")
+            dda.inbox.wakeup()
+
+            Then("3 packet workflows should be executed")
+            packetsSeen map (_._2) should be (1 to 3)
+            packetsOut should be (3)
+
+            And("the inbox should be empty")
+            dda.inbox.isEmpty should be (true)
+        }
+
         scenario("simulates generated packets") {
             Given("a simulation that generates a packet")
             val pkt = makePacket(1)
@@ -381,15 +398,18 @@ class PacketWorkflowTest extends MidolmanSpec {
                       dpChannel: DatapathChannel,
                       clusterDataClient: DataClient,
                       packetOut: Int => Unit,
-                      override val simulationExpireMillis: Long)
+                      override val simulationExpireMillis: Long,
+                      pipelineMetrics: PacketPipelineMetrics = metrics)
             extends PacketWorkflow(0,
                                    injector.getInstance(classOf[MidolmanConfig]),
                                    cookieGen, clock, dpChannel,
                                    clusterDataClient, flowInvalidator, flowProcessor,
+                                   flowStatsSweeper(pipelineMetrics),
                                    conntrackTable, natTable,
                                    new ShardedFlowStateTable[TraceKey, TraceContext](),
                                    new MockStateStorage(), HappyGoLuckyLeaser,
-                                   metrics, packetOut)
+                                   pipelineMetrics, packetOut,
+                                   new WorkflowInbox(16))
             with MessageAccumulator {
 
         implicit override val dispatcher = this.context.dispatcher
@@ -18,6 +18,7 @@ package org.midonet.midolman
 
 import java.util.{LinkedList, UUID}
 
+import com.codahale.metrics.MetricRegistry
 import org.slf4j.helpers.NOPLogger
 import com.typesafe.scalalogging.Logger
 
@@ -27,11 +28,13 @@ import org.scalatest.junit.JUnitRunner
 import org.midonet.cluster.data.{Router => ClusterRouter}
 import org.midonet.cluster.data.ports.RouterPort
 import org.midonet.midolman.PacketWorkflow.{AddVirtualWildcardFlow, NoOp, TemporaryDrop, Drop}
+import org.midonet.midolman.layer3.{IPv4RoutingTable, Route}
 import org.midonet.midolman.layer3.Route._
 import org.midonet.midolman.rules.{RuleResult, NatTarget, Condition}
-import org.midonet.midolman.simulation.{Router => SimRouter, RouteBalancer}
+import org.midonet.midolman.simulation.{Router => SimRouter, RouteBalancer,
+                                        RouteSelectionCounters}
 import org.midonet.midolman.simulation.PacketEmitter.GeneratedPacket
-import org.midonet.midolman.topology.VirtualTopologyActor
+import org.midonet.midolman.topology.{RoutingTableWrapper, VirtualTopologyActor}
 import org.midonet.midolman.util.MidolmanSpec
 import org.midonet.odp.FlowMatch
 import org.midonet.odp.flows._
@@ -113,14 +116,76 @@ class RouterSimulationTest extends MidolmanSpec {
                      NextHop.PORT, uplinkPort.getId, gw, 1)
         }
 
-        val fmatch = new FlowMatch()
+        def flow(srcPort: Int) = new FlowMatch()
             .setNetworkSrc(IPv4Addr.fromString(uplinkPortAddr))
             .setNetworkDst(IPv4Addr.fromString(routeDst))
+            .setNetworkProto(UDP.PROTOCOL_NUMBER)
+            .setSrcPort(srcPort)
+            .setDstPort(53)
 
         val rb = new RouteBalancer(simRouter.rTable)
-        (0 until gateways.length) map { _ =>
-           rb.lookup(fmatch, Logger(NOPLogger.NOP_LOGGER)).getNextHopGateway
-        } should contain theSameElementsAs gateways
+        val log = Logger(NOPLogger.NOP_LOGGER)
+        val chosen = (0 until 100) map { port =>
+            rb.lookup(flow(port), log).getNextHopGateway
+        }
+        chosen.toSet should contain theSameElementsAs gateways
+
+        // The flows of a connection always take the same route
+        (0 until 100) foreach { port =>
+            rb.lookup(flow(port), log).getNextHopGateway shouldBe chosen(port)
+        }
+
+        // The route depends on the 5-tuple
+        val fmatch = flow(1)
+        rb.lookup(fmatch, log)
+        fmatch.isSeen(FlowMatch.Field.SrcPort) shouldBe true
+        fmatch.isSeen(FlowMatch.Field.DstPort) shouldBe true
+    }
+
+    scenario("Removing a route only moves the flows that took it") {
+        val dst = IPv4Addr.fromString("21.31.41.51")
+        val routes = (1 to 4) map { i =>
+            new Route(0, 0, dst.toInt, 32, NextHop.PORT, UUID.randomUUID(),
+                      0xb4000100 + i, 1, null, null)
+        }
+        val registry = new MetricRegistry
+        val counters = new RouteSelectionCounters(registry, "ecmp")
+        def balancer(routes: Seq[Route]) = {
+            val table = new IPv4RoutingTable()
+            routes foreach table.addRoute
+            new RouteBalancer(new RoutingTableWrapper(table, counters))
+        }
+        def flow(srcPort: Int) = new FlowMatch()
+            .setNetworkSrc(IPv4Addr.fromString(uplinkPortAddr))
+            .setNetworkDst(dst)
+            .setNetworkProto(TCP.PROTOCOL_NUMBER)
+            .setSrcPort(srcPort)
+            .setDstPort(80)
+
+        val log = Logger(NOPLogger.NOP_LOGGER)
+        val before = balancer(routes)
+        val after = balancer(routes.tail)
+        (0 until 200) foreach { port =>
+            val route = before.lookup(flow(port), log)
+            if (route ne routes.head)
+                after.lookup(flow(port), log) shouldBe route
+        }
+
+        val count = counters.selections(routes.head)
+        count should be > 0L
+
+        // Routes through the same next hop share the count
+        val copy = new Route(0, 0, dst.toInt, 24, NextHop.PORT,
+                             routes.head.nextHopPort,
+                             routes.head.nextHopGateway, 1, null, null)
+        counters.selections(copy) shouldBe count
+        registry.getCounters.size shouldBe 4
+
+        // The counters of withdrawn next hops are removed
+        counters.retain(routes.tail)
+        counters.selections(routes.head) shouldBe 0L
+        counters.selections(routes(1)) should be > 0L
+        registry.getCounters.size shouldBe 3
     }
 
     scenario("Drops IPv6") {
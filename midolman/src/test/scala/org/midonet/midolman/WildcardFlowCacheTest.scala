@@ -0,0 +1,203 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman
+
+import java.util.UUID
+
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+
+import org.midonet.midolman.flows.{FlowExpiration, ManagedFlow, WildcardFlowCache}
+import org.midonet.midolman.simulation.PacketContext
+import org.midonet.midolman.state.ConnTrackState.ConnTrackKey
+import org.midonet.midolman.util.MidolmanSpec
+import org.midonet.odp.FlowMatch
+import org.midonet.odp.FlowMatch.Field
+import org.midonet.odp.flows.FlowActions.{output, setKey}
+import org.midonet.odp.flows.{FlowKeys, IPFragmentType}
+import org.midonet.packets.{IPv4Addr, MAC}
+import org.midonet.sdn.flows.FlowTagger
+import org.midonet.util.functors.Callback0
+
+@RunWith(classOf[JUnitRunner])
+class WildcardFlowCacheTest extends MidolmanSpec {
+
+    val tag1 = FlowTagger.tagForDpPort(1)
+    val tag2 = FlowTagger.tagForDpPort(2)
+
+    var cache: WildcardFlowCache = _
+
+    override def beforeTest(): Unit =
+        cache = new WildcardFlowCache(capacity = 4)
+
+    def newMatch(srcIp: String, dstIp: String, ttl: Byte = 64): FlowMatch =
+        new FlowMatch()
+            .setInputPortNumber(1)
+            .setEthSrc(MAC.fromString("02:00:00:00:00:01"))
+            .setEthDst(MAC.fromString("02:00:00:00:00:02"))
+            .setEtherType(0x0800.toShort)
+            .setNetworkSrc(IPv4Addr.fromString(srcIp))
+            .setNetworkDst(IPv4Addr.fromString(dstIp))
+            .setNetworkTTL(ttl)
+
+    /* Builds the context of a simulated packet that read the specified
+     * fields of its match, and installs its flow. */
+    def simulated(fmatch: FlowMatch, seen: Field*): PacketContext = {
+        val context = new PacketContext(0, null, fmatch)
+        fmatch.getInputPortNumber
+        seen foreach {
+            case Field.EthDst => fmatch.getEthDst
+            case Field.NetworkDst => fmatch.getNetworkDstIP
+            case Field.NetworkSrc => fmatch.getNetworkSrcIP
+        }
+        context.addFlowAndPacketAction(output(2))
+        context.addFlowTag(tag1)
+        context.addFlowTag(tag2)
+        installFlow(context)
+        context
+    }
+
+    def installFlow(context: PacketContext): Unit = {
+        val flow = new ManagedFlow(null)
+        flow.reset(context.origMatch, context.flowTags,
+                   context.flowRemovedCallbacks, 0L,
+                   FlowExpiration.FLOW_EXPIRATION, clock.tick)
+        context.flow = flow
+    }
+
+    feature("The wildcard flow cache replays simulations") {
+        scenario("A packet that only differs in unseen fields hits") {
+            Given("A cached flow that only read the destination address")
+            cache.add(simulated(newMatch("10.0.0.1", "10.0.0.2"),
+                                Field.NetworkDst), clock.tick) shouldBe true
+
+            When("A packet with a different source address is looked up")
+            val fmatch = newMatch("10.0.0.3", "10.0.0.2")
+            val context = new PacketContext(1, null, fmatch)
+            cache.replay(context, clock.tick) shouldBe true
+
+            Then("The cached actions and tags are replayed")
+            context.flowActions should contain theSameElementsAs List(output(2))
+            context.packetActions should contain theSameElementsAs List(output(2))
+            context.flowTags should contain theSameElementsAs List(tag1, tag2)
+
+            And("The match is marked with the fields seen by the simulation")
+            fmatch.isSeen(Field.NetworkDst) shouldBe true
+            fmatch.isSeen(Field.NetworkSrc) shouldBe false
+        }
+
+        scenario("A packet that differs in a seen field misses") {
+            cache.add(simulated(newMatch("10.0.0.1", "10.0.0.2"),
+                                Field.NetworkDst), clock.tick) shouldBe true
+
+            val context = new PacketContext(1, null, newMatch("10.0.0.1", "10.0.0.4"))
+            cache.replay(context, clock.tick) shouldBe false
+            context.flowActions shouldBe empty
+        }
+
+        scenario("Flows with different masks are looked up") {
+            cache.add(simulated(newMatch("10.0.0.1", "10.0.0.2"),
+                                Field.NetworkDst), clock.tick) shouldBe true
+            cache.add(simulated(newMatch("10.0.0.1", "10.0.0.5"),
+                                Field.NetworkSrc, Field.NetworkDst), clock.tick) shouldBe true
+
+            cache.get(newMatch("10.0.0.9", "10.0.0.2"), clock.tick) should not be null
+            cache.get(newMatch("10.0.0.1", "10.0.0.5"), clock.tick) should not be null
+            cache.get(newMatch("10.0.0.9", "10.0.0.5"), clock.tick) shouldBe null
+        }
+
+        scenario("Fields carried by set key actions are part of the key") {
+            Given("A flow that rewrites the IPv4 header")
+            val context = new PacketContext(0, null, newMatch("10.0.0.1", "10.0.0.2"))
+            context.origMatch.getNetworkDstIP
+            context.addFlowAndPacketAction(setKey(FlowKeys.ipv4(
+                IPv4Addr.fromString("10.0.0.1"), IPv4Addr.fromString("10.0.0.2"),
+                6.toByte, 0.toByte, 63.toByte, IPFragmentType.None)))
+            installFlow(context)
+            cache.add(context, clock.tick) shouldBe true
+
+            Then("A packet with a different TTL misses")
+            cache.get(newMatch("10.0.0.1", "10.0.0.2", ttl = 32), clock.tick) shouldBe null
+            cache.get(newMatch("10.0.0.1", "10.0.0.2"), clock.tick) should not be null
+        }
+    }
+
+    feature("The wildcard flow cache only holds stateless flows") {
+        scenario("Flows with flow state are not cached") {
+            val context = new PacketContext(0, null, newMatch("10.0.0.1", "10.0.0.2"))
+            context.addFlowTag(ConnTrackKey(IPv4Addr.fromString("10.0.0.1"), 1,
+                                            IPv4Addr.fromString("10.0.0.2"), 2,
+                                            6, UUID.randomUUID()))
+            installFlow(context)
+            cache.add(context, clock.tick) shouldBe false
+            cache.size shouldBe 0
+        }
+
+        scenario("Flows with flow removed callbacks are not cached") {
+            val context = new PacketContext(0, null, newMatch("10.0.0.1", "10.0.0.2"))
+            context.addFlowRemovedCallback(new Callback0 { def call() = { } })
+            installFlow(context)
+            cache.add(context, clock.tick) shouldBe false
+        }
+
+        scenario("Flows with other expirations are not cached") {
+            val context = new PacketContext(0, null, newMatch("10.0.0.1", "10.0.0.2"))
+            val flow = new ManagedFlow(null)
+            flow.reset(context.origMatch, context.flowTags,
+                       context.flowRemovedCallbacks, 0L,
+                       FlowExpiration.ERROR_CONDITION_EXPIRATION, clock.tick)
+            context.flow = flow
+            cache.add(context, clock.tick) shouldBe false
+        }
+    }
+
+    feature("Cached flows are removed") {
+        scenario("A cached flow is removed when one of its tags is invalidated") {
+            cache.add(simulated(newMatch("10.0.0.1", "10.0.0.2"),
+                                Field.NetworkDst), clock.tick) shouldBe true
+            cache.add(simulated(newMatch("10.0.0.1", "10.0.0.5"),
+                                Field.NetworkDst), clock.tick) shouldBe true
+
+            cache.invalidate(tag2)
+
+            cache.size shouldBe 0
+            cache.get(newMatch("10.0.0.1", "10.0.0.2"), clock.tick) shouldBe null
+            cache.get(newMatch("10.0.0.1", "10.0.0.5"), clock.tick) shouldBe null
+        }
+
+        scenario("A cached flow expires with its datapath flow") {
+            cache.add(simulated(newMatch("10.0.0.1", "10.0.0.2"),
+                                Field.NetworkDst), clock.tick) shouldBe true
+
+            clock.time += FlowExpiration.FLOW_EXPIRATION.value
+
+            cache.get(newMatch("10.0.0.1", "10.0.0.2"), clock.tick) shouldBe null
+            cache.size shouldBe 0
+        }
+
+        scenario("The oldest flows are evicted when the cache is full") {
+            for (i <- 1 to 5) {
+                cache.add(simulated(newMatch("10.0.0.1", s"10.0.1.$i"),
+                                    Field.NetworkDst), clock.tick) shouldBe true
+            }
+
+            cache.size shouldBe 4
+            cache.get(newMatch("10.0.0.1", "10.0.1.1"), clock.tick) shouldBe null
+            cache.get(newMatch("10.0.0.1", "10.0.1.5"), clock.tick) should not be null
+        }
+    }
+}
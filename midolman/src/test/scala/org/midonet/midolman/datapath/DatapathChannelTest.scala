@@ -18,6 +18,10 @@ package org.midonet.midolman.datapath
 
 import java.nio.ByteBuffer
 import java.util.{UUID, ArrayList}
+import java.util.concurrent.TimeUnit
+
+import scala.collection.JavaConversions._
+import scala.collection.mutable.ArrayBuffer
 
 import akka.testkit.TestProbe
 import com.lmax.disruptor.RingBuffer
@@ -29,13 +33,19 @@ import org.scalatest.concurrent.Eventually._
 
 import org.midonet.midolman.datapath.DisruptorDatapathChannel.PacketContextHolder
 import org.midonet.midolman.flows.{FlowOperation, ManagedFlow}
+import org.midonet.midolman.state.ConnTrackState.ConnTrackKey
+import org.midonet.midolman.state.FlowStatePackets
+import org.midonet.midolman.state.FlowStatePackets._
+import org.midonet.midolman.state.NatState
+import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
 import org.midonet.midolman.util.MidolmanSpec
 import org.midonet.netlink.{MockNetlinkChannelFactory, NetlinkMessage}
 import org.midonet.odp._
 import org.midonet.odp.family.{DatapathFamily, FlowFamily, PacketFamily, PortFamily}
 import org.midonet.odp.flows.{FlowKey, FlowKeys, FlowAction, FlowActions}
 import org.midonet.packets.util.PacketBuilder._
-import org.midonet.packets.{Ethernet, IPv4Addr, MAC}
+import org.midonet.packets.{Ethernet, FlowStateEthernet, IPv4Addr, MAC}
+import org.midonet.rpc.{FlowStateProto => Proto}
 import org.midonet.util.collection.ArrayObjectPool
 import org.midonet.util.concurrent.{EventPollerHandlerAdapter, BackchannelEventProcessor, AggregateEventPollerHandler}
 
@@ -129,6 +139,171 @@ class DatapathChannelTest extends MidolmanSpec {
                                      FlowActions.reader.deserializeFrom, actions)
         }
 
+        scenario ("Can batch flow creates") {
+            val batchFactory = new MockNetlinkChannelFactory
+            val batchChannel = batchFactory.channel
+            batchChannel.setPid(10)
+            val batchFp = new FlowProcessor(ovsFamilies, 1024, 2048,
+                                            batchFactory, clock,
+                                            maxBatchBytes = 64 * 1024,
+                                            maxBatchLatencyNanos = TimeUnit.HOURS.toNanos(1))
+
+            val contexts = (0 until 3) map { i =>
+                val context = packetContextFor(ethernet, UUID.randomUUID())
+                context.flowActions.addAll(actions)
+                context.flow = new ManagedFlow(null)
+                context
+            }
+
+            contexts.zipWithIndex foreach { case (context, seq) =>
+                val holder = new PacketContextHolder(null, context, datapathId, false)
+                batchFp.onEvent(holder, seq, endOfBatch = seq == contexts.size - 1)
+                if (seq < contexts.size - 1) {
+                    batchChannel.packetsWritten.get() should be (0)
+                }
+            }
+
+            batchChannel.packetsWritten.get() should be (1)
+
+            val bb = batchChannel.written.poll()
+            var start = 0
+            val seqs = ArrayBuffer[Int]()
+            contexts foreach { context =>
+                bb.position(start)
+                val len = bb.getInt(start + NetlinkMessage.NLMSG_LEN_OFFSET)
+                seqs += bb.getInt(start + NetlinkMessage.NLMSG_SEQ_OFFSET)
+                bb.getInt(start + NetlinkMessage.NLMSG_PID_OFFSET) should be (10)
+                bb.position(start + NetlinkMessage.GENL_HEADER_SIZE)
+                bb.getInt() should be (datapathId)
+                attributeListShouldMatch(bb, OpenVSwitch.Flow.Attr.Key,
+                                         flowMatchParser, context.origMatch)
+                start += len
+            }
+            start should be (bb.limit())
+            seqs.toSet.size should be (contexts.size)
+            seqs foreach { seq =>
+                FlowProcessor.isFlowCreateSequence(seq) should be (true)
+            }
+
+            batchFp.tryEject(contexts.size - 1, datapathId,
+                             contexts.last.origMatch, null) should be (true)
+        }
+
+        scenario ("Coalesces the flow state of a batch") {
+            val stateFactory = new MockNetlinkChannelFactory
+            val stateChannel = stateFactory.channel
+            stateChannel.setPid(10)
+            val executor = new PacketExecutor(ovsFamilies, 1, 0, stateFactory)
+
+            val contexts = (0 until 3) map { i =>
+                val context = packetContextFor(ethernet, UUID.randomUUID())
+                context.packetActions.addAll(actions)
+                context.stateMessage = stateMessage(flowState())
+                context.stateActions.addAll(stateActions)
+                context
+            }
+
+            contexts.zipWithIndex foreach { case (context, seq) =>
+                val holder = new PacketContextHolder(context, null, datapathId, false)
+                executor.onEvent(holder, seq, endOfBatch = seq == contexts.size - 1)
+                if (seq < contexts.size - 1) {
+                    stateChannel.packetsWritten.get() should be (0)
+                }
+            }
+
+            stateChannel.packetsWritten.get() should be (contexts.size + 1)
+            val state = stateMessageWritten(stateChannel.written.poll())
+            state.getNewStateCount should be (contexts.size)
+            for (i <- 0 until contexts.size) {
+                val bb = stateChannel.written.poll()
+                bb.position(NetlinkMessage.GENL_HEADER_SIZE + 4)
+                attributeListShouldMatch(bb, OpenVSwitch.Packet.Attr.Key,
+                                         flowMatchParser, contexts(i).origMatch)
+            }
+        }
+
+        scenario ("Can batch packet executes") {
+            val batchFactory = new MockNetlinkChannelFactory
+            val batchChannel = batchFactory.channel
+            batchChannel.setPid(10)
+            val executor = new PacketExecutor(ovsFamilies, 1, 0, batchFactory,
+                                              maxBatchBytes = 64 * 1024)
+
+            val contexts = (0 until 3) map { i =>
+                val context = packetContextFor(ethernet, UUID.randomUUID())
+                context.packetActions.addAll(actions)
+                context
+            }
+            contexts.head.stateMessage = stateMessage(flowState())
+            contexts.head.stateActions.addAll(stateActions)
+
+            contexts.zipWithIndex foreach { case (context, seq) =>
+                val holder = new PacketContextHolder(context, null, datapathId, false)
+                executor.onEvent(holder, seq, endOfBatch = seq == contexts.size - 1)
+            }
+
+            batchChannel.packetsWritten.get() should be (1)
+
+            val bb = batchChannel.written.poll()
+            val end = bb.limit()
+            // The flow state goes first
+            var start = bb.getInt(NetlinkMessage.NLMSG_LEN_OFFSET)
+            bb.limit(start)
+            stateMessageWritten(bb).getNewStateCount should be (1)
+            contexts foreach { context =>
+                bb.limit(end)
+                val len = bb.getInt(start + NetlinkMessage.NLMSG_LEN_OFFSET)
+                bb.getInt(start + NetlinkMessage.NLMSG_PID_OFFSET) should be (10)
+                bb.position(start + NetlinkMessage.GENL_HEADER_SIZE)
+                bb.getInt() should be (datapathId)
+                attributeListShouldMatch(bb, OpenVSwitch.Packet.Attr.Key,
+                                         flowMatchParser, context.origMatch)
+                attributeListShouldMatch(bb, OpenVSwitch.Packet.Attr.Actions,
+                                         FlowActions.reader.deserializeFrom,
+                                         actions)
+                start += len
+            }
+            start should be (end)
+        }
+
+        scenario ("Partitions flow state too large for a state packet") {
+            val stateFactory = new MockNetlinkChannelFactory
+            val stateChannel = stateFactory.channel
+            stateChannel.setPid(10)
+            val executor = new PacketExecutor(ovsFamilies, 1, 0, stateFactory)
+
+            val natEntries = 200
+            val state = flowState()
+            for (i <- 0 until natEntries) {
+                val key = NatKey(NatState.FWD_SNAT, IPv4Addr.random, i,
+                                 IPv4Addr.random, 80, 6, UUID.randomUUID())
+                state.addNatEntries(Proto.NatEntry.newBuilder()
+                    .setK(natKeyToProto(key))
+                    .setV(natBindingToProto(NatBinding(IPv4Addr.random, i))))
+            }
+            val context = packetContextFor(ethernet, UUID.randomUUID())
+            context.packetActions.addAll(actions)
+            context.stateMessage = stateMessage(state)
+            context.stateActions.addAll(stateActions)
+            context.stateMessage.getSerializedSize should be >
+                StatePacketExecutor.MAX_MESSAGE_LENGTH
+
+            executor.onEvent(new PacketContextHolder(context, null, datapathId, false),
+                             0, endOfBatch = true)
+
+            val written = stateChannel.packetsWritten.get()
+            written should be > 2
+            val states = (1 until written) flatMap { _ =>
+                stateMessageWritten(stateChannel.written.poll()).getNewStateList
+            }
+            val ingressPort = uuidFromProto(state.getIngressPort)
+            states foreach { s =>
+                uuidFromProto(s.getIngressPort) should be (ingressPort)
+            }
+            states.map(_.getNatEntriesCount).sum should be (natEntries)
+            states.count(_.hasConntrackKey) should be (1)
+        }
+
         scenario ("Channel is bounded and thread spins when ring buffer is full") {
             var i = 0
             val context = packetContextFor(ethernet, UUID.randomUUID())
@@ -181,6 +356,50 @@ class DatapathChannelTest extends MidolmanSpec {
         }
     }
 
+    private val stateActions = Seq(
+        FlowActions.setKey(FlowKeys.tunnel(FlowStatePackets.TUNNEL_KEY,
+                                           0x0a000001, 0x0a000002, 0)),
+        FlowActions.output(2))
+
+    private def flowState(): Proto.FlowState.Builder = {
+        val key = ConnTrackKey(IPv4Addr.random, 10000, IPv4Addr.random, 80,
+                               6, UUID.randomUUID())
+        Proto.FlowState.newBuilder()
+            .setIngressPort(uuidToProto(UUID.randomUUID()))
+            .setConntrackKey(connTrackKeyToProto(key))
+    }
+
+    private def stateMessage(state: Proto.FlowState.Builder) =
+        Proto.StateMessage.newBuilder()
+            .setSender(uuidToProto(UUID.randomUUID()))
+            .setEpoch(0L)
+            .setSeq(0x1)
+            .addNewState(state)
+            .build()
+
+    private def stateMessageWritten(bb: ByteBuffer): Proto.StateMessage = {
+        bb.position(NetlinkMessage.GENL_HEADER_SIZE)
+        bb.getInt() should be (datapathId)
+        attributeListShouldMatch(bb, OpenVSwitch.Packet.Attr.Key,
+                                 flowMatchParser, statePacketMatch)
+        attributeListShouldMatch(bb, OpenVSwitch.Packet.Attr.Actions,
+                                 FlowActions.reader.deserializeFrom,
+                                 new ArrayList(stateActions))
+        val attrLen = bb.getShort
+        NetlinkMessage.unnest(bb.getShort) should be (OpenVSwitch.Packet.Attr.Packet)
+        bb.limit(bb.position() + attrLen - 4)
+        val order = bb.order()
+        val eth = new Ethernet()
+        eth.deserialize(bb)
+        bb.order(order)
+        FlowStatePackets.parseDatagram(eth)
+    }
+
+    private lazy val statePacketMatch = {
+        val udpShell = new FlowStateEthernet(new Array[Byte](0))
+        FlowMatches.fromEthernetPacket(udpShell)
+    }
+
     private def flowMatchParser(buf: ByteBuffer): FlowMatch = {
         val keys = new ArrayList[FlowKey](16)
         FlowKeys.buildFrom(buf, keys)
@@ -0,0 +1,124 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.midolman.io
+
+import scala.concurrent.duration._
+
+import akka.testkit.TestProbe
+import org.junit.runner.RunWith
+import org.scalatest.junit.JUnitRunner
+
+import org.midonet.midolman.PacketWorkflow.HandlePackets
+import org.midonet.midolman.PacketsEntryPoint.Workers
+import org.midonet.midolman.WorkflowInbox
+import org.midonet.midolman.WorkflowInbox.Wakeup
+import org.midonet.midolman.state.FlowStatePackets
+import org.midonet.midolman.util.MidolmanSpec
+import org.midonet.odp.{FlowMatches, Packet}
+import org.midonet.packets.Ethernet
+import org.midonet.packets.util.PacketBuilder._
+import org.midonet.util.{BatchCollector, Bucket, TokenBucketTestRate}
+
+@RunWith(classOf[JUnitRunner])
+class OneToWorkerDpConnManagerTest extends MidolmanSpec {
+
+    val NumWorkers = 3
+
+    var probes: IndexedSeq[TestProbe] = _
+
+    class TestableDpConnManager extends OneToWorkerDpConnManager(config,
+            new TokenBucketPolicy(config, new TokenBucketTestRate, 1,
+                                  _ => Bucket.BOTTOMLESS)) {
+        def handlerOf(workers: Workers, owner: Int): BatchCollector[Packet] =
+            makeUpcallHandler(workers, owner)(actorSystem)
+    }
+
+    override def beforeTest(): Unit = {
+        probes = IndexedSeq.fill(NumWorkers)(TestProbe()(actorSystem))
+    }
+
+    def packet(srcPort: Int): Packet = {
+        val frame: Ethernet =
+            { eth addr "01:02:03:04:05:06" -> "10:20:30:40:50:60" } <<
+            { ip4 addr "192.168.0.1" --> "192.168.0.2" } <<
+            { udp ports srcPort.toShort ---> 80.toShort }
+        new Packet(frame, FlowMatches.fromEthernetPacket(frame))
+    }
+
+    def received(probe: TestProbe): Seq[Packet] =
+        probe.expectMsgClass(classOf[HandlePackets]).packet.filter(_ ne null)
+
+    feature("The upcall handler of a worker channel") {
+        scenario("Packets go to the worker that owns the channel") {
+            Given("an upcall handler for the channel of the second worker")
+            val workers = Workers(probes.map(_.ref))
+            val handler = new TestableDpConnManager().handlerOf(workers, 1)
+
+            When("packets of many connections are read from the channel")
+            val packets = (1 to 10) map { i => packet(10000 + i) }
+            packets foreach handler.submit
+            handler.endBatch()
+
+            Then("the owning worker gets all of them")
+            received(probes(1)) shouldBe packets
+
+            And("the other workers get none")
+            probes(0).expectNoMsg(100 millis)
+            probes(2).expectNoMsg(100 millis)
+        }
+
+        scenario("Packets are offered to the inbox of the owning worker") {
+            Given("an upcall handler for a channel of workers with inboxes")
+            val inboxes = probes map { probe =>
+                val inbox = new WorkflowInbox(16)
+                inbox.attach(probe.ref)
+                inbox
+            }
+            val workers = Workers(probes.map(_.ref), inboxes)
+            val handler = new TestableDpConnManager().handlerOf(workers, 2)
+
+            When("packets are read from the channel")
+            val packets = (1 to 4) map { i => packet(20000 + i) }
+            packets foreach handler.submit
+            handler.endBatch()
+
+            Then("they are in the inbox of the owning worker, which is woken up")
+            probes(2).expectMsg(Wakeup)
+            inboxes(2).packets.size shouldBe packets.size
+
+            And("the other inboxes stay empty")
+            inboxes(0).isEmpty shouldBe true
+            inboxes(1).isEmpty shouldBe true
+            probes(0).expectNoMsg(100 millis)
+            probes(1).expectNoMsg(100 millis)
+        }
+
+        scenario("Flow state packets go to all the workers") {
+            Given("an upcall handler for the channel of the first worker")
+            val workers = Workers(probes.map(_.ref))
+            val handler = new TestableDpConnManager().handlerOf(workers, 0)
+
+            When("a flow state packet is read from the channel")
+            val state = packet(30000)
+            state.getMatch.setTunnelKey(FlowStatePackets.TUNNEL_KEY)
+            handler.submit(state)
+            handler.endBatch()
+
+            Then("every worker gets it")
+            probes foreach { received(_) shouldBe Seq(state) }
+        }
+    }
+}
@@ -75,8 +75,18 @@ object UpcallChannelsTest {
                 val packetHandler: ActorRef = act
             }
 
+        val mngr3 =
+            new OneToWorkerDpConnManager(conf, tbPolicy(conf)) with TestMixin {
+                val dispatcher: ActorRef = nlDispatcher
+                val packetHandler: ActorRef = act
+                override def askForWorkers()(implicit ec: ExecutionContext,
+                                                      as: ActorSystem) =
+                    Future successful Workers(Vector(act, act))
+            }
+
         var status = printReport(runSuite(test("OneToOneDpConnManager", mngr1)))
         status &= printReport(runSuite(test("OneToManyDpConnManager", mngr2)))
+        status &= printReport(runSuite(test("OneToWorkerDpConnManager", mngr3)))
 
         System exit (if (status) 0 else 1) // necessary for closing con
     }
@@ -18,7 +18,8 @@ package org.midonet.midolman.simulation
 import org.midonet.midolman.rules._
 import org.midonet.midolman.rules.RuleResult.Action
 import org.midonet.odp.FlowMatch
-import org.midonet.packets.IPAddr
+import org.midonet.packets.{IPAddr, IPv4Addr, IPv4Subnet}
+import org.midonet.util.Range
 
 import java.util.UUID
 import org.junit.runner.RunWith
@@ -26,6 +27,7 @@ import org.scalatest.{BeforeAndAfterAll, BeforeAndAfter, Matchers, Suite}
 import org.scalatest.junit.JUnitRunner
 import akka.actor.ActorSystem
 import scala.collection.mutable
+import scala.util.Random
 
 import scala.collection.JavaConverters._
 
@@ -229,6 +231,105 @@ class ChainTest extends Suite
         applyChain(innerAndOuterChain).action should be (Action.REJECT)
     }
 
+    def testClassifiedChainMatchesLinearWalk() {
+        val random = new Random(42)
+        def randomCondition(): Condition = {
+            val cond = new Condition()
+            if (random.nextInt(3) == 0)
+                cond.nwProto = Byte.box(Seq(1, 6, 17)(random.nextInt(3)).toByte)
+            if (random.nextInt(4) == 0)
+                cond.etherType = Int.box(0x0800)
+            if (random.nextInt(2) == 0)
+                cond.nwSrcIp = new IPv4Subnet(0x0a000000 + random.nextInt(256),
+                                              24 + random.nextInt(9))
+            if (random.nextInt(3) == 0)
+                cond.nwDstIp = new IPv4Subnet(0x0b000000, random.nextInt(33))
+            if (random.nextInt(2) == 0) {
+                val start = random.nextInt(100)
+                cond.tpDst = new Range[Integer](start, start + random.nextInt(8))
+            }
+            if (random.nextInt(10) == 0)
+                cond.tpSrc = new Range[Integer](null, random.nextInt(100))
+            cond.nwSrcInv = random.nextInt(10) == 0
+            cond.tpDstInv = random.nextInt(10) == 0
+            cond.conjunctionInv = random.nextInt(20) == 0
+            cond
+        }
+        val actions = Array(Action.ACCEPT, Action.DROP, Action.REJECT)
+        val rules = List.fill(300)(new LiteralRule(randomCondition(),
+                                   actions(random.nextInt(actions.length))))
+        val c = makeChain(rules)
+
+        for (i <- 0 until 1000) {
+            pktMatch = new FlowMatch()
+            pktMatch.setEtherType(if (random.nextInt(8) == 0) 0x86dd.toShort
+                                  else 0x0800.toShort)
+            pktMatch.setNetworkProto(Seq(1, 6, 17)(random.nextInt(3)).toByte)
+            pktMatch.setNetworkSrc(IPv4Addr.fromInt(0x0a000000 +
+                                                    random.nextInt(300)))
+            pktMatch.setNetworkDst(IPv4Addr.fromInt(0x0b000000 +
+                                                    random.nextInt(1024)))
+            pktMatch.setSrcPort(random.nextInt(128))
+            pktMatch.setDstPort(random.nextInt(128))
+            pktCtx = new PacketContext(1, null, pktMatch)
+
+            val expected = rules.find(_.getCondition.matches(pktCtx, false))
+                                .map(_.action).getOrElse(Action.ACCEPT)
+            applyChain(c).action should be (expected)
+        }
+    }
+
+    def testClassifiedChainMarksTheFieldsItSkipsOn() {
+        val rules = (0 until 20).map { port =>
+            val cond = new Condition()
+            cond.tpDst = new Range[Integer](port)
+            new LiteralRule(cond, Action.DROP)
+        }
+        val c = makeChain(acceptRule :: rules.toList)
+        pktMatch.setDstPort(5)
+        applyChain(c).action should be (Action.ACCEPT)
+        pktMatch.getSeenFields should be (0L)
+
+        val d = makeChain(rules.toList :+ acceptRule)
+        pktMatch.setDstPort(100)
+        applyChain(d).action should be (Action.ACCEPT)
+        pktMatch.isSeen(FlowMatch.Field.DstPort) should be (true)
+    }
+
+    def testClassifiedChainEvaluatesFlowDirectionRules() {
+        val rules = (0 until 20).map { port =>
+            val cond = new Condition()
+            cond.tpDst = new Range[Integer](port)
+            cond.matchForwardFlow = true
+            new LiteralRule(cond, Action.DROP)
+        }
+        val c = makeChain(rules.toList :+ acceptRule)
+        var directionChecks = 0
+        pktMatch.setDstPort(100)
+        pktCtx = new PacketContext(1, null, pktMatch) {
+            override def isForwardFlow: Boolean = {
+                directionChecks += 1
+                true
+            }
+        }
+        applyChain(c).action should be (Action.ACCEPT)
+        directionChecks should be (rules.size)
+    }
+
+    def testClassifiedChainReclassifiesModifiedPackets() {
+        val udp = new Condition()
+        udp.nwProto = Byte.box(17)
+        val rules = List.fill(20)(new LiteralRule(udp, Action.REJECT))
+        val toUdp = new Rule(Condition.TRUE, Action.CONTINUE) {
+            override def apply(pktCtx: PacketContext, res: RuleResult,
+                               ownerId: UUID): Unit =
+                pktCtx.wcmatch.setNetworkProto(17)
+        }
+        val c = makeChain(toUdp :: rules)
+        pktMatch.setNetworkProto(6)
+        applyChain(c).action should be (Action.REJECT)
+    }
+
     private def applyChain(c: Chain) =
         Chain.apply(c, pktCtx, ownerId, false)
 
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.midolman.simulation
+
+import java.util.UUID
+
+import org.junit.runner.RunWith
+import org.scalatest.{GivenWhenThen, FeatureSpec, Matchers}
+import org.scalatest.junit.JUnitRunner
+
+import org.midonet.odp.FlowMatch
+import org.midonet.odp.flows.FlowActions.output
+import org.midonet.packets.IPv4Addr
+import org.midonet.sdn.flows.FlowTagger
+import org.midonet.util.functors.Callback0
+
+@RunWith(classOf[JUnitRunner])
+class PacketContextPoolTest extends FeatureSpec with Matchers with GivenWhenThen {
+
+    def newMatch(dstIp: String) =
+        new FlowMatch().setNetworkDst(IPv4Addr.fromString(dstIp))
+
+    feature("Packet contexts are reused") {
+        scenario("A reclaimed context is fully reset") {
+            val pool = new PacketContextPool(4)
+            val context = pool.take(1, null, newMatch("10.0.0.1"), null)
+
+            Given("A context that went through a simulation")
+            var callbackRan = false
+            context.prepareForSimulation()
+            context.wcmatch.setNetworkDst(IPv4Addr.fromString("10.0.0.9"))
+            context.addFlowAndPacketAction(output(1))
+            context.addVirtualAction(output(2))
+            context.addFlowTag(FlowTagger.tagForDpPort(1))
+            context.addFlowRemovedCallback(new Callback0 {
+                override def call(): Unit = callbackRan = true
+            })
+            context.stateActions.add(output(3))
+            context.outPorts.add(UUID.randomUUID())
+            context.inputPort = UUID.randomUUID()
+
+            When("The context is handed off, processed and reclaimed")
+            pool.handedOff(context, 0)
+            pool.reclaim(0)
+
+            Then("The same context is taken for the next packet")
+            val fmatch = newMatch("10.0.0.2")
+            val egressPort = UUID.randomUUID()
+            val next = pool.take(2, null, fmatch, egressPort)
+            next should be theSameInstanceAs context
+
+            And("It holds none of the state of the previous packet")
+            next.cookie shouldBe 2
+            next.origMatch should be theSameInstanceAs fmatch
+            next.wcmatch shouldBe fmatch
+            next.egressPort shouldBe egressPort
+            next.runs shouldBe 0
+            next.idle shouldBe true
+            next.flowActions shouldBe empty
+            next.packetActions shouldBe empty
+            next.virtualFlowActions shouldBe empty
+            next.flowTags shouldBe empty
+            next.flowRemovedCallbacks shouldBe empty
+            next.stateActions shouldBe empty
+            next.outPorts shouldBe empty
+            next.inputPort shouldBe null
+            next.flow shouldBe null
+
+            And("The flow removed callbacks of the previous packet did not run")
+            callbackRan shouldBe false
+        }
+
+        scenario("Contexts are not reclaimed before they are processed") {
+            val pool = new PacketContextPool(4)
+            val context = pool.take(1, null, newMatch("10.0.0.1"), null)
+            pool.available shouldBe 3
+
+            pool.handedOff(context, 5)
+            pool.reclaim(4)
+            pool.available shouldBe 3
+            pool.pending shouldBe 1
+
+            pool.reclaim(5)
+            pool.available shouldBe 4
+            pool.pending shouldBe 0
+        }
+
+        scenario("Contexts that were not handed off are recycled") {
+            val pool = new PacketContextPool(4)
+            val context = pool.take(1, null, newMatch("10.0.0.1"), null)
+            pool.recycle(context)
+            pool.available shouldBe 4
+            pool.take(2, null, newMatch("10.0.0.2"), null) should be theSameInstanceAs context
+        }
+    }
+
+    feature("The pool is bounded") {
+        scenario("Contexts are allocated when the pool is empty") {
+            val pool = new PacketContextPool(2)
+            val contexts = (1 to 3) map { i => pool.take(i, null, newMatch("10.0.0.1"), null) }
+            contexts.toSet should have size 3
+            pool.available shouldBe 0
+        }
+
+        scenario("The oldest contexts in flight are forgotten") {
+            val pool = new PacketContextPool(2)
+            val contexts = (1 to 3) map { i => pool.take(i, null, newMatch("10.0.0.1"), null) }
+            for (i <- contexts.indices) {
+                pool.handedOff(contexts(i), i)
+            }
+            pool.pending shouldBe 2
+
+            pool.reclaim(2)
+            pool.available shouldBe 2
+            pool.take(4, null, newMatch("10.0.0.1"), null) should not be theSameInstanceAs (contexts(0))
+        }
+
+        scenario("The capacity must be a power of two") {
+            an [IllegalArgumentException] should be thrownBy new PacketContextPool(3)
+        }
+    }
+}
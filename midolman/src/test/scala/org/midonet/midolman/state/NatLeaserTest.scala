@@ -237,6 +237,32 @@ class NatLeaserTest extends FeatureSpec
                 new NatBlock(dev, IPv4Addr("10.0.1.1"), 0),
                 new NatBlock(dev, IPv4Addr("10.0.1.2"), 0)))
         }
+
+        scenario("A block is prefetched before the current one runs out") {
+            val natTarget = new NatTarget(IPv4Addr("10.0.1.1").addr,
+                                          IPv4Addr("10.0.1.1").addr,
+                                          0,
+                                          2 * NatBlock.BLOCK_SIZE - 1)
+            val ip = IPv4Addr.random
+            val port = 0
+            intercept[NotYetException] {
+                natLeaser.allocateNatBinding(dev, ip, port, Array(natTarget))
+            }
+
+            val bindings = (0 until NatBlock.BLOCK_SIZE) map { _ =>
+                natLeaser.allocateNatBinding(dev, ip, port, Array(natTarget))
+            }
+
+            bindings.map(_.transportPort).toSet should be (
+                (0 until NatBlock.BLOCK_SIZE).toSet)
+            allocatedBlocks should be (mutable.Set(
+                new NatBlock(dev, IPv4Addr("10.0.1.1"), 0),
+                new NatBlock(dev, IPv4Addr("10.0.1.1"), 1)))
+
+            val nextBinding = natLeaser.allocateNatBinding(dev, ip, port,
+                                                           Array(natTarget))
+            nextBinding.transportPort should be >= NatBlock.BLOCK_SIZE
+        }
     }
 
     feature("NatBindings are released") {
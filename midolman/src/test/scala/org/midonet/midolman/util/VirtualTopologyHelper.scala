@@ -43,7 +43,7 @@ import org.midonet.midolman.simulation.{Router => SimRouter}
 import org.midonet.midolman.simulation.{Coordinator, PacketContext, PacketEmitter}
 import org.midonet.midolman.state.ConnTrackState._
 import org.midonet.midolman.state.{MockStateStorage, HappyGoLuckyLeaser}
-import org.midonet.midolman.state.NatState.{NatBinding, NatKey}
+import org.midonet.midolman.state.NatState.{NatBinding, NatKey, NatKeyCodec}
 import org.midonet.midolman.state.TraceState.{TraceKey, TraceContext}
 import org.midonet.midolman.topology.VirtualTopologyActor
 import org.midonet.midolman.topology.VirtualTopologyActor.{BridgeRequest, ChainRequest, IPAddrGroupRequest, PortRequest, RouterRequest}
@@ -223,10 +223,11 @@ trait VirtualTopologyHelper { this: MidolmanServices =>
                        peers: Map[UUID, UnderlayRoute] = Map.empty,
                        dpChannel: DatapathChannel = mockDpChannel,
                        packetCtxTrap: Queue[PacketContext] = new LinkedList[PacketContext](),
-                       conntrackTable: FlowStateTable[ConnTrackKey, ConnTrackValue] = new ShardedFlowStateTable[ConnTrackKey, ConnTrackValue](clock).addShard(),
-                       natTable: FlowStateTable[NatKey, NatBinding] = new ShardedFlowStateTable[NatKey, NatBinding](clock).addShard(),
+                       conntrackTable: FlowStateTable[ConnTrackKey, ConnTrackValue] = new ShardedFlowStateTable[ConnTrackKey, ConnTrackValue](clock, ConnTrackKeyCodec).addShard(),
+                       natTable: FlowStateTable[NatKey, NatBinding] = new ShardedFlowStateTable[NatKey, NatBinding](clock, NatKeyCodec).addShard(),
                        traceTable: FlowStateTable[TraceKey, TraceContext] = new ShardedFlowStateTable[TraceKey, TraceContext](clock).addShard())
                       (implicit hostId: UUID, client: DataClient) = {
+        val pipelineMetrics = metrics
         val pktWkfl = TestActorRef[PacketWorkflow](Props(new PacketWorkflow(
             0,
             config,
@@ -236,13 +237,15 @@ trait VirtualTopologyHelper { this: MidolmanServices =>
             client,
             flowInvalidator,
             flowProcessor,
+            flowStatsSweeper(pipelineMetrics),
             conntrackTable,
             natTable,
             traceTable,
             new MockStateStorage,
             HappyGoLuckyLeaser,
-            metrics,
-            _ => { }) {
+            pipelineMetrics,
+            _ => { },
+            new WorkflowInbox(16)) {
 
             override def runWorkflow(pktCtx: PacketContext) = {
                 packetCtxTrap.add(pktCtx)
@@ -67,6 +67,8 @@ class MockDatapathChannel(val flowsTable: JMap[FlowMatch, Flow] = null)
         0
     }
 
+    override def processedSequence: Long = -1L
+
     override def stop(): Unit = { }
 
     override def start(datapath: Datapath): Unit = { }
@@ -73,6 +73,25 @@ class MockFlowProcessor(val flowsTable: JMap[FlowMatch, Flow] = null)
         true
     }
 
+    override def tryDumpFlows(datapathId: Int,
+                              obs: Observer[ByteBuffer]): Boolean = {
+        if (flowsTable ne null) {
+            val it = flowsTable.values().iterator()
+            while (it.hasNext) {
+                val flow = it.next()
+                val buf = ByteBuffer.allocate(1024)
+                buf.putInt(datapathId)
+                NetlinkMessage.writeAttrSeq(buf, Attr.Key, flow.getMatch.getKeys,
+                                            FlowKeys.writer)
+                NetlinkMessage.writeLongAttr(buf, Attr.Used, flow.getLastUsedMillis)
+                buf.flip()
+                obs.onNext(buf)
+            }
+        }
+        obs.onCompleted()
+        true
+    }
+
     def flowDeleteSubscribe(cb: Flow => Unit): Unit =
         flowDelCb = cb
 }
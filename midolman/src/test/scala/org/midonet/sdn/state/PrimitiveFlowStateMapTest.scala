@@ -0,0 +1,282 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.sdn.state
+
+import java.util.{HashMap, Random, UUID}
+import java.util.concurrent.atomic.AtomicBoolean
+
+import org.junit.runner.RunWith
+import org.scalatest.{FeatureSpec, GivenWhenThen, Matchers}
+import org.scalatest.junit.JUnitRunner
+import org.slf4j.helpers.NOPLogger
+import com.typesafe.scalalogging.Logger
+
+import org.midonet.midolman.state.ConnTrackState.{ConnTrackKey, ConnTrackKeyCodec, ConnTrackValue}
+import org.midonet.midolman.state.NatState._
+import org.midonet.packets.{IPv4Addr, IPv6Addr}
+import org.midonet.util.collection.Reducer
+import org.midonet.util.concurrent.MockClock
+
+@RunWith(classOf[JUnitRunner])
+class PrimitiveFlowStateMapTest extends FeatureSpec
+                                with Matchers
+                                with GivenWhenThen {
+
+    val log = Logger(NOPLogger.NOP_LOGGER)
+    val deviceId = UUID.randomUUID()
+    val idleMillis = ConnTrackKey(IPv4Addr.random, 1, IPv4Addr.random, 2, 6,
+                                  deviceId).expiresAfter.toMillis
+
+    def connKey(i: Int) =
+        ConnTrackKey(IPv4Addr.fromInt(0x0a000000 + i), 1000 + (i & 0xfff),
+                     IPv4Addr.fromInt(0x0b000000 + i), 80, 6, deviceId)
+
+    def newMap(capacity: Int = 16) =
+        new PrimitiveFlowStateMap[ConnTrackKey, ConnTrackValue](
+            ConnTrackKeyCodec, log, capacity)
+
+    val collect = new Reducer[ConnTrackKey, ConnTrackValue,
+                              List[(ConnTrackKey, ConnTrackValue)]] {
+        override def apply(acc: List[(ConnTrackKey, ConnTrackValue)],
+                           key: ConnTrackKey, value: ConnTrackValue) =
+            (key, value) :: acc
+    }
+
+    feature("The map holds reference counted entries") {
+        scenario("Entries are added, referenced and released") {
+            val map = newMap()
+            val key = connKey(1)
+
+            map.get(key) shouldBe null
+            map.putAndRef(key, true) shouldBe null
+            map.get(key) shouldBe true
+            map.getRefCount(key) shouldBe 1
+
+            map.putAndRef(key, false) shouldBe true
+            map.get(key) shouldBe false
+            map.getRefCount(key) shouldBe 2
+
+            map.ref(key) shouldBe false
+            map.getRefCount(key) shouldBe 3
+            map.ref(connKey(2)) shouldBe null
+
+            map.unref(key, 0) shouldBe false
+            map.unref(key, 0) shouldBe false
+            map.unref(key, 0) shouldBe false
+            map.getRefCount(key) shouldBe 0
+            map.get(key) shouldBe false
+
+            And("Releasing more references than taken has no effect")
+            map.unref(key, 0) shouldBe false
+            map.getRefCount(key) shouldBe 0
+            map.unref(connKey(2), 0) shouldBe null
+        }
+
+        scenario("Unreferenced entries are removed once they expire") {
+            val map = newMap()
+            val key = connKey(1)
+            map.putAndRef(key, true)
+            map.obliterateIdleEntries(Long.MaxValue - 1, Nil, collect) shouldBe Nil
+
+            map.unref(key, 1000)
+            map.obliterateIdleEntries(1000 + idleMillis - 1, Nil, collect) shouldBe Nil
+            map.get(key) shouldBe true
+
+            val expired = map.obliterateIdleEntries(1000 + idleMillis, Nil, collect)
+            expired shouldBe List((key, true))
+            map.get(key) shouldBe null
+            map.size shouldBe 0
+        }
+
+        scenario("Entries referenced again before they expire are kept") {
+            val map = newMap()
+            val key = connKey(1)
+            map.putAndRef(key, true)
+            map.unref(key, 0)
+            map.ref(key)
+            map.obliterateIdleEntries(idleMillis, Nil, collect) shouldBe Nil
+            map.get(key) shouldBe true
+
+            When("The entry is released again later")
+            map.unref(key, 500)
+
+            Then("It expires from the time it was last released")
+            map.obliterateIdleEntries(idleMillis + 499, Nil, collect) shouldBe Nil
+            map.obliterateIdleEntries(idleMillis + 500, Nil, collect) shouldBe
+                List((key, true))
+        }
+
+        scenario("The map grows and shrinks like a hash map") {
+            Given("A small map and a model of it")
+            val map = newMap(capacity = 16)
+            val model = new HashMap[ConnTrackKey, ConnTrackValue]()
+            val random = new Random(1)
+
+            When("Entries are randomly added and expired")
+            var now = 0L
+            for (round <- 0 until 20) {
+                for (i <- 0 until 500) {
+                    val key = connKey(random.nextInt(5000))
+                    val value: ConnTrackValue = random.nextBoolean()
+                    if (!model.containsKey(key)) {
+                        map.putAndRef(key, value) shouldBe null
+                        map.unref(key, now)
+                        model.put(key, value)
+                    }
+                }
+                now += idleMillis
+                val expired = map.obliterateIdleEntries(now, Nil, collect)
+                for ((key, value) <- expired) {
+                    model.remove(key) shouldBe value
+                }
+                now += 1
+            }
+
+            Then("The map holds the same entries as the model")
+            map.capacity should be > 16
+            map.size shouldBe model.size
+            val it = model.entrySet().iterator()
+            while (it.hasNext) {
+                val e = it.next()
+                map.get(e.getKey) shouldBe e.getValue
+            }
+            map.fold(0, new Reducer[ConnTrackKey, ConnTrackValue, Int] {
+                override def apply(acc: Int, key: ConnTrackKey,
+                                   value: ConnTrackValue) = {
+                    model.get(key) shouldBe value
+                    acc + 1
+                }
+            }) shouldBe model.size
+
+            And("Expiring all the entries empties the map")
+            map.obliterateIdleEntries(Long.MaxValue, Nil, collect) should have size model.size
+            map.size shouldBe 0
+        }
+
+        scenario("The capacity must be a power of two") {
+            an [IllegalArgumentException] should be thrownBy newMap(capacity = 12)
+        }
+    }
+
+    feature("Readers see a consistent map") {
+        scenario("A reader always finds the entries that are not removed") {
+            Given("A map with entries that are kept")
+            val map = newMap(capacity = 16)
+            val kept = (0 until 64) map { i => connKey(100000 + i) }
+            kept foreach { map.putAndRef(_, true) }
+
+            When("A writer adds and removes other entries")
+            val running = new AtomicBoolean(true)
+            val writer = new Thread() {
+                override def run(): Unit = {
+                    var now = 0L
+                    var i = 0
+                    while (running.get) {
+                        val key = connKey(i % 20000)
+                        map.putAndRef(key, false)
+                        map.unref(key, now)
+                        if (i % 100 == 0) {
+                            now += idleMillis
+                            map.obliterateIdleEntries(now, (), map.identityReducer)
+                        }
+                        i += 1
+                    }
+                }
+            }
+            writer.start()
+
+            Then("Another thread finds all the entries that are kept")
+            try {
+                for (round <- 0 until 20000; key <- kept) {
+                    map.get(key) shouldBe true
+                }
+            } finally {
+                running.set(false)
+                writer.join()
+            }
+        }
+    }
+
+    feature("Keys are encoded") {
+        scenario("Connection tracking keys") {
+            val keys = List(
+                connKey(1),
+                ConnTrackKey(IPv4Addr.fromString("255.255.255.255"), -1,
+                             IPv4Addr.fromString("0.0.0.1"), 65535, 1,
+                             new UUID(-1L, 0L)),
+                ConnTrackKey(IPv4Addr.fromString("10.0.0.1"), -32768,
+                             IPv4Addr.fromString("10.0.0.2"), 0, -1,
+                             UUID.randomUUID()))
+            for (key <- keys) {
+                ConnTrackKeyCodec.canEncode(key) shouldBe true
+                ConnTrackKeyCodec.decode(
+                    ConnTrackKeyCodec.encode(key, 0),
+                    ConnTrackKeyCodec.encode(key, 1),
+                    ConnTrackKeyCodec.encode(key, 2),
+                    ConnTrackKeyCodec.encode(key, 3),
+                    ConnTrackKeyCodec.encode(key, 4)) shouldBe key
+            }
+            ConnTrackKeyCodec.canEncode(
+                ConnTrackKey(IPv6Addr.random, 1, IPv6Addr.random, 2, 6,
+                             deviceId)) shouldBe false
+        }
+
+        scenario("NAT keys") {
+            for (keyType <- List(FWD_SNAT, FWD_DNAT, FWD_STICKY_DNAT,
+                                 REV_SNAT, REV_DNAT, REV_STICKY_DNAT)) {
+                val key = NatKey(keyType, IPv4Addr.random, 5000,
+                                 IPv4Addr.random, 0xffff, 17, deviceId)
+                NatKeyCodec.canEncode(key) shouldBe true
+                val decoded = NatKeyCodec.decode(NatKeyCodec.encode(key, 0),
+                                                 NatKeyCodec.encode(key, 1),
+                                                 NatKeyCodec.encode(key, 2),
+                                                 NatKeyCodec.encode(key, 3),
+                                                 NatKeyCodec.encode(key, 4))
+                decoded shouldBe key
+                decoded.expiresAfter shouldBe key.expiresAfter
+            }
+        }
+    }
+
+    feature("Sharded tables store encodable keys in primitive maps") {
+        scenario("Keys that can't be encoded are also stored") {
+            val clock = new MockClock
+            val table = new ShardedFlowStateTable[ConnTrackKey, ConnTrackValue](
+                clock, ConnTrackKeyCodec)
+            val shard = table.addShard(log)
+            val otherShard = table.addShard(log)
+            val v4Key = connKey(1)
+            val v6Key = ConnTrackKey(IPv6Addr.random, 1, IPv6Addr.random, 2, 6,
+                                     deviceId)
+
+            shard.putAndRef(v4Key, true)
+            shard.putAndRef(v6Key, false)
+            otherShard.get(v4Key) shouldBe true
+            otherShard.get(v6Key) shouldBe false
+            table.fold(Nil, collect).toSet shouldBe Set((v4Key, true),
+                                                        (v6Key, false))
+
+            shard.unref(v4Key)
+            shard.unref(v6Key)
+            clock.time += idleMillis * 1000000L
+            shard.expireIdleEntries(Nil, collect).toSet shouldBe
+                Set((v4Key, true), (v6Key, false))
+            table.get(v4Key) shouldBe null
+            table.get(v6Key) shouldBe null
+        }
+    }
+}
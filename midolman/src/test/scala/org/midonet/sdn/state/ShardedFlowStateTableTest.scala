@@ -0,0 +1,202 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.midonet.sdn.state
+
+import java.util.UUID
+
+import org.junit.runner.RunWith
+import org.scalatest.{FeatureSpec, GivenWhenThen, Matchers}
+import org.scalatest.junit.JUnitRunner
+import org.slf4j.helpers.NOPLogger
+import com.typesafe.scalalogging.Logger
+
+import org.midonet.midolman.state.ConnTrackState._
+import org.midonet.odp.FlowMatch
+import org.midonet.packets.{IPv4Addr, TCP}
+import org.midonet.util.concurrent.MockClock
+
+@RunWith(classOf[JUnitRunner])
+class ShardedFlowStateTableTest extends FeatureSpec
+                                with Matchers
+                                with GivenWhenThen {
+
+    val log = Logger(NOPLogger.NOP_LOGGER)
+    val numShards = 8
+    val deviceId = UUID.randomUUID()
+
+    def connection(i: Int) =
+        new FlowMatch().setEtherType(0x0800.toShort)
+                       .setNetworkSrc(IPv4Addr.fromInt(0x0a000000 + i))
+                       .setNetworkDst(IPv4Addr.fromInt(0x0b000000 + i))
+                       .setNetworkProto(TCP.PROTOCOL_NUMBER)
+                       .setSrcPort(1024 + i)
+                       .setDstPort(80)
+
+    def worker(fmatch: FlowMatch) =
+        Math.abs(fmatch.connectionHash % numShards)
+
+    def newTable() = {
+        val clock = new MockClock
+        val table = new ShardedFlowStateTable[ConnTrackKey, ConnTrackValue](
+            clock, ConnTrackKeyCodec)
+        val shards = (0 until numShards) map { _ => table.addShard(log) }
+        (clock, table, shards)
+    }
+
+    /* Finds a connection whose return key isn't owned by the given shards */
+    def misplacedConnection(table: ShardedFlowStateTable[ConnTrackKey, ConnTrackValue],
+                            shards: Int*) =
+        (0 until 1000) map connection find { fmatch =>
+            !shards.contains(table.ownerOf(EgressConnTrackKey(fmatch, deviceId)))
+        } get
+
+    feature("Keys are owned by the shard of their connection") {
+        scenario("Both directions of a connection belong to the same shard") {
+            val (_, table, _) = newTable()
+            for (i <- 0 until 100) {
+                val fmatch = connection(i)
+                table.ownerOf(ConnTrackKey(fmatch, deviceId)) shouldBe worker(fmatch)
+                table.ownerOf(EgressConnTrackKey(fmatch, deviceId)) shouldBe worker(fmatch)
+            }
+        }
+
+        scenario("Keys written by their owner are found from any shard") {
+            val (_, table, shards) = newTable()
+            val fmatch = connection(1)
+            val key = EgressConnTrackKey(fmatch, deviceId)
+            shards(worker(fmatch)).putAndRef(key, RETURN_FLOW)
+
+            for (shard <- shards) {
+                shard.get(key) shouldBe RETURN_FLOW
+            }
+            table.get(key) shouldBe RETURN_FLOW
+            table.getRefCount(key) shouldBe 1
+        }
+    }
+
+    feature("Keys written by other shards are found through their owner") {
+        scenario("A misplaced key is found until it expires") {
+            Given("A key written by a shard that doesn't own it")
+            val (clock, table, shards) = newTable()
+            val fmatch = misplacedConnection(table, 0)
+            val key = EgressConnTrackKey(fmatch, deviceId)
+            val owner = table.ownerOf(key)
+            shards(0).putAndRef(key, RETURN_FLOW)
+
+            Then("The key is found from any shard")
+            for (shard <- shards) {
+                shard.get(key) shouldBe RETURN_FLOW
+            }
+            table.getRefCount(key) shouldBe 1
+            shards(owner).misplacedHolders(key) shouldBe List(shards(0))
+
+            When("The key expires")
+            table.unref(key)
+            shards(0).expireIdleEntries()
+            table.getRefCount(key) shouldBe 0
+            clock.time += key.expiresAfter.toNanos
+            shards(0).expireIdleEntries()
+
+            Then("It's no longer found")
+            shards(owner).misplacedHolders(key) shouldBe Nil
+            for (shard <- shards) {
+                shard.get(key) shouldBe null
+            }
+        }
+
+        scenario("Imported keys are not registered with their owner") {
+            val (_, table, shards) = newTable()
+            val fmatch = misplacedConnection(table, 0)
+            val key = EgressConnTrackKey(fmatch, deviceId)
+            val owner = table.ownerOf(key)
+
+            shards(0).touch(key, RETURN_FLOW)
+            shards(owner).misplacedHolders(key) shouldBe Nil
+            shards(0).get(key) shouldBe RETURN_FLOW
+
+            shards(owner).touch(key, RETURN_FLOW)
+            shards((owner + 1) % numShards).get(key) shouldBe RETURN_FLOW
+        }
+
+        scenario("A key written by several shards is found until all expire") {
+            Given("A key written by two shards that don't own it")
+            val (clock, table, shards) = newTable()
+            val fmatch = misplacedConnection(table, 0, 1)
+            val key = EgressConnTrackKey(fmatch, deviceId)
+            val owner = table.ownerOf(key)
+            shards(0).putAndRef(key, RETURN_FLOW)
+            shards(1).putAndRef(key, RETURN_FLOW)
+
+            Then("Both shards are registered with the owner")
+            shards(owner).misplacedHolders(key).toSet shouldBe
+                Set(shards(0), shards(1))
+            table.getRefCount(key) shouldBe 2
+
+            When("The key expires in the first shard")
+            shards(0).unref(key)
+            clock.time += key.expiresAfter.toNanos
+            shards(0).expireIdleEntries()
+
+            Then("It's still found through the second shard")
+            shards(owner).misplacedHolders(key) shouldBe List(shards(1))
+            shards(owner).get(key) shouldBe RETURN_FLOW
+            shards(0).get(key) shouldBe RETURN_FLOW
+        }
+    }
+
+    feature("Writes through the table are applied by the shard's thread") {
+        scenario("Touching a key is deferred to its owner") {
+            val (_, table, shards) = newTable()
+            val key = EgressConnTrackKey(connection(1), deviceId)
+            val owner = table.ownerOf(key)
+
+            table.touch(key, RETURN_FLOW)
+            shards(owner).shallowGet(key) shouldBe null
+
+            shards(owner).expireIdleEntries()
+            shards(owner).shallowGet(key) shouldBe RETURN_FLOW
+            table.get(key) shouldBe RETURN_FLOW
+        }
+
+        scenario("Referencing a key is deferred to its holder") {
+            val (_, table, shards) = newTable()
+            val fmatch = misplacedConnection(table, 0)
+            val key = EgressConnTrackKey(fmatch, deviceId)
+            shards(0).putAndRef(key, RETURN_FLOW)
+
+            table.ref(key) shouldBe RETURN_FLOW
+            table.getRefCount(key) shouldBe 1
+
+            shards(0).expireIdleEntries()
+            table.getRefCount(key) shouldBe 2
+        }
+    }
+
+    feature("Tables without a codec are not sharded by key") {
+        scenario("Keys are looked up in every shard") {
+            val table = new ShardedFlowStateTable[ConnTrackKey, ConnTrackValue](
+                new MockClock)
+            val shards = (0 until numShards) map { _ => table.addShard(log) }
+            val key = EgressConnTrackKey(connection(1), deviceId)
+
+            shards(3).putAndRef(key, RETURN_FLOW)
+            shards(5).get(key) shouldBe RETURN_FLOW
+            table.ref(key) shouldBe RETURN_FLOW
+            table.getRefCount(key) shouldBe 2
+        }
+    }
+}
@@ -0,0 +1,356 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.packets;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * An immutable set of IPv4 and IPv6 addresses and subnets, kept in primitive
+ * arrays. Each member is stored as the range of addresses it covers, and the
+ * members of each address family are sorted by their first and last address.
+ * Next to each member is the greatest last address of the members up to it,
+ * so that the members containing an address are found with one binary search:
+ * some member contains it if and only if that greatest last address, for the
+ * last member starting at or before the address, is not before it.
+ *
+ * A set is changed with update(), which looks up the new members in the
+ * current ones instead of rebuilding the set. The members that did not change
+ * are copied over as they are, and only the added ones are sorted.
+ */
+public final class IPAddrSet {
+
+    public static final IPAddrSet EMPTY =
+        new IPAddrSet(Table.EMPTY_V4, Table.EMPTY_V6);
+
+    /**
+     * The members of one address family. For IPv4, only the lower words are
+     * used, and the arrays of upper words are null.
+     */
+    private static final class Table {
+
+        static final Table EMPTY_V4 = new Table(false, 0);
+        static final Table EMPTY_V6 = new Table(true, 0);
+
+        final int size;
+        final long[] startHi, startLo;
+        final long[] endHi, endLo;
+        final long[] maxHi, maxLo;
+
+        Table(boolean v6, int size) {
+            this.size = size;
+            startHi = v6 ? new long[size] : null;
+            startLo = new long[size];
+            endHi = v6 ? new long[size] : null;
+            endLo = new long[size];
+            maxHi = v6 ? new long[size] : null;
+            maxLo = new long[size];
+        }
+
+        boolean isV6() {
+            return startHi != null;
+        }
+
+        private static long word(long[] words, int i) {
+            return words == null ? 0L : words[i];
+        }
+
+        /** Finds the member with these first and last addresses, returning
+         *  its index or -1. */
+        int indexOf(long sHi, long sLo, long eHi, long eLo) {
+            int low = 0, high = size - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                int c = compare(word(startHi, mid), startLo[mid], sHi, sLo);
+                if (c == 0)
+                    c = compare(word(endHi, mid), endLo[mid], eHi, eLo);
+                if (c < 0)
+                    low = mid + 1;
+                else if (c > 0)
+                    high = mid - 1;
+                else
+                    return mid;
+            }
+            return -1;
+        }
+
+        boolean contains(long hi, long lo) {
+            // The last member starting at or before the address
+            int low = 0, high = size - 1, last = -1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (compare(word(startHi, mid), startLo[mid], hi, lo) <= 0) {
+                    last = mid;
+                    low = mid + 1;
+                } else {
+                    high = mid - 1;
+                }
+            }
+            return last >= 0 &&
+                   compare(word(maxHi, last), maxLo[last], hi, lo) >= 0;
+        }
+
+        /**
+         * Returns the table with the members marked as kept and the members
+         * added, which must be sorted, unique and not in this table.
+         */
+        Table update(long[] kept, int keptCount, Members added) {
+            Table table = new Table(isV6(), keptCount + added.size);
+            int i = 0, j = 0, k = 0;
+            while (k < table.size) {
+                while (i < size && (kept[i >>> 6] & (1L << i)) == 0)
+                    i++;
+                boolean takeOld = j == added.size ||
+                    (i < size && added.compareTo(j, word(startHi, i),
+                         startLo[i], word(endHi, i), endLo[i]) > 0);
+                if (takeOld) {
+                    table.set(k, word(startHi, i), startLo[i],
+                              word(endHi, i), endLo[i]);
+                    i++;
+                } else {
+                    table.set(k, added.startHi(j), added.startLo(j),
+                              added.endHi(j), added.endLo(j));
+                    j++;
+                }
+                k++;
+            }
+            return table;
+        }
+
+        private void set(int i, long sHi, long sLo, long eHi, long eLo) {
+            if (startHi != null) {
+                startHi[i] = sHi;
+                endHi[i] = eHi;
+            }
+            startLo[i] = sLo;
+            endLo[i] = eLo;
+            if (i == 0 || compare(eHi, eLo, word(maxHi, i - 1),
+                                  maxLo[i - 1]) > 0) {
+                if (maxHi != null)
+                    maxHi[i] = eHi;
+                maxLo[i] = eLo;
+            } else {
+                if (maxHi != null)
+                    maxHi[i] = maxHi[i - 1];
+                maxLo[i] = maxLo[i - 1];
+            }
+        }
+
+        void addMembersTo(List<IPSubnet<?>> members) {
+            for (int i = 0; i < size; i++) {
+                if (startHi == null) {
+                    int prefixLen = 32 - Long.bitCount(startLo[i] ^ endLo[i]);
+                    members.add(new IPv4Subnet((int) startLo[i], prefixLen));
+                } else {
+                    int prefixLen = 128 - Long.bitCount(startHi[i] ^ endHi[i])
+                                    - Long.bitCount(startLo[i] ^ endLo[i]);
+                    members.add(new IPv6Subnet(
+                        new IPv6Addr(startHi[i], startLo[i]), prefixLen));
+                }
+            }
+        }
+    }
+
+    /** A growable list of the ranges of members, four words per member. */
+    private static final class Members {
+        long[] words = new long[64];
+        int size;
+
+        void add(long sHi, long sLo, long eHi, long eLo) {
+            if (4 * size == words.length)
+                words = Arrays.copyOf(words, 2 * words.length);
+            words[4 * size] = sHi;
+            words[4 * size + 1] = sLo;
+            words[4 * size + 2] = eHi;
+            words[4 * size + 3] = eLo;
+            size++;
+        }
+
+        long startHi(int i) { return words[4 * i]; }
+        long startLo(int i) { return words[4 * i + 1]; }
+        long endHi(int i) { return words[4 * i + 2]; }
+        long endLo(int i) { return words[4 * i + 3]; }
+
+        int compareTo(int i, long sHi, long sLo, long eHi, long eLo) {
+            int c = compare(startHi(i), startLo(i), sHi, sLo);
+            return c != 0 ? c : compare(endHi(i), endLo(i), eHi, eLo);
+        }
+
+        /** Sorts the members, dropping the duplicates. */
+        void sortUnique() {
+            if (size < 2)
+                return;
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++)
+                order[i] = i;
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return compareTo(a, startHi(b), startLo(b),
+                                     endHi(b), endLo(b));
+                }
+            });
+            long[] sorted = new long[words.length];
+            int n = 0;
+            for (int i = 0; i < size; i++) {
+                int m = order[i];
+                if (n > 0 && compareTo(m, sorted[4 * n - 4], sorted[4 * n - 3],
+                                       sorted[4 * n - 2], sorted[4 * n - 1]) == 0)
+                    continue;
+                System.arraycopy(words, 4 * m, sorted, 4 * n, 4);
+                n++;
+            }
+            words = sorted;
+            size = n;
+        }
+    }
+
+    private static int compare(long aHi, long aLo, long bHi, long bLo) {
+        int c = Long.compare(aHi ^ Long.MIN_VALUE, bHi ^ Long.MIN_VALUE);
+        return c != 0 ? c : Long.compare(aLo ^ Long.MIN_VALUE,
+                                         bLo ^ Long.MIN_VALUE);
+    }
+
+    private final Table v4;
+    private final Table v6;
+
+    private IPAddrSet(Table v4, Table v6) {
+        this.v4 = v4;
+        this.v6 = v6;
+    }
+
+    /**
+     * Returns a set with the given members, which may be IPAddr or IPSubnet
+     * instances.
+     */
+    public static IPAddrSet of(Collection<?> members) {
+        return EMPTY.update(members);
+    }
+
+    /** The number of members, counting each subnet as one. */
+    public int size() {
+        return v4.size + v6.size;
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    /** Whether the address is one of the members, or is in one of the
+     *  member subnets. */
+    public boolean contains(IPAddr addr) {
+        if (addr instanceof IPv4Addr) {
+            return v4.contains(0L, Unsigned.unsign(((IPv4Addr) addr).toInt()));
+        } else if (addr instanceof IPv6Addr) {
+            IPv6Addr ipv6 = (IPv6Addr) addr;
+            return v6.contains(ipv6.upperWord(), ipv6.lowerWord());
+        }
+        return false;
+    }
+
+    /**
+     * Returns a set whose members are the given ones, which may be IPAddr or
+     * IPSubnet instances. Duplicates are ignored. Returns this set if its
+     * members are the same.
+     */
+    public IPAddrSet update(Collection<?> members) {
+        long[] keptV4 = new long[(v4.size + 63) >>> 6];
+        long[] keptV6 = new long[(v6.size + 63) >>> 6];
+        int keptV4Count = 0, keptV6Count = 0;
+        Members addedV4 = new Members();
+        Members addedV6 = new Members();
+        long[] range = new long[4];
+        for (Object member : members) {
+            boolean isV6 = toRange(member, range);
+            Table table = isV6 ? v6 : v4;
+            long[] kept = isV6 ? keptV6 : keptV4;
+            int i = table.indexOf(range[0], range[1], range[2], range[3]);
+            if (i < 0) {
+                (isV6 ? addedV6 : addedV4).add(range[0], range[1],
+                                               range[2], range[3]);
+            } else if ((kept[i >>> 6] & (1L << i)) == 0) {
+                kept[i >>> 6] |= 1L << i;
+                if (isV6) keptV6Count++; else keptV4Count++;
+            }
+        }
+        addedV4.sortUnique();
+        addedV6.sortUnique();
+
+        Table nextV4 = keptV4Count == v4.size && addedV4.size == 0
+                       ? v4 : v4.update(keptV4, keptV4Count, addedV4);
+        Table nextV6 = keptV6Count == v6.size && addedV6.size == 0
+                       ? v6 : v6.update(keptV6, keptV6Count, addedV6);
+        return nextV4 == v4 && nextV6 == v6
+               ? this : new IPAddrSet(nextV4, nextV6);
+    }
+
+    /* Writes the range of addresses of a member, returning whether it is
+     * an IPv6 member. */
+    private static boolean toRange(Object member, long[] range) {
+        IPAddr addr;
+        int prefixLen;
+        if (member instanceof IPSubnet) {
+            IPSubnet<?> subnet = (IPSubnet<?>) member;
+            addr = subnet.getAddress();
+            prefixLen = subnet.getPrefixLen();
+        } else if (member instanceof IPAddr) {
+            addr = (IPAddr) member;
+            prefixLen = addr instanceof IPv4Addr ? 32 : 128;
+        } else {
+            throw new IllegalArgumentException(
+                "Not an IP address or subnet: " + member);
+        }
+
+        if (addr instanceof IPv4Addr) {
+            long mask = prefixLen == 0 ? 0L : (~0L << (32 - prefixLen));
+            long value = Unsigned.unsign(((IPv4Addr) addr).toInt());
+            range[0] = 0L;
+            range[1] = value & mask & 0xffffffffL;
+            range[2] = 0L;
+            range[3] = (value | ~mask) & 0xffffffffL;
+            return false;
+        } else if (addr instanceof IPv6Addr) {
+            IPv6Addr ipv6 = (IPv6Addr) addr;
+            long hiMask = prefixLen == 0 ? 0L :
+                          prefixLen >= 64 ? ~0L : ~0L << (64 - prefixLen);
+            long loMask = prefixLen <= 64 ? 0L :
+                          prefixLen == 128 ? ~0L : ~0L << (128 - prefixLen);
+            range[0] = ipv6.upperWord() & hiMask;
+            range[1] = ipv6.lowerWord() & loMask;
+            range[2] = ipv6.upperWord() | ~hiMask;
+            range[3] = ipv6.lowerWord() | ~loMask;
+            return true;
+        }
+        throw new IllegalArgumentException(
+            "Not an IPv4 or IPv6 address: " + addr);
+    }
+
+    /** The members, with the addresses as subnets of a single address. */
+    public List<IPSubnet<?>> members() {
+        List<IPSubnet<?>> members = new ArrayList<>(size());
+        v4.addMembersTo(members);
+        v6.addMembersTo(members);
+        return members;
+    }
+
+    @Override
+    public String toString() {
+        return "IPAddrSet" + members();
+    }
+}
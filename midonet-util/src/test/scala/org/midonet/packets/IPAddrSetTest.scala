@@ -0,0 +1,95 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.packets
+
+import scala.collection.JavaConverters._
+import scala.util.Random
+
+import org.junit.runner.RunWith
+import org.scalatest._
+import org.scalatest.junit.JUnitRunner
+
+@RunWith(classOf[JUnitRunner])
+class IPAddrSetTest extends FunSpec with Matchers {
+
+    private def set(members: AnyRef*) = IPAddrSet.of(members.asJava)
+
+    describe("IPAddrSet") {
+        it("should contain its addresses and nothing else") {
+            val s = set(IPv4Addr("10.0.0.1"), IPv4Addr("10.0.0.3"),
+                        IPv6Addr("fe80::1"))
+            s.size shouldBe 3
+            s.contains(IPv4Addr("10.0.0.1")) shouldBe true
+            s.contains(IPv4Addr("10.0.0.3")) shouldBe true
+            s.contains(IPv4Addr("10.0.0.2")) shouldBe false
+            s.contains(IPv6Addr("fe80::1")) shouldBe true
+            s.contains(IPv6Addr("fe80::2")) shouldBe false
+            IPAddrSet.EMPTY.contains(IPv4Addr("10.0.0.1")) shouldBe false
+        }
+
+        it("should contain the addresses of its subnets") {
+            val s = set(IPv4Subnet.fromCidr("10.0.0.0/8"),
+                        IPv4Subnet.fromCidr("10.1.2.0/24"),
+                        IPv4Subnet.fromCidr("192.168.0.0/30"),
+                        IPv6Subnet.fromString("2001:db8::/32"))
+            s.contains(IPv4Addr("10.255.0.1")) shouldBe true
+            s.contains(IPv4Addr("10.1.2.3")) shouldBe true
+            s.contains(IPv4Addr("11.0.0.0")) shouldBe false
+            s.contains(IPv4Addr("192.168.0.3")) shouldBe true
+            s.contains(IPv4Addr("192.168.0.4")) shouldBe false
+            s.contains(IPv6Addr("2001:db8:1::1")) shouldBe true
+            s.contains(IPv6Addr("2001:db9::1")) shouldBe false
+        }
+
+        it("should add and remove members on update") {
+            val s1 = set(IPv4Addr("10.0.0.1"), IPv4Subnet.fromCidr("10.0.0.0/24"))
+            val s2 = s1.update(List(IPv4Subnet.fromCidr("10.0.0.0/24"),
+                                    IPv4Addr("10.0.1.1")).asJava)
+            s2.size shouldBe 2
+            s2.contains(IPv4Addr("10.0.0.1")) shouldBe true
+            s2.contains(IPv4Addr("10.0.1.1")) shouldBe true
+
+            val s3 = s2.update(List(IPv4Addr("10.0.1.1")).asJava)
+            s3.contains(IPv4Addr("10.0.0.1")) shouldBe false
+            s3.members.asScala shouldBe Seq(IPv4Subnet.fromCidr("10.0.1.1/32"))
+
+            s3.update(List().asJava).isEmpty shouldBe true
+        }
+
+        it("should return itself when the members don't change") {
+            val s = set(IPv4Addr("10.0.0.1"), IPv6Addr("::1"))
+            s.update(List(IPv6Addr("::1"), IPv4Addr("10.0.0.1"),
+                          IPv4Addr("10.0.0.1")).asJava) should be theSameInstanceAs s
+        }
+
+        it("should match the subnets it is updated with") {
+            val random = new Random(7)
+            var members = List[IPv4Subnet]()
+            var s = IPAddrSet.EMPTY
+            for (i <- 0 until 100) {
+                members = members.filter(_ => random.nextInt(10) != 0) ++
+                          List.fill(random.nextInt(5))(new IPv4Subnet(
+                              0x0a000000 + random.nextInt(256),
+                              24 + random.nextInt(9)))
+                s = s.update(members.asJava)
+                for (j <- 0 until 100) {
+                    val addr = IPv4Addr(0x0a000000 + random.nextInt(300))
+                    s.contains(addr) shouldBe members.exists(_.containsAddress(addr))
+                }
+            }
+        }
+    }
+}
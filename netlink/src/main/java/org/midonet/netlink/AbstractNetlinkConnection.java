@@ -44,7 +44,7 @@ public abstract class AbstractNetlinkConnection {
 
     private static final int DEFAULT_MAX_BATCH_IO_OPS = 200;
     private static final int NETLINK_HEADER_LEN = 20;
-    private static final int NETLINK_READ_BUFSIZE = 0x10000;
+    public static final int NETLINK_READ_BUFSIZE = 0x10000;
 
     protected static final long DEF_REPLY_TIMEOUT = TimeUnit.SECONDS.toMillis(1);
 
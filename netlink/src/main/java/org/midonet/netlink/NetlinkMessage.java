@@ -165,6 +165,18 @@ public final class NetlinkMessage {
         return 8;
     }
 
+    /** write an array of 4B ints as a single netlink attribute into a
+     *  buffer, with header. */
+    public static int writeIntArrayAttr(ByteBuffer buf, short id,
+                                        int[] values) {
+        int len = 4 + 4 * values.length;
+        NetlinkMessage.setAttrHeader(buf, id, len);
+        for (int value : values) {
+            buf.putInt(value);
+        }
+        return len;
+    }
+
     /** write a 2B short netlink attribute into a buffer, with header. Padding
      *  for 4B alignement is added. */
     public static int writeShortAttr(ByteBuffer buf, short id, short value) {
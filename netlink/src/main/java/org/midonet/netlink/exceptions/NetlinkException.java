@@ -69,6 +69,9 @@ public class NetlinkException extends Exception {
 
     int errorCode;
 
+    /* The sequence number of the request this error replies to, if known. */
+    int sequence;
+
     public static final int ERROR_SENDING_REQUEST = -1;
     public static final int GENERIC_IO_ERROR = -2;
 
@@ -92,6 +95,12 @@ public class NetlinkException extends Exception {
         this.errorCode = errorCode;
     }
 
+    public NetlinkException(int errorCode, String message, int sequence) {
+        super(format(errorCode, message));
+        this.errorCode = errorCode;
+        this.sequence = sequence;
+    }
+
     public NetlinkException(int errorCode, String message, Throwable cause) {
         super(format(errorCode, message), cause);
         this.errorCode = errorCode;
@@ -119,6 +128,10 @@ public class NetlinkException extends Exception {
         return errorCode;
     }
 
+    public int getSequence() {
+        return sequence;
+    }
+
     private static String format(int errorCode, String message) {
         if (message != null)
             return "[" + errorCode + "] " + message;
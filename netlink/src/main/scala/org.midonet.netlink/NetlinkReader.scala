@@ -57,7 +57,8 @@ class NetlinkReader(val channel: NetlinkChannel) {
                 val error = dst.getInt(start + NetlinkMessage.NLMSG_ERROR_OFFSET)
                 if (error != 0) {
                     val errorMessage = cLibrary.lib.strerror(-error)
-                    throw new NetlinkException(-error, errorMessage)
+                    val seq = dst.getInt(start + NetlinkMessage.NLMSG_SEQ_OFFSET)
+                    throw new NetlinkException(-error, errorMessage, seq)
                 }
             } else if (isTruncated(dst, nbytes, start) || msgType == NLMessageType.OVERRUN) {
                 throw MessageTruncated
@@ -88,6 +88,32 @@ class NetlinkMessageTest extends Suite with Matchers {
         (Random shuffle data.toSeq) foreach (IntHelper checkMessage buf)
     }
 
+    def testWritingReadingIntArrays() {
+        val buf = makeBuffer()
+        val data = (0 until 4) map { i =>
+            (Array.tabulate(i)(_ + 100), i.toShort)
+        }
+        data foreach { case (values, id) =>
+            NetlinkMessage.writeIntArrayAttr(buf, id, values) shouldBe
+                4 + 4 * values.length
+            (buf.position & 3) shouldBe 0
+        }
+        buf.flip
+        data foreach { case (values, id) =>
+            buf.getShort() shouldBe 4 + 4 * values.length
+            buf.getShort() shouldBe id
+            values foreach { buf.getInt() shouldBe _ }
+        }
+        buf.remaining shouldBe 0
+        buf.rewind()
+        data foreach { case (values, id) =>
+            val pos = NetlinkMessage seekAttribute (buf, id)
+            values.indices foreach { i =>
+                buf getInt (pos + 4 * i) shouldBe values(i)
+            }
+        }
+    }
+
     def testWritingReadingLongs() {
         val buf = makeBuffer()
         val data = LongHelper makeData 4
@@ -471,14 +471,20 @@ public class FlowMatch {
         srcPort = that.srcPort;
         dstPort = that.dstPort;
         icmpId = that.icmpId;
+        // Copy the lists element by element, as addAll() allocates an array
         vlanIds.clear();
-        vlanIds.addAll(that.vlanIds);
-        setIcmpData(that.icmpData);
+        for (int i = 0; i < that.vlanIds.size(); ++i) {
+            vlanIds.add(that.vlanIds.get(i));
+        }
+        icmpData = that.icmpData == null
+                   ? null : Arrays.copyOf(that.icmpData, that.icmpData.length);
         usedFields = that.usedFields;
         trackSeenFields = that.trackSeenFields;
         seenFields = that.seenFields;
         keys.clear();
-        keys.addAll(that.keys);
+        for (int i = 0; i < that.keys.size(); ++i) {
+            keys.add(that.keys.get(i));
+        }
         invalidateHashCode();
     }
 
@@ -722,7 +728,7 @@ public class FlowMatch {
         if (icmpData != null)
             this.icmpData = Arrays.copyOf(icmpData, icmpData.length);
         else
-            icmpData = null;
+            this.icmpData = null;
         return this;
     }
 
@@ -790,7 +796,8 @@ public class FlowMatch {
 
     /** Returns a hash code which only uses for its calculation fields that are
      *  part of a stateful L4 connection. This allows for  a consistent result
-     *  across multiple matches that belong to the same connection.
+     *  across multiple matches that belong to the same connection, in both
+     *  directions.
      */
     public int connectionHash() {
         if (connectionHash == 0) {
@@ -800,12 +807,12 @@ public class FlowMatch {
                 connHash = 31 * connHash + Field.TunnelSrc.hashCode(this);
                 connHash = 31 * connHash + Field.TunnelDst.hashCode(this);
             } else if (highestLayer(usedFields) >= 4) {
-                connHash = Field.NetworkSrc.hashCode(this);
-                connHash = 31 * connHash + Field.NetworkDst.hashCode(this);
-                connHash = 31 * connHash + Field.NetworkProto.hashCode(this);
-                connHash = 31 * connHash + Field.SrcPort.hashCode(this);
-                connHash = 31 * connHash + Field.DstPort.hashCode(this);
-                connHash = 31 * connHash + Field.IcmpId.hashCode(this);
+                boolean isIcmp = networkProto == ICMP.PROTOCOL_NUMBER;
+                connHash = connectionHash(Field.NetworkSrc.hashCode(this),
+                                          isIcmp ? icmpId : srcPort,
+                                          Field.NetworkDst.hashCode(this),
+                                          isIcmp ? icmpId : dstPort,
+                                          networkProto);
             } else {
                 connHash = hashCode();
             }
@@ -814,6 +821,27 @@ public class FlowMatch {
         return connectionHash;
     }
 
+    /**
+     * Hashes the endpoints and protocol of an L4 connection regardless of
+     * its direction, so that the packets flowing both ways, as well as the
+     * flow state keyed by the connection, hash to the same value. ICMP
+     * connections are identified by their ICMP id, in place of the ports.
+     */
+    public static int connectionHash(int networkSrcHash, int srcPort,
+                                     int networkDstHash, int dstPort,
+                                     byte networkProto) {
+        int src = 31 * networkSrcHash + (srcPort & 0xffff);
+        int dst = 31 * networkDstHash + (dstPort & 0xffff);
+        int hash = 31 * Math.min(src, dst) + Math.max(src, dst);
+        hash = 31 * hash + networkProto;
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        hash ^= hash >>> 16;
+        return hash;
+    }
+
     private void invalidateHashCode() {
         hashCode = 0;
         connectionHash = 0;
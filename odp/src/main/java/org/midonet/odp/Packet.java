@@ -30,12 +30,18 @@ import org.midonet.odp.flows.FlowActions;
 import org.midonet.odp.flows.FlowKey;
 import org.midonet.odp.flows.FlowKeys;
 import org.midonet.packets.Ethernet;
+import org.midonet.packets.MalformedPacketException;
 
 /**
  * An abstraction over the Ovs kernel datapath Packet entity. Contains an
  * {@link FlowMatch} object and a <code>byte[] data</code> member when triggered
  * via a kernel notification.
  *
+ * Packets received from the kernel only keep the raw frame: the
+ * {@link Ethernet} object tree is deserialized the first time it is
+ * requested, so that packets whose simulation only looks at the flow match
+ * never pay for parsing their payload.
+ *
  * @see FlowMatch
  */
 public class Packet {
@@ -51,6 +57,7 @@ public class Packet {
     private Long userData;
     private Reason reason;
     private Ethernet eth;
+    private byte[] data;
 
     // user field used by midolman packet pipeline to track time statistics,
     // ignored in equals() and hashCode()
@@ -61,12 +68,41 @@ public class Packet {
         this.match = match;
     }
 
+    public Packet(byte[] data, FlowMatch match) {
+        this.data = data;
+        this.match = match;
+    }
+
+    /**
+     * Returns the deserialized frame of this packet. Callers may modify the
+     * returned frame, in which case the packet data reflects the changes.
+     */
     public Ethernet getEthernet() {
+        if (eth == null && data != null) {
+            try {
+                eth = Ethernet.deserialize(data);
+            } catch (MalformedPacketException e) {
+                // The frame was checked when the packet was received
+                throw new IllegalStateException("Malformed packet", e);
+            }
+            data = null;
+        }
         return eth;
     }
 
+    /**
+     * Returns the serialized frame of this packet, without deserializing it
+     * if the frame was never requested.
+     */
     public byte[] getData() {
-        return eth.serialize();
+        return (eth == null && data != null) ? data : eth.serialize();
+    }
+
+    /**
+     * Whether the frame of this packet has been deserialized.
+     */
+    public boolean isParsed() {
+        return eth != null || data == null;
     }
 
     public FlowMatch getMatch() {
@@ -98,7 +134,7 @@ public class Packet {
         @SuppressWarnings("unchecked")
         Packet that = (Packet) o;
 
-        return Objects.equals(this.eth, that.eth)
+        return Objects.equals(this.getEthernet(), that.getEthernet())
             && Objects.equals(this.match, that.match)
             && Objects.equals(this.userData, that.userData)
             && (this.reason == that.reason);
@@ -106,7 +142,7 @@ public class Packet {
 
     @Override
     public int hashCode() {
-        int result = Objects.hashCode(eth);
+        int result = Objects.hashCode(getEthernet());
         result = 31 * result + Objects.hashCode(match);
         result = 31 * result + Objects.hashCode(userData);
         result = 31 * result + Objects.hashCode(reason);
@@ -116,7 +152,7 @@ public class Packet {
     @Override
     public String toString() {
         return "Packet{" +
-            "data=" + eth +
+            "data=" + getEthernet() +
             ", match=" + match +
             ", userData=" + userData +
             ", reason=" + reason +
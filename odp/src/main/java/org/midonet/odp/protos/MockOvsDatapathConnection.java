@@ -231,6 +231,15 @@ public class MockOvsDatapathConnection extends OvsDatapathConnection {
         // no op
     }
 
+    @Override
+    protected void _doPortsSetUpcallPids(@Nonnull DpPort port,
+                                         @Nonnull Datapath datapath,
+                                         @Nonnull int[] upcallPids,
+                                         @Nonnull Callback<DpPort> callback,
+                                         long timeoutMillis) {
+        callback.onSuccess(port);
+    }
+
     @Override
     protected void _doPortsEnumerate(@Nonnull Datapath datapath, @Nonnull Callback<Set<DpPort>> callback, long timeoutMillis) {
         Set<DpPort> myPorts = datapathPorts.get(datapath);
@@ -391,6 +391,30 @@ public abstract class OvsDatapathConnection extends AbstractNetlinkConnection {
                                         @Nonnull final Callback<DpPort> callback,
                                         final long timeoutMillis);
 
+    /**
+     * Callback based api for setting the netlink PIDs that receive the upcalls
+     * of a port. Datapaths supporting multiple upcall PIDs per port spread the
+     * upcalls of the port among them by flow hash.
+     *
+     * @param port       the port description.
+     * @param datapath   the datapath this port is located on.
+     * @param upcallPids the PIDs of the channels receiving the upcalls.
+     * @param callback   the callback that will be called with the result.
+     */
+    public void portsSetUpcallPids(final @Nonnull DpPort port,
+                                   final @Nonnull Datapath datapath,
+                                   final @Nonnull int[] upcallPids,
+                                   final @Nonnull Callback<DpPort> callback) {
+        _doPortsSetUpcallPids(port, datapath, upcallPids, callback,
+                              DEF_REPLY_TIMEOUT);
+    }
+
+    protected abstract void _doPortsSetUpcallPids(@Nonnull final DpPort port,
+                                                  @Nonnull final Datapath datapath,
+                                                  @Nonnull final int[] upcallPids,
+                                                  @Nonnull final Callback<DpPort> callback,
+                                                  final long timeoutMillis);
+
     /**
      * Callback based api for listing ports of a datapath.
      *
@@ -44,6 +44,7 @@ import org.midonet.odp.Packet;
 import org.midonet.odp.family.PacketFamily;
 import org.midonet.odp.flows.FlowAction;
 import org.midonet.odp.flows.FlowKey;
+import org.midonet.odp.flows.FlowKeyICMP;
 import org.midonet.odp.flows.FlowKeys;
 import org.midonet.packets.Ethernet;
 import org.midonet.util.BatchCollector;
@@ -70,41 +71,90 @@ public class OvsDatapathConnectionImpl extends OvsDatapathConnection {
         packetFamily = ovsNetlinkFamilies.packetFamily();
     }
 
+    /**
+     * Builds the packets received in the upcalls. The frame of a packet is
+     * copied out of the receive buffer as is, and deserialized only if the
+     * packet is an ICMP packet, whose userspace flow keys are built from the
+     * frame; otherwise, the frame is deserialized when it is first requested.
+     */
     static class PacketBuilder implements AttributeHandler {
         private ArrayList<FlowKey> keys = new ArrayList<>(16);
-        private Ethernet eth;
+        private byte[] data;
         private Long userData;
 
         public Packet buildFrom(ByteBuffer buf) {
             int datapathIndex = buf.getInt(); // ignored
             NetlinkMessage.scanAttributes(buf, this);
-            if (eth == null) {
+            if (data == null) {
                 keys.clear();
                 return null;
             }
-            FlowKeys.addUserspaceKeys(eth, keys);
-            Packet p = new Packet(eth, new FlowMatch(keys));
-            p.setUserData(userData);
-            eth = null;
+            Packet p = hasUserspaceKeys(keys)
+                ? buildParsed(data, keys)
+                : new Packet(data, new FlowMatch(keys));
+            if (p != null)
+                p.setUserData(userData);
+            data = null;
             keys.clear();
             userData = null;
             return p;
         }
 
+        private static boolean hasUserspaceKeys(ArrayList<FlowKey> keys) {
+            for (int i = 0; i < keys.size(); ++i) {
+                if (keys.get(i) instanceof FlowKeyICMP)
+                    return true;
+            }
+            return false;
+        }
+
+        private static Packet buildParsed(byte[] data,
+                                          ArrayList<FlowKey> keys) {
+            try {
+                Ethernet eth = Ethernet.deserialize(data);
+                FlowKeys.addUserspaceKeys(eth, keys);
+                return new Packet(eth, new FlowMatch(keys));
+            } catch (Exception e) {
+                log.warn("Dropping malformed packet", e);
+                return null;
+            }
+        }
+
+        /**
+         * Checks that the ethernet header of a frame, including its VLAN
+         * tags, is complete, without deserializing it.
+         */
+        static boolean isWellFormed(ByteBuffer buf) {
+            int limit = buf.limit();
+            if (limit - buf.position() < Ethernet.MIN_HEADER_LEN)
+                return false;
+            int pos = buf.position() + 12; // skip the MAC addresses
+            short etherType = buf.getShort(pos);
+            while (etherType == Ethernet.VLAN_TAGGED_FRAME ||
+                   etherType == Ethernet.PROVIDER_BRIDGING_TAG) {
+                if (limit - pos - 2 < Ethernet.HEADER_TPID_LEN)
+                    return false;
+                pos += Ethernet.HEADER_TPID_LEN;
+                etherType = buf.getShort(pos);
+            }
+            return true;
+        }
+
         @Override
         public void use(ByteBuffer buffer, short id) {
             switch(NetlinkMessage.unnest(id)) {
                 case OpenVSwitch.Packet.Attr.Packet:
                     ByteOrder originalOrder = buffer.order();
-                    try {
-                        eth = new Ethernet();
-                        eth.deserialize(buffer);
-                    } catch (Exception e) {
-                        log.warn("Dropping malformed packet", e);
-                        this.eth = null;
-                    } finally {
-                        buffer.order(originalOrder);
+                    buffer.order(ByteOrder.BIG_ENDIAN);
+                    if (isWellFormed(buffer)) {
+                        data = new byte[buffer.remaining()];
+                        buffer.get(data);
+                    } else {
+                        log.warn("Dropping malformed packet of {} bytes",
+                                 buffer.remaining());
+                        data = null;
                     }
+                    buffer.order(originalOrder);
                     break;
 
                 case OpenVSwitch.Packet.Attr.Key:
@@ -294,6 +344,17 @@ public class OvsDatapathConnectionImpl extends OvsDatapathConnection {
         sendNetlinkMessage(buf, callback, DpPort.deserializer, timeoutMillis);
     }
 
+    @Override
+    protected void _doPortsSetUpcallPids(@Nonnull final DpPort port,
+                                         @Nonnull final Datapath datapath,
+                                         @Nonnull final int[] upcallPids,
+                                         @Nonnull final Callback<DpPort> callback,
+                                         final long timeoutMillis) {
+        ByteBuffer buf = getBuffer();
+        protocol.prepareDpPortSetUpcallPids(datapath.getIndex(), port,
+                                            upcallPids, buf);
+        sendNetlinkMessage(buf, callback, DpPort.deserializer, timeoutMillis);
+    }
 
     @Override
     protected void _doPortsEnumerate(@Nonnull final Datapath datapath,
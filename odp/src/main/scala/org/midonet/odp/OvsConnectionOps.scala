@@ -54,6 +54,9 @@ class OvsConnectionOps(val ovsCon: OvsDatapathConnection) {
     def setPort(port: DpPort, dp: Datapath) =
         toFuture[DpPort] { ovsCon portsSet(port, dp, _) }
 
+    def setPortUpcallPids(port: DpPort, dp: Datapath, upcallPids: Array[Int]) =
+        toFuture[DpPort] { ovsCon portsSetUpcallPids(port, dp, upcallPids, _) }
+
     def getPort(name: String, dp: Datapath) =
         toFuture[DpPort] { ovsCon portsGet(name, dp, _) }
 
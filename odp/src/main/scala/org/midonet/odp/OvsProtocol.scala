@@ -113,6 +113,23 @@ sealed class OvsProtocol(pid: Int,
     def prepareDpPortDelete(datapathId: Int, port: DpPort, buf: ByteBuffer): Unit =
         portRequest(buf, datapathId, port, portFamily.contextDel)
 
+    /**
+     * Prepares a request that sets the list of netlink PIDs that receive the
+     * upcalls of a port. The datapath distributes the upcalls of the port
+     * among these PIDs by flow hash.
+     */
+    def prepareDpPortSetUpcallPids(datapathId: Int, port: DpPort,
+                                   upcallPids: Array[Int],
+                                   buf: ByteBuffer): Unit = {
+        import org.midonet.odp.OpenVSwitch.Port.Attr
+
+        val message = messageFor(buf, datapathId, portFamily.contextSet)
+            .withFlags(NLFlag.REQUEST | NLFlag.ECHO)
+        NetlinkMessage.writeIntArrayAttr(buf, Attr.UpcallPID, upcallPids)
+        port.serializeInto(buf)
+        message.finalize(pid)
+    }
+
     private def portRequest(buf: ByteBuffer, datapathId: Int, port: DpPort,
                             ctx: NetlinkRequestContext): Unit = {
         import org.midonet.odp.OpenVSwitch.Port.Attr
@@ -200,7 +217,7 @@ sealed class OvsProtocol(pid: Int,
         // only the expected difference.
         NetlinkMessage.writeAttrSeq(buf, Attr.Key, packet.getMatch.getKeys, FlowKeys.writer)
         NetlinkMessage.writeAttrSeq(buf, Attr.Actions, actions, FlowActions.writer)
-        NetlinkMessage.writeRawAttribute(buf, Attr.Packet, packet.getEthernet.serialize())
+        NetlinkMessage.writeRawAttribute(buf, Attr.Packet, packet.getData)
 
         message.finalize(pid)
     }
@@ -16,6 +16,7 @@
 
 package org.midonet.odp
 
+import java.nio.ByteBuffer
 import java.{util => ju}
 import java.util.concurrent.{ThreadLocalRandom, TimeUnit}
 
@@ -134,6 +135,57 @@ class PacketExecute extends OvsBenchmark {
         channel.writer.write(pktExec)
 }
 
+object PacketExecuteBatch {
+    final val PACKETS = 64
+}
+
+/**
+ * Measures the packets per second executed when the packet executes are
+ * written one by one, with a batch size of 1, or packed into batches of
+ * several Netlink messages written at once.
+ */
+@BenchmarkMode(Array(Mode.Throughput))
+@OutputTimeUnit(TimeUnit.SECONDS)
+@OperationsPerInvocation(PacketExecuteBatch.PACKETS)
+class PacketExecuteBatch extends OvsBenchmark {
+    import PacketExecuteBatch._
+
+    @Param(Array("1", "4", "16", "64"))
+    var batchSize: Int = _
+
+    var batch: ByteBuffer = _
+
+    @Setup
+    def createPackets(channel: ChannelHolder): Unit = {
+        val payload = ({ eth src MAC.random dst MAC.random } <<
+                       { ip4 src IPv4Addr.random dst IPv4Addr.random} <<
+                       { tcp src 80 dst 1001 }).packet
+        val wcmatch = FlowMatches.fromEthernetPacket(payload)
+        val pkt = new Packet(payload, wcmatch)
+        val actions = List[FlowAction](FlowActions.output(port.getPortNo))
+        val pktExec = BytesUtil.instance.allocateDirect(4 * 1024)
+        channel.protocol.preparePacketExecute(datapath.getIndex, pkt, actions, pktExec)
+
+        batch = BytesUtil.instance.allocateDirect(pktExec.remaining() * batchSize)
+        for (i <- 0 until batchSize) {
+            batch.put(pktExec.duplicate())
+        }
+        batch.flip()
+    }
+
+    @Benchmark
+    def packetExecute(channel: ChannelHolder): Int = {
+        var written = 0
+        var i = 0
+        while (i < PACKETS) {
+            batch.position(0)
+            written += channel.writer.write(batch)
+            i += batchSize
+        }
+        written
+    }
+}
+
 class FlowCreate extends OvsBenchmark {
 
     @Benchmark
@@ -30,6 +30,7 @@ import org.midonet.packets.ICMP;
 import org.midonet.packets.IPv4;
 import org.midonet.packets.IPv4Addr;
 import org.midonet.packets.MAC;
+import org.midonet.packets.TCP;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.equalTo;
@@ -414,4 +415,41 @@ public class FlowMatchTest {
         m.getNetworkTTL();
         assertEquals(m.highestLayerSeen(), 4);
     }
+
+    @Test
+    public void testConnectionHashIsSymmetric() {
+        IPv4Addr ip1 = IPv4Addr.fromString("10.0.0.1");
+        IPv4Addr ip2 = IPv4Addr.fromString("10.0.0.2");
+        FlowMatch fwd = new FlowMatch()
+            .setNetworkSrc(ip1).setNetworkDst(ip2)
+            .setNetworkProto(TCP.PROTOCOL_NUMBER)
+            .setSrcPort(40000).setDstPort(80);
+        FlowMatch ret = new FlowMatch()
+            .setNetworkSrc(ip2).setNetworkDst(ip1)
+            .setNetworkProto(TCP.PROTOCOL_NUMBER)
+            .setSrcPort(80).setDstPort(40000);
+        FlowMatch other = new FlowMatch()
+            .setNetworkSrc(ip1).setNetworkDst(ip2)
+            .setNetworkProto(TCP.PROTOCOL_NUMBER)
+            .setSrcPort(80).setDstPort(40000);
+
+        assertEquals(fwd.connectionHash(), ret.connectionHash());
+        assertTrue(fwd.connectionHash() != other.connectionHash());
+        assertEquals(fwd.connectionHash(),
+                     FlowMatch.connectionHash(ip2.hashCode(), 80,
+                                              ip1.hashCode(), 40000,
+                                              TCP.PROTOCOL_NUMBER));
+
+        FlowMatch request = new FlowMatch()
+            .setNetworkSrc(ip1).setNetworkDst(ip2)
+            .setNetworkProto(ICMP.PROTOCOL_NUMBER)
+            .setSrcPort(ICMP.TYPE_ECHO_REQUEST).setDstPort(ICMP.CODE_NONE)
+            .setIcmpIdentifier((short) 40000);
+        FlowMatch reply = new FlowMatch()
+            .setNetworkSrc(ip2).setNetworkDst(ip1)
+            .setNetworkProto(ICMP.PROTOCOL_NUMBER)
+            .setSrcPort(ICMP.TYPE_ECHO_REPLY).setDstPort(ICMP.CODE_NONE)
+            .setIcmpIdentifier((short) 40000);
+        assertEquals(request.connectionHash(), reply.connectionHash());
+    }
 }
@@ -64,9 +64,15 @@ public class OvsPacketInTest extends AbstractNetlinkProtocolTest {
         for (int i = 0; i < 5; i++) {
             notificationHandler.setPacket(null);
             fireReply();
-            assertThat(notificationHandler.getPacket(),
+            Packet packet = notificationHandler.getPacket();
+            assertThat("The frame is not parsed on upcall",
+                       packet.isParsed(), is(false));
+            assertThat("The raw frame is kept as is", packet.getData(),
+                       equalTo(expectedArpPacket().getData()));
+            assertThat(packet,
                        allOf(
                            is(notNullValue()), equalTo(expectedArpPacket())));
+            assertThat(packet.isParsed(), is(true));
         }
     }
 
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.odp
+
+import org.junit.runner.RunWith
+import org.scalatest._
+import org.scalatest.junit.JUnitRunner
+
+import org.midonet.netlink.{BytesUtil, NLFlag, NetlinkMessage}
+import org.midonet.odp.OpenVSwitch.Port.{Attr, Cmd, Type}
+import org.midonet.odp.family._
+import org.midonet.odp.ports.NetDevPort
+
+@RunWith(classOf[JUnitRunner])
+class OvsProtocolTest extends FunSpec with Matchers {
+
+    val pid = 42
+    val datapathId = 7
+
+    val families = new OvsNetlinkFamilies(new DatapathFamily(0),
+                                          new PortFamily(0),
+                                          new FlowFamily(0),
+                                          new PacketFamily(0), 0, 0)
+    val protocol = new OvsProtocol(pid, families)
+
+    describe("The request setting the upcall PIDs of a port") {
+
+        it("carries all the PIDs in a single attribute") {
+            val buf = BytesUtil.instance allocate 256
+            val upcallPids = Array(11, 12, 13)
+            protocol.prepareDpPortSetUpcallPids(datapathId,
+                                                new NetDevPort("pids"),
+                                                upcallPids, buf)
+
+            // header
+            buf.getInt(NetlinkMessage.NLMSG_LEN_OFFSET) shouldBe buf.limit
+            buf.getShort(NetlinkMessage.NLMSG_FLAGS_OFFSET) shouldBe
+                (NLFlag.REQUEST | NLFlag.ECHO)
+            buf.getInt(NetlinkMessage.NLMSG_PID_OFFSET) shouldBe pid
+            buf.get(NetlinkMessage.GENL_CMD_OFFSET) shouldBe Cmd.Set
+
+            buf.position(NetlinkMessage.GENL_HEADER_SIZE)
+            buf.getInt() shouldBe datapathId
+
+            // upcall PIDs: len=2b + id=2b + 3 * value=4b
+            buf.getShort() shouldBe 16
+            buf.getShort() shouldBe Attr.UpcallPID
+            upcallPids foreach { buf.getInt() shouldBe _ }
+
+            // name: len=2b + id=2b + "pids\0"=5b, padded to 4B
+            buf.getShort() shouldBe 9
+            buf.getShort() shouldBe Attr.Name
+            val name = new Array[Byte](5)
+            buf.get(name)
+            new String(name, "ASCII") shouldBe "pids\u0000"
+            (0 until 3) foreach { _ => buf.get() shouldBe 0 }
+
+            // type
+            buf.getShort() shouldBe 8
+            buf.getShort() shouldBe Attr.Type
+            buf.getInt() shouldBe Type.Netdev
+
+            buf.remaining shouldBe 0
+        }
+
+        it("keeps the following attributes 4B aligned for a single PID") {
+            val buf = BytesUtil.instance allocate 256
+            protocol.prepareDpPortSetUpcallPids(datapathId,
+                                                new NetDevPort("pids"),
+                                                Array(11), buf)
+
+            buf.position(NetlinkMessage.GENL_HEADER_SIZE + 4)
+            buf.getShort() shouldBe 8
+            buf.getShort() shouldBe Attr.UpcallPID
+            buf.getInt() shouldBe 11
+            (buf.position & 3) shouldBe 0
+            buf.getInt(NetlinkMessage.seekAttribute(buf, Attr.Type)) shouldBe
+                Type.Netdev
+        }
+    }
+}
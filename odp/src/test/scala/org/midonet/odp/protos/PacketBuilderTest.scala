@@ -0,0 +1,147 @@
+/*
+ * Copyright 2015 Midokura SARL
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.midonet.odp.protos
+
+import java.nio.{ByteBuffer, ByteOrder}
+
+import scala.collection.JavaConverters._
+
+import org.junit.runner.RunWith
+import org.scalatest._
+import org.scalatest.junit.JUnitRunner
+
+import org.midonet.netlink.{BytesUtil, NetlinkMessage}
+import org.midonet.odp.OpenVSwitch.Packet.Attr
+import org.midonet.odp.flows._
+import org.midonet.packets.{Data, Ethernet, ICMP, IPv4, IPv4Addr, MAC}
+import org.midonet.packets.util.PacketBuilder._
+
+@RunWith(classOf[JUnitRunner])
+class PacketBuilderTest extends FunSpec with Matchers {
+
+    val srcMac = "01:02:03:04:05:06"
+    val dstMac = "10:20:30:40:50:60"
+    val srcIp = "10.0.0.1"
+    val dstIp = "10.0.0.2"
+
+    def upcall(frame: Array[Byte], keys: Seq[FlowKey]): ByteBuffer = {
+        val buf = BytesUtil.instance allocate 2048
+        buf.putInt(0) // datapath index
+        NetlinkMessage.writeRawAttribute(buf, Attr.Packet, frame)
+        NetlinkMessage.writeAttrSeq(buf, Attr.Key, keys.asJava, FlowKeys.writer)
+        buf.flip()
+        buf
+    }
+
+    def frameBuffer(frame: Array[Byte]) =
+        ByteBuffer.wrap(frame).order(ByteOrder.BIG_ENDIAN)
+
+    val ipKeys = Seq[FlowKey](
+        FlowKeys.inPort(1),
+        FlowKeys.ethernet(MAC.fromString(srcMac).getAddress,
+                          MAC.fromString(dstMac).getAddress),
+        FlowKeys.etherType(FlowKeyEtherType.Type.ETH_P_IP),
+        FlowKeys.ipv4(IPv4Addr.fromString(srcIp), IPv4Addr.fromString(dstIp),
+                      IpProtocol.ICMP))
+
+    describe("The well-formedness check of a frame") {
+
+        it("accepts a complete VLAN tagged frame") {
+            val frame: Ethernet =
+                { eth addr srcMac -> dstMac vlan 10 } <<
+                { ip4 addr srcIp --> dstIp } <<
+                { udp ports 10000 ---> 80 }
+            OvsDatapathConnectionImpl.PacketBuilder.isWellFormed(
+                frameBuffer(frame.serialize())) shouldBe true
+        }
+
+        it("rejects a frame truncated in its VLAN tag") {
+            val frame: Ethernet =
+                { eth addr srcMac -> dstMac vlan 10 } <<
+                { ip4 addr srcIp --> dstIp }
+            // The MAC addresses, the TPID, the TCI, and half the ether type
+            val bytes = frame.serialize().take(17)
+            OvsDatapathConnectionImpl.PacketBuilder.isWellFormed(
+                frameBuffer(bytes)) shouldBe false
+
+            val builder = new OvsDatapathConnectionImpl.PacketBuilder
+            builder.buildFrom(upcall(bytes, ipKeys)) shouldBe null
+        }
+
+        it("rejects a frame shorter than the ethernet header") {
+            val bytes = new Array[Byte](Ethernet.MIN_HEADER_LEN - 1)
+            OvsDatapathConnectionImpl.PacketBuilder.isWellFormed(
+                frameBuffer(bytes)) shouldBe false
+        }
+
+        it("accepts an IPv4 frame truncated in the IPv4 header") {
+            val frame: Ethernet =
+                { eth addr srcMac -> dstMac } <<
+                { ip4 addr srcIp --> dstIp } <<
+                { udp ports 10000 ---> 80 }
+            // The IPv4 header is cut after 10 bytes, which the deserializer
+            // keeps as the raw payload of the frame.
+            val bytes = frame.serialize().take(Ethernet.MIN_HEADER_LEN + 10)
+            OvsDatapathConnectionImpl.PacketBuilder.isWellFormed(
+                frameBuffer(bytes)) shouldBe true
+
+            val builder = new OvsDatapathConnectionImpl.PacketBuilder
+            val packet = builder.buildFrom(upcall(bytes, ipKeys))
+            packet.getEthernet.getEtherType shouldBe IPv4.ETHERTYPE
+            packet.getEthernet.getPayload.isInstanceOf[Data] shouldBe true
+        }
+    }
+
+    describe("The packet built from an upcall") {
+
+        it("keeps the frame unparsed when the keys are all from the kernel") {
+            val frame: Ethernet =
+                { eth addr srcMac -> dstMac } <<
+                { ip4 addr srcIp --> dstIp } <<
+                { udp ports 10000 ---> 80 }
+            val bytes = frame.serialize()
+
+            val builder = new OvsDatapathConnectionImpl.PacketBuilder
+            val packet = builder.buildFrom(upcall(bytes, ipKeys))
+
+            packet.isParsed shouldBe false
+            packet.getData shouldBe bytes
+            packet.isParsed shouldBe false
+
+            packet.getEthernet shouldBe frame
+            packet.isParsed shouldBe true
+        }
+
+        it("parses the frame right away for an ICMP key") {
+            val frame: Ethernet =
+                { eth addr srcMac -> dstMac } <<
+                { ip4 addr srcIp --> dstIp } <<
+                { icmp.echo.request id 23 seq 32 }
+            val keys = ipKeys :+ FlowKeys.icmp(ICMP.TYPE_ECHO_REQUEST,
+                                               ICMP.CODE_NONE)
+
+            val builder = new OvsDatapathConnectionImpl.PacketBuilder
+            val packet = builder.buildFrom(upcall(frame.serialize(), keys))
+
+            packet.isParsed shouldBe true
+            packet.getEthernet shouldBe frame
+            val echoKeys = packet.getMatch.getKeys.asScala filter {
+                _.isInstanceOf[FlowKeyICMPEcho] }
+            echoKeys should have size 1
+            packet.getMatch.getIcmpIdentifier shouldBe 23
+        }
+    }
+}